@@ -0,0 +1,102 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.jnrfuse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jnr.ffi.Runtime;
+import ru.serce.jnrfuse.struct.FileStat;
+import se.tfiskgul.mux2fs.fs.base.AttributeCache;
+import se.tfiskgul.mux2fs.fs.base.RawStat;
+import se.tfiskgul.mux2fs.fs.base.StatProvider;
+
+/**
+ * NIO versus native lstat, both bare and all the way into a FUSE stat struct the way getattr and readdir do it.
+ *
+ * Run with: ./gradlew :core:jmh -Pjmh='StatBenchmark -prof gc' to see the allocation rates as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatBenchmark {
+
+	@Param({ "nio", "native" })
+	private String provider;
+	private Path file;
+	private StatProvider statProvider;
+	private RawStat rawStat;
+	private JnrFuseUnixFileStat unixFileStat;
+	private FileStat fuseStat;
+
+	@Setup(Level.Trial)
+	public void setup()
+			throws IOException {
+		file = Files.createTempFile("mux2fs-stat", ".mkv");
+		statProvider = provider.equals("native") ? NativeStatProvider.load().get() : StatProvider.nio();
+		rawStat = new RawStat();
+		unixFileStat = new JnrFuseUnixFileStat(new AttributeCache(0, TimeUnit.MILLISECONDS, 0, statProvider));
+		fuseStat = new FileStat(Runtime.getSystemRuntime());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+			throws IOException {
+		Files.delete(file);
+	}
+
+	@Benchmark
+	public RawStat lstat()
+			throws IOException {
+		statProvider.lstat(file, rawStat);
+		return rawStat;
+	}
+
+	@Benchmark
+	public FileStat getattr()
+			throws IOException {
+		unixFileStat.stat(file);
+		unixFileStat.fill(fuseStat);
+		return fuseStat;
+	}
+}
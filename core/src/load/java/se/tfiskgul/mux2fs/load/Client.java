@@ -0,0 +1,132 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.load;
+
+import static se.tfiskgul.mux2fs.Constants.SUCCESS;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import se.tfiskgul.mux2fs.fs.base.FileSystem;
+import se.tfiskgul.mux2fs.fs.base.UnixFileStatImpl;
+
+/**
+ * One simulated user of the file system, doing its thing over and over until the deadline.
+ */
+abstract class Client implements Runnable {
+
+	static final int CHUNK_SIZE = 128 * 1024; // What FUSE reads at a time, by default
+	protected final FileSystem fs;
+	protected final List<String> files;
+	protected final Stats stats;
+	private final long deadline;
+
+	protected Client(FileSystem fs, List<String> files, Stats stats, long deadline) {
+		this.fs = fs;
+		this.files = files;
+		this.stats = stats;
+		this.deadline = deadline;
+	}
+
+	@Override
+	public void run() {
+		while (!isDone()) {
+			try {
+				once(files.get(ThreadLocalRandom.current().nextInt(files.size())));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (RuntimeException e) {
+				stats.errors.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Opens, uses and releases one file
+	 */
+	protected abstract void once(String path)
+			throws InterruptedException;
+
+	protected boolean isDone() {
+		return System.nanoTime() >= deadline || Thread.currentThread().isInterrupted();
+	}
+
+	/**
+	 * @return The size, muxed or estimated, or -1 if it failed
+	 */
+	protected long getattr(String path) {
+		UnixFileStatImpl stat = new UnixFileStatImpl() {
+		};
+		if (fs.getattr(path, stat) != SUCCESS) {
+			stats.errors.incrementAndGet();
+			return -1;
+		}
+		return stat.getSize();
+	}
+
+	/**
+	 * @return The file handle, or -1 if the open failed
+	 */
+	protected int open(String path) {
+		AtomicInteger fileHandle = new AtomicInteger(-1);
+		if (fs.open(path, fileHandle::set) != SUCCESS) {
+			stats.errors.incrementAndGet();
+			return -1;
+		}
+		stats.opens.incrementAndGet();
+		return fileHandle.get();
+	}
+
+	/**
+	 * @param latencies
+	 *            Where to record how long the read took, if anywhere
+	 * @return Bytes read, 0 at the end of the file, or negative on errors
+	 */
+	protected int read(String path, long offset, int fileHandle, Optional<Latencies> latencies) {
+		AtomicReference<byte[]> buffer = new AtomicReference<>();
+		long start = System.nanoTime();
+		int read = fs.read(path, buffer::set, CHUNK_SIZE, offset, fileHandle);
+		long elapsed = System.nanoTime() - start;
+		latencies.ifPresent(recorded -> recorded.record(elapsed));
+		if (read < 0) {
+			stats.errors.incrementAndGet();
+		} else {
+			stats.bytes.addAndGet(read);
+		}
+		return read;
+	}
+
+	protected static void sleepUntil(long nanoTime)
+			throws InterruptedException {
+		long remaining = nanoTime - System.nanoTime();
+		if (remaining > 0) {
+			TimeUnit.NANOSECONDS.sleep(remaining);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.load;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Latencies recorded by many clients at once, summarized as percentiles once they are done.
+ */
+@ThreadSafe
+class Latencies {
+
+	private final Queue<Long> nanos = new ConcurrentLinkedQueue<>();
+
+	void record(long elapsedNanos) {
+		nanos.add(elapsedNanos);
+	}
+
+	int count() {
+		return nanos.size();
+	}
+
+	/**
+	 * @param percentile
+	 *            0 - 100, where 100 is the maximum
+	 * @return Milliseconds, or 0 if nothing was recorded
+	 */
+	double percentile(double percentile) {
+		long[] sorted = nanos.stream().mapToLong(Long::longValue).toArray();
+		if (sorted.length == 0) {
+			return 0;
+		}
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+}
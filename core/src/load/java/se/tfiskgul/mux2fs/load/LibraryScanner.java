@@ -0,0 +1,90 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.load;
+
+import static se.tfiskgul.mux2fs.Constants.SUCCESS;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import se.tfiskgul.mux2fs.fs.base.DirectoryFiller;
+import se.tfiskgul.mux2fs.fs.base.FileSystem;
+
+/**
+ * Walks the whole library like a media scanner, listing it and then reading the headers of every .mkv. Each file scanned counts as one scan.
+ */
+class LibraryScanner extends Client {
+
+	LibraryScanner(FileSystem fs, List<String> files, Stats stats, long deadline) {
+		super(fs, files, stats, deadline);
+	}
+
+	@Override
+	protected void once(String ignored) {
+		for (String path : list()) {
+			if (isDone()) {
+				return;
+			}
+			long start = System.nanoTime();
+			if (getattr(path) < 0) {
+				continue;
+			}
+			int fileHandle = open(path);
+			if (fileHandle < 0) {
+				continue;
+			}
+			try {
+				read(path, 0, fileHandle, Optional.empty()); // Counted as part of the scan
+			} finally {
+				fs.release(path, fileHandle);
+			}
+			stats.scans.record(System.nanoTime() - start);
+		}
+	}
+
+	private List<String> list() {
+		List<String> paths = new ArrayList<>();
+		DirectoryFiller filler = new DirectoryFiller() {
+
+			@Override
+			public int add(String name, Path path) {
+				if (name.endsWith(".mkv")) {
+					paths.add("/" + name);
+				}
+				return SUCCESS;
+			}
+
+			@Override
+			public int addWithExtraSize(String name, Path path, long extraSize) {
+				return add(name, path);
+			}
+		};
+		if (fs.readdir("/", filler) != SUCCESS) {
+			stats.errors.incrementAndGet();
+		}
+		return paths;
+	}
+}
@@ -0,0 +1,225 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.load;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+
+import se.tfiskgul.mux2fs.fs.mux.MuxFs;
+import se.tfiskgul.mux2fs.mux.LaunchProfiles;
+import se.tfiskgul.mux2fs.mux.MuxBackend;
+import se.tfiskgul.mux2fs.mux.Muxer.MuxerFactory;
+import se.tfiskgul.mux2fs.mux.Muxer.Priority;
+import se.tfiskgul.mux2fs.mux.TempTiers;
+
+/**
+ * Drives MuxFs, through the same FileSystem interface FUSE does, with a mix of players, seekers and library scanners. The number of clients
+ * ramps up step by step, each step against a fresh MuxFs so every step pays for its own muxing, and reports how time to first byte, read
+ * latencies and stalls change with the load.
+ *
+ * Run with: ./gradlew :core:load -Pload='-clients 1,4,16,30 -seconds 60'. Use -mux_script 'mkvmerge --gui-mode -o "$3" "$1" "$2"' and
+ * -source for a real library muxed by mkvmerge.
+ */
+public class LoadGenerator {
+
+	private static final int MEGABYTE = 1024 * 1024;
+	private static final long GRACE_SECONDS = 60; // For clients to finish their last read once the step is over
+	private final Options options;
+
+	enum Kind {
+		PLAYER, SEEKER, SCANNER
+	}
+
+	static class Options {
+
+		@Parameter(names = "-clients", description = "comma separated client counts to ramp through")
+		private String clients = "1,2,4,8,16,32";
+		@Parameter(names = "-seconds", description = "seconds per step")
+		private int seconds = 30;
+		@Parameter(names = "-players", description = "share of the clients playing files from start to end")
+		private int players = 6;
+		@Parameter(names = "-seekers", description = "share of the clients seeking in files")
+		private int seekers = 2;
+		@Parameter(names = "-scanners", description = "share of the clients scanning the library")
+		private int scanners = 1;
+		@Parameter(names = "-bitrate", description = "Mbit/s the players play at")
+		private int bitrate = 20;
+		@Parameter(names = "-buffer", description = "seconds the players buffer ahead")
+		private int buffer = 2;
+		@Parameter(names = "-source", description = "directory with .mkv and .srt files, instead of generated ones")
+		private String source;
+		@Parameter(names = "-files", description = "number of files to generate")
+		private int files = 8;
+		@Parameter(names = "-file_size", description = "MB per generated file")
+		private int fileSize = 64;
+		@Parameter(names = "-mux_rate", description = "MB/s the fake mkvmerge muxes at, 0 for as fast as possible")
+		private double muxRate = 200;
+		@Parameter(names = "-mux_script", description = "shell script to mux $1 and $2 into $3 with, instead of the fake mkvmerge")
+		private String muxScript;
+		@Parameter(names = { "-h", "--help" }, help = true, description = "show this help")
+		private boolean help;
+	}
+
+	LoadGenerator(Options options) {
+		this.options = options;
+	}
+
+	public static void main(String[] args)
+			throws IOException, InterruptedException {
+		Options options = new Options();
+		JCommander jCommander = JCommander.newBuilder().addObject(options).programName("load").build();
+		jCommander.parse(args);
+		if (options.help) {
+			jCommander.usage();
+			return;
+		}
+		new LoadGenerator(options).run(System.out::println);
+	}
+
+	void run(Consumer<String> reporter)
+			throws IOException, InterruptedException {
+		Path root = Files.createTempDirectory("mux2fs-load");
+		try {
+			Path source = options.source != null ? Paths.get(options.source) : generate(Files.createDirectory(root.resolve("source")));
+			Path temp = Files.createDirectory(root.resolve("temp"));
+			MuxBackend backend = options.muxScript != null ? new ScriptBackend(options.muxScript) : ScriptBackend.throttledCopy(options.muxRate);
+			List<String> files = list(source);
+			if (files.isEmpty()) {
+				throw new IllegalArgumentException("No .mkv files in " + source);
+			}
+			reporter.accept(Stats.HEADER);
+			for (String clients : options.clients.split(",")) {
+				reporter.accept(step(Integer.parseInt(clients.trim()), source, temp, backend, files));
+			}
+		} finally {
+			try (Stream<Path> paths = Files.walk(root)) {
+				paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+			}
+		}
+	}
+
+	private String step(int clients, Path source, Path temp, MuxBackend backend, List<String> files)
+			throws InterruptedException {
+		MuxFs fs = new MuxFs(source, TempTiers.single(temp), MuxerFactory.withProfiles(LaunchProfiles.defaults(), Priority.INTERACTIVE, backend),
+				new MuxFs.Options());
+		Stats stats = new Stats();
+		ExecutorService pool = Executors.newFixedThreadPool(clients);
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.SECONDS.toNanos(options.seconds);
+		try {
+			List<Kind> kinds = mix(clients, options.players, options.seekers, options.scanners);
+			for (Kind kind : kinds) {
+				pool.execute(client(kind, fs, files, stats, deadline));
+			}
+			pool.shutdown();
+			if (!pool.awaitTermination(options.seconds + GRACE_SECONDS, TimeUnit.SECONDS)) {
+				stats.errors.incrementAndGet(); // Someone is stuck
+			}
+			return stats.report(clients, System.nanoTime() - start);
+		} finally {
+			pool.shutdownNow();
+			fs.destroy();
+		}
+	}
+
+	private Client client(Kind kind, MuxFs fs, List<String> files, Stats stats, long deadline) {
+		switch (kind) {
+			case PLAYER:
+				return new Player(fs, files, stats, deadline, options.bitrate, TimeUnit.SECONDS.toNanos(options.buffer));
+			case SEEKER:
+				return new Seeker(fs, files, stats, deadline);
+			default:
+				return new LibraryScanner(fs, files, stats, deadline);
+		}
+	}
+
+	/**
+	 * Spreads the kinds by their shares, so that even the first few clients are as close to the mix as it gets.
+	 */
+	static List<Kind> mix(int clients, int players, int seekers, int scanners) {
+		int[] shares = { players, seekers, scanners };
+		int total = players + seekers + scanners;
+		if (total <= 0) {
+			throw new IllegalArgumentException("No clients in the mix");
+		}
+		int[] assigned = new int[shares.length];
+		List<Kind> kinds = new ArrayList<>();
+		for (int client = 0; client < clients; client++) {
+			int next = 0;
+			for (int kind = 1; kind < shares.length; kind++) { // Whoever is furthest behind their share
+				if ((long) shares[kind] * (client + 1) - (long) assigned[kind] * total > (long) shares[next] * (client + 1)
+						- (long) assigned[next] * total) {
+					next = kind;
+				}
+			}
+			assigned[next]++;
+			kinds.add(Kind.values()[next]);
+		}
+		return kinds;
+	}
+
+	private List<String> list(Path source)
+			throws IOException {
+		try (Stream<Path> paths = Files.list(source)) {
+			return paths.map(path -> path.getFileName().toString()).filter(name -> name.endsWith(".mkv")).map(name -> "/" + name).sorted()
+					.collect(toList());
+		}
+	}
+
+	/**
+	 * Writes files of random content, each with a subtitle to mux with
+	 */
+	private Path generate(Path source)
+			throws IOException {
+		byte[] block = new byte[MEGABYTE];
+		for (int file = 0; file < options.files; file++) {
+			ThreadLocalRandom.current().nextBytes(block);
+			try (OutputStream out = Files.newOutputStream(source.resolve("file" + file + ".mkv"))) {
+				for (int megabyte = 0; megabyte < options.fileSize; megabyte++) {
+					out.write(block);
+				}
+			}
+			Files.write(source.resolve("file" + file + ".srt"), ("1\n00:00:01,000 --> 00:00:02,000\nFile " + file + "\n").getBytes(UTF_8));
+		}
+		return source;
+	}
+}
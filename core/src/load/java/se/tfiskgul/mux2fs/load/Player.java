@@ -0,0 +1,80 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.load;
+
+import java.util.List;
+import java.util.Optional;
+
+import se.tfiskgul.mux2fs.fs.base.FileSystem;
+
+/**
+ * Plays a file from start to end at a constant bitrate, staying a buffer ahead of playback. Every read that arrives after playback needed it
+ * is a stall, after which playback resumes from where it stalled.
+ */
+class Player extends Client {
+
+	private final long chunkNanos;
+	private final long bufferNanos;
+
+	Player(FileSystem fs, List<String> files, Stats stats, long deadline, int megabitsPerSecond, long bufferNanos) {
+		super(fs, files, stats, deadline);
+		this.chunkNanos = CHUNK_SIZE * 8L * 1000 / megabitsPerSecond; // 1 Mbit/s is 1 bit per us
+		this.bufferNanos = bufferNanos;
+	}
+
+	@Override
+	protected void once(String path)
+			throws InterruptedException {
+		long opened = System.nanoTime();
+		int fileHandle = open(path);
+		if (fileHandle < 0) {
+			return;
+		}
+		try {
+			long offset = 0;
+			long playing = 0; // When playback started, pushed forward by every stall
+			for (long chunk = 0; !isDone(); chunk++) {
+				long due = playing + chunk * chunkNanos;
+				if (chunk > 0) {
+					sleepUntil(due - bufferNanos);
+				}
+				int read = read(path, offset, fileHandle, Optional.of(stats.reads));
+				if (read <= 0) {
+					return;
+				}
+				long now = System.nanoTime();
+				if (chunk == 0) {
+					stats.timeToFirstByte.record(now - opened);
+					playing = now + bufferNanos; // Starts playing once the buffer is full
+				} else if (now > due) {
+					stats.stalls.incrementAndGet();
+					playing += now - due;
+				}
+				offset += read;
+			}
+		} finally {
+			fs.release(path, fileHandle);
+		}
+	}
+}
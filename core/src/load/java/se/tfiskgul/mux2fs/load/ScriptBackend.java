@@ -0,0 +1,73 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.load;
+
+import java.nio.file.Path;
+import java.util.Locale;
+
+import se.tfiskgul.mux2fs.mux.MuxBackend;
+import se.tfiskgul.mux2fs.mux.MuxProgress;
+
+/**
+ * A fake mkvmerge, in the form of a shell script given the .mkv, the .srt and the output as $1, $2 and $3. Lines printed the way mkvmerge
+ * --gui-mode does, such as "#GUI#progress 42%", are parsed as progress.
+ */
+class ScriptBackend implements MuxBackend {
+
+	private final String script;
+
+	ScriptBackend(String script) {
+		this.script = script;
+	}
+
+	/**
+	 * Copies the .mkv one MB at a time, at most megabytesPerSecond, then appends the .srt. Unthrottled if megabytesPerSecond is 0.
+	 */
+	static ScriptBackend throttledCopy(double megabytesPerSecond) {
+		String pause = megabytesPerSecond > 0 ? String.format(Locale.ROOT, "sleep %.4f; ", 1 / megabytesPerSecond) : "";
+		return new ScriptBackend("exec 3>&1; { size=$(stat -c %s \"$1\"); chunks=$(( (size + 1048575) / 1048576 )); i=0; " //
+				+ "while [ $i -lt $chunks ]; do dd if=\"$1\" bs=1048576 skip=$i count=1 2>/dev/null; i=$((i + 1)); " //
+				+ "echo \"#GUI#progress $((i * 100 / chunks))%\" >&3; " + pause + "done; cat \"$2\"; } > \"$3\"");
+	}
+
+	@Override
+	public String getName() {
+		return "script";
+	}
+
+	@Override
+	public String[] command(Path mkv, Path srt, Path output) {
+		return new String[] { "sh", "-c", script, "sh", mkv.toString(), srt.toString(), output.toString() };
+	}
+
+	@Override
+	public void parse(String line, MuxProgress progress, long estimatedSize) {
+		progress.accept(line);
+	}
+
+	@Override
+	public String toString() {
+		return "ScriptBackend [script=" + script + "]";
+	}
+}
@@ -0,0 +1,74 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.load;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import se.tfiskgul.mux2fs.fs.base.FileSystem;
+
+/**
+ * Jumps around in a file, the way someone looking for a scene does, with a pause between every jump.
+ */
+class Seeker extends Client {
+
+	private static final int SEEKS = 8;
+	private static final long PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+	Seeker(FileSystem fs, List<String> files, Stats stats, long deadline) {
+		super(fs, files, stats, deadline);
+	}
+
+	@Override
+	protected void once(String path)
+			throws InterruptedException {
+		long size = getattr(path);
+		if (size <= 0) {
+			return;
+		}
+		long opened = System.nanoTime();
+		int fileHandle = open(path);
+		if (fileHandle < 0) {
+			return;
+		}
+		try {
+			for (int seek = 0; seek < SEEKS && !isDone(); seek++) {
+				if (seek > 0) {
+					sleepUntil(System.nanoTime() + PAUSE_NANOS);
+				}
+				long offset = ThreadLocalRandom.current().nextLong(size);
+				if (read(path, offset, fileHandle, Optional.of(stats.reads)) < 0) {
+					return;
+				}
+				if (seek == 0) {
+					stats.timeToFirstByte.record(System.nanoTime() - opened);
+				}
+			}
+		} finally {
+			fs.release(path, fileHandle);
+		}
+	}
+}
@@ -0,0 +1,57 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.load;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * What all clients of one step of the ramp saw.
+ */
+@ThreadSafe
+class Stats {
+
+	static final String HEADER = String.format("%7s %6s %8s %8s %7s %8s %8s %8s %8s %6s %8s %8s %6s %6s %8s", "clients", "opens", "ttfb p50", "ttfb p99",
+			"reads", "read p50", "read p90", "read p99", "read max", "scans", "scan p50", "scan p99", "stalls", "errors", "MB/s");
+	final Latencies timeToFirstByte = new Latencies();
+	final Latencies reads = new Latencies(); // By players and seekers, scanners only count whole files
+	final Latencies scans = new Latencies();
+	final AtomicInteger opens = new AtomicInteger();
+	final AtomicInteger stalls = new AtomicInteger();
+	final AtomicInteger errors = new AtomicInteger();
+	final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * @return One line to go under the HEADER, times in milliseconds
+	 */
+	String report(int clients, long elapsedNanos) {
+		double megabytesPerSecond = bytes.get() / (1024.0 * 1024.0) / (elapsedNanos / 1e9);
+		return String.format("%7d %6d %8.1f %8.1f %7d %8.1f %8.1f %8.1f %8.1f %6d %8.1f %8.1f %6d %6d %8.1f", clients, opens.get(),
+				timeToFirstByte.percentile(50), timeToFirstByte.percentile(99), reads.count(), reads.percentile(50), reads.percentile(90),
+				reads.percentile(99), reads.percentile(100), scans.count(), scans.percentile(50), scans.percentile(99), stalls.get(), errors.get(),
+				megabytesPerSecond);
+	}
+}
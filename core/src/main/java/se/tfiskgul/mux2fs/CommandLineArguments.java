@@ -25,16 +25,28 @@ package se.tfiskgul.mux2fs;
 
 import static com.google.common.collect.ImmutableList.toImmutableList;
 import static java.util.stream.Collectors.toList;
+import static se.tfiskgul.mux2fs.Constants.ATTRIBUTE_CACHE_SIZE;
+import static se.tfiskgul.mux2fs.Constants.BLOCK_CACHE_BLOCK_SIZE;
+import static se.tfiskgul.mux2fs.Constants.DEFAULT_ATTRIBUTE_CACHE_TTL_MS;
+import static se.tfiskgul.mux2fs.Constants.DEFAULT_CHANNEL_BUDGET;
+import static se.tfiskgul.mux2fs.Constants.DEFAULT_NEGATIVE_LOOKUP_TTL_MS;
+import static se.tfiskgul.mux2fs.Constants.DEFAULT_READ_BUFFER_BUDGET;
+import static se.tfiskgul.mux2fs.Constants.MAX_READ_BUFFER_SIZE;
+import static se.tfiskgul.mux2fs.Constants.MEGABYTE;
+import static se.tfiskgul.mux2fs.Constants.WARM_JOBS_PER_DISK;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 import java.util.stream.Stream;
@@ -52,6 +64,23 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableList.Builder;
 
+import se.tfiskgul.mux2fs.fs.base.AttributeCache;
+import se.tfiskgul.mux2fs.fs.base.BlockCache;
+import se.tfiskgul.mux2fs.fs.base.BufferPool;
+import se.tfiskgul.mux2fs.fs.base.HedgedReads;
+import se.tfiskgul.mux2fs.fs.base.NegativeLookupCache;
+import se.tfiskgul.mux2fs.fs.base.PageCache;
+import se.tfiskgul.mux2fs.fs.base.StatProvider;
+import se.tfiskgul.mux2fs.fs.mux.ArrivalWatcher;
+import se.tfiskgul.mux2fs.fs.mux.ArrivalWatcher.Premuxer;
+import se.tfiskgul.mux2fs.mux.LaunchProfile;
+import se.tfiskgul.mux2fs.mux.LaunchProfiles;
+import se.tfiskgul.mux2fs.mux.MuxBackend;
+import se.tfiskgul.mux2fs.mux.MuxCache;
+import se.tfiskgul.mux2fs.mux.Muxer.Priority;
+import se.tfiskgul.mux2fs.mux.TempTiers;
+import se.tfiskgul.mux2fs.mux.TempTiers.Tier;
+
 public class CommandLineArguments {
 
 	private static final Logger logger = LoggerFactory.getLogger(CommandLineArguments.class);
@@ -59,6 +88,8 @@ public class CommandLineArguments {
 	private static final String USAGE = "" //
 			+ "Usage: mux2fs source mountpoint -o tempdir=<tempdir>,[options]\n" //
 			+ "Usage: mux2fs --source source --target mountpoint --tempdir tempdir [options]\n" //
+			+ "Usage: mux2fs warm source cachedir -o tempdir=<tempdir>,[options]\n" //
+			+ "Usage: mux2fs compare source scratchdir -o tempdir=<tempdir>,[options]\n" //
 			+ "Try `mux2fs -h' or `mux2fs --help' for more information.";
 	private final FileSystem filesystem;
 
@@ -130,6 +161,10 @@ public class CommandLineArguments {
 		private List<String> options;
 		private ImmutableList<String> passThroughOptions;
 		private ImmutableList<String> fuseOptions;
+		private ImmutableList<Tier> tempTiers = ImmutableList.of();
+		private ImmutableList<Path> tempShards = ImmutableList.of();
+		private Optional<Path> muxCache = Optional.empty();
+		private Options mountOptions = new Options();
 
 		public Path getTempDir() {
 			return tempDir;
@@ -146,6 +181,10 @@ public class CommandLineArguments {
 				}
 			}
 			validateDirectoryExists(tempDir);
+			tempTiers.forEach(tier -> validateDirectoryExists(tier.getDirectory()));
+			tempShards.forEach(CommandLineArguments::validateDirectoryExists);
+			muxCache.ifPresent(CommandLineArguments::validateDirectoryExists);
+			getMuxBackend();
 		}
 
 		@VisibleForTesting
@@ -156,6 +195,107 @@ public class CommandLineArguments {
 		public List<String> getFuseOptions() {
 			return fuseOptions;
 		}
+
+		public Priority getMuxPriority() {
+			return mountOptions.muxPriority;
+		}
+
+		/**
+		 * Read buffers are sized to fit FUSE max_read, if it is larger than the default
+		 */
+		public BufferPool getBufferPool() {
+			int maxRead = passThroughOptions == null ? 0
+					: passThroughOptions.stream().filter(o -> o.startsWith("max_read=")).map(o -> Integer.parseInt(o.substring("max_read=".length())))
+							.reduce(0, Math::max);
+			int maxBufferSize = Math.max(MAX_READ_BUFFER_SIZE, Integer.highestOneBit(Math.max(maxRead - 1, 1)) << 1);
+			return new BufferPool(maxBufferSize, mountOptions.readBufferBudget * MEGABYTE);
+		}
+
+		public AttributeCache getAttributeCache(StatProvider statProvider) {
+			return new AttributeCache(mountOptions.attributeCacheTtl, TimeUnit.MILLISECONDS, ATTRIBUTE_CACHE_SIZE, statProvider);
+		}
+
+		public NegativeLookupCache getNegativeLookupCache() {
+			return new NegativeLookupCache(mountOptions.negativeLookupTtl, TimeUnit.MILLISECONDS);
+		}
+
+		public BlockCache getBlockCache() {
+			return new BlockCache(BLOCK_CACHE_BLOCK_SIZE, mountOptions.blockCacheSize * MEGABYTE);
+		}
+
+		/**
+		 * Hedged reads use the same buffers as ordinary reads
+		 */
+		public HedgedReads getHedgedReads(BufferPool bufferPool) {
+			return new HedgedReads(mountOptions.readDeadline, TimeUnit.MILLISECONDS, mountOptions.hedgePercentile, bufferPool);
+		}
+
+		/**
+		 * The temp_tier options in front of the temp dir, in the order given. The temp dir is sharded with any temp_shard options.
+		 */
+		public TempTiers getTempTiers() {
+			return new TempTiers(tempTiers, ImmutableList.<Path> builder().add(tempDir).addAll(tempShards).build());
+		}
+
+		public int getChannelBudget() {
+			return mountOptions.channelBudget;
+		}
+
+		public boolean isDeferMux() {
+			return mountOptions.deferMux;
+		}
+
+		/**
+		 * Pre-muxing of new arrivals in the source tree, if enabled
+		 */
+		public Optional<ArrivalWatcher> getArrivalWatcher(Premuxer premuxer) {
+			if (mountOptions.premuxAfter <= 0) {
+				return Optional.empty();
+			}
+			return Optional.of(new ArrivalWatcher(getSource(), mountOptions.premuxAfter, mountOptions.premuxRescan, TimeUnit.SECONDS, premuxer));
+		}
+
+		public long getPremuxBudget() {
+			return mountOptions.premuxBudget * MEGABYTE;
+		}
+
+		public MuxCache getMuxCache() {
+			return muxCache.map(MuxCache::new).orElseGet(MuxCache::disabled);
+		}
+
+		public boolean isPreallocate() {
+			return mountOptions.preallocate;
+		}
+
+		public MuxBackend getMuxBackend() {
+			return MuxBackend.named(mountOptions.muxBackend);
+		}
+
+		/**
+		 * The target is the cache directory when warming
+		 */
+		public int getWarmJobs() {
+			if (mountOptions.warmJobs > 0) {
+				return mountOptions.warmJobs;
+			}
+			long disks = 1;
+			try {
+				disks = Files.getFileStore(getSource()).equals(Files.getFileStore(getTarget())) ? 1 : 2;
+			} catch (IOException e) {
+				logger.debug("Unable to tell the disks apart, assuming one", e);
+			}
+			return (int) Math.min(Runtime.getRuntime().availableProcessors(), WARM_JOBS_PER_DISK * disks);
+		}
+
+		public PageCache.Policy getPageCachePolicy() {
+			return mountOptions.pageCachePolicy;
+		}
+
+		public LaunchProfiles getLaunchProfiles() {
+			return new LaunchProfiles(new LaunchProfile(mountOptions.interactiveNice, mountOptions.interactiveIonice),
+					new LaunchProfile(mountOptions.backgroundNice, mountOptions.backgroundIonice), Optional.ofNullable(mountOptions.cgroup),
+					mountOptions.backgroundWeight);
+		}
 	}
 
 	private static class Lax extends Shared {
@@ -173,6 +313,56 @@ public class CommandLineArguments {
 		private boolean rw; // This is not actual rw support, it is only to "absorb" the flag and ignore it.
 		@Parameter(names = "-tempdir")
 		private String tempdir;
+		@Parameter(names = "-mux_priority")
+		private Priority muxPriority = Priority.INTERACTIVE;
+		@Parameter(names = "-interactive_nice")
+		private int interactiveNice = LaunchProfile.normal().getNice();
+		@Parameter(names = "-interactive_ionice")
+		private int interactiveIonice = LaunchProfile.normal().getIoniceClass();
+		@Parameter(names = "-background_nice")
+		private int backgroundNice = LaunchProfile.idle().getNice();
+		@Parameter(names = "-background_ionice")
+		private int backgroundIonice = LaunchProfile.idle().getIoniceClass();
+		@Parameter(names = "-cgroup")
+		private Path cgroup;
+		@Parameter(names = "-background_weight")
+		private int backgroundWeight = LaunchProfiles.DEFAULT_BACKGROUND_WEIGHT;
+		@Parameter(names = "-read_buffer_budget", description = "MB")
+		private int readBufferBudget = (int) (DEFAULT_READ_BUFFER_BUDGET / MEGABYTE);
+		@Parameter(names = "-attr_cache_ttl", description = "ms")
+		private int attributeCacheTtl = DEFAULT_ATTRIBUTE_CACHE_TTL_MS;
+		@Parameter(names = "-negative_ttl", description = "ms, 0 disables")
+		private int negativeLookupTtl = DEFAULT_NEGATIVE_LOOKUP_TTL_MS;
+		@Parameter(names = "-block_cache", description = "MB, 0 disables")
+		private int blockCacheSize = 0;
+		@Parameter(names = "-read_deadline", description = "ms, 0 disables")
+		private int readDeadline = 0;
+		@Parameter(names = "-hedge_percentile", description = "of read latency after which to hedge, 0 disables")
+		private int hedgePercentile = 0;
+		@Parameter(names = "-channel_budget", description = "open files kept by mux2fs")
+		private int channelBudget = DEFAULT_CHANNEL_BUDGET;
+		@Parameter(names = "-temp_tier", description = "<directory>:<MB>, fastest first, may be given several times")
+		private List<String> tempTiers = new ArrayList<>();
+		@Parameter(names = "-temp_shard", description = "<directory> to mux into besides the temp dir, may be given several times")
+		private List<String> tempShards = new ArrayList<>();
+		@Parameter(names = "-defer_mux", description = "start muxing on the first read instead of on open")
+		private boolean deferMux;
+		@Parameter(names = "-premux_after", description = "s without changes before a new .mkv and .srt pair is pre-muxed, 0 disables")
+		private int premuxAfter = 0;
+		@Parameter(names = "-premux_rescan", description = "s between walks of the source tree for changes missed by the watcher, 0 disables")
+		private int premuxRescan = 600;
+		@Parameter(names = "-premux_budget", description = "MB of temp space pre-muxed and closed muxes may use")
+		private int premuxBudget = 10 * 1024;
+		@Parameter(names = "-mux_cache", description = "<directory> with muxed files from earlier, such as from mux2fs warm")
+		private String muxCache;
+		@Parameter(names = "-warm_jobs", description = "muxes at once for mux2fs warm, 0 for two per disk up to the number of cores")
+		private int warmJobs = 0;
+		@Parameter(names = "-mux_backend", description = "program to mux with, mkvmerge or ffmpeg")
+		private String muxBackend = "mkvmerge";
+		@Parameter(names = "-preallocate", description = "reserve the estimated size of mux outputs on disk up front")
+		private boolean preallocate;
+		@Parameter(names = "-page_cache")
+		private PageCache.Policy pageCachePolicy = PageCache.Policy.NONE;
 	}
 
 	private static void validateDirectoryExists(Path directory) {
@@ -193,10 +383,23 @@ public class CommandLineArguments {
 			Builder<String> builder = ImmutableList.<String> builder();
 			strict.passThroughOptions.forEach((option) -> builder.add("-o").add(option));
 			strict.fuseOptions = builder.build();
+			strict.mountOptions = options;
+			strict.tempTiers = options.tempTiers.stream().map(this::parseTier).collect(toImmutableList());
+			strict.tempShards = options.tempShards.stream().map(filesystem::getPath).collect(toImmutableList());
+			strict.muxCache = Optional.ofNullable(options.muxCache).map(filesystem::getPath);
 		}
 		return strict;
 	}
 
+	private Tier parseTier(String option) {
+		int separator = option.lastIndexOf(':');
+		try {
+			return new Tier(filesystem.getPath(option.substring(0, separator)), Long.parseLong(option.substring(separator + 1)) * MEGABYTE);
+		} catch (RuntimeException e) {
+			throw new ParameterException("temp_tier must be <directory>:<MB>, was " + option, e);
+		}
+	}
+
 	private Optional<CommandLineArguments.Strict> tryStrictParse(List<String> args) {
 		Strict strict = new Strict();
 		try {
@@ -31,11 +31,29 @@ public final class Constants {
 	public static final int FILE_HANDLE_START_NO = 32;
 	public static final int SUCCESS = 0;
 	public static final int MUX_WAIT_LOOP_MS = 500;
+	public static final int PROCESS_REAP_INTERVAL_MS = 100;
+	public static final int DEFAULT_ATTRIBUTE_CACHE_TTL_MS = 2000;
+	public static final int ATTRIBUTE_CACHE_SIZE = 10000;
+	public static final int DEFAULT_NEGATIVE_LOOKUP_TTL_MS = 30000;
+	public static final int NEGATIVE_LOOKUP_RECHECK_MS = 1000;
+	public static final int NEGATIVE_LOOKUP_CACHE_SIZE = 10000;
+	public static final int DEFAULT_CHANNEL_BUDGET = 256;
+	public static final int HEDGE_LATENCY_SAMPLES = 1024;
+	public static final int HEDGE_MIN_DELAY_MS = 1;
+	public static final int HEDGE_THREADS = 32;
+	public static final int HEDGE_QUEUE_SIZE = 64;
 	// Sizes
 	public static final long KILOBYTE = 1024;
 	public static final long MEGABYTE = 1024 * KILOBYTE;
 	public static final long GIGABYTE = 1024 * MEGABYTE;
-	public static final int THREAD_BUF_SIZE = (int) (128 * KILOBYTE);
+	public static final int MIN_READ_BUFFER_SIZE = (int) (128 * KILOBYTE);
+	public static final int MAX_READ_BUFFER_SIZE = (int) MEGABYTE;
+	public static final long DEFAULT_READ_BUFFER_BUDGET = 64 * MEGABYTE;
+	public static final int PROCESS_READ_CHUNK_SIZE = (int) (4 * KILOBYTE);
+	public static final long PAGE_CACHE_DROP_BEHIND_WINDOW = 8 * MEGABYTE;
+	public static final int BLOCK_CACHE_BLOCK_SIZE = (int) (128 * KILOBYTE);
+	public static final int WARM_JOBS_PER_DISK = 2;
+	public static final long PREALLOCATE_POLL_MS = 20;
 
 	private Constants() {
 		throw new AssertionError();
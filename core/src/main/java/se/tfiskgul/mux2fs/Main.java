@@ -24,27 +24,57 @@ SOFTWARE.
 package se.tfiskgul.mux2fs;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Optional;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import se.tfiskgul.mux2fs.CommandLineArguments.Strict;
 import se.tfiskgul.mux2fs.fs.jnrfuse.FileSystemSafetyWrapper;
+import se.tfiskgul.mux2fs.fs.base.AttributeCache;
+import se.tfiskgul.mux2fs.fs.base.BufferPool;
+import se.tfiskgul.mux2fs.fs.base.PageCache;
+import se.tfiskgul.mux2fs.fs.base.StatProvider;
 import se.tfiskgul.mux2fs.fs.jnrfuse.JnrFuseWrapperFileSystem;
+import se.tfiskgul.mux2fs.fs.jnrfuse.NativeStatProvider;
+import se.tfiskgul.mux2fs.fs.jnrfuse.PosixFadvisor;
+import se.tfiskgul.mux2fs.fs.jnrfuse.PosixFallocator;
+import se.tfiskgul.mux2fs.fs.mux.ArrivalWatcher;
+import se.tfiskgul.mux2fs.fs.mux.BackendComparison;
 import se.tfiskgul.mux2fs.fs.mux.MuxFs;
+import se.tfiskgul.mux2fs.fs.mux.Warmer;
+import se.tfiskgul.mux2fs.mux.LaunchProfiles;
+import se.tfiskgul.mux2fs.mux.MuxBackend;
+import se.tfiskgul.mux2fs.mux.MuxCache;
+import se.tfiskgul.mux2fs.mux.Muxer.MuxerFactory;
+import se.tfiskgul.mux2fs.mux.Muxer.Priority;
+import se.tfiskgul.mux2fs.mux.Preallocator;
+import se.tfiskgul.mux2fs.mux.TrackInspector;
 
 public abstract class Main {
 
 	private static final Logger logger = LoggerFactory.getLogger(Main.class);
+	private static final String WARM = "warm";
+	private static final String COMPARE = "compare";
 
 	public static void main(String[] args)
 			throws IOException {
 		try {
-			Strict arguments = new CommandLineArguments().parse(args);
+			String command = args.length > 0 && (WARM.equals(args[0]) || COMPARE.equals(args[0])) ? args[0] : null;
+			Strict arguments = new CommandLineArguments().parse(command != null ? Arrays.copyOfRange(args, 1, args.length) : args);
 			if (arguments.isHelp()) {
 				System.out.println(arguments.getHelp());
 			} else if (arguments.isVersion()) {
 				System.out.println("mux2fs version " + arguments.getVersion());
+			} else if (WARM.equals(command)) {
+				arguments.validate();
+				if (!warm(arguments)) {
+					System.exit(1);
+				}
+			} else if (COMPARE.equals(command)) {
+				arguments.validate();
+				compare(arguments);
 			} else {
 				arguments.validate();
 				mount(arguments);
@@ -55,14 +85,75 @@ public abstract class Main {
 		}
 	}
 
+	/**
+	 * Muxes the source into the target directory, for later mounts to use as their mux_cache
+	 */
+	private static boolean warm(Strict arguments)
+			throws IOException {
+		LaunchProfiles profiles = arguments.getLaunchProfiles().prepare();
+		MuxerFactory factory = MuxerFactory.withProfiles(profiles, arguments.getMuxPriority(), arguments.getMuxBackend(), preallocator(arguments));
+		Warmer warmer = new Warmer(new MuxCache(arguments.getTarget()), factory, new TrackInspector(), arguments.getWarmJobs());
+		try {
+			return warmer.warm(arguments.getSource(), System.out::println);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			logger.info("{}", warmer);
+		}
+	}
+
+	/**
+	 * Muxes the source with every backend into the target directory, which is left empty afterwards
+	 */
+	private static void compare(Strict arguments)
+			throws IOException {
+		LaunchProfiles profiles = arguments.getLaunchProfiles().prepare();
+		try {
+			new BackendComparison(MuxBackend.builtin(), profiles, arguments.getMuxPriority(), arguments.getTarget()).compare(arguments.getSource(),
+					System.out::println);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static Preallocator preallocator(Strict arguments) {
+		if (!arguments.isPreallocate()) {
+			return Preallocator.disabled();
+		}
+		return PosixFallocator.load().map(Preallocator::new).orElseGet(Preallocator::disabled);
+	}
+
 	private static void mount(Strict arguments) {
-		MuxFs fs = new MuxFs(arguments.getSource(), arguments.getTempDir());
-		FileSystemSafetyWrapper wrapped = new FileSystemSafetyWrapper(new JnrFuseWrapperFileSystem(fs));
+		LaunchProfiles profiles = arguments.getLaunchProfiles().prepare();
+		logger.info("Muxing at {} priority with {}", arguments.getMuxPriority(), profiles);
+		PageCache pageCache = PosixFadvisor.load().map(fadvisor -> new PageCache(arguments.getPageCachePolicy(), fadvisor)).orElseGet(PageCache::disabled);
+		BufferPool bufferPool = arguments.getBufferPool();
+		MuxBackend backend = arguments.getMuxBackend();
+		Preallocator preallocator = preallocator(arguments);
+		MuxFs.Options options = new MuxFs.Options() //
+				.pageCache(pageCache) //
+				.bufferPool(bufferPool) //
+				.negativeLookups(arguments.getNegativeLookupCache()) //
+				.blockCache(arguments.getBlockCache()) //
+				.hedgedReads(arguments.getHedgedReads(bufferPool)) //
+				.channelBudget(arguments.getChannelBudget()) //
+				.deferMux(arguments.isDeferMux()) //
+				.muxCache(arguments.getMuxCache());
+		MuxFs fs = new MuxFs(arguments.getSource(), arguments.getTempTiers(),
+				MuxerFactory.withProfiles(profiles, arguments.getMuxPriority(), backend, preallocator), options);
+		MuxerFactory background = MuxerFactory.withProfiles(profiles, Priority.BACKGROUND, backend, preallocator);
+		Optional<ArrivalWatcher> watcher = arguments.getArrivalWatcher(mkv -> fs.premux(mkv, background, arguments.getPremuxBudget()));
+		AttributeCache attributeCache = arguments.getAttributeCache(NativeStatProvider.load().orElseGet(StatProvider::nio));
+		FileSystemSafetyWrapper wrapped = new FileSystemSafetyWrapper(new JnrFuseWrapperFileSystem(fs, attributeCache));
 		try {
 			logger.debug("Fuse options {}", arguments.getFuseOptions());
+			watcher.ifPresent(ArrivalWatcher::start);
 			wrapped.mount(arguments.getTarget(), true, false, arguments.getFuseOptions().toArray(new String[arguments.getFuseOptions().size()]));
 		} finally {
+			watcher.ifPresent(ArrivalWatcher::stop);
 			wrapped.umount();
+			logger.info("{}", attributeCache);
 		}
 	}
 }
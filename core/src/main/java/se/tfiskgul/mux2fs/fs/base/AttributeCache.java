@@ -0,0 +1,91 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.base;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Short lived cache of raw file attributes.
+ *
+ * readdir stats every entry, and the kernel follows up with getattr for the very same entries, since readdir stats are not used for lookups. With
+ * this, the second stat is served from memory.
+ */
+@ThreadSafe
+public class AttributeCache {
+
+	private final Cache<Path, RawStat> cache;
+	private final StatProvider statProvider;
+	private final boolean enabled;
+
+	public AttributeCache(long ttl, TimeUnit unit, long maximumSize) {
+		this(ttl, unit, maximumSize, StatProvider.nio());
+	}
+
+	public AttributeCache(long ttl, TimeUnit unit, long maximumSize, StatProvider statProvider) {
+		this.cache = CacheBuilder.newBuilder().expireAfterWrite(ttl, unit).maximumSize(maximumSize).recordStats().build();
+		this.statProvider = statProvider;
+		this.enabled = ttl > 0 && maximumSize > 0;
+	}
+
+	public static AttributeCache disabled() {
+		return new AttributeCache(0, TimeUnit.MILLISECONDS, 0);
+	}
+
+	/**
+	 * lstat(2) of the path into the given stat, possibly from the cache. Only a miss with the cache enabled allocates, for the cached copy.
+	 */
+	public RawStat stat(Path path, RawStat stat)
+			throws IOException {
+		RawStat cached = cache.getIfPresent(path);
+		if (cached != null) {
+			return stat.copyFrom(cached);
+		}
+		statProvider.lstat(path, stat);
+		if (enabled) {
+			cache.put(path, new RawStat().copyFrom(stat));
+		}
+		return stat;
+	}
+
+	public void invalidate(Path path) {
+		cache.invalidate(path);
+	}
+
+	public CacheStats getStats() {
+		return cache.stats();
+	}
+
+	@Override
+	public String toString() {
+		return "AttributeCache [statProvider=" + statProvider + ", size=" + cache.size() + ", " + cache.stats() + "]";
+	}
+}
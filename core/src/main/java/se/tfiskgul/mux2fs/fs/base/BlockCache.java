@@ -0,0 +1,359 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.base;
+
+import static se.tfiskgul.mux2fs.Constants.BLOCK_CACHE_BLOCK_SIZE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Mount wide cache of fixed size blocks of file content, in direct memory, for several readers of the same file.
+ *
+ * Blocks are keyed by an identity of the content, which must change whenever the content does, and the block index. Eviction is segmented LRU: new
+ * blocks go on probation, and only blocks read again make it to the protected segment, so a single pass over a large file can only evict other blocks
+ * on probation. Concurrent misses for the same block wait for one read instead of all going to the backend.
+ */
+@ThreadSafe
+public class BlockCache {
+
+	@FunctionalInterface
+	public interface BlockReader {
+
+		/**
+		 * Same as FileChannel.read(ByteBuffer, long)
+		 */
+		int read(ByteBuffer target, long position)
+				throws IOException;
+	}
+
+	private static final double PROTECTED_SHARE = 0.8;
+	private final int blockSize;
+	private final int capacity;
+	private final int protectedCapacity;
+	private final Object lock = new Object();
+	@GuardedBy("lock")
+	private final LinkedHashMap<Key, Block> probation = new LinkedHashMap<>(16, 0.75f, true);
+	@GuardedBy("lock")
+	private final LinkedHashMap<Key, Block> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+	@GuardedBy("lock")
+	private final Deque<ByteBuffer> free = new ArrayDeque<>();
+	@GuardedBy("lock")
+	private int allocated;
+	private final ConcurrentMap<Key, CompletableFuture<Void>> loading = new ConcurrentHashMap<>();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder uncached = new LongAdder();
+
+	public BlockCache(int blockSize, long budget) {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("Block size must be positive, was " + blockSize);
+		}
+		this.blockSize = blockSize;
+		this.capacity = (int) Math.min(Integer.MAX_VALUE, budget / blockSize);
+		this.protectedCapacity = (int) (capacity * PROTECTED_SHARE);
+	}
+
+	public static BlockCache disabled() {
+		return new BlockCache(BLOCK_CACHE_BLOCK_SIZE, 0);
+	}
+
+	public boolean isEnabled() {
+		return capacity > 0;
+	}
+
+	/**
+	 * Reads through the cache, with the same contract as a FileChannel read: the data is handed to buf, and 0 means EOF, in which case buf is not
+	 * called.
+	 *
+	 * @param identity
+	 *            Identifies the content, see FileInfo
+	 * @return The number of bytes read
+	 */
+	public int read(Object identity, long offset, int size, Consumer<byte[]> buf, BlockReader reader)
+			throws IOException {
+		byte[] result = new byte[size];
+		int filled = 0;
+		while (filled < size) {
+			long position = offset + filled;
+			int within = (int) (position % blockSize);
+			Block block = acquire(new Key(identity, position / blockSize), reader);
+			try {
+				int copied = block.copy(within, result, filled, size - filled);
+				filled += copied;
+				if (copied == 0 || block.length < blockSize) {
+					break; // EOF
+				}
+			} finally {
+				release(block);
+			}
+		}
+		if (filled > 0) {
+			buf.accept(filled == size ? result : Arrays.copyOf(result, filled));
+		}
+		return filled;
+	}
+
+	private Block acquire(Key key, BlockReader reader)
+			throws IOException {
+		while (true) {
+			synchronized (lock) {
+				Block block = lookup(key);
+				if (block != null) {
+					block.pins++;
+					hits.increment();
+					return block;
+				}
+			}
+			CompletableFuture<Void> mine = new CompletableFuture<>();
+			CompletableFuture<Void> other = loading.putIfAbsent(key, mine);
+			if (other == null) {
+				misses.increment();
+				return load(key, reader, mine);
+			}
+			coalesced.increment();
+			await(other); // And then look it up again, it is very unlikely to be evicted already
+		}
+	}
+
+	private Block load(Key key, BlockReader reader, CompletableFuture<Void> done)
+			throws IOException {
+		ByteBuffer buffer;
+		synchronized (lock) {
+			Block loaded = lookup(key); // Loaded since the first look, and no longer loading
+			if (loaded != null) {
+				loaded.pins++;
+				loading.remove(key, done);
+				done.complete(null);
+				return loaded;
+			}
+			buffer = reserve();
+		}
+		boolean cached = buffer != null;
+		if (!cached) { // Everything is pinned
+			uncached.increment();
+			buffer = ByteBuffer.allocate(blockSize);
+		}
+		try {
+			Block block = new Block(key, buffer, fill(buffer, key.index * blockSize, reader));
+			block.pins++;
+			if (cached) {
+				synchronized (lock) {
+					probation.put(key, block);
+				}
+			}
+			return block;
+		} catch (IOException | RuntimeException e) {
+			if (cached) {
+				synchronized (lock) {
+					free.push(buffer);
+				}
+			}
+			done.completeExceptionally(e);
+			throw e;
+		} finally {
+			loading.remove(key, done);
+			done.complete(null);
+		}
+	}
+
+	private int fill(ByteBuffer buffer, long position, BlockReader reader)
+			throws IOException {
+		buffer.clear();
+		while (buffer.hasRemaining()) {
+			int read = reader.read(buffer, position + buffer.position());
+			if (read <= 0) {
+				break;
+			}
+		}
+		return buffer.position();
+	}
+
+	private void await(CompletableFuture<Void> other)
+			throws IOException {
+		try {
+			other.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	private void release(Block block) {
+		synchronized (lock) {
+			block.pins--;
+		}
+	}
+
+	@GuardedBy("lock")
+	private Block lookup(Key key) {
+		Block block = protectedSegment.get(key);
+		if (block != null) {
+			return block;
+		}
+		block = probation.remove(key);
+		if (block != null) { // Second hit, promote
+			protectedSegment.put(key, block);
+			if (protectedSegment.size() > protectedCapacity) {
+				Iterator<Block> eldest = protectedSegment.values().iterator();
+				Block demoted = eldest.next();
+				eldest.remove();
+				probation.put(demoted.key, demoted);
+			}
+		}
+		return block;
+	}
+
+	/**
+	 * @return A buffer for a new block, or null if the cache is full of pinned blocks
+	 */
+	@GuardedBy("lock")
+	private ByteBuffer reserve() {
+		if (!free.isEmpty()) {
+			return free.pop();
+		}
+		if (allocated < capacity) {
+			allocated++;
+			return ByteBuffer.allocateDirect(blockSize);
+		}
+		ByteBuffer evicted = evict(probation);
+		return evicted != null ? evicted : evict(protectedSegment);
+	}
+
+	@GuardedBy("lock")
+	private ByteBuffer evict(Map<Key, Block> segment) {
+		Iterator<Block> iterator = segment.values().iterator(); // Least recently used first
+		while (iterator.hasNext()) {
+			Block block = iterator.next();
+			if (block.pins == 0) {
+				iterator.remove();
+				evictions.increment();
+				return block.data;
+			}
+		}
+		return null;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getCoalesced() {
+		return coalesced.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	@Override
+	public String toString() {
+		synchronized (lock) {
+			return "BlockCache [blockSize=" + blockSize + ", capacity=" + capacity + ", probation=" + probation.size() + ", protected="
+					+ protectedSegment.size() + ", hits=" + hits + ", misses=" + misses + ", coalesced=" + coalesced + ", evictions=" + evictions
+					+ ", uncached=" + uncached + "]";
+		}
+	}
+
+	private static final class Block {
+
+		private final Key key;
+		private final ByteBuffer data;
+		private final int length;
+		@GuardedBy("lock")
+		private int pins;
+
+		private Block(Key key, ByteBuffer data, int length) {
+			this.key = key;
+			this.data = data;
+			this.length = length;
+		}
+
+		private int copy(int from, byte[] target, int targetOffset, int maxLength) {
+			int length = Math.min(this.length - from, maxLength);
+			if (length <= 0) {
+				return 0;
+			}
+			ByteBuffer view = data.duplicate();
+			view.position(from);
+			view.get(target, targetOffset, length);
+			return length;
+		}
+	}
+
+	private static final class Key {
+
+		private final Object identity;
+		private final long index;
+
+		private Key(Object identity, long index) {
+			this.identity = identity;
+			this.index = index;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(identity, index);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return index == other.index && Objects.equals(identity, other.identity);
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.base;
+
+import static se.tfiskgul.mux2fs.Constants.DEFAULT_READ_BUFFER_BUDGET;
+import static se.tfiskgul.mux2fs.Constants.MAX_READ_BUFFER_SIZE;
+import static se.tfiskgul.mux2fs.Constants.MIN_READ_BUFFER_SIZE;
+
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Direct buffers for reads, shared by all FUSE threads.
+ *
+ * Buffers come in power of two size classes from MIN_READ_BUFFER_SIZE up to a max size, and are never freed, only reused. The total size of all
+ * allocated buffers is capped by a budget. Requests that are too large, or that would exceed the budget, get a heap buffer instead, which is slower
+ * but always safe.
+ */
+@ThreadSafe
+public class BufferPool {
+
+	private final int maxBufferSize;
+	private final long budget;
+	private final Deque<ByteBuffer>[] free;
+	private final AtomicLong allocatedBytes = new AtomicLong();
+	private final LongAdder acquired = new LongAdder();
+	private final LongAdder reused = new LongAdder();
+	private final LongAdder heapFallbacks = new LongAdder();
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public BufferPool(int maxBufferSize, long budget) {
+		if (maxBufferSize < MIN_READ_BUFFER_SIZE || Integer.bitCount(maxBufferSize) != 1) {
+			throw new IllegalArgumentException("Max buffer size must be a power of two, at least " + MIN_READ_BUFFER_SIZE + ", was " + maxBufferSize);
+		}
+		this.maxBufferSize = maxBufferSize;
+		this.budget = budget;
+		this.free = new Deque[sizeClass(maxBufferSize) + 1];
+		for (int i = 0; i < free.length; i++) {
+			free[i] = new ConcurrentLinkedDeque<>();
+		}
+	}
+
+	public static BufferPool defaultPool() {
+		return new BufferPool(MAX_READ_BUFFER_SIZE, DEFAULT_READ_BUFFER_BUDGET);
+	}
+
+	/**
+	 * @return A cleared buffer with limit set to size. Must be handed back with release() once done.
+	 */
+	public ByteBuffer acquire(int size) {
+		acquired.increment();
+		if (size > maxBufferSize) {
+			return heapBuffer(size);
+		}
+		int sizeClass = sizeClass(size);
+		ByteBuffer buffer = free[sizeClass].pollFirst(); // Most recently used first, more likely to be in CPU caches
+		if (buffer != null) {
+			reused.increment();
+		} else {
+			buffer = allocate(MIN_READ_BUFFER_SIZE << sizeClass);
+			if (buffer == null) {
+				return heapBuffer(size);
+			}
+		}
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+
+	public void release(ByteBuffer buffer) {
+		if (buffer.isDirect()) {
+			free[sizeClass(buffer.capacity())].offerFirst(buffer);
+		}
+	}
+
+	private ByteBuffer allocate(int capacity) {
+		long current;
+		do {
+			current = allocatedBytes.get();
+			if (current + capacity > budget) {
+				return null;
+			}
+		} while (!allocatedBytes.compareAndSet(current, current + capacity));
+		return ByteBuffer.allocateDirect(capacity);
+	}
+
+	private ByteBuffer heapBuffer(int size) {
+		heapFallbacks.increment();
+		return ByteBuffer.allocate(size);
+	}
+
+	private static int sizeClass(int size) {
+		if (size <= MIN_READ_BUFFER_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_READ_BUFFER_SIZE);
+	}
+
+	public int getMaxBufferSize() {
+		return maxBufferSize;
+	}
+
+	public long getAllocatedBytes() {
+		return allocatedBytes.get();
+	}
+
+	public long getAcquired() {
+		return acquired.sum();
+	}
+
+	public long getReused() {
+		return reused.sum();
+	}
+
+	public long getHeapFallbacks() {
+		return heapFallbacks.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "BufferPool [maxBufferSize=" + maxBufferSize + ", budget=" + budget + ", allocatedBytes=" + allocatedBytes + ", acquired=" + acquired
+				+ ", reused=" + reused + ", heapFallbacks=" + heapFallbacks + "]";
+	}
+}
@@ -0,0 +1,349 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.base;
+
+import static java.util.Comparator.comparingLong;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import cyclops.control.Try;
+
+/**
+ * Hands out one FileChannel per real file, shared by all file handles that have it open, since positional reads need no per handle state.
+ *
+ * Channels are reference counted per open, and closed when the last handle is released. Above the budget of open channels, the least recently used
+ * channels with no reads in flight are closed, and transparently reopened on their next read.
+ */
+@ThreadSafe
+public class ChannelRegistry {
+
+	@FunctionalInterface
+	public interface ChannelOpener {
+
+		FileChannel open(Path path)
+				throws IOException;
+	}
+
+	@FunctionalInterface
+	public interface ChannelIdentifier {
+
+		/**
+		 * @return The identity of what was opened, comparable to the identity given to open(), typically the inode
+		 */
+		Object identify(Path path, FileChannel channel)
+				throws IOException;
+	}
+
+	private final ChannelOpener opener;
+	private final ChannelIdentifier identifier;
+	private final FileChannelCloser closer;
+	private final int budget;
+	private final ConcurrentMap<Key, SharedChannel> shared = new ConcurrentHashMap<>();
+	private final Set<SharedChannel> all = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger openChannels = new AtomicInteger();
+	private final LongAdder sharedOpens = new LongAdder();
+	private final LongAdder reopens = new LongAdder();
+	private final LongAdder idleCloses = new LongAdder();
+
+	public ChannelRegistry(ChannelOpener opener, FileChannelCloser closer, int budget) {
+		this(opener, (path, channel) -> FileInfo.of(path).getInode(), closer, budget); // Stat after open, a replaced file is never missed
+	}
+
+	public ChannelRegistry(ChannelOpener opener, ChannelIdentifier identifier, FileChannelCloser closer, int budget) {
+		if (budget < 1) {
+			throw new IllegalArgumentException("Channel budget must be positive, was " + budget);
+		}
+		this.opener = opener;
+		this.identifier = identifier;
+		this.closer = closer;
+		this.budget = budget;
+	}
+
+	/**
+	 * Opens the path, or shares a channel already open for it.
+	 *
+	 * @param identity
+	 *            What must not change for a channel to be shared, typically the inode. null never shares.
+	 */
+	public SharedChannel open(Path path, Object identity)
+			throws IOException {
+		if (identity == null) {
+			return opened(new SharedChannel(null, path, opener.open(path)));
+		}
+		Key key = new Key(path, identity);
+		SharedChannel existing = shared.computeIfPresent(key, (k, channel) -> share(channel));
+		if (existing != null) {
+			return existing;
+		}
+		SharedChannel created = new SharedChannel(key, path, opener.open(path)); // Not in compute(), a slow open would block the whole bin
+		SharedChannel channel = shared.compute(key, (k, raced) -> raced == null ? created : share(raced));
+		if (channel != created) {
+			closer.close(created.channel); // Another open won the race, and was never counted
+			return channel;
+		}
+		return opened(created);
+	}
+
+	private SharedChannel share(SharedChannel existing) {
+		existing.references++;
+		sharedOpens.increment();
+		return existing;
+	}
+
+	private SharedChannel opened(SharedChannel channel) {
+		all.add(channel);
+		openChannels.incrementAndGet();
+		enforceBudget(channel);
+		return channel;
+	}
+
+	/**
+	 * Drops one reference, closing the channel with the last one.
+	 */
+	public void release(SharedChannel channel) {
+		if (channel.key == null) {
+			close(channel);
+			return;
+		}
+		shared.computeIfPresent(channel.key, (key, existing) -> {
+			if (existing != channel || --existing.references > 0) {
+				return existing;
+			}
+			close(existing);
+			return null;
+		});
+	}
+
+	public void closeAll() {
+		all.forEach(this::close);
+		shared.clear();
+	}
+
+	private void close(SharedChannel channel) {
+		all.remove(channel);
+		channel.close();
+	}
+
+	private void enforceBudget(SharedChannel keep) {
+		int excess = openChannels.get() - budget;
+		if (excess > 0) {
+			all.stream().filter(channel -> channel != keep && channel.isOpen()).sorted(comparingLong(SharedChannel::getLastUsed)).limit(excess)
+					.filter(SharedChannel::closeIfIdle).forEach(channel -> idleCloses.increment());
+		}
+	}
+
+	public int getOpenChannels() {
+		return openChannels.get();
+	}
+
+	public long getSharedOpens() {
+		return sharedOpens.sum();
+	}
+
+	public long getReopens() {
+		return reopens.sum();
+	}
+
+	public long getIdleCloses() {
+		return idleCloses.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "ChannelRegistry [budget=" + budget + ", openChannels=" + openChannels + ", handles=" + all.size() + ", sharedOpens=" + sharedOpens
+				+ ", reopens=" + reopens + ", idleCloses=" + idleCloses + "]";
+	}
+
+	/**
+	 * One real file, open or temporarily closed, on behalf of one or more file handles.
+	 *
+	 * A file replaced while its channel was closed is never reopened, as the file handles must keep reading what they opened. It goes stale
+	 * instead, and fails all reads from then on.
+	 */
+	@ThreadSafe
+	public final class SharedChannel {
+
+		private final Key key;
+		private final Path path;
+		@GuardedBy("this")
+		private FileChannel channel;
+		@GuardedBy("this")
+		private int inFlight;
+		@GuardedBy("this")
+		private boolean released;
+		@GuardedBy("this")
+		private boolean stale;
+		// Guarded by the map entry in shared
+		private int references = 1;
+		private volatile long lastUsed = System.nanoTime();
+
+		private SharedChannel(Key key, Path path, FileChannel channel) {
+			this.key = key;
+			this.path = path;
+			this.channel = channel;
+		}
+
+		/**
+		 * Runs the function with the channel, reopening it first if it was closed for being idle. It is not closed while the function runs.
+		 */
+		public <T> T use(Try.CheckedFunction<FileChannel, T, IOException> function)
+				throws IOException {
+			FileChannel current = acquire();
+			try {
+				return function.apply(current);
+			} finally {
+				synchronized (this) {
+					inFlight--;
+				}
+			}
+		}
+
+		private FileChannel acquire()
+				throws IOException {
+			boolean reopened = false;
+			FileChannel current;
+			synchronized (this) {
+				if (released) {
+					throw new IOException("Channel for " + path + " is already released");
+				}
+				if (stale) {
+					throw new IOException(path + " was replaced since opened");
+				}
+				if (channel == null) {
+					channel = reopen();
+					openChannels.incrementAndGet();
+					reopens.increment();
+					reopened = true;
+				}
+				inFlight++;
+				current = channel;
+			}
+			lastUsed = System.nanoTime();
+			if (reopened) {
+				enforceBudget(this);
+			}
+			return current;
+		}
+
+		@GuardedBy("this")
+		private FileChannel reopen()
+				throws IOException {
+			FileChannel reopened = opener.open(path);
+			if (key == null) {
+				return reopened;
+			}
+			Object identity;
+			try {
+				identity = identifier.identify(path, reopened);
+			} catch (IOException e) {
+				closer.close(reopened);
+				throw e;
+			}
+			if (!key.identity.equals(identity)) {
+				closer.close(reopened);
+				stale = true;
+				throw new IOException(path + " was replaced since opened, was " + key.identity + " but is now " + identity);
+			}
+			return reopened;
+		}
+
+		private synchronized boolean isOpen() {
+			return channel != null;
+		}
+
+		private synchronized boolean closeIfIdle() {
+			if (channel == null || inFlight > 0) {
+				return false;
+			}
+			closeChannel();
+			return true;
+		}
+
+		private synchronized void close() {
+			released = true;
+			if (channel != null) {
+				closeChannel();
+			}
+		}
+
+		@GuardedBy("this")
+		private void closeChannel() {
+			closer.close(channel);
+			channel = null;
+			openChannels.decrementAndGet();
+		}
+
+		private long getLastUsed() {
+			return lastUsed;
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		@Override
+		public String toString() {
+			return "SharedChannel [path=" + path + ", references=" + references + ", open=" + isOpen() + "]";
+		}
+	}
+
+	private static final class Key {
+
+		private final Path path;
+		private final Object identity;
+
+		private Key(Path path, Object identity) {
+			this.path = path;
+			this.identity = identity;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(path, identity);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return Objects.equals(path, other.path) && Objects.equals(identity, other.identity);
+		}
+	}
+}
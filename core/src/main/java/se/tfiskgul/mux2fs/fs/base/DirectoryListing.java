@@ -0,0 +1,98 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.base;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A DirectoryFiller that only records the entries, in order, without stat'ing them.
+ *
+ * This is the snapshot behind an open directory. The kernel reads it in chunks, asking for the entries after the offset it got last, and the index
+ * of an entry plus one is its offset. Entries are stat'ed as they are handed out, so only what fits in the kernel buffer is stat'ed per call.
+ */
+@NotThreadSafe
+public class DirectoryListing implements DirectoryFiller {
+
+	private final List<Entry> entries = new ArrayList<>();
+
+	@Override
+	public int add(String name, Path path) {
+		return addWithExtraSize(name, path, 0);
+	}
+
+	@Override
+	public int addWithExtraSize(String name, Path path, long extraSize) {
+		entries.add(new Entry(name, path, extraSize));
+		return 0;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public Entry get(int index) {
+		return entries.get(index);
+	}
+
+	@Override
+	public String toString() {
+		return "DirectoryListing [size=" + entries.size() + "]";
+	}
+
+	@Immutable
+	public static final class Entry {
+
+		private final String name;
+		private final Path path;
+		private final long extraSize;
+
+		private Entry(String name, Path path, long extraSize) {
+			this.name = name;
+			this.path = path;
+			this.extraSize = extraSize;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		public long getExtraSize() {
+			return extraSize;
+		}
+
+		@Override
+		public String toString() {
+			return "Entry [name=" + name + ", path=" + path + ", extraSize=" + extraSize + "]";
+		}
+	}
+}
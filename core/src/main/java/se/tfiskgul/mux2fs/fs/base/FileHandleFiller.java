@@ -26,12 +26,37 @@ package se.tfiskgul.mux2fs.fs.base;
 @FunctionalInterface
 public interface FileHandleFiller {
 
+	/**
+	 * How the kernel should cache the contents of an opened file.
+	 */
+	enum Caching {
+		/**
+		 * Drop anything cached from earlier opens, then cache as usual
+		 */
+		DEFAULT,
+		/**
+		 * Keep what was cached from earlier opens, the contents are known to be the same
+		 */
+		KEEP_CACHE,
+		/**
+		 * Bypass the page cache, for files that are still growing
+		 */
+		DIRECT_IO
+	}
+
 	void setFileHandle(int fileHandle);
 
+	/**
+	 * Only a hint, which is ignored unless supported by the underlying file system.
+	 */
+	default void setCaching(Caching caching) {
+	}
+
 	public static class Recorder implements FileHandleFiller {
 
 		private final FileHandleFiller delegate;
 		private int fileHandle = -1;
+		private Caching caching = Caching.DEFAULT;
 
 		public static Recorder wrap(FileHandleFiller filler) {
 			return new Recorder(filler);
@@ -45,10 +70,20 @@ public interface FileHandleFiller {
 			return fileHandle;
 		}
 
+		public Caching getCaching() {
+			return caching;
+		}
+
 		@Override
 		public void setFileHandle(int fileHandle) {
 			this.fileHandle = fileHandle;
 			delegate.setFileHandle(fileHandle);
 		}
+
+		@Override
+		public void setCaching(Caching caching) {
+			this.caching = caching;
+			delegate.setCaching(caching);
+		}
 	}
 }
@@ -5,6 +5,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.Map;
 import java.util.Objects;
 
@@ -14,6 +15,8 @@ import javax.annotation.concurrent.Immutable;
  * Represents a unique way of identifying an unnamed file (including contents)
  *
  * If the file is modified, the mtime changes. If the meta data changes, ctime changes.
+ *
+ * Times are kept at microsecond precision, which is all java.nio reports on Java 8, so that infos from the NIO and native stat routes compare equal.
  */
 @Immutable
 public class FileInfo {
@@ -26,19 +29,23 @@ public class FileInfo {
 	public FileInfo(long inode, FileTime mtime, FileTime ctime, long size) {
 		super();
 		this.inode = inode;
-		this.mtime = mtime;
-		this.ctime = ctime;
+		this.mtime = truncate(mtime.toInstant());
+		this.ctime = truncate(ctime.toInstant());
 		this.size = size;
 	}
 
 	public FileInfo(long inode, Instant mtime, Instant ctime, long size) {
 		super();
 		this.inode = inode;
-		this.mtime = FileTime.from(mtime);
-		this.ctime = FileTime.from(ctime);
+		this.mtime = truncate(mtime);
+		this.ctime = truncate(ctime);
 		this.size = size;
 	}
 
+	private static FileTime truncate(Instant instant) {
+		return FileTime.from(instant.truncatedTo(ChronoUnit.MICROS));
+	}
+
 	public static FileInfo of(Path path)
 			throws IOException {
 		Map<String, Object> attributes = Files.readAttributes(path, "unix:*"); // Follow links in this case
@@ -0,0 +1,348 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.base;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static se.tfiskgul.mux2fs.Constants.HEDGE_LATENCY_SAMPLES;
+import static se.tfiskgul.mux2fs.Constants.HEDGE_MIN_DELAY_MS;
+import static se.tfiskgul.mux2fs.Constants.HEDGE_QUEUE_SIZE;
+import static se.tfiskgul.mux2fs.Constants.HEDGE_THREADS;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import se.tfiskgul.mux2fs.fs.base.BlockCache.BlockReader;
+
+/**
+ * Bounds the latency of reads from slow source storage.
+ *
+ * With a deadline, a read that has not completed in time fails with InterruptedIOException instead of blocking the FUSE thread. With hedging, a read
+ * that is slower than the given percentile of recent reads gets a second, hedged read of the same range through a spare channel, and whichever
+ * succeeds first is used. A read that fails is hedged at once. The percentile is measured continuously, so the hedge delay follows the storage
+ * without tuning.
+ *
+ * Reads run on a separate pool, into buffers of their own, since the loser may complete long after the caller has moved on. The pool is bounded,
+ * as reads stuck on a stalled mount keep their threads. Once it is full, reads are done on the calling thread without deadline or hedging.
+ */
+@ThreadSafe
+public class HedgedReads {
+
+	private static final int MIN_SAMPLES = 64;
+	private static final int RECALCULATE_EVERY = 64;
+	private final long deadlineNanos;
+	private final int percentile;
+	private final BufferPool buffers;
+	private final Executor executor;
+	private final AtomicLongArray latencies = new AtomicLongArray(HEDGE_LATENCY_SAMPLES);
+	private final AtomicLong samples = new AtomicLong();
+	private volatile long hedgeDelayNanos = Long.MAX_VALUE;
+	private final LongAdder reads = new LongAdder();
+	private final LongAdder hedged = new LongAdder();
+	private final LongAdder hedgeWins = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder saturated = new LongAdder();
+
+	/**
+	 * @param deadline
+	 *            0 for no deadline
+	 * @param percentile
+	 *            Of read latency after which to hedge, 0 for no hedging
+	 */
+	public HedgedReads(long deadline, TimeUnit unit, int percentile, BufferPool buffers) {
+		this(deadline, unit, percentile, buffers, boundedPool());
+	}
+
+	private static Executor boundedPool() {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(HEDGE_THREADS, HEDGE_THREADS, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(HEDGE_QUEUE_SIZE),
+				new ThreadFactoryBuilder().setNameFormat("hedged-read-%d").setDaemon(true).build());
+		pool.allowCoreThreadTimeOut(true);
+		return pool; // Rejects when full
+	}
+
+	@VisibleForTesting
+	HedgedReads(long deadline, TimeUnit unit, int percentile, BufferPool buffers, Executor executor) {
+		if (deadline < 0) {
+			throw new IllegalArgumentException("Read deadline must not be negative, was " + deadline);
+		}
+		if (percentile < 0 || percentile >= 100) {
+			throw new IllegalArgumentException("Hedge percentile must be within 0 - 99, was " + percentile);
+		}
+		this.deadlineNanos = unit.toNanos(deadline);
+		this.percentile = percentile;
+		this.buffers = buffers;
+		this.executor = executor;
+	}
+
+	public static HedgedReads disabled() {
+		return new HedgedReads(0, MILLISECONDS, 0, BufferPool.defaultPool(), Runnable::run);
+	}
+
+	public boolean isEnabled() {
+		return deadlineNanos > 0 || percentile > 0;
+	}
+
+	/**
+	 * Reads into target, with the same contract as FileChannel.read(ByteBuffer, long).
+	 *
+	 * @param primary
+	 *            Reads through the channel of the file handle
+	 * @param spare
+	 *            Reads through some other channel to the same file, only used for hedging
+	 */
+	public int read(ByteBuffer target, long position, BlockReader primary, BlockReader spare)
+			throws IOException {
+		if (!isEnabled()) {
+			return primary.read(target, position);
+		}
+		reads.increment();
+		long start = System.nanoTime();
+		int size = target.remaining();
+		CompletableFuture<Attempt> first;
+		try {
+			first = attempt(primary, size, position, start);
+		} catch (RejectedExecutionException e) {
+			saturated.increment();
+			return primary.read(target, position);
+		}
+		CompletableFuture<Attempt> second = null;
+		try {
+			Attempt winner = percentile > 0 ? awaitOrFailure(first, Math.min(hedgeDelayNanos, remaining(start))) : null;
+			if (winner == null && percentile > 0 && remaining(start) > 0) {
+				second = hedge(spare, size, position);
+			}
+			if (second != null) {
+				winner = await(firstSuccessful(first, second), remaining(start), true);
+				if (second.isDone() && !second.isCompletedExceptionally() && second.join() == winner) {
+					hedgeWins.increment();
+				}
+			} else if (winner == null) {
+				winner = await(first, remaining(start), true);
+			}
+			return winner.copyTo(target);
+		} finally {
+			discard(first);
+			if (second != null) {
+				discard(second);
+			}
+		}
+	}
+
+	private long remaining(long start) {
+		return deadlineNanos > 0 ? deadlineNanos - (System.nanoTime() - start) : Long.MAX_VALUE;
+	}
+
+	/**
+	 * @return The completed attempt, or null if it failed or did not complete in time
+	 */
+	private Attempt awaitOrFailure(CompletableFuture<Attempt> attempt, long timeoutNanos)
+			throws IOException {
+		try {
+			return await(attempt, timeoutNanos, false);
+		} catch (IOException e) {
+			if (!attempt.isCompletedExceptionally()) { // Interrupted
+				throw e;
+			}
+			return null; // Left for await() to throw, should the hedge fail as well
+		}
+	}
+
+	/**
+	 * @return The hedged attempt, or null if the pool is full
+	 */
+	private CompletableFuture<Attempt> hedge(BlockReader spare, int size, long position) {
+		try {
+			CompletableFuture<Attempt> second = attempt(spare, size, position, System.nanoTime());
+			hedged.increment();
+			return second;
+		} catch (RejectedExecutionException e) {
+			saturated.increment();
+			return null;
+		}
+	}
+
+	/**
+	 * @return Completes with whichever attempt succeeds first, or with the failure of the last one if both fail
+	 */
+	private CompletableFuture<Attempt> firstSuccessful(CompletableFuture<Attempt> first, CompletableFuture<Attempt> second) {
+		CompletableFuture<Attempt> winner = new CompletableFuture<>();
+		AtomicInteger failures = new AtomicInteger();
+		first.whenComplete((attempt, error) -> completeWith(winner, attempt, error, failures));
+		second.whenComplete((attempt, error) -> completeWith(winner, attempt, error, failures));
+		return winner;
+	}
+
+	private static void completeWith(CompletableFuture<Attempt> winner, Attempt attempt, Throwable error, AtomicInteger failures) {
+		if (error == null) {
+			winner.complete(attempt);
+		} else if (failures.incrementAndGet() == 2) {
+			winner.completeExceptionally(error);
+		}
+	}
+
+	private CompletableFuture<Attempt> attempt(BlockReader reader, int size, long position, long start) {
+		CompletableFuture<Attempt> attempt = new CompletableFuture<>();
+		executor.execute(() -> {
+			ByteBuffer buffer = buffers.acquire(size);
+			try {
+				int bytesRead = reader.read(buffer, position);
+				sample(System.nanoTime() - start);
+				if (!attempt.complete(new Attempt(buffer, bytesRead))) {
+					buffers.release(buffer);
+				}
+			} catch (IOException | RuntimeException e) {
+				buffers.release(buffer);
+				attempt.completeExceptionally(e);
+			}
+		});
+		return attempt;
+	}
+
+	/**
+	 * @return The completed value, or null if it did not complete in time and failOnTimeout is false
+	 */
+	private <T> T await(CompletableFuture<T> future, long timeoutNanos, boolean failOnTimeout)
+			throws IOException {
+		try {
+			return timeoutNanos == Long.MAX_VALUE ? future.get() : future.get(Math.max(timeoutNanos, 0), NANOSECONDS);
+		} catch (TimeoutException e) {
+			if (failOnTimeout) {
+				timeouts.increment();
+				throw new InterruptedIOException("Read did not complete within " + NANOSECONDS.toMillis(deadlineNanos) + " ms");
+			}
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Hands the buffer of an attempt back to the pool once it completes, unless the caller already took it.
+	 */
+	private void discard(CompletableFuture<Attempt> attempt) {
+		if (!attempt.complete(null)) {
+			attempt.thenAccept(result -> {
+				if (result != null) {
+					result.release();
+				}
+			});
+		}
+	}
+
+	private void sample(long latencyNanos) {
+		long sample = samples.getAndIncrement();
+		latencies.set((int) (sample % HEDGE_LATENCY_SAMPLES), latencyNanos);
+		if (sample + 1 >= MIN_SAMPLES && (sample + 1) % RECALCULATE_EVERY == 0) {
+			long[] sorted = new long[(int) Math.min(sample + 1, HEDGE_LATENCY_SAMPLES)];
+			for (int i = 0; i < sorted.length; i++) {
+				sorted[i] = latencies.get(i);
+			}
+			Arrays.sort(sorted);
+			hedgeDelayNanos = Math.max(sorted[sorted.length * percentile / 100], MILLISECONDS.toNanos(HEDGE_MIN_DELAY_MS));
+		}
+	}
+
+	public long getReads() {
+		return reads.sum();
+	}
+
+	public long getHedged() {
+		return hedged.sum();
+	}
+
+	public long getHedgeWins() {
+		return hedgeWins.sum();
+	}
+
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	/**
+	 * @return Reads done on the calling thread, or not hedged, since the pool was full
+	 */
+	public long getSaturated() {
+		return saturated.sum();
+	}
+
+	@VisibleForTesting
+	long getHedgeDelayNanos() {
+		return hedgeDelayNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "HedgedReads [deadline=" + NANOSECONDS.toMillis(deadlineNanos) + " ms, percentile=" + percentile + ", hedgeDelay="
+				+ (hedgeDelayNanos == Long.MAX_VALUE ? "unknown" : NANOSECONDS.toMicros(hedgeDelayNanos) + " us") + ", reads=" + reads + ", hedged="
+				+ hedged + ", hedgeWins=" + hedgeWins + ", timeouts=" + timeouts + ", saturated=" + saturated + "]";
+	}
+
+	private final class Attempt {
+
+		private final ByteBuffer buffer;
+		private final int bytesRead;
+
+		private Attempt(ByteBuffer buffer, int bytesRead) {
+			this.buffer = buffer;
+			this.bytesRead = bytesRead;
+		}
+
+		private int copyTo(ByteBuffer target) {
+			if (bytesRead > 0) {
+				buffer.flip();
+				target.put(buffer);
+			}
+			return bytesRead;
+		}
+
+		private void release() {
+			buffers.release(buffer);
+		}
+	}
+}
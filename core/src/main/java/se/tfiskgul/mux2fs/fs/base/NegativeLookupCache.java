@@ -0,0 +1,152 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.base;
+
+import static se.tfiskgul.mux2fs.Constants.NEGATIVE_LOOKUP_CACHE_SIZE;
+import static se.tfiskgul.mux2fs.Constants.NEGATIVE_LOOKUP_RECHECK_MS;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Remembers paths that did not exist, for as long as their parent directory is unchanged.
+ *
+ * Players and scanners probe for lots of sidecar files that aren't there, over and over. When checking a remembered path, the parent directory
+ * mtime is only re-read once per NEGATIVE_LOOKUP_RECHECK_MS, so a burst of probes in the same directory costs at most one stat. What is remembered
+ * is always the mtime read from disk before the failed lookup.
+ */
+@ThreadSafe
+public class NegativeLookupCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(NegativeLookupCache.class);
+	private final boolean enabled;
+	private final Cache<Path, FileTime> missing;
+	private final Cache<Path, FileTime> directoryMtimes;
+	private final LongAdder hits = new LongAdder();
+
+	public NegativeLookupCache(long ttl, TimeUnit unit) {
+		this(ttl, unit, NEGATIVE_LOOKUP_RECHECK_MS);
+	}
+
+	@VisibleForTesting
+	NegativeLookupCache(long ttl, TimeUnit unit, long recheckMs) {
+		this.enabled = ttl > 0;
+		this.missing = CacheBuilder.newBuilder().expireAfterWrite(ttl, unit).maximumSize(NEGATIVE_LOOKUP_CACHE_SIZE).build();
+		this.directoryMtimes = CacheBuilder.newBuilder().expireAfterWrite(recheckMs, TimeUnit.MILLISECONDS).maximumSize(1000).build();
+	}
+
+	public static NegativeLookupCache disabled() {
+		return new NegativeLookupCache(0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return true if the path was missing last time, and its parent directory has not been modified since
+	 */
+	public boolean isKnownMissing(Path path) {
+		if (!enabled) {
+			return false;
+		}
+		FileTime recorded = missing.getIfPresent(path);
+		if (recorded == null) {
+			return false;
+		}
+		if (mtimeOf(path.getParent()).filter(recorded::equals).isPresent()) {
+			hits.increment();
+			return true;
+		}
+		missing.invalidate(path);
+		return false;
+	}
+
+	/**
+	 * Reads the parent directory mtime from disk, to be taken before a lookup and given to missing() if it fails. Read after, a file created in
+	 * between would be remembered as missing against the directory that already has it.
+	 *
+	 * @return The parent directory mtime, empty if disabled or unreadable
+	 */
+	public Optional<FileTime> parentMtime(Path path) {
+		Path directory = path.getParent();
+		if (!enabled || directory == null) {
+			return Optional.empty();
+		}
+		try {
+			FileTime mtime = Files.getLastModifiedTime(directory);
+			directoryMtimes.put(directory, mtime);
+			return Optional.of(mtime);
+		} catch (IOException | RuntimeException e) {
+			logger.trace("", e);
+			directoryMtimes.invalidate(directory);
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * Path was just found to be missing
+	 *
+	 * @param parentMtime
+	 *            From parentMtime(), before the lookup
+	 */
+	public void missing(Path path, FileTime parentMtime) {
+		if (enabled) {
+			missing.put(path, parentMtime);
+		}
+	}
+
+	private Optional<FileTime> mtimeOf(Path directory) {
+		if (directory == null) {
+			return Optional.empty();
+		}
+		try {
+			return Optional.of(directoryMtimes.get(directory, () -> Files.getLastModifiedTime(directory)));
+		} catch (ExecutionException | RuntimeException e) { // Gone, or not readable. Either way, don't trust anything cached
+			logger.trace("", e);
+			directoryMtimes.invalidate(directory);
+			return Optional.empty();
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "NegativeLookupCache [enabled=" + enabled + ", size=" + missing.size() + ", hits=" + hits + "]";
+	}
+}
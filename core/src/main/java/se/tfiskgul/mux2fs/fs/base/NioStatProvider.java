@@ -0,0 +1,63 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.base;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Map;
+
+final class NioStatProvider implements StatProvider {
+
+	static final NioStatProvider INSTANCE = new NioStatProvider();
+
+	private NioStatProvider() {
+	}
+
+	@Override
+	public void lstat(Path path, RawStat stat)
+			throws IOException {
+		Map<String, Object> map = Files.readAttributes(path, "unix:*", LinkOption.NOFOLLOW_LINKS);
+		stat.set((long) map.get("dev"), (long) map.get("ino"), (int) map.get("nlink"), (int) map.get("mode"), (int) map.get("uid"),
+				(int) map.get("gid"), (long) map.get("rdev"), (long) map.get("size"));
+		Instant access = getInstant(map, "lastAccessTime");
+		Instant modification = getInstant(map, "lastModifiedTime");
+		Instant inode = getInstant(map, "ctime");
+		stat.setTimes(access.getEpochSecond(), access.getNano(), modification.getEpochSecond(), modification.getNano(), inode.getEpochSecond(),
+				inode.getNano());
+	}
+
+	private Instant getInstant(Map<String, Object> map, String string) {
+		FileTime time = (FileTime) map.get(string);
+		return time.toInstant();
+	}
+
+	@Override
+	public String toString() {
+		return "NioStatProvider";
+	}
+}
@@ -0,0 +1,179 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.base;
+
+import static se.tfiskgul.mux2fs.Constants.PAGE_CACHE_DROP_BEHIND_WINDOW;
+import static se.tfiskgul.mux2fs.Constants.SUCCESS;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.tfiskgul.mux2fs.fs.base.Fadvisor.Advice;
+
+/**
+ * Keeps streamed files from crowding out everything else in the kernel page cache.
+ *
+ * A streamed title is typically read exactly once, so there is little point in keeping what has already been delivered.
+ */
+@ThreadSafe
+public class PageCache {
+
+	public enum Policy {
+		/**
+		 * Leave the page cache to the kernel
+		 */
+		NONE,
+		/**
+		 * Advise sequential access on files opened for reading, for more aggressive read ahead
+		 */
+		SEQUENTIAL,
+		/**
+		 * As SEQUENTIAL, but also drop delivered ranges, closed mux outputs and mux inputs from the page cache
+		 */
+		DROP_BEHIND
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(PageCache.class);
+	private final Policy policy;
+	private final Fadvisor fadvisor;
+	private final LongAdder advised = new LongAdder();
+	private final LongAdder droppedBytes = new LongAdder();
+	private final LongAdder keptForOthers = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+
+	public PageCache(Policy policy, Fadvisor fadvisor) {
+		this.policy = policy;
+		this.fadvisor = fadvisor;
+	}
+
+	public static PageCache disabled() {
+		return new PageCache(Policy.NONE, (channel, offset, length, advice) -> SUCCESS);
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * A file was opened for reading
+	 */
+	public void opened(FileChannel channel) {
+		if (policy != Policy.NONE) {
+			advise(channel, 0, 0, Advice.SEQUENTIAL);
+			advise(channel, 0, 0, Advice.NOREUSE); // Only has an effect from Linux 6.3, harmless before that
+		}
+	}
+
+	/**
+	 * A range was read and handed over to FUSE.
+	 *
+	 * Every time a read crosses a window boundary, the window before the previous one is dropped. The previous window is kept, as players tend to
+	 * seek back a little. A channel shared by several readers only drops what all of them have passed by a window, the slowest reader drops it
+	 * once it gets there.
+	 *
+	 * @param others
+	 *            How far the slowest other reader of the channel has got, Long.MAX_VALUE if there is none
+	 */
+	public void delivered(FileChannel channel, long offset, int length, LongSupplier others) {
+		if (policy == Policy.DROP_BEHIND) {
+			long end = offset + length;
+			long boundary = end - end % PAGE_CACHE_DROP_BEHIND_WINDOW;
+			if (boundary > offset && boundary >= 2 * PAGE_CACHE_DROP_BEHIND_WINDOW) {
+				if (others.getAsLong() < boundary - PAGE_CACHE_DROP_BEHIND_WINDOW) {
+					keptForOthers.increment();
+				} else if (advise(channel, boundary - 2 * PAGE_CACHE_DROP_BEHIND_WINDOW, PAGE_CACHE_DROP_BEHIND_WINDOW, Advice.DONTNEED)) {
+					droppedBytes.add(PAGE_CACHE_DROP_BEHIND_WINDOW);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Nobody is expected to read this file any time soon, drop all of it
+	 */
+	public void drop(Path path) {
+		if (policy == Policy.DROP_BEHIND) {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				long size = channel.size();
+				if (advise(channel, 0, 0, Advice.DONTNEED)) {
+					droppedBytes.add(size);
+				}
+			} catch (IOException e) { // Ignored, it is just advice
+				logger.trace("", e);
+			}
+		}
+	}
+
+	private boolean advise(FileChannel channel, long offset, long length, Advice advice) {
+		try {
+			int result = fadvisor.fadvise(channel, offset, length, advice);
+			if (result == SUCCESS) {
+				advised.increment();
+				return true;
+			}
+			logger.trace("fadvise {} @ {} + {} failed with {}", advice, offset, length, result);
+		} catch (IOException e) {
+			logger.trace("", e);
+		}
+		failures.increment();
+		return false;
+	}
+
+	public long getAdvised() {
+		return advised.sum();
+	}
+
+	/**
+	 * @return How many bytes have been advised out of the page cache
+	 */
+	public long getDroppedBytes() {
+		return droppedBytes.sum();
+	}
+
+	/**
+	 * @return How many windows were not dropped, as another reader of the same channel had yet to pass them
+	 */
+	public long getKeptForOthers() {
+		return keptForOthers.sum();
+	}
+
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "PageCache [policy=" + policy + ", advised=" + advised + ", droppedBytes=" + droppedBytes + ", keptForOthers=" + keptForOthers
+				+ ", failures=" + failures + "]";
+	}
+}
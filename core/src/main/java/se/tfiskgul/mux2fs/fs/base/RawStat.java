@@ -0,0 +1,137 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.base;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * The primitive fields of struct stat, meant to be filled in place and reused.
+ */
+@NotThreadSafe
+public final class RawStat {
+
+	private long dev;
+	private long ino;
+	private int nlink;
+	private int mode;
+	private int uid;
+	private int gid;
+	private long rdev;
+	private long size;
+	private long accessSeconds;
+	private int accessNanos;
+	private long modificationSeconds;
+	private int modificationNanos;
+	private long inodeSeconds;
+	private int inodeNanos;
+
+	public RawStat set(long dev, long ino, int nlink, int mode, int uid, int gid, long rdev, long size) {
+		this.dev = dev;
+		this.ino = ino;
+		this.nlink = nlink;
+		this.mode = mode;
+		this.uid = uid;
+		this.gid = gid;
+		this.rdev = rdev;
+		this.size = size;
+		return this;
+	}
+
+	public RawStat setTimes(long accessSeconds, int accessNanos, long modificationSeconds, int modificationNanos, long inodeSeconds, int inodeNanos) {
+		this.accessSeconds = accessSeconds;
+		this.accessNanos = accessNanos;
+		this.modificationSeconds = modificationSeconds;
+		this.modificationNanos = modificationNanos;
+		this.inodeSeconds = inodeSeconds;
+		this.inodeNanos = inodeNanos;
+		return this;
+	}
+
+	public RawStat copyFrom(RawStat other) {
+		set(other.dev, other.ino, other.nlink, other.mode, other.uid, other.gid, other.rdev, other.size);
+		return setTimes(other.accessSeconds, other.accessNanos, other.modificationSeconds, other.modificationNanos, other.inodeSeconds, other.inodeNanos);
+	}
+
+	public long getDev() {
+		return dev;
+	}
+
+	public long getIno() {
+		return ino;
+	}
+
+	public int getNlink() {
+		return nlink;
+	}
+
+	public int getMode() {
+		return mode;
+	}
+
+	public int getUid() {
+		return uid;
+	}
+
+	public int getGid() {
+		return gid;
+	}
+
+	public long getRdev() {
+		return rdev;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getAccessSeconds() {
+		return accessSeconds;
+	}
+
+	public int getAccessNanos() {
+		return accessNanos;
+	}
+
+	public long getModificationSeconds() {
+		return modificationSeconds;
+	}
+
+	public int getModificationNanos() {
+		return modificationNanos;
+	}
+
+	public long getInodeSeconds() {
+		return inodeSeconds;
+	}
+
+	public int getInodeNanos() {
+		return inodeNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "RawStat [dev=" + dev + ", ino=" + ino + ", nlink=" + nlink + ", mode=" + mode + ", uid=" + uid + ", gid=" + gid + ", rdev=" + rdev
+				+ ", size=" + size + ", mtime=" + modificationSeconds + "." + modificationNanos + "]";
+	}
+}
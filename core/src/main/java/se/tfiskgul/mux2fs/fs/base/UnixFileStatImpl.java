@@ -24,12 +24,8 @@ SOFTWARE.
 package se.tfiskgul.mux2fs.fs.base;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.nio.file.attribute.FileTime;
 import java.time.Instant;
-import java.util.Map;
 import java.util.Optional;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -37,85 +33,51 @@ import java.util.function.Supplier;
 public class UnixFileStatImpl implements UnixFileStat, StatFiller {
 
 	private static final int BLK_SIZE = 4096;
-	private long dev;
-	private long ino;
-	private int links;
-	private int mode;
-	private int uid;
-	private int gid;
-	private long rdev;
+	private final RawStat raw = new RawStat();
 	private long size;
-	private int blkSize;
-	private long blocks;
-	private Instant accessTime;
-	private Instant modificationTime;
-	private Instant inodeTime;
+	private final AttributeCache attributeCache;
 
 	protected UnixFileStatImpl() {
-		// NoOp
+		this(AttributeCache.disabled());
 	}
 
-	@Override
-	public long getDev() {
-		return dev;
+	protected UnixFileStatImpl(AttributeCache attributeCache) {
+		this.attributeCache = attributeCache;
 	}
 
-	private void setDev(long dev) {
-		this.dev = dev;
+	@Override
+	public long getDev() {
+		return raw.getDev();
 	}
 
 	@Override
 	public long getIno() {
-		return ino;
-	}
-
-	private void setIno(long ino) {
-		this.ino = ino;
+		return raw.getIno();
 	}
 
 	@Override
 	public int getLinks() {
-		return links;
-	}
-
-	private void setLinks(int links) {
-		this.links = links;
+		return raw.getNlink();
 	}
 
 	@Override
 	public int getMode() {
-		return mode;
-	}
-
-	private void setMode(int mode) {
-		this.mode = mode;
+		return raw.getMode();
 	}
 
 	@Override
 	public int getUid() {
-		return uid;
-	}
-
-	private void setUid(int uid) {
-		this.uid = uid;
+		return raw.getUid();
 	}
 
 	@Override
 	public int getGid() {
-		return gid;
-	}
-
-	private void setGid(int gid) {
-		this.gid = gid;
+		return raw.getGid();
 	}
 
 	@Override
 	public long getRdev() {
-		return rdev;
-	}
-
-	private void setRdev(long rdev) {
-		this.rdev = rdev;
+		return raw.getRdev();
 	}
 
 	@Override
@@ -123,86 +85,51 @@ public class UnixFileStatImpl implements UnixFileStat, StatFiller {
 		return size;
 	}
 
-	private void setSize(long size) {
-		this.size = size;
-	}
-
 	@Override
 	public int getBlkSize() {
-		return blkSize;
-	}
-
-	private void setBlkSize(int blkSize) {
-		this.blkSize = blkSize;
+		return BLK_SIZE;
 	}
 
 	@Override
 	public long getBlocks() {
-		return blocks;
-	}
-
-	private void setBlocks(long blocks) {
-		this.blocks = blocks;
+		return size / 512 + 1; // Fake it till you make it
 	}
 
 	@Override
 	public Instant getAccessTime() {
-		return accessTime;
-	}
-
-	private void setAccessTime(Instant accessTime) {
-		this.accessTime = accessTime;
+		return Instant.ofEpochSecond(raw.getAccessSeconds(), raw.getAccessNanos());
 	}
 
 	@Override
 	public Instant getModificationTime() {
-		return modificationTime;
-	}
-
-	private void setModificationTime(Instant modificationTime) {
-		this.modificationTime = modificationTime;
+		return Instant.ofEpochSecond(raw.getModificationSeconds(), raw.getModificationNanos());
 	}
 
 	@Override
 	public Instant getInodeTime() {
-		return inodeTime;
+		return Instant.ofEpochSecond(raw.getInodeSeconds(), raw.getInodeNanos());
 	}
 
-	private void setInodeTime(Instant inodeTime) {
-		this.inodeTime = inodeTime;
+	/**
+	 * The last stat as is, for filling native structs without going through Instant. Note that the size here is never adjusted.
+	 */
+	protected RawStat getRawStat() {
+		return raw;
 	}
 
 	@Override
 	public UnixFileStat stat(Path path)
 			throws IOException {
-		Map<String, Object> map = Files.readAttributes(path, "unix:*", LinkOption.NOFOLLOW_LINKS);
-		setDev((long) map.get("dev"));
-		setIno((long) map.get("ino"));
-		setLinks((int) map.get("nlink"));
-		setMode((int) map.get("mode"));
-		setUid((int) map.get("uid"));
-		setGid((int) map.get("gid"));
-		setRdev((long) map.get("rdev"));
-		long size = (long) map.get("size");
-		setSize(size);
-		setBlkSize(BLK_SIZE);
-		setBlocks(size / 512 + 1); // Fake it till you make it
-		setAccessTime(getInstant(map, "lastAccessTime"));
-		setModificationTime(getInstant(map, "lastModifiedTime"));
-		setInodeTime(getInstant(map, "ctime"));
+		attributeCache.stat(path, raw);
+		size = raw.getSize();
 		return this;
 	}
 
-	private Instant getInstant(Map<String, Object> map, String string) {
-		FileTime time = (FileTime) map.get(string);
-		return time.toInstant();
-	}
-
 	@Override
 	public UnixFileStat statWithSize(Path path, Function<FileInfo, Optional<Long>> sizeGetter, Supplier<Long> extraSizeGetter)
 			throws IOException {
 		stat(path);
-		FileInfo fileInfo = new FileInfo(ino, modificationTime, inodeTime, size);
+		FileInfo fileInfo = new FileInfo(getIno(), getModificationTime(), getInodeTime(), size);
 		this.size = sizeGetter.apply(fileInfo).orElse(this.size + extraSizeGetter.get());
 		return this;
 	}
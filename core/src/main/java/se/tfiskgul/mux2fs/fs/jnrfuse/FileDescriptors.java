@@ -0,0 +1,67 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.jnrfuse;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+
+/**
+ * The file descriptor of a FileChannel. Java has no public API for it, so it is dug out of FileChannelImpl.
+ */
+final class FileDescriptors {
+
+	private final Field channelFd;
+	private final Field descriptorFd;
+
+	private FileDescriptors(Field channelFd, Field descriptorFd) {
+		this.channelFd = channelFd;
+		this.descriptorFd = descriptorFd;
+	}
+
+	static FileDescriptors load()
+			throws ReflectiveOperationException {
+		Field channelFd = Class.forName("sun.nio.ch.FileChannelImpl").getDeclaredField("fd");
+		channelFd.setAccessible(true);
+		Field descriptorFd = FileDescriptor.class.getDeclaredField("fd");
+		descriptorFd.setAccessible(true);
+		return new FileDescriptors(channelFd, descriptorFd);
+	}
+
+	/**
+	 * @return The file descriptor, or -1 if closed, or not a FileChannelImpl
+	 */
+	int of(FileChannel channel)
+			throws IOException {
+		if (!channelFd.getDeclaringClass().isInstance(channel)) {
+			return -1;
+		}
+		try {
+			return descriptorFd.getInt(channelFd.get(channel));
+		} catch (IllegalAccessException e) {
+			throw new IOException(e);
+		}
+	}
+}
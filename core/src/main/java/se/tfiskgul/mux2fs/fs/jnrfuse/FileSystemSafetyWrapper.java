@@ -63,11 +63,21 @@ public final class FileSystemSafetyWrapper extends FuseStubFS {
 		super.mount(mountPoint, blocking, debug, fuseOpts);
 	}
 
+	@Override
+	public int opendir(String path, FuseFileInfo fi) {
+		return wrap(() -> delegate.opendir(path, fi));
+	}
+
 	@Override
 	public int readdir(String path, Pointer buf, FuseFillDir filter, long offset, FuseFileInfo fi) {
 		return wrap(() -> delegate.readdir(path, buf, filter, offset, fi));
 	}
 
+	@Override
+	public int releasedir(String path, FuseFileInfo fi) {
+		return wrap(() -> delegate.releasedir(path, fi));
+	}
+
 	@Override
 	public int readlink(String path, Pointer buf, long size) {
 		return wrap(() -> delegate.readlink(path, buf, size));
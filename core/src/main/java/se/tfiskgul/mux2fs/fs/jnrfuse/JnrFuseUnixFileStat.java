@@ -23,15 +23,16 @@ SOFTWARE.
  */
 package se.tfiskgul.mux2fs.fs.jnrfuse;
 
-import java.time.Instant;
-
 import ru.serce.jnrfuse.struct.FileStat;
 import ru.serce.jnrfuse.struct.Timespec;
+import se.tfiskgul.mux2fs.fs.base.AttributeCache;
+import se.tfiskgul.mux2fs.fs.base.RawStat;
 import se.tfiskgul.mux2fs.fs.base.UnixFileStatImpl;
 
 public class JnrFuseUnixFileStat extends UnixFileStatImpl {
 
-	JnrFuseUnixFileStat() {
+	JnrFuseUnixFileStat(AttributeCache attributeCache) {
+		super(attributeCache);
 	}
 
 	protected void fill(FileStat stat) {
@@ -45,13 +46,14 @@ public class JnrFuseUnixFileStat extends UnixFileStatImpl {
 		stat.st_size.set(getSize());
 		stat.st_blksize.set(getBlkSize());
 		stat.st_blocks.set(getBlocks());
-		fillTime(getAccessTime(), stat.st_atim);
-		fillTime(getModificationTime(), stat.st_mtim);
-		fillTime(getInodeTime(), stat.st_ctim);
+		RawStat raw = getRawStat();
+		fillTime(raw.getAccessSeconds(), raw.getAccessNanos(), stat.st_atim);
+		fillTime(raw.getModificationSeconds(), raw.getModificationNanos(), stat.st_mtim);
+		fillTime(raw.getInodeSeconds(), raw.getInodeNanos(), stat.st_ctim);
 	}
 
-	private void fillTime(Instant instant, Timespec timespec) {
-		timespec.tv_sec.set(instant.getEpochSecond());
-		timespec.tv_nsec.set(instant.getNano());
+	private void fillTime(long seconds, int nanos, Timespec timespec) {
+		timespec.tv_sec.set(seconds);
+		timespec.tv_nsec.set(nanos);
 	}
 }
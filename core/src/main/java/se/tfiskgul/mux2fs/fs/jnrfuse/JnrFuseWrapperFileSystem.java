@@ -24,12 +24,20 @@ SOFTWARE.
 package se.tfiskgul.mux2fs.fs.jnrfuse;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MINUTES;
 
 import java.io.IOException;
-import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import jnr.ffi.Pointer;
 import jnr.ffi.Runtime;
+import jnr.ffi.Struct;
 import jnr.ffi.types.off_t;
 import jnr.ffi.types.size_t;
 import ru.serce.jnrfuse.ErrorCodes;
@@ -37,15 +45,30 @@ import ru.serce.jnrfuse.FuseFillDir;
 import ru.serce.jnrfuse.FuseStubFS;
 import ru.serce.jnrfuse.struct.FileStat;
 import ru.serce.jnrfuse.struct.FuseFileInfo;
-import se.tfiskgul.mux2fs.fs.base.DirectoryFiller;
+import se.tfiskgul.mux2fs.fs.base.AttributeCache;
+import se.tfiskgul.mux2fs.fs.base.DirectoryListing;
+import se.tfiskgul.mux2fs.fs.base.DirectoryListing.Entry;
+import se.tfiskgul.mux2fs.fs.base.FileHandleFiller;
 import se.tfiskgul.mux2fs.fs.base.FileSystem;
 
 public final class JnrFuseWrapperFileSystem extends FuseStubFS implements NamedJnrFuseFileSystem {
 
+	private static final Logger logger = LoggerFactory.getLogger(JnrFuseWrapperFileSystem.class);
 	private final FileSystem delegate;
+	// FUSE threads handle one request at a time, so stat structs are reused per thread instead of allocated per call and directory entry
+	private final ThreadLocal<JnrFuseUnixFileStat> unixFileStats;
+	private final ThreadLocal<FileStat> fuseStats = ThreadLocal.withInitial(() -> new FileStat(Runtime.getSystemRuntime()));
+	private final AtomicLong nextDirectoryHandle = new AtomicLong();
+	// Removed on releasedir, the expiry is only a safety net
+	private final Cache<Long, DirectoryListing> listings = CacheBuilder.newBuilder().expireAfterAccess(10, MINUTES).build();
 
 	public JnrFuseWrapperFileSystem(FileSystem delegate) {
+		this(delegate, AttributeCache.disabled());
+	}
+
+	public JnrFuseWrapperFileSystem(FileSystem delegate, AttributeCache attributeCache) {
 		this.delegate = delegate;
+		this.unixFileStats = ThreadLocal.withInitial(() -> new JnrFuseUnixFileStat(attributeCache));
 	}
 
 	@Override
@@ -55,7 +78,7 @@ public final class JnrFuseWrapperFileSystem extends FuseStubFS implements NamedJ
 
 	@Override
 	public int getattr(String path, FileStat stat) {
-		JnrFuseUnixFileStat unixFileStat = new JnrFuseUnixFileStat();
+		JnrFuseUnixFileStat unixFileStat = unixFileStats.get();
 		int result = delegate.getattr(path, unixFileStat);
 		if (result == 0) {
 			unixFileStat.fill(stat);
@@ -63,10 +86,53 @@ public final class JnrFuseWrapperFileSystem extends FuseStubFS implements NamedJ
 		return result;
 	}
 
+	@Override
+	public int opendir(String path, FuseFileInfo fi) {
+		fi.fh.set(nextDirectoryHandle.incrementAndGet());
+		return 0;
+	}
+
+	/**
+	 * The whole directory is listed into a snapshot at offset 0, and the kernel then pages through it, as many entries as fit in its buffer per call.
+	 * Every entry carries its index plus one as offset, which is where the next call resumes.
+	 */
 	@Override
 	public int readdir(String path, Pointer buf, FuseFillDir filter, long offset, FuseFileInfo fi) {
-		DirectoryFiller filler = new FuseDirectoryFiller(buf, filter);
-		return delegate.readdir(path, filler);
+		long handle = fi.fh.longValue();
+		DirectoryListing listing = offset == 0 ? null : listings.getIfPresent(handle);
+		if (listing == null) { // Rewound, or expired in the middle, in which case this is a best effort
+			listing = new DirectoryListing();
+			int result = delegate.readdir(path, listing);
+			if (result != 0) {
+				return result;
+			}
+			listings.put(handle, listing);
+		}
+		JnrFuseUnixFileStat unixFileStat = unixFileStats.get();
+		FileStat fuseStat = fuseStats.get();
+		for (int index = (int) Math.max(offset, 0); index < listing.size(); index++) {
+			Entry entry = listing.get(index);
+			try {
+				unixFileStat.stat(entry.getPath());
+			} catch (IOException e) {
+				logger.trace("", e); // Ignore, files might get deleted / renamed while listing
+				continue;
+			}
+			unixFileStat.fill(fuseStat);
+			if (entry.getExtraSize() != 0) {
+				fuseStat.st_size.set(fuseStat.st_size.longValue() + entry.getExtraSize());
+			}
+			if (filter.apply(buf, entry.getName(), fuseStat, index + 1) != 0) {
+				break; // The buffer is full
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public int releasedir(String path, FuseFileInfo fi) {
+		listings.invalidate(fi.fh.longValue());
+		return 0;
 	}
 
 	@Override
@@ -77,7 +143,7 @@ public final class JnrFuseWrapperFileSystem extends FuseStubFS implements NamedJ
 
 	@Override
 	public int open(String path, FuseFileInfo fi) {
-		return delegate.open(path, fh -> fi.fh.set(fh));
+		return delegate.open(path, new FuseFileHandleFiller(fi));
 	}
 
 	@Override
@@ -98,38 +164,41 @@ public final class JnrFuseWrapperFileSystem extends FuseStubFS implements NamedJ
 		delegate.destroy();
 	}
 
-	private static class FuseDirectoryFiller implements DirectoryFiller {
+	private static class FuseFileHandleFiller implements FileHandleFiller {
 
-		private final Pointer buf;
-		private final FuseFillDir filter;
+		private static final int DIRECT_IO = 1;
+		private static final int KEEP_CACHE = 1 << 1;
+		private final FuseFileInfo fi;
 
-		private FuseDirectoryFiller(Pointer buf, FuseFillDir filter) {
-			super();
-			this.buf = buf;
-			this.filter = filter;
+		private FuseFileHandleFiller(FuseFileInfo fi) {
+			this.fi = fi;
 		}
 
 		@Override
-		public int add(String name, Path path)
-				throws IOException {
-			FileStat fuseStat = new FileStat(Runtime.getSystemRuntime());
-			JnrFuseUnixFileStat unixFileStat = new JnrFuseUnixFileStat();
-			unixFileStat.stat(path);
-			unixFileStat.fill(fuseStat);
-			return filter.apply(buf, name, fuseStat, 0);
+		public void setFileHandle(int fileHandle) {
+			fi.fh.set(fileHandle);
 		}
 
+		/**
+		 * direct_io and keep_cache are the two lowest bits of the unsigned int bit field following writepage in struct fuse_file_info, which jnr-fuse
+		 * only maps as padding.
+		 */
 		@Override
-		public int addWithExtraSize(String name, Path path, long extraSize)
-				throws IOException {
-			FileStat fuseStat = new FileStat(Runtime.getSystemRuntime());
-			JnrFuseUnixFileStat unixFileStat = new JnrFuseUnixFileStat();
-			unixFileStat.stat(path);
-			unixFileStat.fill(fuseStat);
-			if (extraSize != 0) {
-				fuseStat.st_size.set(fuseStat.st_size.longValue() + extraSize);
+		public void setCaching(Caching caching) {
+			long offset = fi.writepage.offset() + 4;
+			Pointer memory = Struct.getMemory(fi);
+			int bits = memory.getInt(offset) & ~(DIRECT_IO | KEEP_CACHE);
+			switch (caching) {
+				case DIRECT_IO:
+					bits |= DIRECT_IO;
+					break;
+				case KEEP_CACHE:
+					bits |= KEEP_CACHE;
+					break;
+				default:
+					break;
 			}
-			return filter.apply(buf, name, fuseStat, 0);
+			memory.putInt(offset, bits);
 		}
 	}
-}
\ No newline at end of file
+}
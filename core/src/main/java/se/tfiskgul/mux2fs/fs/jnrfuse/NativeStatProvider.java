@@ -0,0 +1,101 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.jnrfuse;
+
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jnr.posix.FileStat;
+import jnr.posix.NanosecondFileStat;
+import jnr.posix.POSIX;
+import jnr.posix.POSIXFactory;
+import ru.serce.jnrfuse.ErrorCodes;
+import se.tfiskgul.mux2fs.fs.base.RawStat;
+import se.tfiskgul.mux2fs.fs.base.StatProvider;
+
+/**
+ * lstat(2) through jnr-posix, into one native struct per thread, without the attribute map and FileTime objects of the NIO route.
+ */
+public final class NativeStatProvider implements StatProvider {
+
+	private static final Logger logger = LoggerFactory.getLogger(NativeStatProvider.class);
+	private final POSIX posix;
+	private final ThreadLocal<FileStat> stats;
+
+	private NativeStatProvider(POSIX posix) {
+		this.posix = posix;
+		this.stats = ThreadLocal.withInitial(posix::allocateStat);
+	}
+
+	public static Optional<StatProvider> load() {
+		try {
+			POSIX posix = POSIXFactory.getNativePOSIX();
+			if (!(posix.allocateStat() instanceof NanosecondFileStat)) {
+				logger.warn("lstat through jnr-posix has no nanosecond time stamps here, using NIO for stat");
+				return Optional.empty();
+			}
+			return Optional.of(new NativeStatProvider(posix));
+		} catch (RuntimeException | LinkageError e) {
+			logger.warn("lstat through jnr-posix is not available, using NIO for stat", e);
+			return Optional.empty();
+		}
+	}
+
+	@Override
+	public void lstat(Path path, RawStat stat)
+			throws IOException {
+		NanosecondFileStat result = (NanosecondFileStat) stats.get();
+		String file = path.toString();
+		if (posix.lstat(file, result) < 0) {
+			throw exception(file, posix.errno());
+		}
+		stat.set(result.dev(), result.ino(), result.nlink(), result.mode(), result.uid(), result.gid(), result.rdev(), result.st_size());
+		stat.setTimes(result.atime(), (int) result.aTimeNanoSecs(), result.mtime(), (int) result.mTimeNanoSecs(), result.ctime(),
+				(int) result.cTimeNanoSecs());
+	}
+
+	private static IOException exception(String file, int errno) {
+		if (errno == ErrorCodes.ENOENT()) {
+			return new NoSuchFileException(file);
+		} else if (errno == ErrorCodes.EACCES() || errno == ErrorCodes.EPERM()) {
+			return new AccessDeniedException(file);
+		} else if (errno == ErrorCodes.ENOTDIR()) {
+			return new NotDirectoryException(file);
+		}
+		return new FileSystemException(file, null, "lstat failed with errno " + errno);
+	}
+
+	@Override
+	public String toString() {
+		return "NativeStatProvider";
+	}
+}
@@ -0,0 +1,76 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.jnrfuse;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jnr.ffi.LibraryLoader;
+import jnr.ffi.types.off_t;
+import ru.serce.jnrfuse.ErrorCodes;
+import se.tfiskgul.mux2fs.fs.base.Fadvisor;
+
+/**
+ * posix_fadvise(2) through jnr-ffi, which jnr-fuse already depends on.
+ */
+public final class PosixFadvisor implements Fadvisor {
+
+	public interface LibC {
+
+		int posix_fadvise(int fd, @off_t long offset, @off_t long len, int advice);
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(PosixFadvisor.class);
+	private final LibC libc;
+	private final FileDescriptors descriptors;
+
+	private PosixFadvisor(LibC libc, FileDescriptors descriptors) {
+		this.libc = libc;
+		this.descriptors = descriptors;
+	}
+
+	public static Optional<Fadvisor> load() {
+		try {
+			LibC libc = LibraryLoader.create(LibC.class).load("c");
+			return Optional.of(new PosixFadvisor(libc, FileDescriptors.load()));
+		} catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+			logger.warn("posix_fadvise is not available, page cache advice is disabled", e);
+			return Optional.empty();
+		}
+	}
+
+	@Override
+	public int fadvise(FileChannel channel, long offset, long length, Advice advice)
+			throws IOException {
+		int fd = descriptors.of(channel);
+		if (fd < 0) { // Closed
+			return ErrorCodes.EBADF();
+		}
+		return libc.posix_fadvise(fd, offset, length, advice.getValue());
+	}
+}
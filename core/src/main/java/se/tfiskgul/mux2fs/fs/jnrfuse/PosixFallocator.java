@@ -0,0 +1,104 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.jnrfuse;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jnr.ffi.LastError;
+import jnr.ffi.LibraryLoader;
+import jnr.ffi.Runtime;
+import jnr.ffi.annotations.SaveError;
+import jnr.ffi.types.off_t;
+import ru.serce.jnrfuse.ErrorCodes;
+import se.tfiskgul.mux2fs.fs.base.Fallocator;
+
+/**
+ * fallocate(2) and ftruncate(2) through jnr-ffi. FileChannel.truncate() does nothing unless the file shrinks, so it can not release blocks past
+ * the end.
+ */
+public final class PosixFallocator implements Fallocator {
+
+	public interface LibC {
+
+		@SaveError
+		int fallocate(int fd, int mode, @off_t long offset, @off_t long len);
+
+		@SaveError
+		int ftruncate(int fd, @off_t long length);
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(PosixFallocator.class);
+	private static final int FALLOC_FL_KEEP_SIZE = 1;
+	private final LibC libc;
+	private final Runtime runtime;
+	private final FileDescriptors descriptors;
+
+	private PosixFallocator(LibC libc, FileDescriptors descriptors) {
+		this.libc = libc;
+		this.runtime = Runtime.getRuntime(libc);
+		this.descriptors = descriptors;
+	}
+
+	public static Optional<Fallocator> load() {
+		try {
+			LibC libc = LibraryLoader.create(LibC.class).load("c");
+			return Optional.of(new PosixFallocator(libc, FileDescriptors.load()));
+		} catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+			logger.warn("fallocate is not available, mux outputs are not preallocated", e);
+			return Optional.empty();
+		}
+	}
+
+	@Override
+	public int preallocate(Path path, long length)
+			throws IOException {
+		try (FileChannel channel = FileChannel.open(path, WRITE)) {
+			int fd = descriptors.of(channel);
+			if (fd < 0) {
+				return ErrorCodes.EBADF();
+			}
+			return libc.fallocate(fd, FALLOC_FL_KEEP_SIZE, 0, length) == 0 ? 0 : LastError.getLastError(runtime);
+		}
+	}
+
+	@Override
+	public int trim(Path path)
+			throws IOException {
+		try (FileChannel channel = FileChannel.open(path, WRITE)) {
+			int fd = descriptors.of(channel);
+			if (fd < 0) {
+				return ErrorCodes.EBADF();
+			}
+			return libc.ftruncate(fd, channel.size()) == 0 ? 0 : LastError.getLastError(runtime);
+		}
+	}
+}
@@ -23,11 +23,12 @@ SOFTWARE.
  */
 package se.tfiskgul.mux2fs.fs.mirror;
 
+import static se.tfiskgul.mux2fs.Constants.DEFAULT_CHANNEL_BUDGET;
 import static se.tfiskgul.mux2fs.Constants.FILE_HANDLE_START_NO;
 import static se.tfiskgul.mux2fs.Constants.SUCCESS;
-import static se.tfiskgul.mux2fs.Constants.THREAD_BUF_SIZE;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.AccessDeniedException;
@@ -39,6 +40,7 @@ import java.nio.file.NotDirectoryException;
 import java.nio.file.NotLinkException;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -50,24 +52,49 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import cyclops.control.Try;
 import ru.serce.jnrfuse.ErrorCodes;
 import se.tfiskgul.mux2fs.ExceptionTranslator;
+import se.tfiskgul.mux2fs.fs.base.BlockCache;
+import se.tfiskgul.mux2fs.fs.base.BufferPool;
+import se.tfiskgul.mux2fs.fs.base.ChannelRegistry;
+import se.tfiskgul.mux2fs.fs.base.ChannelRegistry.SharedChannel;
 import se.tfiskgul.mux2fs.fs.base.DirectoryFiller;
 import se.tfiskgul.mux2fs.fs.base.FileChannelCloser;
 import se.tfiskgul.mux2fs.fs.base.FileHandleFiller;
+import se.tfiskgul.mux2fs.fs.base.FileHandleFiller.Caching;
+import se.tfiskgul.mux2fs.fs.base.FileInfo;
+import se.tfiskgul.mux2fs.fs.base.HedgedReads;
+import se.tfiskgul.mux2fs.fs.base.NegativeLookupCache;
+import se.tfiskgul.mux2fs.fs.base.PageCache;
 import se.tfiskgul.mux2fs.fs.base.StatFiller;
 
 public class MirrorFs implements se.tfiskgul.mux2fs.fs.base.FileSystem {
 
 	private static final Logger logger = LoggerFactory.getLogger(MirrorFs.class);
-	private final ThreadLocal<ByteBuffer> threadBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(THREAD_BUF_SIZE));
 	private final String mirroredRoot;
 	private final FileSystem fileSystem;
 	private final AtomicInteger fileHandleCounter = new AtomicInteger(FILE_HANDLE_START_NO);
-	private final ConcurrentMap<Integer, FileChannel> openFiles = new ConcurrentHashMap<>(10, 0.75f, 2);
+	private final ConcurrentMap<Integer, SharedChannel> openFiles = new ConcurrentHashMap<>(10, 0.75f, 2);
 	private final FileChannelCloser fileChannelCloser;
+	private final ChannelRegistry channels;
+	private final ConcurrentMap<Integer, FileInfo> openInfos = new ConcurrentHashMap<>(10, 0.75f, 2);
+	/**
+	 * Where each file handle last read up to, so drop behind waits for the slowest handle sharing a channel
+	 */
+	private final ConcurrentMap<Integer, Long> readPositions = new ConcurrentHashMap<>(10, 0.75f, 2);
+	private final BlockCache blockCache;
+	private final HedgedReads hedgedReads;
+	protected final PageCache pageCache;
+	private final BufferPool bufferPool;
+	private final NegativeLookupCache negativeLookups;
+	/**
+	 * What was last served from each path, to tell if the kernel may keep what it has cached
+	 */
+	private final Cache<String, Object> servedContent = CacheBuilder.newBuilder().maximumSize(1000).build();
 
 	protected final Function<Try.CheckedSupplier<Integer, Exception>, Integer> tryCatch = (supplier) -> {
 		return Try.withCatch(supplier, Exception.class).recover(this::translateOrThrow).get();
@@ -80,19 +107,87 @@ public class MirrorFs implements se.tfiskgul.mux2fs.fs.base.FileSystem {
 		});
 	};
 
+	/**
+	 * How reads from the mirrored tree are cached and served, everything disabled unless set
+	 */
+	public static class Options {
+
+		private PageCache pageCache = PageCache.disabled();
+		private BufferPool bufferPool = BufferPool.defaultPool();
+		private NegativeLookupCache negativeLookups = NegativeLookupCache.disabled();
+		private BlockCache blockCache = BlockCache.disabled();
+		private HedgedReads hedgedReads = HedgedReads.disabled();
+		private int channelBudget = DEFAULT_CHANNEL_BUDGET;
+
+		public Options pageCache(PageCache pageCache) {
+			this.pageCache = pageCache;
+			return this;
+		}
+
+		public Options bufferPool(BufferPool bufferPool) {
+			this.bufferPool = bufferPool;
+			return this;
+		}
+
+		public Options negativeLookups(NegativeLookupCache negativeLookups) {
+			this.negativeLookups = negativeLookups;
+			return this;
+		}
+
+		public Options blockCache(BlockCache blockCache) {
+			this.blockCache = blockCache;
+			return this;
+		}
+
+		public Options hedgedReads(HedgedReads hedgedReads) {
+			this.hedgedReads = hedgedReads;
+			return this;
+		}
+
+		/**
+		 * @param channelBudget
+		 *            Open files kept at most, idle ones are closed beyond it
+		 */
+		public Options channelBudget(int channelBudget) {
+			this.channelBudget = channelBudget;
+			return this;
+		}
+	}
+
 	public MirrorFs(Path mirroredPath) {
+		this(mirroredPath, new Options());
+	}
+
+	public MirrorFs(Path mirroredPath, Options options) {
 		super();
 		this.mirroredRoot = mirroredPath.toString();
 		this.fileSystem = mirroredPath.getFileSystem();
 		this.fileChannelCloser = this::close;
+		this.channels = new ChannelRegistry(this::openChannel, fileChannelCloser, options.channelBudget);
+		this.pageCache = options.pageCache;
+		this.bufferPool = options.bufferPool;
+		this.negativeLookups = options.negativeLookups;
+		this.blockCache = options.blockCache;
+		this.hedgedReads = options.hedgedReads;
 	}
 
 	@VisibleForTesting
 	protected MirrorFs(Path mirroredPath, FileChannelCloser fileChannelCloser) {
+		this(mirroredPath, fileChannelCloser, new Options());
+	}
+
+	@VisibleForTesting
+	protected MirrorFs(Path mirroredPath, FileChannelCloser fileChannelCloser, Options options) {
 		super();
 		this.mirroredRoot = mirroredPath.toString();
 		this.fileSystem = mirroredPath.getFileSystem();
 		this.fileChannelCloser = fileChannelCloser;
+		this.channels = new ChannelRegistry(this::openChannel, fileChannelCloser, options.channelBudget);
+		this.pageCache = options.pageCache;
+		this.bufferPool = options.bufferPool;
+		this.negativeLookups = options.negativeLookups;
+		this.blockCache = options.blockCache;
+		this.hedgedReads = options.hedgedReads;
 	}
 
 	protected final int translateOrThrow(Exception exception) {
@@ -102,6 +197,7 @@ public class MirrorFs implements se.tfiskgul.mux2fs.fs.base.FileSystem {
 				.translate(NotDirectoryException.class, e -> -ErrorCodes.ENOTDIR()) //
 				.translate(NotLinkException.class, e -> -ErrorCodes.EINVAL()) //
 				.translate(UnsupportedOperationException.class, e -> -ErrorCodes.ENOSYS()) //
+				.translate(InterruptedIOException.class, e -> -ErrorCodes.ETIMEDOUT()) //
 				.translate(IOException.class, e -> {
 					logger.warn("", e); // Unmapped IOException, log warning
 					return -ErrorCodes.EIO();
@@ -116,7 +212,23 @@ public class MirrorFs implements se.tfiskgul.mux2fs.fs.base.FileSystem {
 	@Override
 	public int getattr(String path, StatFiller stat) {
 		logger.debug(path);
-		return tryCatchRunnable.apply(() -> stat.stat(real(path)));
+		Path real = real(path);
+		return lookup(real, () -> stat.stat(real));
+	}
+
+	/**
+	 * Runs a lookup of the path, unless it is already known not to exist.
+	 */
+	protected int lookup(Path real, Try.CheckedRunnable<Exception> lookup) {
+		if (negativeLookups.isKnownMissing(real)) {
+			return -ErrorCodes.ENOENT();
+		}
+		Optional<FileTime> parentMtime = negativeLookups.parentMtime(real);
+		int result = tryCatchRunnable.apply(lookup);
+		if (result == -ErrorCodes.ENOENT()) {
+			parentMtime.ifPresent(mtime -> negativeLookups.missing(real, mtime));
+		}
+		return result;
 	}
 
 	@Override
@@ -157,65 +269,175 @@ public class MirrorFs implements se.tfiskgul.mux2fs.fs.base.FileSystem {
 	@Override
 	public int open(String path, FileHandleFiller filler) {
 		logger.info(path);
-		return openReal(real(path), filler);
+		Path real = real(path);
+		FileInfo info = Try.withCatch(() -> FileInfo.of(real), Exception.class).orElse(null);
+		int result = openReal(real, info, filler);
+		if (result == SUCCESS) {
+			filler.setCaching(cachingFor(path, info));
+		}
+		return result;
+	}
+
+	/**
+	 * The kernel may keep its cache only if the contents are the same as last time the path was opened. Any other open makes it start over.
+	 *
+	 * @param content
+	 *            Identifies the contents, or null if unknown
+	 */
+	protected Caching cachingFor(String path, Object content) {
+		if (content == null) {
+			servedContent.invalidate(path);
+			return Caching.DEFAULT;
+		}
+		Object previous = servedContent.asMap().put(path, content);
+		return content.equals(previous) ? Caching.KEEP_CACHE : Caching.DEFAULT;
 	}
 
 	protected int openReal(Path real, FileHandleFiller filler) {
+		return openReal(real, Try.withCatch(() -> FileInfo.of(real), Exception.class).orElse(null), filler);
+	}
+
+	/**
+	 * @param info
+	 *            The file as it is now, or null if unknown. Handles share a channel as long as the inode is the same, even if the file grows.
+	 */
+	protected int openReal(Path real, FileInfo info, FileHandleFiller filler) {
 		return tryCatchRunnable.apply(() -> {
-			FileChannel channel = FileChannel.open(real, StandardOpenOption.READ);
+			SharedChannel channel = channels.open(real, info == null ? null : info.getInode());
 			int fileHandle = fileHandleCounter.getAndIncrement();
 			openFiles.put(fileHandle, channel);
+			if (info != null) {
+				openInfos.put(fileHandle, info);
+			}
 			filler.setFileHandle(fileHandle);
 		});
 	}
 
+	/**
+	 * Points an already open file handle at another file, releasing what it was open on.
+	 *
+	 * @param info
+	 *            The other file as it is now, or null if unknown
+	 */
+	protected int reopenReal(int fileHandle, Path real, FileInfo info) {
+		return tryCatch.apply(() -> {
+			SharedChannel channel = channels.open(real, info == null ? null : info.getInode());
+			if (info != null) {
+				openInfos.put(fileHandle, info);
+			} else {
+				openInfos.remove(fileHandle);
+			}
+			SharedChannel previous = openFiles.replace(fileHandle, channel);
+			readPositions.remove(fileHandle);
+			if (previous == null) { // Released meanwhile
+				openInfos.remove(fileHandle);
+				channels.release(channel);
+				return -ErrorCodes.EBADF();
+			}
+			channels.release(previous);
+			return SUCCESS;
+		});
+	}
+
+	private FileChannel openChannel(Path real)
+			throws IOException {
+		FileChannel channel = FileChannel.open(real, StandardOpenOption.READ);
+		pageCache.opened(channel);
+		return channel;
+	}
+
 	@Override
 	public int read(String path, Consumer<byte[]> buf, int size, long offset, int fileHandle) {
-		FileChannel fileChannel = openFiles.get(fileHandle);
+		SharedChannel channel = openFiles.get(fileHandle);
 		logger.trace("{} {} {}", path, size, offset);
-		return readFromFileChannel(buf, offset, size, fileChannel);
+		if (channel == null) {
+			return -ErrorCodes.EBADF();
+		}
+		Object identity = blockCache.isEnabled() ? contentIdentity(fileHandle) : null;
+		if (identity != null) {
+			return tryCatch.apply(() -> blockCache.read(identity, offset, size, buf, (target, position) -> readAt(fileHandle, channel, target, position)));
+		}
+		return readFromChannel(buf, offset, size, fileHandle, channel);
 	}
 
-	protected int readFromFileChannel(Consumer<byte[]> buf, long offset, int size, FileChannel fileChannel) {
-		if (fileChannel == null) {
-			return -ErrorCodes.EBADF();
+	/**
+	 * What the content of the open file can be cached as in the block cache, or null if it must not be cached.
+	 */
+	protected Object contentIdentity(int fileHandle) {
+		return openInfos.get(fileHandle);
+	}
+
+	protected int readFromChannel(Consumer<byte[]> buf, long offset, int size, int fileHandle, SharedChannel channel) {
+		ByteBuffer byteBuffer = bufferPool.acquire(size);
+		try {
+			return tryCatch.apply(() -> {
+				int bytesRead = readAt(fileHandle, channel, byteBuffer, offset); // Read into native memory
+				if (bytesRead <= 0) { // EOF
+					return SUCCESS;
+				}
+				byte[] intermediate = new byte[bytesRead]; // This copies native memory into JVM
+				byteBuffer.rewind();
+				byteBuffer.get(intermediate);
+				buf.accept(intermediate); // And then back =(
+				return bytesRead;
+			});
+		} finally {
+			bufferPool.release(byteBuffer);
 		}
-		ByteBuffer byteBuffer = threadBuffer.get();
-		byteBuffer.clear();
-		byteBuffer.limit(size);
-		return tryCatch.apply(() -> {
-			int bytesRead = fileChannel.read(byteBuffer, offset); // Read into native memory
-			if (bytesRead <= 0) { // EOF
-				return SUCCESS;
+	}
+
+	private int readAt(int fileHandle, SharedChannel channel, ByteBuffer target, long position)
+			throws IOException {
+		return hedgedReads.read(target, position, (into, at) -> channel.use(fileChannel -> {
+			int bytesRead = fileChannel.read(into, at);
+			if (bytesRead > 0) {
+				readPositions.put(fileHandle, at + bytesRead);
+				pageCache.delivered(fileChannel, at, bytesRead, () -> slowestOtherReader(fileHandle, channel));
 			}
-			byte[] intermediate = new byte[bytesRead]; // This copies native memory into JVM
-			byteBuffer.rewind();
-			byteBuffer.get(intermediate);
-			buf.accept(intermediate); // And then back =(
 			return bytesRead;
-		});
+		}), (into, at) -> readSpare(channel.getPath(), into, at));
+	}
+
+	/**
+	 * @return How far the slowest other file handle on the channel has read, 0 for one that has not read yet, Long.MAX_VALUE if there is none
+	 */
+	private long slowestOtherReader(int fileHandle, SharedChannel channel) {
+		return openFiles.entrySet().stream().filter(open -> open.getValue() == channel && open.getKey() != fileHandle)
+				.mapToLong(open -> readPositions.getOrDefault(open.getKey(), 0L)).min().orElse(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Reads through a channel of its own, so a hedged read does not queue up behind a stuck read on the shared channel.
+	 */
+	private int readSpare(Path real, ByteBuffer target, long position)
+			throws IOException {
+		FileChannel spare = FileChannel.open(real, StandardOpenOption.READ);
+		try {
+			return spare.read(target, position);
+		} finally {
+			fileChannelCloser.close(spare);
+		}
 	}
 
 	@Override
 	public int release(String path, int fileHandle) {
 		logger.info("release({}, {})", fileHandle, path);
-		FileChannel fileChannel = openFiles.remove(fileHandle);
-		if (fileChannel == null) {
+		SharedChannel channel = openFiles.remove(fileHandle);
+		openInfos.remove(fileHandle);
+		readPositions.remove(fileHandle);
+		if (channel == null) {
 			return -ErrorCodes.EBADF();
 		}
-		safeClose(fileChannel);
+		channels.release(channel);
 		return SUCCESS;
 	}
 
 	@Override
 	public void destroy() {
-		logger.info("Cleaning up");
-		openFiles.forEach((fh, channel) -> safeClose(channel));
+		logger.info("Cleaning up, {}, {}, {}, {}, {}, {}", channels, blockCache, hedgedReads, pageCache, bufferPool, negativeLookups);
+		channels.closeAll();
 		openFiles.clear();
-	}
-
-	protected void safeClose(FileChannel fileChannel) {
-		this.fileChannelCloser.close(fileChannel);
+		openInfos.clear();
 	}
 
 	private final void close(FileChannel fileChannel) {
@@ -263,7 +485,11 @@ public class MirrorFs implements se.tfiskgul.mux2fs.fs.base.FileSystem {
 		return fileSystem.getPath(mirroredRoot, virtual);
 	}
 
-	protected FileChannel getChannelFor(int fileHandle) {
+	protected SharedChannel getChannelFor(int fileHandle) {
 		return openFiles.get(fileHandle);
 	}
+
+	protected int getOpenFileCount() {
+		return openFiles.size();
+	}
 }
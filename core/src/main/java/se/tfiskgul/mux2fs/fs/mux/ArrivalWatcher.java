@@ -0,0 +1,334 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.mux;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Watches the source tree for new .mkv and .srt files, and pre-muxes each pair once it has stopped changing, so the first viewer does not wait
+ * for a cold mux.
+ *
+ * Changes are picked up through a WatchService (inotify on Linux). A periodic rescan of the whole tree catches what that misses, such as
+ * overflowing event queues or network file systems without change events.
+ */
+public class ArrivalWatcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(ArrivalWatcher.class);
+
+	@FunctionalInterface
+	public interface Premuxer {
+
+		/**
+		 * @return false to be asked again later, true if done with the file
+		 */
+		boolean premux(Path mkv)
+				throws IOException;
+	}
+
+	private static final class Candidate {
+
+		private long size;
+		private long since;
+
+		private Candidate(long size, long since) {
+			this.size = size;
+			this.since = since;
+		}
+	}
+
+	private final Path source;
+	private final long stableNanos;
+	private final long rescanNanos;
+	private final Premuxer premuxer;
+	private final LongSupplier nanoTime;
+	private final ConcurrentMap<Path, Candidate> candidates = new ConcurrentHashMap<>();
+	private final ConcurrentMap<WatchKey, Path> watched = new ConcurrentHashMap<>();
+	private final AtomicLong done = new AtomicLong();
+	private ScheduledExecutorService scheduler;
+	private WatchService watchService;
+	private volatile long lastScan;
+
+	/**
+	 * @param stable
+	 *            How long a pair must stay the same size before it is pre-muxed
+	 * @param rescan
+	 *            How often to walk the whole tree looking for changes
+	 */
+	public ArrivalWatcher(Path source, long stable, long rescan, TimeUnit unit, Premuxer premuxer) {
+		this(source, stable, rescan, unit, premuxer, System::nanoTime);
+	}
+
+	@VisibleForTesting
+	ArrivalWatcher(Path source, long stable, long rescan, TimeUnit unit, Premuxer premuxer, LongSupplier nanoTime) {
+		this.source = source;
+		this.stableNanos = unit.toNanos(stable);
+		this.rescanNanos = unit.toNanos(rescan);
+		this.premuxer = premuxer;
+		this.nanoTime = nanoTime;
+		this.lastScan = nanoTime.getAsLong();
+	}
+
+	public synchronized ArrivalWatcher start() {
+		scheduler = Executors.newScheduledThreadPool(2, new ThreadFactoryBuilder().setNameFormat("arrival-watcher-%d").setDaemon(true).build());
+		try {
+			watchService = source.getFileSystem().newWatchService();
+			register(source);
+			scheduler.execute(this::watch);
+		} catch (IOException e) {
+			logger.warn("Unable to watch {}, only rescanning every {} s", source, NANOSECONDS.toSeconds(rescanNanos), e);
+		}
+		long tick = Math.max(NANOSECONDS.toMillis(stableNanos) / 2, 1000);
+		scheduler.scheduleWithFixedDelay(this::tick, tick, tick, MILLISECONDS);
+		if (rescanNanos > 0) {
+			scheduler.scheduleWithFixedDelay(this::rescan, NANOSECONDS.toMillis(rescanNanos), NANOSECONDS.toMillis(rescanNanos), MILLISECONDS);
+		}
+		logger.info("Watching {} for new arrivals", source);
+		return this;
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		if (watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException e) {
+				logger.debug("", e);
+			}
+		}
+		logger.info("{}", this);
+	}
+
+	private void register(Path root)
+			throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+					throws IOException {
+				watchDirectory(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	@VisibleForTesting
+	void watchDirectory(Path dir)
+			throws IOException {
+		watched.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY), dir);
+	}
+
+	private void watch() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				WatchKey key = watchService.take();
+				Path dir = watched.get(key);
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == OVERFLOW) {
+						logger.debug("Missed events in {}, rescanning", dir);
+						scheduler.execute(this::rescan);
+					} else if (dir != null) {
+						handle(dir, dir.resolve((Path) event.context()), event.kind() == ENTRY_CREATE);
+					}
+				}
+				if (!key.reset()) {
+					watched.remove(key);
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			logger.debug("Stopped watching {}", source);
+		}
+	}
+
+	/**
+	 * A failure only affects the one directory, typically one created and removed or renamed at once when unpacking. The rest are still
+	 * watched, and its parent is rescanned for what was missed.
+	 */
+	private void handle(Path dir, Path changed, boolean created) {
+		try {
+			if (created && Files.isDirectory(changed)) {
+				register(changed);
+				scan(changed, 0);
+			} else {
+				changed(changed);
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to watch {}, rescanning {}", changed, dir, e);
+			scheduler.execute(() -> rescan(dir));
+		}
+	}
+
+	/**
+	 * Walks the tree, treating files modified since the last scan as changed.
+	 */
+	private void rescan() {
+		long now = nanoTime.getAsLong();
+		long cutoff = System.currentTimeMillis() - NANOSECONDS.toMillis(now - lastScan) - NANOSECONDS.toMillis(stableNanos);
+		lastScan = now;
+		try {
+			scan(source, cutoff);
+		} catch (IOException e) {
+			logger.warn("Rescan of {} failed", source, e);
+		}
+	}
+
+	/**
+	 * Watches what is not yet watched under the directory, and treats every file in it as changed.
+	 */
+	private void rescan(Path dir) {
+		try {
+			register(dir); // Registering a watched directory again changes nothing
+		} catch (IOException e) {
+			logger.debug("Still unable to watch all of {}", dir, e);
+		}
+		try {
+			scan(dir, 0);
+		} catch (IOException e) {
+			logger.warn("Rescan of {} failed", dir, e);
+		}
+	}
+
+	private void scan(Path root, long modifiedSinceMillis)
+			throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.lastModifiedTime().toMillis() >= modifiedSinceMillis) {
+					changed(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * A .mkv becomes a candidate itself, a .srt makes the .mkv files it belongs to candidates.
+	 */
+	@VisibleForTesting
+	void changed(Path file) {
+		String name = String.valueOf(file.getFileName());
+		if (name.endsWith(".mkv")) {
+			candidates.putIfAbsent(file, new Candidate(-1, nanoTime.getAsLong()));
+		} else if (name.endsWith(".srt")) {
+			String srtLower = name.toLowerCase();
+			try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(file.getParent())) {
+				for (Path mkv : directoryStream) {
+					String mkvLower = mkv.getFileName().toString().toLowerCase();
+					if (mkvLower.endsWith(".mkv") && srtLower.startsWith(mkvLower.substring(0, mkvLower.length() - 4))) {
+						changed(mkv);
+					}
+				}
+			} catch (IOException e) { // Ignored, the rescan will catch it
+				logger.trace("", e);
+			}
+		}
+	}
+
+	/**
+	 * Pre-muxes the candidates that have kept their size for long enough.
+	 */
+	@VisibleForTesting
+	void tick() {
+		long now = nanoTime.getAsLong();
+		Iterator<Map.Entry<Path, Candidate>> iterator = candidates.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Path, Candidate> entry = iterator.next();
+			Path mkv = entry.getKey();
+			Candidate candidate = entry.getValue();
+			try {
+				if (!Files.exists(mkv)) {
+					iterator.remove();
+					continue;
+				}
+				long size = sizeOf(mkv);
+				if (size != candidate.size) {
+					candidate.size = size;
+					candidate.since = now;
+				} else if (now - candidate.since >= stableNanos && premuxer.premux(mkv)) {
+					done.incrementAndGet();
+					iterator.remove();
+				}
+			} catch (Exception e) {
+				logger.warn("Pre-muxing {} failed", mkv, e);
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * The size of the .mkv and its .srt files together, so a change to any of them restarts the wait
+	 */
+	private long sizeOf(Path mkv) {
+		String name = mkv.getFileName().toString();
+		return MuxFs.getMatchingSubFiles(mkv.getParent(), name).stream().mapToLong(srt -> srt.toFile().length()).sum() + mkv.toFile().length();
+	}
+
+	@VisibleForTesting
+	int getCandidates() {
+		return candidates.size();
+	}
+
+	@Override
+	public String toString() {
+		return "ArrivalWatcher [source=" + source + ", candidates=" + candidates.size() + ", done=" + done + "]";
+	}
+}
@@ -0,0 +1,189 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.mux;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.stream.Collectors.toList;
+import static se.tfiskgul.mux2fs.Constants.MEGABYTE;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import se.tfiskgul.mux2fs.mux.LaunchProfiles;
+import se.tfiskgul.mux2fs.mux.MuxBackend;
+import se.tfiskgul.mux2fs.mux.Muxer;
+import se.tfiskgul.mux2fs.mux.Muxer.MuxerFactory;
+import se.tfiskgul.mux2fs.mux.Muxer.Priority;
+import se.tfiskgul.mux2fs.mux.Muxer.State;
+
+/**
+ * Muxes the same files with every backend, one mux at a time, and reports time to first byte and throughput per backend.
+ *
+ * Time to first byte is until the output exists, which is when an open through the mount returns. The backend going first on a file reads
+ * it from disk, the others mostly from the page cache, so the order is rotated from file to file.
+ */
+public class BackendComparison {
+
+	private static final Logger logger = LoggerFactory.getLogger(BackendComparison.class);
+	private final Map<MuxBackend, MuxerFactory> factories;
+	private final Path scratch;
+	private final LongSupplier nanoTime;
+
+	public static final class Result {
+
+		private final MuxBackend backend;
+		private int muxed;
+		private int failed;
+		private long firstByteNanos;
+		private long totalNanos;
+		private long bytes;
+
+		private Result(MuxBackend backend) {
+			this.backend = backend;
+		}
+
+		public MuxBackend getBackend() {
+			return backend;
+		}
+
+		public int getMuxed() {
+			return muxed;
+		}
+
+		public int getFailed() {
+			return failed;
+		}
+
+		/**
+		 * @return Mean time to first byte in ms, over the successful muxes
+		 */
+		public long getTimeToFirstByte() {
+			return muxed == 0 ? 0 : NANOSECONDS.toMillis(firstByteNanos / muxed);
+		}
+
+		/**
+		 * @return MB/s written over all successful muxes
+		 */
+		public double getThroughput() {
+			return totalNanos == 0 ? 0 : bytes / (double) MEGABYTE / (totalNanos / 1e9);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d muxed, %d failed, %d ms to first byte, %.1f MB/s", backend.getName(), muxed, failed, getTimeToFirstByte(),
+					getThroughput());
+		}
+	}
+
+	public BackendComparison(List<MuxBackend> backends, LaunchProfiles profiles, Priority priority, Path scratch) {
+		this(factories(backends, profiles, priority), scratch, System::nanoTime);
+	}
+
+	@VisibleForTesting
+	BackendComparison(Map<MuxBackend, MuxerFactory> factories, Path scratch, LongSupplier nanoTime) {
+		this.factories = factories;
+		this.scratch = scratch;
+		this.nanoTime = nanoTime;
+	}
+
+	private static Map<MuxBackend, MuxerFactory> factories(List<MuxBackend> backends, LaunchProfiles profiles, Priority priority) {
+		Map<MuxBackend, MuxerFactory> factories = new LinkedHashMap<>();
+		backends.forEach(backend -> factories.put(backend, MuxerFactory.withProfiles(profiles, priority, backend)));
+		return factories;
+	}
+
+	public List<Result> compare(Path source, Consumer<String> reporter)
+			throws IOException, InterruptedException {
+		List<Path> mkvs;
+		try (Stream<Path> files = Files.walk(source)) {
+			mkvs = files.filter(file -> String.valueOf(file.getFileName()).endsWith(".mkv")).collect(toList());
+		}
+		return compare(mkvs, reporter);
+	}
+
+	@VisibleForTesting
+	List<Result> compare(List<Path> mkvs, Consumer<String> reporter)
+			throws InterruptedException {
+		List<Result> results = new ArrayList<>();
+		factories.keySet().forEach(backend -> results.add(new Result(backend)));
+		int file = 0;
+		for (Path mkv : mkvs) {
+			List<Path> subFiles = MuxFs.getMatchingSubFiles(mkv.getParent(), mkv.getFileName().toString());
+			if (subFiles.isEmpty()) {
+				continue;
+			}
+			for (int i = 0; i < results.size(); i++) {
+				Result result = results.get((file + i) % results.size());
+				mux(result, mkv, subFiles.get(0));
+			}
+			file++;
+			reporter.accept("Compared " + mkv);
+		}
+		results.forEach(result -> reporter.accept(result.toString()));
+		return results;
+	}
+
+	private void mux(Result result, Path mkv, Path srt)
+			throws InterruptedException {
+		Muxer muxer = factories.get(result.backend).from(mkv, srt, scratch);
+		long start = nanoTime.getAsLong();
+		try {
+			muxer.start();
+			boolean hasOutput = muxer.waitForOutput();
+			long firstByte = nanoTime.getAsLong();
+			muxer.waitFor();
+			long end = nanoTime.getAsLong();
+			if (hasOutput && muxer.state() == State.SUCCESSFUL) {
+				result.muxed++;
+				result.firstByteNanos += firstByte - start;
+				result.totalNanos += end - start;
+				result.bytes += muxer.getOutput().map(output -> output.toFile().length()).orElse(0L);
+			} else {
+				logger.warn("{} failed", muxer);
+				result.failed++;
+			}
+		} catch (IOException e) {
+			logger.warn("{} failed", muxer, e);
+			result.failed++;
+		} catch (InterruptedException e) {
+			muxer.cancel();
+			throw e;
+		} finally {
+			muxer.getOutput().ifPresent(output -> output.toFile().delete());
+		}
+	}
+}
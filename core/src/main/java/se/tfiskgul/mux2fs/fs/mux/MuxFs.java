@@ -23,6 +23,7 @@ SOFTWARE.
  */
 package se.tfiskgul.mux2fs.fs.mux;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static java.util.stream.Collectors.toList;
@@ -41,7 +42,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
@@ -64,40 +67,47 @@ import com.google.common.cache.RemovalNotification;
 
 import cyclops.control.Try;
 import ru.serce.jnrfuse.ErrorCodes;
+import se.tfiskgul.mux2fs.fs.base.BlockCache;
+import se.tfiskgul.mux2fs.fs.base.BufferPool;
+import se.tfiskgul.mux2fs.fs.base.ChannelRegistry.SharedChannel;
 import se.tfiskgul.mux2fs.fs.base.DirectoryFiller;
 import se.tfiskgul.mux2fs.fs.base.FileChannelCloser;
 import se.tfiskgul.mux2fs.fs.base.FileHandleFiller;
+import se.tfiskgul.mux2fs.fs.base.FileHandleFiller.Caching;
 import se.tfiskgul.mux2fs.fs.base.FileHandleFiller.Recorder;
 import se.tfiskgul.mux2fs.fs.base.FileInfo;
-import se.tfiskgul.mux2fs.fs.base.Sleeper;
+import se.tfiskgul.mux2fs.fs.base.HedgedReads;
+import se.tfiskgul.mux2fs.fs.base.NegativeLookupCache;
+import se.tfiskgul.mux2fs.fs.base.PageCache;
 import se.tfiskgul.mux2fs.fs.base.StatFiller;
 import se.tfiskgul.mux2fs.fs.mirror.MirrorFs;
+import se.tfiskgul.mux2fs.mux.MuxCache;
 import se.tfiskgul.mux2fs.mux.MuxedFile;
 import se.tfiskgul.mux2fs.mux.Muxer;
 import se.tfiskgul.mux2fs.mux.Muxer.MuxerFactory;
 import se.tfiskgul.mux2fs.mux.Muxer.State;
+import se.tfiskgul.mux2fs.mux.TempTiers;
+import se.tfiskgul.mux2fs.mux.TrackInspector;
 
 public class MuxFs extends MirrorFs {
 
 	private static final Logger logger = LoggerFactory.getLogger(MuxFs.class);
-	private final Path tempDir;
+	private final TempTiers tempTiers;
 	private final MuxerFactory muxerFactory;
-	private final Sleeper sleeper;
+	private final TrackInspector trackInspector;
+	private final boolean deferMux;
+	private final MuxCache muxCache;
 	private final ConcurrentMap<FileInfo, Muxer> muxFiles = new ConcurrentHashMap<>(10, 0.75f, 2);
 	private final ConcurrentMap<Integer, MuxedFile> openMuxFiles = new ConcurrentHashMap<>(10, 0.75f, 2);
+	private final ConcurrentMap<Integer, Deferred> deferredMuxFiles = new ConcurrentHashMap<>(10, 0.75f, 2);
+	private final Set<Muxer> premuxing = ConcurrentHashMap.newKeySet();
+	private final Cache<Muxer, Subtitle> muxedSubtitles = CacheBuilder.newBuilder().weakKeys().build(); // Forgotten muxers need not be removed
 	private final RemovalListener<FileInfo, MuxedFile> closedMuxlistener = new RemovalListener<FileInfo, MuxedFile>() {
 
 		@Override
 		public void onRemoval(RemovalNotification<FileInfo, MuxedFile> notification) {
 			if (notification.getCause() != RemovalCause.EXPLICIT) {
-				MuxedFile muxedFile = notification.getValue();
-				// This is racy, at worst we will re-trigger muxing for unlucky files being re-opened
-				if (!openMuxFiles.containsValue(muxedFile)) {
-					muxFiles.remove(muxedFile.getInfo(), muxedFile.getMuxer());
-					logger.info("Expired {}: {} deleted = {}", notification.getCause(), muxedFile, safeDelete(muxedFile));
-				} else {
-					logger.warn("BUG: Expired {}: {}, but is still open!", notification.getCause(), muxedFile);
-				}
+				expired(notification.getCause(), notification.getValue());
 			}
 		}
 	};
@@ -124,28 +134,116 @@ public class MuxFs extends MirrorFs {
 	private final ScheduledThreadPoolExecutor cleaningPool = new ScheduledThreadPoolExecutor(1);
 	private final ExecutorService executorService;
 
+	/**
+	 * How reads are served and what happens around a mux, everything disabled unless set
+	 */
+	public static class Options {
+
+		private final MirrorFs.Options mirror = new MirrorFs.Options();
+		private boolean deferMux = false;
+		private MuxCache muxCache = MuxCache.disabled();
+
+		public Options pageCache(PageCache pageCache) {
+			mirror.pageCache(pageCache);
+			return this;
+		}
+
+		public Options bufferPool(BufferPool bufferPool) {
+			mirror.bufferPool(bufferPool);
+			return this;
+		}
+
+		public Options negativeLookups(NegativeLookupCache negativeLookups) {
+			mirror.negativeLookups(negativeLookups);
+			return this;
+		}
+
+		public Options blockCache(BlockCache blockCache) {
+			mirror.blockCache(blockCache);
+			return this;
+		}
+
+		public Options hedgedReads(HedgedReads hedgedReads) {
+			mirror.hedgedReads(hedgedReads);
+			return this;
+		}
+
+		public Options channelBudget(int channelBudget) {
+			mirror.channelBudget(channelBudget);
+			return this;
+		}
+
+		/**
+		 * @param deferMux
+		 *            Start muxing on the first read of a file handle rather than on open
+		 */
+		public Options deferMux(boolean deferMux) {
+			this.deferMux = deferMux;
+			return this;
+		}
+
+		/**
+		 * @param muxCache
+		 *            Outputs from earlier, looked for before muxing
+		 */
+		public Options muxCache(MuxCache muxCache) {
+			this.muxCache = muxCache;
+			return this;
+		}
+	}
+
 	public MuxFs(Path mirroredPath, Path tempDir) {
-		super(mirroredPath);
-		this.tempDir = tempDir;
-		this.muxerFactory = MuxerFactory.defaultFactory();
-		this.sleeper = (millis) -> Thread.sleep(millis);
+		this(mirroredPath, TempTiers.single(tempDir), MuxerFactory.defaultFactory(), new Options());
+	}
+
+	public MuxFs(Path mirroredPath, TempTiers tempTiers, MuxerFactory muxerFactory, Options options) {
+		super(mirroredPath, options.mirror);
+		this.tempTiers = tempTiers;
+		this.muxerFactory = muxerFactory;
+		this.trackInspector = new TrackInspector();
+		this.deferMux = options.deferMux;
+		this.muxCache = options.muxCache;
 		executorService = Executors.newCachedThreadPool();
 		cleaningPool.scheduleAtFixedRate(() -> {
 			closedMuxFiles.cleanUp();
 			extraSizeCache.cleanUp();
 			muxedSizeCache.cleanUp();
+			tempTiers.rebalance(closedMuxFiles.asMap().values(), this::relocate);
 		}, 10, 10, SECONDS);
 	}
 
 	@VisibleForTesting
-	MuxFs(Path mirroredPath, Path tempDir, MuxerFactory muxerFactory, Sleeper sleeper, FileChannelCloser fileChannelCloser, ExecutorService executorService) {
-		super(mirroredPath, fileChannelCloser);
-		this.tempDir = tempDir;
+	MuxFs(Path mirroredPath, Path tempDir, MuxerFactory muxerFactory, FileChannelCloser fileChannelCloser, ExecutorService executorService,
+			Options options) {
+		this(mirroredPath, TempTiers.single(tempDir), muxerFactory, fileChannelCloser, executorService, TrackInspector.disabled(), options);
+	}
+
+	@VisibleForTesting
+	MuxFs(Path mirroredPath, TempTiers tempTiers, MuxerFactory muxerFactory, FileChannelCloser fileChannelCloser, ExecutorService executorService,
+			TrackInspector trackInspector, Options options) {
+		super(mirroredPath, fileChannelCloser, options.mirror);
+		this.tempTiers = tempTiers;
 		this.muxerFactory = muxerFactory;
-		this.sleeper = sleeper;
+		this.trackInspector = trackInspector;
+		this.deferMux = options.deferMux;
+		this.muxCache = options.muxCache;
 		this.executorService = executorService;
 	}
 
+	private void expired(RemovalCause cause, MuxedFile muxedFile) {
+		Muxer muxer = muxedFile.getMuxer();
+		synchronized (muxer) { // Any open() either has it open by now, or finds it gone from muxFiles and muxes again
+			if (openMuxFiles.containsValue(muxedFile)) {
+				logger.debug("Expired {}: {}, but opened again", cause, muxedFile);
+				return;
+			}
+			muxFiles.remove(muxedFile.getInfo(), muxer);
+		}
+		muxer.cancel(); // Closed before the mux was done, and no one is waiting for the rest
+		logger.info("Expired {}: {} deleted = {}", cause, muxedFile, safeDelete(muxedFile));
+		tempTiers.removed(muxer);
+	}
+
 	@Override
 	public String getFSName() {
 		return "mux2fs";
@@ -202,6 +300,7 @@ public class MuxFs extends MirrorFs {
 							}
 						}
 					}
+					extraSizeCache.put(muxFile, extraSize); // getattr is bound to follow for each entry
 					if (!addWithExtraSize(filler, muxFile, extraSize)) {
 						return SUCCESS;
 					}
@@ -227,7 +326,7 @@ public class MuxFs extends MirrorFs {
 			return super.getattr(path, stat);
 		}
 		Path muxFile = real(path);
-		return tryCatchRunnable.apply(() -> {
+		return lookup(muxFile, () -> {
 			stat.statWithSize(muxFile, info -> Optional.ofNullable(muxedSizeCache.getIfPresent(info)),
 					() -> Try.withCatch(() -> extraSizeCache.get(muxFile)).get());
 		});
@@ -252,6 +351,10 @@ public class MuxFs extends MirrorFs {
 
 	@Override
 	public int read(String path, Consumer<byte[]> buf, int size, long offset, int fileHandle) {
+		Deferred deferred = deferredMuxFiles.get(fileHandle);
+		if (deferred != null) { // Before serving any byte, as the muxed output has another layout than the original
+			startDeferred(path, fileHandle, deferred);
+		}
 		MuxedFile muxedFile = openMuxFiles.get(fileHandle);
 		if (muxedFile == null) { // Not a muxed file
 			return super.read(path, buf, size, offset, fileHandle);
@@ -271,13 +374,36 @@ public class MuxFs extends MirrorFs {
 		}
 	}
 
+	/**
+	 * A muxed output may only be cached once complete, since mkvmerge goes back and rewrites the headers at the end.
+	 */
+	@Override
+	protected Object contentIdentity(int fileHandle) {
+		MuxedFile muxedFile = openMuxFiles.get(fileHandle);
+		if (muxedFile == null) {
+			return super.contentIdentity(fileHandle);
+		}
+		Muxer muxer = muxedFile.getMuxer();
+		return muxer.state() == State.SUCCESSFUL ? muxer : null;
+	}
+
 	@Override
 	public int release(String path, int fileHandle) {
 		logger.info("release({}, {})", fileHandle, path);
+		deferredMuxFiles.remove(fileHandle);
 		MuxedFile muxed = openMuxFiles.remove(fileHandle);
 		if (muxed != null && !openMuxFiles.containsValue(muxed)) {
+			if (muxFiles.get(muxed.getInfo()) != muxed.getMuxer()) { // Retired while open
+				muxed.getMuxer().getOutput().ifPresent(this::safeDelete);
+				tempTiers.removed(muxed.getMuxer());
+				return super.release(path, fileHandle);
+			}
 			// Muxed file is no longer open, save it in cache for quick re-open
-			closedMuxFiles.put(muxed.getInfo(), muxed);
+			MuxedFile previous = closedMuxFiles.asMap().putIfAbsent(muxed.getInfo(), muxed);
+			if (previous != null && !previous.equals(muxed)) { // Replacing it with itself, as racing releases would, deletes it like an expiry
+				closedMuxFiles.put(muxed.getInfo(), muxed);
+			}
+			muxed.getMuxer().getOutput().ifPresent(pageCache::drop); // But it is cheaper to read it from disk again than to evict other things
 		}
 		return super.release(path, fileHandle);
 	}
@@ -285,7 +411,7 @@ public class MuxFs extends MirrorFs {
 	@Override
 	public void destroy() {
 		super.destroy();
-		logger.info("Cleaning up");
+		logger.info("Cleaning up, {}", tempTiers);
 		cleaningPool.shutdownNow();
 		executorService.shutdownNow();
 		closedMuxFiles.asMap().forEach((info, muxed) -> muxed.getMuxer().getOutput().map(this::safeDelete));
@@ -293,63 +419,325 @@ public class MuxFs extends MirrorFs {
 		closedMuxFiles.cleanUp();
 		openMuxFiles.forEach((fh, muxed) -> safeDelete(muxed));
 		openMuxFiles.clear();
+		deferredMuxFiles.clear();
 		muxFiles.forEach((fi, muxer) -> muxer.getOutput().map(this::safeDelete));
 		muxFiles.clear();
+		muxedSubtitles.invalidateAll();
+	}
+
+	/**
+	 * Expires every closed mux at once, as if they had all been closed for too long
+	 *
+	 * @return What was expired
+	 */
+	@VisibleForTesting
+	List<FileInfo> expireClosedMuxFiles() {
+		List<FileInfo> expired = new ArrayList<>();
+		closedMuxFiles.asMap().forEach((info, muxed) -> {
+			if (closedMuxFiles.asMap().remove(info, muxed)) { // Notified as EXPLICIT, which is ignored
+				expired(RemovalCause.EXPIRED, muxed);
+				expired.add(info);
+			}
+		});
+		return expired;
+	}
+
+	/**
+	 * @return File handles still open, muxed or not
+	 */
+	@VisibleForTesting
+	int getOpenHandleCount() {
+		return getOpenFileCount();
+	}
+
+	/**
+	 * @return File handles still tracked as muxed or deferred, which must never outnumber the open handles
+	 */
+	@VisibleForTesting
+	int getOpenMuxFileCount() {
+		return openMuxFiles.size() + deferredMuxFiles.size();
+	}
+
+	/**
+	 * @return The output a muxed file handle reads from, if any
+	 */
+	@VisibleForTesting
+	Optional<Path> getOutput(int fileHandle) {
+		return Optional.ofNullable(openMuxFiles.get(fileHandle)).flatMap(muxed -> muxed.getMuxer().getOutput());
 	}
 
 	private int open(String path, FileHandleFiller filler, Path muxFile, List<Path> subFiles, FileInfo info) {
-		closedMuxFiles.invalidate(info);
-		Muxer muxer = muxerFactory.from(muxFile, subFiles.get(0), tempDir);
-		Muxer previous = muxFiles.putIfAbsent(info, muxer); // Others might be racing the same file
-		if (previous != null) { // They won the race
-			muxer = previous;
+		Path srt = subFiles.get(0);
+		retireIfStale(info, srt);
+		if (!muxFiles.containsKey(info) && trackInspector.hasEquivalent(muxFile, info, srt)) {
+			logger.debug("{} already has the subtitles of {}, no need to mux", path, srt);
+			muxedSizeCache.put(info, info.getSize()); // Corrects the size estimated by readdir
+			return super.open(path, filler);
+		}
+		Optional<Path> cached = lookupCached(info, srt);
+		if (cached.isPresent()) {
+			logger.debug("{} found muxed in {}", path, cached.get());
+			int result = super.openReal(cached.get(), filler);
+			if (result == SUCCESS) {
+				muxedSizeCache.put(info, cached.get().toFile().length());
+				filler.setCaching(cachingFor(path, cached.get()));
+				return result;
+			}
 		}
+		if (deferMux && !muxFiles.containsKey(info) && closedMuxFiles.getIfPresent(info) == null) {
+			return openDeferred(path, filler, muxFile, srt, info);
+		}
+		closedMuxFiles.invalidate(info);
+		Muxer muxer;
 		try {
-			muxer.start();
-			muxer.waitForOutput();
+			muxer = startMuxer(muxFile, srt, info);
 		} catch (IOException e) {
 			// Something dun goofed. Second best thing is to open the original file then.
 			logger.warn("Muxing failed, falling back to unmuxed file {}", muxFile, e);
-			// Invalidate the broken muxer. This means the next open will try again, which might not be a good strategy.
-			muxFiles.remove(info, muxer);
 			return super.open(path, filler);
 		}
-		Optional<Path> optionalOutput = muxer.getOutput();
+		Recorder recorder = FileHandleFiller.Recorder.wrap(filler);
+		Optional<Path> optionalOutput;
+		boolean expired;
+		int result = -ErrorCodes.ENOENT();
+		synchronized (muxer) { // The output must not be moved to another tier, or expire, while being opened, see relocate() and expired()
+			// A mux that failed on its own would just fail again, but one that expired or was cancelled is worth another go
+			expired = muxFiles.get(info) != muxer && (muxer.state() != State.FAILED || muxer.isCancelled());
+			optionalOutput = muxer.getOutput();
+			if (!expired && optionalOutput.isPresent()) {
+				result = super.openReal(optionalOutput.get(), recorder);
+				if (result == SUCCESS) {
+					openMuxFiles.put(recorder.getFileHandle(), new MuxedFile(info, muxer));
+				}
+			}
+		}
+		if (expired) { // Since startMuxer() found it
+			logger.debug("{} expired while being opened, muxing again", muxer);
+			return open(path, filler, muxFile, subFiles, info);
+		}
 		if (!optionalOutput.isPresent()) {
 			logger.warn("Muxing failed! muxer.getOutput().isPresent() == false, falling back to unmuxed file {}", muxFile);
 			// Invalidate the broken muxer. This means the next open will try again, which might not be a good strategy.
 			muxFiles.remove(info, muxer);
+			tempTiers.removed(muxer);
 			return super.open(path, filler); // Fall back to original if no result
 		}
 		Path output = optionalOutput.get();
-		Recorder recorder = FileHandleFiller.Recorder.wrap(filler);
-		int result = super.openReal(output, recorder);
 		if (result == SUCCESS) {
-			updateMuxCaches(info, muxer, output, recorder);
+			tempTiers.accessed(muxer);
+			if (muxer.state() == State.SUCCESSFUL) {
+				filler.setCaching(cachingFor(path, muxer));
+			} else { // Still growing, the kernel must not cache the short reads at the end
+				cachingFor(path, null);
+				filler.setCaching(Caching.DIRECT_IO);
+			}
 		} else {
 			logger.warn("Failed to open muxed file {}, falling back to unmuxed file {}", output, muxFile);
 			muxFiles.remove(info, muxer);
 			safeDelete(output);
+			tempTiers.removed(muxer);
 			result = super.openReal(muxFile, filler);
+			cachingFor(path, null);
 		}
 		return result;
 	}
 
-	private void updateMuxCaches(FileInfo info, final Muxer muxer, Path output, Recorder recorder) {
-		openMuxFiles.put(recorder.getFileHandle(), new MuxedFile(info, muxer));
-		if (!muxedSizeCache.asMap().containsKey(info)) { // Race, but fine.
-			executorService.submit(() -> {
-				try {
-					muxer.waitFor();
-				} catch (Exception e) { // Ignored
-				}
-				if (muxer.state() == State.SUCCESSFUL) {
-					long length = output.toFile().length();
-					if (length > 0) {
-						muxedSizeCache.put(info, length);
+	/**
+	 * A mux is keyed on the .mkv alone, so a replaced or edited .srt would otherwise keep serving the old subtitles. Such a mux is forgotten, and
+	 * deleted once no longer open, so the next open muxes again.
+	 *
+	 * The next mux is a full one, nothing of the old output is reused even though only the subtitle track changed.
+	 */
+	private void retireIfStale(FileInfo info, Path srt) {
+		Muxer muxer = muxFiles.get(info);
+		if (muxer == null || Subtitle.of(srt).equals(muxedSubtitles.getIfPresent(muxer))) {
+			return;
+		}
+		if (muxFiles.remove(info, muxer)) {
+			logger.info("Subtitles changed to {} since {}, muxing all of it again", srt, muxer);
+			muxedSubtitles.invalidate(muxer);
+			muxedSizeCache.invalidate(info);
+			MuxedFile muxed = new MuxedFile(info, muxer);
+			closedMuxFiles.asMap().remove(info, muxed);
+			if (!openMuxFiles.containsValue(muxed)) {
+				muxer.cancel(); // No one will read what it is still muxing
+				muxer.getOutput().ifPresent(this::safeDelete);
+				tempTiers.removed(muxer);
+			}
+		}
+	}
+
+	private Optional<Path> lookupCached(FileInfo info, Path srt) {
+		if (!muxCache.isEnabled()) {
+			return Optional.empty();
+		}
+		return Try.withCatch(() -> FileInfo.of(srt), Exception.class).toOptional().flatMap(srtInfo -> muxCache.lookup(info, srtInfo));
+	}
+
+	private Muxer startMuxer(Path muxFile, Path srt, FileInfo info)
+			throws IOException {
+		Subtitle subtitle = Subtitle.of(srt); // Before muxing, so any change while muxing counts as a change
+		Muxer muxer = tempTiers.place(muxFile, srt, () -> info.getSize() + srt.toFile().length(), muxerFactory);
+		muxedSubtitles.put(muxer, subtitle); // Before anyone can find it, or retireIfStale() takes it for stale
+		Muxer previous = muxFiles.putIfAbsent(info, muxer); // Others might be racing the same file
+		if (previous != null) { // They won the race
+			tempTiers.removed(muxer);
+			muxer = previous;
+		} else {
+			watchCompletion(info, muxer);
+		}
+		try {
+			muxer.start();
+			muxer.waitForOutput();
+		} catch (IOException e) {
+			// Invalidate the broken muxer. This means the next open will try again, which might not be a good strategy.
+			muxFiles.remove(info, muxer);
+			tempTiers.removed(muxer);
+			throw e;
+		}
+		return muxer;
+	}
+
+	/**
+	 * Muxes a file ahead of anyone opening it. Once done, it waits in the closed mux cache for the first open, and expires from there like any
+	 * other closed mux if none comes.
+	 *
+	 * @param factory
+	 *            Typically one making BACKGROUND muxers, which are promoted if someone opens the file before the mux is done
+	 * @param budget
+	 *            How many bytes closed and pre-muxed outputs may take up, including this one
+	 * @return false if it should be tried again later, because of the budget or another pre-mux still running, otherwise true
+	 */
+	public boolean premux(Path mkv, MuxerFactory factory, long budget)
+			throws IOException {
+		List<Path> subFiles = getMatchingSubFiles(mkv);
+		if (subFiles.isEmpty()) {
+			return true;
+		}
+		if (!premuxing.isEmpty()) { // One at a time, they are not urgent
+			return false;
+		}
+		Path srt = subFiles.get(0);
+		FileInfo info = FileInfo.of(mkv);
+		retireIfStale(info, srt);
+		if (muxFiles.containsKey(info) || lookupCached(info, srt).isPresent() || trackInspector.hasEquivalent(mkv, info, srt)) {
+			return true;
+		}
+		long expectedSize = info.getSize() + srt.toFile().length();
+		long used = closedMuxFiles.asMap().keySet().stream().mapToLong(FileInfo::getSize).sum();
+		if (used + expectedSize > budget) {
+			logger.debug("Not pre-muxing {} yet, {} bytes of {} used", mkv, used, budget);
+			return false;
+		}
+		Subtitle subtitle = Subtitle.of(srt);
+		Muxer muxer = tempTiers.place(mkv, srt, () -> expectedSize, factory);
+		muxedSubtitles.put(muxer, subtitle);
+		if (muxFiles.putIfAbsent(info, muxer) != null) { // Someone opened it just now
+			tempTiers.removed(muxer);
+			return true;
+		}
+		logger.info("Pre-muxing {}", muxer);
+		premuxing.add(muxer);
+		watchCompletion(info, muxer);
+		muxer.onCompletion().thenAcceptAsync(state -> {
+			premuxing.remove(muxer);
+			MuxedFile muxed = new MuxedFile(info, muxer);
+			if (state == State.SUCCESSFUL && muxFiles.get(info) == muxer && !openMuxFiles.containsValue(muxed)) {
+				closedMuxFiles.asMap().putIfAbsent(info, muxed);
+			}
+		}, executorService);
+		try {
+			muxer.start();
+		} catch (IOException e) {
+			premuxing.remove(muxer);
+			muxFiles.remove(info, muxer);
+			tempTiers.removed(muxer);
+			throw e;
+		}
+		return true;
+	}
+
+	/**
+	 * Opens the original file without muxing, and only starts muxing on the first read. Opens that never read, like those checking access or
+	 * waiting to see if a file is played, never cause a mux.
+	 *
+	 * Nothing is ever read from the original while deferred. The muxed output has another layout, so a handle must read all of its bytes from one
+	 * or the other. Which one is only known on the first read, so the kernel must not cache anything for the handle.
+	 */
+	private int openDeferred(String path, FileHandleFiller filler, Path muxFile, Path srt, FileInfo info) {
+		Recorder recorder = FileHandleFiller.Recorder.wrap(filler);
+		int result = super.openReal(muxFile, info, recorder);
+		if (result == SUCCESS) {
+			logger.debug("{} opened, muxing deferred until read", path);
+			deferredMuxFiles.put(recorder.getFileHandle(), new Deferred(muxFile, srt, info));
+			cachingFor(path, null);
+			filler.setCaching(Caching.DIRECT_IO);
+		}
+		return result;
+	}
+
+	/**
+	 * Switches a deferred file handle over to the muxed output, before its first read. Should muxing fail, the handle reads the original instead,
+	 * having served nothing else.
+	 */
+	private void startDeferred(String path, int fileHandle, Deferred deferred) {
+		synchronized (deferred) {
+			if (!deferredMuxFiles.containsKey(fileHandle)) { // Someone else switched it already
+				return;
+			}
+			try {
+				closedMuxFiles.invalidate(deferred.info);
+				Muxer muxer = startMuxer(deferred.mkv, deferred.srt, deferred.info);
+				synchronized (muxer) { // See relocate()
+					Optional<Path> output = muxer.getOutput();
+					if (output.isPresent() && reopenReal(fileHandle, output.get(), null) == SUCCESS) {
+						openMuxFiles.put(fileHandle, new MuxedFile(deferred.info, muxer));
+						tempTiers.accessed(muxer);
+						logger.debug("{} read, switched to {}", path, output.get());
+					} else {
+						logger.warn("Deferred muxing of {} has no output, reading the original", path);
 					}
 				}
-			});
+			} catch (IOException e) {
+				logger.warn("Deferred muxing failed, reading the original {}", deferred.mkv, e);
+			} finally {
+				deferredMuxFiles.remove(fileHandle);
+			}
+		}
+	}
+
+	/**
+	 * Hooks up what needs to happen once the muxer is done, without parking a thread per muxer waiting for it.
+	 */
+	private void watchCompletion(FileInfo info, Muxer muxer) {
+		muxer.onCompletion().thenAcceptAsync(state -> {
+			tempTiers.completed(muxer);
+			if (state == State.SUCCESSFUL && muxFiles.get(info) == muxer) {
+				muxer.getOutput().map(output -> output.toFile().length()).filter(length -> length > 0).ifPresent(length -> muxedSizeCache.put(info, length));
+				// mkvmerge read the inputs once, and everyone will read the output from now on
+				pageCache.drop(muxer.getMkv());
+				pageCache.drop(muxer.getSrt());
+			} else if (state != State.SUCCESSFUL) {
+				muxFiles.remove(info, muxer);
+				tempTiers.removed(muxer);
+			}
+		}, executorService);
+	}
+
+	/**
+	 * Moves a closed output to another temp tier. It is taken out of the closed files while moving, so it cannot expire and get deleted meanwhile.
+	 */
+	private boolean relocate(MuxedFile muxed, Path directory)
+			throws IOException {
+		if (!closedMuxFiles.asMap().remove(muxed.getInfo(), muxed)) {
+			return false; // Opened again
+		}
+		try {
+			return muxed.getMuxer().moveOutput(directory, () -> !openMuxFiles.containsValue(muxed));
+		} finally {
+			if (!openMuxFiles.containsValue(muxed)) {
+				closedMuxFiles.asMap().putIfAbsent(muxed.getInfo(), muxed);
+			}
 		}
 	}
 
@@ -362,13 +750,13 @@ public class MuxFs extends MirrorFs {
 
 	private int readRunningMuxer(String path, Consumer<byte[]> buf, int size, long offset, int fileHandle, MuxedFile muxedFile, Muxer muxer) {
 		long maxPosition = offset + size; // This could overflow for really big files / sizes, close to 8388608 TB.
-		FileChannel channelFor = getChannelFor(fileHandle);
+		SharedChannel channelFor = getChannelFor(fileHandle);
 		if (channelFor == null) {
 			logger.error("BUG: FileChannel for file handle {} open {} not found", fileHandle, muxedFile);
 			return BUG;
 		}
 		try {
-			long muxSize = channelFor.size();
+			long muxSize = channelFor.use(FileChannel::size);
 			if (maxPosition >= muxSize) { // Read beyond current mux progress
 				logger.debug("{}: read @ {} with mux progress {}, sleeping...", path, maxPosition, muxSize);
 				int result = waitForMuxing(muxer, maxPosition, channelFor, fileHandle, muxedFile);
@@ -391,15 +779,16 @@ public class MuxFs extends MirrorFs {
 	 *
 	 * We park here and wait until it is available.
 	 */
-	private int waitForMuxing(Muxer muxer, long maxPosition, FileChannel fileChannel, int fileHandle, MuxedFile muxedFile)
+	private int waitForMuxing(Muxer muxer, long maxPosition, SharedChannel fileChannel, int fileHandle, MuxedFile muxedFile)
 			throws IOException, InterruptedException {
 		long currentSize = 0;
-		while (maxPosition >= (currentSize = fileChannel.size())) {
+		while (maxPosition >= (currentSize = fileChannel.use(FileChannel::size))) {
 			State state = muxer.state();
 			switch (state) {
 				case RUNNING:
-					logger.debug("Want to read @ {} (file is {}), so waiting for {}", maxPosition, currentSize, muxer);
-					sleeper.sleep(MUX_WAIT_LOOP_MS);
+					muxer.promote(); // Someone is waiting now, so it is no longer a background job
+					logger.debug("Want to read @ {} (file is {}, {}% muxed), so waiting for {}", maxPosition, currentSize, muxer.getProgress().getPercent(), muxer);
+					muxer.waitFor(MUX_WAIT_LOOP_MS, MILLISECONDS); // Returns early if the muxer completes
 					break;
 				case SUCCESSFUL:
 					logger.debug("Done waiting to read @ {}", maxPosition, muxer);
@@ -441,7 +830,7 @@ public class MuxFs extends MirrorFs {
 		return getFileName(muxFile).map(name -> getMatchingSubFiles(muxFile.getParent(), name)).orElse(Collections.emptyList());
 	}
 
-	private List<Path> getMatchingSubFiles(Path parent, String muxName) {
+	static List<Path> getMatchingSubFiles(Path parent, String muxName) {
 		String muxFileNameLower = muxName.toLowerCase().substring(0, muxName.length() - 4);
 		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(parent)) {
 			return StreamSupport.stream(directoryStream.spliterator(), false).filter(entry -> {
@@ -457,4 +846,52 @@ public class MuxFs extends MirrorFs {
 	private boolean addWithExtraSize(DirectoryFiller filler, Path entry, long extraSize) {
 		return add(entry, (fileName) -> filler.addWithExtraSize(fileName, entry, extraSize));
 	}
-}
\ No newline at end of file
+
+	private static final class Deferred {
+
+		private final Path mkv;
+		private final Path srt;
+		private final FileInfo info;
+
+		private Deferred(Path mkv, Path srt, FileInfo info) {
+			this.mkv = mkv;
+			this.srt = srt;
+			this.info = info;
+		}
+	}
+
+	/**
+	 * The version of a subtitle file that was muxed
+	 */
+	private static final class Subtitle {
+
+		private final Path path;
+		private final FileInfo info;
+
+		private Subtitle(Path path, FileInfo info) {
+			this.path = path;
+			this.info = info;
+		}
+
+		private static Subtitle of(Path srt) {
+			return new Subtitle(srt, Try.withCatch(() -> FileInfo.of(srt), Exception.class).orElse(null));
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(path, info);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Subtitle)) {
+				return false;
+			}
+			Subtitle other = (Subtitle) obj;
+			return Objects.equals(path, other.path) && Objects.equals(info, other.info);
+		}
+	}
+}
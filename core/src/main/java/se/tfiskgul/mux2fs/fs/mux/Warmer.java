@@ -0,0 +1,207 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.mux;
+
+import static java.util.Comparator.comparingLong;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+import static se.tfiskgul.mux2fs.Constants.MEGABYTE;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import se.tfiskgul.mux2fs.fs.base.FileInfo;
+import se.tfiskgul.mux2fs.mux.MuxCache;
+import se.tfiskgul.mux2fs.mux.Muxer;
+import se.tfiskgul.mux2fs.mux.Muxer.MuxerFactory;
+import se.tfiskgul.mux2fs.mux.Muxer.State;
+import se.tfiskgul.mux2fs.mux.TrackInspector;
+
+/**
+ * Muxes everything under a source directory into a MuxCache, without mounting, so a later mount with the same cache opens the files at once.
+ *
+ * Pairs are matched the same way MuxFs does. The largest files are muxed first, which keeps the muxers busy until the very end.
+ */
+public class Warmer {
+
+	private static final Logger logger = LoggerFactory.getLogger(Warmer.class);
+	private static final int REPORT_INTERVAL_SECONDS = 10;
+
+	private static final class Pair {
+
+		private final Path mkv;
+		private final Path srt;
+		private final FileInfo mkvInfo;
+		private final FileInfo srtInfo;
+
+		private Pair(Path mkv, Path srt, FileInfo mkvInfo, FileInfo srtInfo) {
+			this.mkv = mkv;
+			this.srt = srt;
+			this.mkvInfo = mkvInfo;
+			this.srtInfo = srtInfo;
+		}
+	}
+
+	private final MuxCache cache;
+	private final MuxerFactory muxerFactory;
+	private final TrackInspector trackInspector;
+	private final int jobs;
+	private final AtomicInteger total = new AtomicInteger();
+	private final AtomicInteger muxed = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicInteger skipped = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * @param jobs
+	 *            How many muxes to run at once. mkvmerge mostly waits for disks, so more than a couple per disk rarely helps.
+	 */
+	public Warmer(MuxCache cache, MuxerFactory muxerFactory, TrackInspector trackInspector, int jobs) {
+		if (!cache.isEnabled()) {
+			throw new IllegalArgumentException("Warming needs a cache directory");
+		}
+		this.cache = cache;
+		this.muxerFactory = muxerFactory;
+		this.trackInspector = trackInspector;
+		this.jobs = Math.max(1, jobs);
+	}
+
+	/**
+	 * @return true if nothing failed
+	 */
+	public boolean warm(Path source, Consumer<String> reporter)
+			throws IOException, InterruptedException {
+		List<Path> mkvs;
+		try (Stream<Path> files = Files.walk(source)) {
+			mkvs = files.filter(file -> String.valueOf(file.getFileName()).endsWith(".mkv")).collect(toList());
+		}
+		return warm(mkvs, reporter);
+	}
+
+	@VisibleForTesting
+	boolean warm(List<Path> mkvs, Consumer<String> reporter)
+			throws InterruptedException {
+		List<Pair> pairs = new ArrayList<>();
+		for (Path mkv : mkvs) {
+			pairOf(mkv).ifPresent(pairs::add);
+		}
+		pairs.sort(comparingLong((Pair pair) -> pair.mkvInfo.getSize()).reversed());
+		total.set(pairs.size());
+		reporter.accept("Warming " + pairs.size() + " files with " + jobs + " jobs, " + skipped + " already done");
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(jobs, new ThreadFactoryBuilder().setNameFormat("warm-%d").build());
+		ScheduledExecutorService progress = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("warm-progress").setDaemon(true).build());
+		progress.scheduleAtFixedRate(() -> reporter.accept(progress(start)), REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, SECONDS);
+		try {
+			pairs.forEach(pair -> pool.execute(() -> mux(pair)));
+			pool.shutdown();
+			while (!pool.awaitTermination(1, SECONDS)) {
+				// Progress is reported on the side
+			}
+		} finally {
+			pool.shutdownNow();
+			progress.shutdownNow();
+		}
+		reporter.accept(progress(start));
+		return failed.get() == 0;
+	}
+
+	private Optional<Pair> pairOf(Path mkv) {
+		List<Path> subFiles = MuxFs.getMatchingSubFiles(mkv.getParent(), mkv.getFileName().toString());
+		if (subFiles.isEmpty()) {
+			return Optional.empty();
+		}
+		Path srt = subFiles.get(0);
+		try {
+			FileInfo mkvInfo = FileInfo.of(mkv);
+			FileInfo srtInfo = FileInfo.of(srt);
+			if (cache.lookup(mkvInfo, srtInfo).isPresent() || trackInspector.hasEquivalent(mkv, mkvInfo, srt)) {
+				skipped.incrementAndGet();
+				return Optional.empty();
+			}
+			return Optional.of(new Pair(mkv, srt, mkvInfo, srtInfo));
+		} catch (IOException e) {
+			logger.warn("Skipping {}", mkv, e);
+			failed.incrementAndGet();
+			return Optional.empty();
+		}
+	}
+
+	private void mux(Pair pair) {
+		Muxer muxer = muxerFactory.from(pair.mkv, pair.srt, cache.getDirectory());
+		try {
+			muxer.start();
+			muxer.waitFor();
+			Optional<Path> output = muxer.getOutput();
+			if (muxer.state() == State.SUCCESSFUL && output.isPresent()) {
+				long size = output.get().toFile().length();
+				Path cached = cache.store(output.get(), pair.mkvInfo, pair.srtInfo);
+				bytes.addAndGet(size);
+				muxed.incrementAndGet();
+				logger.info("Warmed {} into {}", pair.mkv, cached);
+			} else {
+				logger.warn("Muxing {} failed", pair.mkv);
+				failed.incrementAndGet();
+			}
+		} catch (IOException e) {
+			logger.warn("Muxing {} failed", pair.mkv, e);
+			muxer.getOutput().ifPresent(output -> output.toFile().delete());
+			failed.incrementAndGet();
+		} catch (InterruptedException e) {
+			muxer.cancel();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private String progress(long start) {
+		double seconds = Math.max(NANOSECONDS.toMillis(System.nanoTime() - start), 1) / 1000.0;
+		return String.format("%d/%d muxed, %d failed, %d MB in %.0f s, %.1f MB/s", muxed.get(), total.get(), failed.get(), bytes.get() / MEGABYTE,
+				seconds, bytes.get() / (double) MEGABYTE / seconds);
+	}
+
+	@Override
+	public String toString() {
+		return "Warmer [cache=" + cache + ", jobs=" + jobs + ", total=" + total + ", muxed=" + muxed + ", failed=" + failed + ", skipped=" + skipped
+				+ ", bytes=" + bytes + "]";
+	}
+}
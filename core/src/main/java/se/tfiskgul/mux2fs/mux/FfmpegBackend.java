@@ -0,0 +1,76 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.mux;
+
+import java.nio.file.Path;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ffmpeg, copying every stream of both inputs. Progress is the bytes written so far, from -progress, against the estimated size.
+ *
+ * Unlike mkvmerge, ffmpeg does not take the language of the subtitle from the .srt file name.
+ */
+final class FfmpegBackend implements MuxBackend {
+
+	static final FfmpegBackend INSTANCE = new FfmpegBackend();
+	private static final Logger logger = LoggerFactory.getLogger(FfmpegBackend.class);
+	private static final String TOTAL_SIZE = "total_size=";
+
+	private FfmpegBackend() {
+	}
+
+	@Override
+	public String getName() {
+		return "ffmpeg";
+	}
+
+	@Override
+	public String[] command(Path mkv, Path srt, Path output) {
+		return new String[] { "ffmpeg", "-nostdin", "-hide_banner", "-nostats", "-loglevel", "warning", "-progress", "pipe:1", "-i", mkv.toString(),
+				"-i", srt.toString(), "-map", "0", "-map", "1", "-c", "copy", "-f", "matroska", "-y", output.toString() };
+	}
+
+	@Override
+	public void parse(String line, MuxProgress progress, long estimatedSize) {
+		if (line.startsWith(TOTAL_SIZE)) {
+			try {
+				long written = Long.parseLong(line.substring(TOTAL_SIZE.length()).trim());
+				if (estimatedSize > 0) {
+					progress.update((int) Math.min(99, written * 100 / estimatedSize)); // The estimate is a bit off, 100 is for exit
+				}
+			} catch (NumberFormatException e) {
+				logger.trace("Unparseable size {}", line, e);
+			}
+		} else if (!line.contains("=")) { // Everything -progress writes is key=value, the rest are messages
+			progress.warned(line);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+}
@@ -0,0 +1,134 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.mux;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import javax.annotation.concurrent.Immutable;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * CPU and I/O priority to launch a muxer process with, applied using nice(1) and ionice(1).
+ */
+@Immutable
+public class LaunchProfile {
+
+	public static final int IONICE_REALTIME = 1;
+	public static final int IONICE_BEST_EFFORT = 2;
+	public static final int IONICE_IDLE = 3;
+	private final int nice;
+	private final int ioniceClass;
+
+	public LaunchProfile(int nice, int ioniceClass) {
+		if (nice < -20 || nice > 19) {
+			throw new IllegalArgumentException("nice must be within -20 - 19, was " + nice);
+		}
+		if (ioniceClass < IONICE_REALTIME || ioniceClass > IONICE_IDLE) {
+			throw new IllegalArgumentException("ionice class must be within 1 - 3, was " + ioniceClass);
+		}
+		this.nice = nice;
+		this.ioniceClass = ioniceClass;
+	}
+
+	/**
+	 * Normal priority, which is what a process gets when not wrapped at all.
+	 */
+	public static LaunchProfile normal() {
+		return new LaunchProfile(0, IONICE_BEST_EFFORT);
+	}
+
+	/**
+	 * Only gets CPU and disk time when nothing else wants it.
+	 */
+	public static LaunchProfile idle() {
+		return new LaunchProfile(19, IONICE_IDLE);
+	}
+
+	public int getNice() {
+		return nice;
+	}
+
+	public int getIoniceClass() {
+		return ioniceClass;
+	}
+
+	/**
+	 * @return The command, prefixed with nice and ionice as needed
+	 */
+	public String[] wrap(String... command) {
+		if (equals(normal())) {
+			return command;
+		}
+		ImmutableList.Builder<String> builder = ImmutableList.builder();
+		if (nice != 0) {
+			builder.add("nice", "-n", String.valueOf(nice));
+		}
+		if (ioniceClass != IONICE_BEST_EFFORT) {
+			builder.add("ionice", "-c", String.valueOf(ioniceClass));
+		}
+		List<String> wrapped = builder.addAll(Arrays.asList(command)).build();
+		return wrapped.toArray(new String[wrapped.size()]);
+	}
+
+	/**
+	 * Commands that apply this profile to an already running process.
+	 *
+	 * Lowering the nice value requires CAP_SYS_NICE, so renice is expected to fail unless privileged, while changing to a non-realtime I/O class is always
+	 * allowed for our own processes.
+	 */
+	public List<String[]> reprioritize(long pid) {
+		String pidString = String.valueOf(pid);
+		return ImmutableList.of( //
+				new String[] { "renice", "-n", String.valueOf(nice), "-p", pidString }, //
+				new String[] { "ionice", "-c", String.valueOf(ioniceClass), "-p", pidString });
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(nice, ioniceClass);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (obj == null) {
+			return false;
+		}
+		if (getClass() != obj.getClass()) {
+			return false;
+		}
+		LaunchProfile other = (LaunchProfile) obj;
+		return nice == other.nice && ioniceClass == other.ioniceClass;
+	}
+
+	@Override
+	public String toString() {
+		return "LaunchProfile [nice=" + nice + ", ioniceClass=" + ioniceClass + "]";
+	}
+}
@@ -0,0 +1,122 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.mux;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.tfiskgul.mux2fs.mux.Muxer.Priority;
+
+/**
+ * Launch profiles per muxer priority, optionally backed by cgroup v2 groups with io.weight and cpu.weight.
+ *
+ * The cgroup root must be a cgroup delegated to the user running mux2fs, and must not contain the mux2fs process itself.
+ */
+public class LaunchProfiles {
+
+	private static final Logger logger = LoggerFactory.getLogger(LaunchProfiles.class);
+	private static final int DEFAULT_WEIGHT = 100;
+	public static final int DEFAULT_BACKGROUND_WEIGHT = 10;
+	private final LaunchProfile interactive;
+	private final LaunchProfile background;
+	private final Optional<Path> cgroupRoot;
+	private final int backgroundWeight;
+	private volatile boolean cgroupsAvailable;
+
+	public LaunchProfiles(LaunchProfile interactive, LaunchProfile background, Optional<Path> cgroupRoot, int backgroundWeight) {
+		if (backgroundWeight < 1 || backgroundWeight > 10000) {
+			throw new IllegalArgumentException("cgroup weight must be within 1 - 10000, was " + backgroundWeight);
+		}
+		this.interactive = interactive;
+		this.background = background;
+		this.cgroupRoot = cgroupRoot;
+		this.backgroundWeight = backgroundWeight;
+	}
+
+	public static LaunchProfiles defaults() {
+		return new LaunchProfiles(LaunchProfile.normal(), LaunchProfile.idle(), Optional.empty(), DEFAULT_BACKGROUND_WEIGHT);
+	}
+
+	public LaunchProfile get(Priority priority) {
+		return priority == Priority.BACKGROUND ? background : interactive;
+	}
+
+	/**
+	 * Creates one cgroup per priority under the cgroup root, if any. Falls back to nice and ionice only if that is not possible.
+	 */
+	public LaunchProfiles prepare() {
+		cgroupRoot.ifPresent(root -> {
+			try {
+				write(root.resolve("cgroup.subtree_control"), "+io +cpu");
+				createCgroup(root.resolve(cgroupName(Priority.INTERACTIVE)), DEFAULT_WEIGHT);
+				createCgroup(root.resolve(cgroupName(Priority.BACKGROUND)), backgroundWeight);
+				cgroupsAvailable = true;
+			} catch (IOException e) {
+				logger.warn("Unable to set up cgroups under {}, only using nice and ionice", root, e);
+			}
+		});
+		return this;
+	}
+
+	private void createCgroup(Path cgroup, int weight)
+			throws IOException {
+		if (!Files.isDirectory(cgroup)) {
+			Files.createDirectory(cgroup);
+		}
+		write(cgroup.resolve("io.weight"), "default " + weight);
+		write(cgroup.resolve("cpu.weight"), String.valueOf(weight));
+	}
+
+	/**
+	 * Moves the process into the cgroup for the priority. Does nothing unless cgroups were successfully prepared.
+	 */
+	public void join(Priority priority, long pid)
+			throws IOException {
+		if (cgroupsAvailable) {
+			write(cgroupRoot.get().resolve(cgroupName(priority)).resolve("cgroup.procs"), String.valueOf(pid));
+		}
+	}
+
+	private static String cgroupName(Priority priority) {
+		return priority.name().toLowerCase();
+	}
+
+	private static void write(Path path, String value)
+			throws IOException {
+		Files.write(path, value.getBytes(UTF_8)); // cgroupfs takes one value per write(2)
+	}
+
+	@Override
+	public String toString() {
+		return "LaunchProfiles [interactive=" + interactive + ", background=" + background + ", cgroupRoot=" + cgroupRoot + ", backgroundWeight="
+				+ backgroundWeight + ", cgroupsAvailable=" + cgroupsAvailable + "]";
+	}
+}
@@ -0,0 +1,341 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.mux;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Objects;
+
+import javax.annotation.concurrent.Immutable;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Reads the track list of a Matroska file, touching only the element headers on the way to the Tracks element, and the Tracks element itself.
+ *
+ * The Tracks element is found either before the first Cluster, which is where mkvmerge puts it, or through the SeekHead.
+ */
+public final class MatroskaTracks {
+
+	public static final int TRACK_TYPE_SUBTITLE = 17;
+	private static final long EBML = 0x1A45DFA3L;
+	private static final long SEGMENT = 0x18538067L;
+	private static final long SEEK_HEAD = 0x114D9B74L;
+	private static final long SEEK = 0x4DBBL;
+	private static final long SEEK_ID = 0x53ABL;
+	private static final long SEEK_POSITION = 0x53ACL;
+	private static final long TRACKS = 0x1654AE6BL;
+	private static final long TRACK_ENTRY = 0xAEL;
+	private static final long TRACK_TYPE = 0x83L;
+	private static final long CODEC_ID = 0x86L;
+	private static final long LANGUAGE = 0x22B59CL;
+	private static final long LANGUAGE_IETF = 0x22B59DL;
+	private static final long NAME = 0x536EL;
+	private static final long CLUSTER = 0x1F43B675L;
+	private static final long UNKNOWN_SIZE = -1;
+	private static final int MAX_ELEMENTS = 256;
+	private static final int MAX_TRACKS_SIZE = 1024 * 1024;
+
+	@Immutable
+	public static final class Track {
+
+		private final int type;
+		private final String codec;
+		private final String language;
+		private final String name;
+
+		public Track(int type, String codec, String language, String name) {
+			this.type = type;
+			this.codec = codec;
+			this.language = language;
+			this.name = name;
+		}
+
+		public int getType() {
+			return type;
+		}
+
+		public String getCodec() {
+			return codec;
+		}
+
+		/**
+		 * LanguageIETF if present, otherwise Language, which defaults to eng
+		 */
+		public String getLanguage() {
+			return language;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(type, codec, language, name);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Track)) {
+				return false;
+			}
+			Track other = (Track) obj;
+			return type == other.type && Objects.equals(codec, other.codec) && Objects.equals(language, other.language)
+					&& Objects.equals(name, other.name);
+		}
+
+		@Override
+		public String toString() {
+			return "Track [type=" + type + ", codec=" + codec + ", language=" + language + ", name=" + name + "]";
+		}
+	}
+
+	private MatroskaTracks() {
+	}
+
+	/**
+	 * @return The tracks, or an empty list if there is no Tracks element in the header
+	 * @throws IOException
+	 *             If this is not a Matroska file, or it is broken
+	 */
+	public static List<Track> read(FileChannel channel)
+			throws IOException {
+		long size = channel.size();
+		Element ebml = Element.at(channel, 0);
+		if (ebml.id != EBML) {
+			throw new IOException("Not an EBML file");
+		}
+		Element segment = Element.at(channel, ebml.end());
+		if (segment.id != SEGMENT) {
+			throw new IOException("No Segment after the EBML header");
+		}
+		long segmentEnd = segment.size == UNKNOWN_SIZE ? size : Math.min(segment.end(), size);
+		long tracksPosition = -1;
+		long position = segment.dataStart;
+		for (int i = 0; i < MAX_ELEMENTS && position < segmentEnd; i++) {
+			Element element = Element.at(channel, position);
+			if (element.id == TRACKS) {
+				return tracks(element.read(channel));
+			}
+			if (element.id == SEEK_HEAD) {
+				tracksPosition = seekTracks(element.read(channel), segment.dataStart);
+			}
+			if (element.id == CLUSTER || element.size == UNKNOWN_SIZE) {
+				break;
+			}
+			position = element.end();
+		}
+		if (tracksPosition >= 0 && tracksPosition < segmentEnd) {
+			Element element = Element.at(channel, tracksPosition);
+			if (element.id == TRACKS) {
+				return tracks(element.read(channel));
+			}
+		}
+		return ImmutableList.of();
+	}
+
+	private static long seekTracks(ByteBuffer seekHead, long segmentDataStart)
+			throws IOException {
+		while (seekHead.hasRemaining()) {
+			Element seek = Element.in(seekHead);
+			if (seek.id == SEEK) {
+				ByteBuffer entry = seek.slice(seekHead);
+				long seekId = 0;
+				long seekPosition = -1;
+				while (entry.hasRemaining()) {
+					Element child = Element.in(entry);
+					ByteBuffer value = child.slice(entry);
+					if (child.id == SEEK_ID) {
+						seekId = unsigned(value);
+					} else if (child.id == SEEK_POSITION) {
+						seekPosition = unsigned(value);
+					}
+				}
+				if (seekId == TRACKS && seekPosition >= 0) {
+					return segmentDataStart + seekPosition;
+				}
+			} else {
+				seek.slice(seekHead);
+			}
+		}
+		return -1;
+	}
+
+	private static List<Track> tracks(ByteBuffer tracks)
+			throws IOException {
+		ImmutableList.Builder<Track> builder = ImmutableList.builder();
+		while (tracks.hasRemaining()) {
+			Element element = Element.in(tracks);
+			ByteBuffer value = element.slice(tracks);
+			if (element.id == TRACK_ENTRY) {
+				builder.add(track(value));
+			}
+		}
+		return builder.build();
+	}
+
+	private static Track track(ByteBuffer entry)
+			throws IOException {
+		int type = 0;
+		String codec = null;
+		String language = "eng"; // The default, when there is no Language element
+		String languageIetf = null;
+		String name = null;
+		while (entry.hasRemaining()) {
+			Element element = Element.in(entry);
+			ByteBuffer value = element.slice(entry);
+			if (element.id == TRACK_TYPE) {
+				type = (int) unsigned(value);
+			} else if (element.id == CODEC_ID) {
+				codec = string(value, false);
+			} else if (element.id == LANGUAGE) {
+				language = string(value, false);
+			} else if (element.id == LANGUAGE_IETF) {
+				languageIetf = string(value, false);
+			} else if (element.id == NAME) {
+				name = string(value, true);
+			}
+		}
+		return new Track(type, codec, languageIetf != null ? languageIetf : language, name);
+	}
+
+	private static long unsigned(ByteBuffer value) {
+		long result = 0;
+		while (value.hasRemaining()) {
+			result = (result << 8) | (value.get() & 0xFF);
+		}
+		return result;
+	}
+
+	private static String string(ByteBuffer value, boolean utf8) {
+		byte[] bytes = new byte[value.remaining()];
+		value.get(bytes);
+		int length = bytes.length;
+		while (length > 0 && bytes[length - 1] == 0) { // Strings may be zero padded
+			length--;
+		}
+		return new String(bytes, 0, length, utf8 ? UTF_8 : US_ASCII);
+	}
+
+	/**
+	 * An element header: the ID, with its length marker kept as is customary, and the size of the data, which may be unknown.
+	 */
+	private static final class Element {
+
+		private final long id;
+		private final long size;
+		private final long dataStart;
+
+		private Element(long id, long size, long dataStart) {
+			this.id = id;
+			this.size = size;
+			this.dataStart = dataStart;
+		}
+
+		private static Element at(FileChannel channel, long position)
+				throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(12); // 4 bytes of ID and 8 of size at most
+			while (header.hasRemaining() && channel.read(header, position + header.position()) > 0) {
+				// Fill as much as there is
+			}
+			header.flip();
+			Element element = in(header);
+			return new Element(element.id, element.size, position + element.dataStart);
+		}
+
+		private static Element in(ByteBuffer buffer)
+				throws IOException {
+			int start = buffer.position();
+			long id = vint(buffer, 4, true);
+			long size = vint(buffer, 8, false);
+			return new Element(id, size, buffer.position() - start);
+		}
+
+		private static long vint(ByteBuffer buffer, int maxLength, boolean keepMarker)
+				throws IOException {
+			if (!buffer.hasRemaining()) {
+				throw new EOFException();
+			}
+			int first = buffer.get() & 0xFF;
+			int length = Integer.numberOfLeadingZeros(first) - 23;
+			if (first == 0 || length > maxLength) {
+				throw new IOException("Invalid EBML variable length integer");
+			}
+			if (buffer.remaining() < length - 1) {
+				throw new EOFException();
+			}
+			long value = keepMarker ? first : first & (0xFF >> length);
+			boolean allOnes = value == (0xFF >> length);
+			for (int i = 1; i < length; i++) {
+				int next = buffer.get() & 0xFF;
+				allOnes &= next == 0xFF;
+				value = (value << 8) | next;
+			}
+			return !keepMarker && allOnes ? UNKNOWN_SIZE : value;
+		}
+
+		private long end() {
+			return dataStart + size;
+		}
+
+		private ByteBuffer read(FileChannel channel)
+				throws IOException {
+			if (size == UNKNOWN_SIZE || size > MAX_TRACKS_SIZE) {
+				throw new IOException("Unreasonable element size " + size);
+			}
+			ByteBuffer data = ByteBuffer.allocate((int) size);
+			while (data.hasRemaining()) {
+				if (channel.read(data, dataStart + data.position()) < 0) {
+					throw new EOFException();
+				}
+			}
+			data.flip();
+			return data;
+		}
+
+		/**
+		 * The data of an element read with in(), advancing the buffer past it.
+		 */
+		private ByteBuffer slice(ByteBuffer buffer)
+				throws IOException {
+			if (size == UNKNOWN_SIZE || size > buffer.remaining()) {
+				throw new IOException("Element overflows its parent");
+			}
+			ByteBuffer data = buffer.slice();
+			data.limit((int) size);
+			buffer.position(buffer.position() + (int) size);
+			return data;
+		}
+	}
+}
@@ -0,0 +1,57 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.mux;
+
+import java.nio.file.Path;
+
+/**
+ * mkvmerge from MKVToolNix, with progress and messages from --gui-mode.
+ */
+final class MkvmergeBackend implements MuxBackend {
+
+	static final MkvmergeBackend INSTANCE = new MkvmergeBackend();
+
+	private MkvmergeBackend() {
+	}
+
+	@Override
+	public String getName() {
+		return "mkvmerge";
+	}
+
+	@Override
+	public String[] command(Path mkv, Path srt, Path output) {
+		return new String[] { "mkvmerge", "--gui-mode", "-o", output.toString(), mkv.toString(), srt.toString() };
+	}
+
+	@Override
+	public void parse(String line, MuxProgress progress, long estimatedSize) {
+		progress.accept(line);
+	}
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+}
@@ -0,0 +1,75 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.mux;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A program that muxes an .mkv and an .srt into a new .mkv.
+ *
+ * Muxer runs the program and owns the life cycle, the same for every backend: start, priority, progress, cancel, completion and where the
+ * output goes.
+ */
+public interface MuxBackend {
+
+	/**
+	 * As given to -o mux_backend
+	 */
+	String getName();
+
+	/**
+	 * @return The command line that writes the mux of mkv and srt to output, with nothing else on stdout than progress and messages
+	 */
+	String[] command(Path mkv, Path srt, Path output);
+
+	/**
+	 * Feeds one line of output of the command, stdout and stderr merged, into the progress of the mux.
+	 *
+	 * @param estimatedSize
+	 *            Expected size of the output, for backends that only report how much they have written
+	 */
+	void parse(String line, MuxProgress progress, long estimatedSize);
+
+	static MuxBackend mkvmerge() {
+		return MkvmergeBackend.INSTANCE;
+	}
+
+	static MuxBackend ffmpeg() {
+		return FfmpegBackend.INSTANCE;
+	}
+
+	static List<MuxBackend> builtin() {
+		return ImmutableList.of(mkvmerge(), ffmpeg());
+	}
+
+	static MuxBackend named(String name) {
+		return builtin().stream()
+				.filter(backend -> backend.getName().equals(name))
+				.findFirst()
+				.orElseThrow(() -> new IllegalArgumentException("Unknown mux backend " + name + ", known are " + builtin()));
+	}
+}
@@ -0,0 +1,89 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.mux;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import com.google.common.hash.Hashing;
+
+import se.tfiskgul.mux2fs.fs.base.FileInfo;
+
+/**
+ * Muxed outputs kept across mounts, such as those made by mux2fs warm. Each is named after the .mkv and .srt it was muxed from, so a changed
+ * source simply never finds its old output again.
+ */
+public class MuxCache {
+
+	private final Path directory;
+
+	public MuxCache(Path directory) {
+		this.directory = directory;
+	}
+
+	public static MuxCache disabled() {
+		return new MuxCache(null);
+	}
+
+	public boolean isEnabled() {
+		return directory != null;
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	public Optional<Path> lookup(FileInfo mkv, FileInfo srt) {
+		if (!isEnabled()) {
+			return Optional.empty();
+		}
+		Path cached = directory.resolve(nameOf(mkv, srt));
+		return cached.toFile().length() > 0 ? Optional.of(cached) : Optional.empty();
+	}
+
+	/**
+	 * Moves a finished output into the cache, where it is found by lookup from then on
+	 */
+	public Path store(Path output, FileInfo mkv, FileInfo srt)
+			throws IOException {
+		Path cached = directory.resolve(nameOf(mkv, srt));
+		return Files.move(output, cached, ATOMIC_MOVE);
+	}
+
+	static String nameOf(FileInfo mkv, FileInfo srt) {
+		return Hashing.sha256().newHasher() //
+				.putLong(mkv.getInode()).putLong(mkv.getMtime().toMillis()).putLong(mkv.getSize()) //
+				.putLong(srt.getInode()).putLong(srt.getMtime().toMillis()).putLong(srt.getSize()) //
+				.hash().toString() + ".mkv";
+	}
+
+	@Override
+	public String toString() {
+		return "MuxCache [directory=" + directory + "]";
+	}
+}
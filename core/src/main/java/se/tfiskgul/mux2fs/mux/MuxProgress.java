@@ -0,0 +1,120 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.mux;
+
+import java.util.Queue;
+import java.util.function.Consumer;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.EvictingQueue;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Queues;
+
+/**
+ * Progress of a running mux. Accepts mkvmerge --gui-mode output, other backends update it through their MuxBackend.
+ */
+@ThreadSafe
+public class MuxProgress implements Consumer<String> {
+
+	private static final Logger logger = LoggerFactory.getLogger(MuxProgress.class);
+	private static final String GUI_PREFIX = "#GUI#";
+	private static final String PROGRESS = "progress ";
+	private static final String WARNING = "warning ";
+	private static final String ERROR = "error ";
+	private static final int MAX_WARNINGS = 20;
+	private final String name;
+	private final Queue<String> warnings = Queues.synchronizedQueue(EvictingQueue.create(MAX_WARNINGS));
+	private volatile int percent;
+
+	public MuxProgress(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public void accept(String line) {
+		if (!line.startsWith(GUI_PREFIX)) {
+			logger.trace("{}: {}", name, line);
+			return;
+		}
+		String message = line.substring(GUI_PREFIX.length());
+		if (message.startsWith(PROGRESS)) {
+			parsePercent(message.substring(PROGRESS.length()));
+		} else if (message.startsWith(WARNING)) {
+			warned(message.substring(WARNING.length()));
+		} else if (message.startsWith(ERROR)) {
+			logger.warn("{}: mkvmerge error: {}", name, message.substring(ERROR.length()));
+		} else {
+			logger.trace("{}: {}", name, line);
+		}
+	}
+
+	private void parsePercent(String value) {
+		String digits = value.endsWith("%") ? value.substring(0, value.length() - 1) : value;
+		try {
+			update(Integer.parseInt(digits.trim()));
+		} catch (NumberFormatException e) {
+			logger.trace("{}: Unparseable progress {}", name, value, e);
+		}
+	}
+
+	void update(int parsed) {
+		if (parsed >= 0 && parsed <= 100) {
+			percent = parsed;
+		}
+	}
+
+	void warned(String warning) {
+		logger.info("{}: warning: {}", name, warning);
+		warnings.add(warning);
+	}
+
+	void completed() {
+		percent = 100;
+	}
+
+	/**
+	 * @return Percent complete, 0 - 100
+	 */
+	public int getPercent() {
+		return percent;
+	}
+
+	/**
+	 * @return The most recent warnings, oldest first
+	 */
+	public ImmutableList<String> getWarnings() {
+		synchronized (warnings) { // Iteration must be guarded manually
+			return ImmutableList.copyOf(warnings);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "MuxProgress [percent=" + percent + ", warnings=" + warnings.size() + "]";
+	}
+}
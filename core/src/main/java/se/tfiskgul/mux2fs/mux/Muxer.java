@@ -32,13 +32,22 @@ import static se.tfiskgul.mux2fs.mux.Muxer.State.SUCCESSFUL;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Field;
 import java.nio.file.AccessMode;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,31 +57,60 @@ import com.google.common.annotations.VisibleForTesting;
 import se.tfiskgul.mux2fs.fs.base.Sleeper;
 
 /**
- * TODO: Add cancel()
+ * Runs one mux with a MuxBackend.
  *
  * TODO: Support for multiple srtFiles
  */
 public class Muxer {
 
 	private static final Logger logger = LoggerFactory.getLogger(Muxer.class);
+	private static final int NO_EXIT_VALUE = -127;
 	private final Path mkv;
 	private final Path srt;
 	private final Path tempDir;
-	private final Path output;
+	private final UUID id;
+	private volatile Path output;
 	private final AtomicReference<State> state = new AtomicReference<Muxer.State>(NOT_STARTED);
+	private final AtomicReference<Priority> priority;
+	private final LaunchProfiles profiles;
+	private final MuxBackend backend;
+	private final Preallocator preallocator;
+	private volatile Preallocator.Allocation allocation;
+	private final CompletableFuture<State> completion = new CompletableFuture<>();
+	private final MuxProgress progress;
+	private volatile long estimatedSize;
 	private volatile Process process;
+	private volatile int exitValue = NO_EXIT_VALUE;
+	private volatile boolean cancelled;
 	private final ProcessBuilderFactory factory;
+	private final ExitWatcher exitWatcher;
 	private final Sleeper sleeper;
 
 	public enum State {
 		NOT_STARTED, RUNNING, SUCCESSFUL, FAILED
 	}
 
+	public enum Priority {
+		/**
+		 * Someone is waiting for the result
+		 */
+		INTERACTIVE,
+		/**
+		 * Nobody is waiting yet, mux without disturbing readers
+		 */
+		BACKGROUND
+	}
+
 	@FunctionalInterface
 	public static interface ProcessBuilderFactory {
 		ProcessBuilder from(String... command);
 	}
 
+	@FunctionalInterface
+	public static interface ExitWatcher {
+		CompletionStage<Integer> onExit(Process process, Consumer<String> output);
+	}
+
 	@FunctionalInterface
 	public static interface MuxerFactory {
 		Muxer from(Path mkv, Path srt, Path tempDir);
@@ -80,25 +118,65 @@ public class Muxer {
 		static MuxerFactory defaultFactory() {
 			return (mkv, srt, tempDir) -> Muxer.of(mkv, srt, tempDir);
 		}
+
+		static MuxerFactory withProfiles(LaunchProfiles profiles, Priority priority) {
+			return withProfiles(profiles, priority, MuxBackend.mkvmerge());
+		}
+
+		static MuxerFactory withProfiles(LaunchProfiles profiles, Priority priority, MuxBackend backend) {
+			return withProfiles(profiles, priority, backend, Preallocator.disabled());
+		}
+
+		static MuxerFactory withProfiles(LaunchProfiles profiles, Priority priority, MuxBackend backend, Preallocator preallocator) {
+			return (mkv, srt, tempDir) -> Muxer.of(mkv, srt, tempDir, profiles, priority, backend, preallocator);
+		}
 	}
 
-	private Muxer(Path mkv, Path srt, Path tempDir, ProcessBuilderFactory factory, Sleeper sleeper) {
+	private Muxer(Path mkv, Path srt, Path tempDir, LaunchProfiles profiles, Priority priority, MuxBackend backend, Preallocator preallocator,
+			ProcessBuilderFactory factory, ExitWatcher exitWatcher, Sleeper sleeper) {
 		this.mkv = mkv;
 		this.srt = srt;
 		this.tempDir = tempDir;
-		UUID randomUUID = UUID.randomUUID();
-		this.output = tempDir.resolve(randomUUID.toString() + ".mkv");
+		this.id = UUID.randomUUID();
+		this.output = tempDir.resolve(id.toString() + ".mkv");
+		this.progress = new MuxProgress(String.valueOf(mkv.getFileName()));
+		this.profiles = profiles;
+		this.priority = new AtomicReference<>(priority);
+		this.backend = backend;
+		this.preallocator = preallocator;
 		this.factory = factory;
+		this.exitWatcher = exitWatcher;
 		this.sleeper = sleeper;
 	}
 
 	public static Muxer of(Path mkv, Path srt, Path tempDir) {
-		return new Muxer(mkv, srt, tempDir, command -> new ProcessBuilder(command), (ms) -> Thread.sleep(ms));
+		return of(mkv, srt, tempDir, LaunchProfiles.defaults(), Priority.INTERACTIVE);
+	}
+
+	public static Muxer of(Path mkv, Path srt, Path tempDir, LaunchProfiles profiles, Priority priority) {
+		return of(mkv, srt, tempDir, profiles, priority, MuxBackend.mkvmerge());
+	}
+
+	public static Muxer of(Path mkv, Path srt, Path tempDir, LaunchProfiles profiles, Priority priority, MuxBackend backend) {
+		return of(mkv, srt, tempDir, profiles, priority, backend, Preallocator.disabled());
+	}
+
+	public static Muxer of(Path mkv, Path srt, Path tempDir, LaunchProfiles profiles, Priority priority, MuxBackend backend,
+			Preallocator preallocator) {
+		return new Muxer(mkv, srt, tempDir, profiles, priority, backend, preallocator, command -> new ProcessBuilder(command),
+				ProcessReaper.shared()::onExit, (ms) -> Thread.sleep(ms));
+	}
+
+	@VisibleForTesting
+	static Muxer of(Path mkv, Path srt, Path tempDir, LaunchProfiles profiles, Priority priority, ProcessBuilderFactory factory, ExitWatcher exitWatcher,
+			Sleeper sleeper) {
+		return of(mkv, srt, tempDir, profiles, priority, MuxBackend.mkvmerge(), Preallocator.disabled(), factory, exitWatcher, sleeper);
 	}
 
 	@VisibleForTesting
-	static Muxer of(Path mkv, Path srt, Path tempDir, ProcessBuilderFactory factory, Sleeper sleeper) {
-		return new Muxer(mkv, srt, tempDir, factory, sleeper);
+	static Muxer of(Path mkv, Path srt, Path tempDir, LaunchProfiles profiles, Priority priority, MuxBackend backend, Preallocator preallocator,
+			ProcessBuilderFactory factory, ExitWatcher exitWatcher, Sleeper sleeper) {
+		return new Muxer(mkv, srt, tempDir, profiles, priority, backend, preallocator, factory, exitWatcher, sleeper);
 	}
 
 	/**
@@ -116,17 +194,118 @@ public class Muxer {
 				access(srt, AccessMode.READ);
 				access(tempDir, AccessMode.WRITE);
 				output.toFile().deleteOnExit();
-				ProcessBuilder builder = factory.from("mkvmerge", "-o", output.toString(), mkv.toString(), srt.toString());
-				builder.directory(tempDir.toFile()).inheritIO(); // TODO: Better solution than inheritIO
+				estimatedSize = mkv.toFile().length() + srt.toFile().length(); // Container overhead is negligible in comparison
+				Priority launchPriority = priority.get();
+				ProcessBuilder builder = factory.from(profiles.get(launchPriority).wrap(backend.command(mkv, srt, output)));
+				builder.directory(tempDir.toFile()).redirectErrorStream(true);
 				process = builder.start();
+				allocation = preallocator.start(output, estimatedSize, () -> state() == RUNNING);
+				pid().ifPresent(pid -> joinCgroup(launchPriority, pid));
 			} catch (Exception e) {
 				state.set(FAILED);
 				deleteWarn(output);
+				completion.complete(FAILED);
 				throw e;
 			}
+			long size = estimatedSize;
+			exitWatcher.onExit(process, line -> backend.parse(line, progress, size)).whenComplete((value, error) -> exited(value != null ? value : NO_EXIT_VALUE));
+		}
+	}
+
+	/**
+	 * Stops this Muxer, which then completes as FAILED and deletes its output. A Muxer cancelled before it was started never starts.
+	 *
+	 * This is thread safe to be called at any time, multiple times. Returns immediately, without waiting for the process to exit.
+	 */
+	public void cancel() {
+		cancelled = true;
+		if (state.compareAndSet(NOT_STARTED, FAILED)) {
+			completion.complete(FAILED);
+			return;
+		}
+		Process current = process;
+		if (state() == RUNNING && current != null) { // Null if cancelled while starting, in which case the mux runs to its end
+			logger.info("Cancelling {}", this);
+			current.destroy();
+		}
+	}
+
+	/**
+	 * Raises a BACKGROUND mux to INTERACTIVE priority, since someone is now waiting for it.
+	 *
+	 * This is thread safe to be called at any time, multiple times. Only the first call has any effect.
+	 */
+	public void promote() {
+		if (state() == RUNNING && priority.compareAndSet(Priority.BACKGROUND, Priority.INTERACTIVE)) {
+			logger.info("Promoting {}", this);
+			pid().ifPresent(pid -> {
+				profiles.get(Priority.INTERACTIVE).reprioritize(pid).forEach(this::runAside);
+				joinCgroup(Priority.INTERACTIVE, pid);
+			});
+		}
+	}
+
+	private void joinCgroup(Priority cgroupPriority, long pid) {
+		try {
+			profiles.join(cgroupPriority, pid);
+		} catch (IOException e) {
+			logger.warn("Failed to move {} into {} cgroup", this, cgroupPriority, e);
+		}
+	}
+
+	private void runAside(String... command) {
+		try {
+			ProcessBuilder builder = factory.from(command);
+			builder.redirectErrorStream(true);
+			Process aside = builder.start();
+			exitWatcher.onExit(aside, line -> logger.debug("{}: {}", command[0], line)).thenAccept(value -> {
+				if (value != SUCCESS) {
+					logger.info("{} for {} failed with {}", command[0], mkv, value);
+				}
+			});
+		} catch (IOException e) {
+			logger.warn("Failed to run {} for {}", command[0], this, e);
+		}
+	}
+
+	/**
+	 * Process.pid() only exists from Java 9, and the pid field of UNIXProcess in Java 8.
+	 */
+	private Optional<Long> pid() {
+		Process current = process;
+		try {
+			return Optional.of((Long) Process.class.getMethod("pid").invoke(current));
+		} catch (ReflectiveOperationException | RuntimeException e) { // Not Java 9+
+			try {
+				Field field = current.getClass().getDeclaredField("pid");
+				field.setAccessible(true);
+				return Optional.of(((Number) field.get(current)).longValue());
+			} catch (ReflectiveOperationException | RuntimeException e2) { // NOPMD: Mocked, or some other platform
+				return Optional.empty();
+			}
 		}
 	}
 
+	/**
+	 * Pushes the terminal state once the process has exited. Called on the exit watcher thread, so this must not block.
+	 */
+	private void exited(int value) {
+		exitValue = value;
+		Preallocator.Allocation current = allocation;
+		if (current != null) {
+			current.finish(value == SUCCESS);
+		}
+		if (value == SUCCESS) {
+			progress.completed();
+			state.set(SUCCESSFUL);
+		} else {
+			state.set(FAILED);
+			deleteWarn(output);
+		}
+		logger.debug("{} exited with {}", this, value);
+		completion.complete(state.get());
+	}
+
 	private void deleteWarn(Path path) {
 		if (!path.toFile().delete()) {
 			logger.warn("Failed to delete {}", path);
@@ -139,50 +318,66 @@ public class Muxer {
 	}
 
 	public State state() {
-		State current = state.get();
-		if (current == RUNNING) {
-			if (process != null && !process.isAlive()) { // NOPMD
-				if (process.exitValue() == SUCCESS) {
-					state.set(SUCCESSFUL);
-					return SUCCESSFUL;
-				} else {
-					state.set(FAILED);
-					deleteWarn(output);
-					return FAILED;
-				}
-			}
-		}
-		return current;
+		return state.get();
+	}
+
+	/**
+	 * @return true if cancel() was called, even if the mux ran to its end anyway
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public Priority getPriority() {
+		return priority.get();
+	}
+
+	/**
+	 * Completes with the terminal state, SUCCESSFUL or FAILED, once this Muxer is done. Never completes exceptionally.
+	 */
+	public CompletionStage<State> onCompletion() {
+		return completion;
+	}
+
+	/**
+	 * Live progress, as reported by the backend itself.
+	 */
+	public MuxProgress getProgress() {
+		return progress;
+	}
+
+	/**
+	 * @return The expected size of the finished output, or 0 if not yet started
+	 */
+	public long getEstimatedSize() {
+		return estimatedSize;
 	}
 
-	// TODO: A better Result class wrapping stdout + stderr as well as the code.
 	public int waitFor()
 			throws InterruptedException {
-		switch (state()) {
-			case NOT_STARTED:
-				throw new IllegalStateException("Not started");
-			case FAILED:
-				return process != null ? process.exitValue() : -127;
-			case RUNNING:
-			case SUCCESSFUL:
-				return process.waitFor();
-			default:
-				throw new IllegalStateException("BUG: Unkown state");
+		if (state() == NOT_STARTED) {
+			throw new IllegalStateException("Not started");
+		}
+		try {
+			completion.get();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("BUG: Completion must never fail", e);
 		}
+		return exitValue;
 	}
 
 	public boolean waitFor(long timeout, TimeUnit unit)
 			throws InterruptedException {
-		switch (state()) {
-			case NOT_STARTED:
-				throw new IllegalStateException("Not started");
-			case FAILED:
-				return true;
-			case RUNNING:
-			case SUCCESSFUL:
-				return process.waitFor(timeout, unit);
-			default:
-				throw new IllegalStateException("BUG: Unkown state");
+		if (state() == NOT_STARTED) {
+			throw new IllegalStateException("Not started");
+		}
+		try {
+			completion.get(timeout, unit);
+			return true;
+		} catch (TimeoutException e) {
+			return false;
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("BUG: Completion must never fail", e);
 		}
 	}
 
@@ -194,6 +389,39 @@ public class Muxer {
 		return Optional.empty();
 	}
 
+	/**
+	 * Moves a SUCCESSFUL output into another directory, for tiered temp storage. The output is copied first, and only switched over if
+	 * stillUnused holds, checked while holding the lock of this Muxer, which whoever opens the output must also hold.
+	 *
+	 * @return true if moved, false if it was in use, in which case the output stays where it was
+	 */
+	public boolean moveOutput(Path directory, BooleanSupplier stillUnused)
+			throws IOException {
+		if (state() != SUCCESSFUL) {
+			throw new IllegalStateException("Only a finished output can be moved, " + this);
+		}
+		Path current = output;
+		Path target = directory.resolve(current.getFileName().toString());
+		Path partial = directory.resolve(current.getFileName().toString() + ".part");
+		try {
+			Files.copy(current, partial, StandardCopyOption.REPLACE_EXISTING);
+			Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.deleteIfExists(partial);
+			throw e;
+		}
+		target.toFile().deleteOnExit();
+		synchronized (this) {
+			if (!stillUnused.getAsBoolean()) {
+				deleteWarn(target);
+				return false;
+			}
+			output = target;
+		}
+		deleteWarn(current);
+		return true;
+	}
+
 	@VisibleForTesting
 	Path getOutputForTest() {
 		return output;
@@ -201,7 +429,7 @@ public class Muxer {
 
 	@Override
 	public int hashCode() {
-		return Objects.hash(mkv, output, srt, tempDir);
+		return Objects.hash(mkv, id, srt, tempDir);
 	}
 
 	@Override
@@ -216,19 +444,27 @@ public class Muxer {
 			return false;
 		}
 		Muxer other = (Muxer) obj;
-		return Objects.equals(mkv, other.mkv) && Objects.equals(output, other.output) && Objects.equals(srt, other.srt)
+		return Objects.equals(mkv, other.mkv) && Objects.equals(id, other.id) && Objects.equals(srt, other.srt)
 				&& Objects.equals(tempDir, other.tempDir);
 	}
 
 	@Override
 	public String toString() {
-		return "Muxer [mkv=" + mkv + ", srt=" + srt + ", tempDirPath=" + tempDir + ", output=" + output + ", state=" + state + ", process=" + process + "]";
+		return "Muxer [mkv=" + mkv + ", srt=" + srt + ", tempDirPath=" + tempDir + ", output=" + output + ", state=" + state + ", priority=" + priority + ", backend=" + backend + ", process=" + process + "]";
 	}
 
 	public Path getMkv() {
 		return mkv;
 	}
 
+	public Path getSrt() {
+		return srt;
+	}
+
+	public MuxBackend getBackend() {
+		return backend;
+	}
+
 	public boolean waitForOutput() {
 		final File file = output.toFile();
 		while (!file.isFile() && state() == RUNNING) {
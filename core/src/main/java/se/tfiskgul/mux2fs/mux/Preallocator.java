@@ -0,0 +1,149 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.mux;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static se.tfiskgul.mux2fs.Constants.PREALLOCATE_POLL_MS;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.BooleanSupplier;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import se.tfiskgul.mux2fs.fs.base.Fallocator;
+
+/**
+ * Reserves the estimated size of mux outputs up front, so muxes running at the same time do not interleave their blocks on the temp file system,
+ * and closed outputs read back sequentially.
+ *
+ * Backends truncate their output when they open it, which would release anything reserved before. So the blocks are reserved once the output
+ * exists, without changing its size, and readers and progress only ever see what has been written. Whatever is left past the end is released
+ * once the mux succeeds.
+ */
+public class Preallocator {
+
+	private static final Logger logger = LoggerFactory.getLogger(Preallocator.class);
+	private static final Preallocator DISABLED = new Preallocator(null, null);
+	private final Fallocator fallocator;
+	private final ScheduledExecutorService executor;
+
+	public Preallocator(Fallocator fallocator) {
+		this(fallocator, Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("preallocator").setDaemon(true).build()));
+	}
+
+	@VisibleForTesting
+	Preallocator(Fallocator fallocator, ScheduledExecutorService executor) {
+		this.fallocator = fallocator;
+		this.executor = executor;
+	}
+
+	public static Preallocator disabled() {
+		return DISABLED;
+	}
+
+	public boolean isEnabled() {
+		return fallocator != null;
+	}
+
+	/**
+	 * Reserves size bytes for the output as soon as it exists, unless the mux is no longer running by then
+	 */
+	Allocation start(Path output, long size, BooleanSupplier running) {
+		Allocation allocation = new Allocation(output, size, running);
+		if (isEnabled()) {
+			executor.execute(allocation::poll);
+		}
+		return allocation;
+	}
+
+	/**
+	 * The reservation for one output. Reserving and finishing are serialized, so nothing is reserved after the mux is done.
+	 */
+	final class Allocation {
+
+		private final Path output;
+		private final long size;
+		private final BooleanSupplier running;
+		@GuardedBy("this")
+		private boolean allocated;
+		@GuardedBy("this")
+		private boolean finished;
+
+		private Allocation(Path output, long size, BooleanSupplier running) {
+			this.output = output;
+			this.size = size;
+			this.running = running;
+		}
+
+		private synchronized void poll() {
+			if (finished || !running.getAsBoolean()) {
+				return;
+			}
+			if (!output.toFile().isFile()) {
+				executor.schedule(this::poll, PREALLOCATE_POLL_MS, MILLISECONDS);
+				return;
+			}
+			try {
+				int result = fallocator.preallocate(output, size);
+				allocated = result == 0;
+				if (!allocated) {
+					logger.debug("Preallocating {} bytes for {} failed with {}", size, output, result);
+				}
+			} catch (IOException e) {
+				logger.debug("Preallocating {} bytes for {} failed", size, output, e);
+			}
+		}
+
+		/**
+		 * Releases what is reserved past the end of a successful output. Failed outputs are deleted, along with their reservation.
+		 */
+		synchronized void finish(boolean successful) {
+			finished = true;
+			if (allocated && successful) {
+				try {
+					int result = fallocator.trim(output);
+					if (result != 0) {
+						logger.warn("Releasing preallocated blocks past the end of {} failed with {}", output, result);
+					}
+				} catch (IOException e) {
+					logger.warn("Releasing preallocated blocks past the end of {} failed", output, e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Preallocator [enabled=" + isEnabled() + "]";
+	}
+}
@@ -0,0 +1,156 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.mux;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static se.tfiskgul.mux2fs.Constants.PROCESS_REAP_INTERVAL_MS;
+import static se.tfiskgul.mux2fs.Constants.PROCESS_READ_CHUNK_SIZE;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Drains the output of watched processes, and completes a future once they have exited.
+ *
+ * Java 8 has no Process.onExit(), and no non-blocking reads of process pipes, so instead of parking threads in Process.waitFor() and
+ * InputStream.read() per process, all watched processes are serviced by one shared daemon thread. Only bytes reported as available() are read.
+ */
+public class ProcessReaper {
+
+	private static final Logger logger = LoggerFactory.getLogger(ProcessReaper.class);
+	private static final ProcessReaper SHARED = new ProcessReaper(
+			new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setNameFormat("process-reaper").setDaemon(true).build()));
+	private final ConcurrentMap<Process, Watched> watched = new ConcurrentHashMap<>(10, 0.75f, 2);
+
+	@VisibleForTesting
+	ProcessReaper(ScheduledExecutorService executor) {
+		executor.scheduleWithFixedDelay(this::reap, PROCESS_REAP_INTERVAL_MS, PROCESS_REAP_INTERVAL_MS, MILLISECONDS);
+	}
+
+	public static ProcessReaper shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Returns a future completed with the exit value of the process, once it has exited.
+	 *
+	 * Each line the process writes to its output is passed to the consumer, and all lines are consumed before the future completes. Callbacks are run on
+	 * the reaper thread, and must not block.
+	 */
+	public CompletableFuture<Integer> onExit(Process process, Consumer<String> output) {
+		return watched.computeIfAbsent(process, p -> new Watched(p.getInputStream(), output)).future;
+	}
+
+	@VisibleForTesting
+	void reap() {
+		watched.forEach((process, watch) -> {
+			try {
+				boolean alive = process.isAlive(); // Check before draining, so no output written before exit is missed
+				watch.drain();
+				if (!alive && watched.remove(process, watch)) { // NOPMD
+					watch.close();
+					watch.future.complete(process.exitValue());
+				}
+			} catch (RuntimeException e) { // An exception escaping here would cancel all future reaping
+				logger.warn("Reaping failed for {}", process, e);
+			}
+		});
+	}
+
+	private static class Watched {
+
+		private final CompletableFuture<Integer> future = new CompletableFuture<>();
+		private final InputStream stream;
+		private final Consumer<String> output;
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+		private final byte[] chunk = new byte[PROCESS_READ_CHUNK_SIZE];
+
+		private Watched(InputStream stream, Consumer<String> output) {
+			this.stream = stream;
+			this.output = output;
+		}
+
+		private void drain() {
+			if (stream == null) {
+				return;
+			}
+			try {
+				int available;
+				while ((available = stream.available()) > 0) {
+					int read = stream.read(chunk, 0, Math.min(available, chunk.length));
+					if (read < 0) {
+						break;
+					}
+					split(read);
+				}
+			} catch (IOException e) { // Closed pipe, nothing more to read
+				logger.trace("", e);
+			}
+		}
+
+		// mkvmerge and friends rewrite progress lines using \r, treat it as a line break as well
+		private void split(int read) {
+			for (int i = 0; i < read; i++) {
+				byte b = chunk[i];
+				if (b == '\n' || b == '\r') {
+					flush();
+				} else {
+					line.write(b);
+				}
+			}
+		}
+
+		private void flush() {
+			if (line.size() > 0) {
+				output.accept(new String(line.toByteArray(), UTF_8));
+				line.reset();
+			}
+		}
+
+		private void close() {
+			flush();
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+					logger.trace("", e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,372 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.mux;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.util.Comparator.comparingInt;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+
+import se.tfiskgul.mux2fs.mux.Muxer.MuxerFactory;
+import se.tfiskgul.mux2fs.mux.Muxer.State;
+
+/**
+ * Temp storage in tiers, fastest first, such as a tmpfs and an SSD in front of the temp dir. The last tier has no capacity limit.
+ *
+ * A tier may be sharded over several directories on separate disks, in which case each new output goes to the shard with the fewest outputs still
+ * being written, and of those the one with the most usable space, so mux throughput scales with the number of disks.
+ *
+ * New outputs go to the fastest tier with room for their expected size. Closed outputs that are opened again are promoted to faster tiers in the
+ * background, and the coldest ones are demoted when a tier is over capacity, so the tiers hold what is opened most while never growing past their
+ * capacities for long.
+ */
+@ThreadSafe
+public class TempTiers {
+
+	private static final Logger logger = LoggerFactory.getLogger(TempTiers.class);
+	private static final int PROMOTION_HEAT = 2;
+	private final List<Tier> tiers;
+	private final ConcurrentMap<Muxer, Placement> placements = new ConcurrentHashMap<>();
+	private final AtomicLong promotions = new AtomicLong();
+	private final AtomicLong demotions = new AtomicLong();
+
+	@FunctionalInterface
+	public interface Relocator {
+
+		/**
+		 * Moves the output of a closed, muxed file into the directory.
+		 *
+		 * @return false if it could not be moved since it was opened meanwhile
+		 */
+		boolean relocate(MuxedFile file, Path directory)
+				throws IOException;
+	}
+
+	public static final class Tier {
+
+		private final List<Shard> shards;
+		private final long capacity;
+		private final AtomicLong used = new AtomicLong();
+
+		public Tier(Path directory, long capacity) {
+			this(ImmutableList.of(directory), capacity);
+		}
+
+		public Tier(List<Path> directories, long capacity) {
+			if (capacity < 0) {
+				throw new IllegalArgumentException("Tier capacity must not be negative, was " + capacity);
+			}
+			if (directories.isEmpty()) {
+				throw new IllegalArgumentException("A tier needs at least one directory");
+			}
+			this.shards = directories.stream().map(Shard::new).collect(toImmutableList());
+			this.capacity = capacity;
+		}
+
+		/**
+		 * The first shard
+		 */
+		public Path getDirectory() {
+			return shards.get(0).directory;
+		}
+
+		public List<Path> getDirectories() {
+			return shards.stream().map(shard -> shard.directory).collect(toImmutableList());
+		}
+
+		public long getCapacity() {
+			return capacity;
+		}
+
+		public long getUsed() {
+			return used.get();
+		}
+
+		private boolean reserve(long size) {
+			long current;
+			do {
+				current = used.get();
+				if (current + size > capacity) {
+					return false;
+				}
+			} while (!used.compareAndSet(current, current + size));
+			return true;
+		}
+
+		/**
+		 * Prefers shards with room for the size, then the fewest outputs being written, then the most usable space.
+		 */
+		private Shard pick(long size) {
+			if (shards.size() == 1) {
+				return shards.get(0);
+			}
+			Shard best = null;
+			long bestSpace = 0;
+			for (Shard shard : shards) {
+				long space = shard.directory.toFile().getUsableSpace();
+				if (best == null || shard.isBetterThan(space, best, bestSpace, size)) {
+					best = shard;
+					bestSpace = space;
+				}
+			}
+			return best;
+		}
+
+		@Override
+		public String toString() {
+			return (shards.size() == 1 ? shards.get(0) : shards) + " " + used + "/" + capacity;
+		}
+	}
+
+	private static final class Shard {
+
+		private final Path directory;
+		private final AtomicInteger writing = new AtomicInteger();
+
+		private Shard(Path directory) {
+			this.directory = directory;
+		}
+
+		private boolean isBetterThan(long space, Shard other, long otherSpace, long size) {
+			if ((space >= size) != (otherSpace >= size)) {
+				return space >= size;
+			}
+			if (writing.get() != other.writing.get()) {
+				return writing.get() < other.writing.get();
+			}
+			return space > otherSpace;
+		}
+
+		@Override
+		public String toString() {
+			return writing.get() == 0 ? directory.toString() : directory + " (" + writing + " writing)";
+		}
+	}
+
+	private static final class Placement {
+
+		private volatile Tier tier;
+		private volatile Shard shard;
+		private volatile long size;
+		private final AtomicInteger heat = new AtomicInteger();
+		private final AtomicBoolean writing = new AtomicBoolean(true);
+
+		private Placement(Tier tier, Shard shard, long size) {
+			this.tier = tier;
+			this.shard = shard;
+			this.size = size;
+			shard.writing.incrementAndGet();
+		}
+
+		private void written() {
+			if (writing.compareAndSet(true, false)) {
+				shard.writing.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @param fast
+	 *            Tiers in front of the temp dirs, fastest first
+	 * @param tempDirs
+	 *            Shards of the last tier
+	 */
+	public TempTiers(List<Tier> fast, List<Path> tempDirs) {
+		this.tiers = ImmutableList.<Tier> builder().addAll(fast).add(new Tier(tempDirs, Long.MAX_VALUE)).build();
+	}
+
+	public static TempTiers single(Path tempDir) {
+		return new TempTiers(ImmutableList.of(), ImmutableList.of(tempDir));
+	}
+
+	public boolean isTiered() {
+		return tiers.size() > 1;
+	}
+
+	private boolean hasChoice() {
+		return isTiered() || last().shards.size() > 1;
+	}
+
+	/**
+	 * Creates a Muxer with its output in the fastest tier that has room for it. The expected size is only asked for if there is a choice.
+	 */
+	public Muxer place(Path mkv, Path srt, LongSupplier expectedSize, MuxerFactory factory) {
+		if (!hasChoice()) {
+			return factory.from(mkv, srt, last().getDirectory());
+		}
+		long size = expectedSize.getAsLong();
+		Tier tier = tiers.stream().filter(candidate -> candidate == last() || candidate.reserve(size)).findFirst().get();
+		if (tier == last()) {
+			tier.used.addAndGet(size);
+		}
+		Shard shard = tier.pick(size);
+		Muxer muxer = factory.from(mkv, srt, shard.directory);
+		placements.put(muxer, new Placement(tier, shard, size));
+		logger.debug("Placed {} in {}", muxer, shard);
+		return muxer;
+	}
+
+	/**
+	 * The output is no longer being written, successfully or not.
+	 */
+	public void completed(Muxer muxer) {
+		Placement placement = placements.get(muxer);
+		if (placement != null) {
+			placement.written();
+		}
+	}
+
+	/**
+	 * The output was opened, which makes it hotter.
+	 */
+	public void accessed(Muxer muxer) {
+		Placement placement = placements.get(muxer);
+		if (placement != null) {
+			placement.heat.incrementAndGet();
+		}
+	}
+
+	/**
+	 * The output is gone, and no longer takes up space.
+	 */
+	public void removed(Muxer muxer) {
+		Placement placement = placements.remove(muxer);
+		if (placement != null) {
+			placement.written();
+			placement.tier.used.addAndGet(-placement.size);
+		}
+	}
+
+	/**
+	 * Demotes the coldest closed outputs from tiers over capacity, then promotes closed outputs that have been opened again into faster tiers with room
+	 * for them. Heat halves on every call, so it reflects recent opens.
+	 */
+	public void rebalance(Collection<MuxedFile> closed, Relocator relocator) {
+		if (!isTiered()) {
+			return;
+		}
+		List<MuxedFile> candidates = closed.stream().filter(file -> placements.containsKey(file.getMuxer()))
+				.filter(file -> file.getMuxer().state() == State.SUCCESSFUL).collect(Collectors.toList());
+		candidates.forEach(this::measure);
+		candidates.sort(comparingInt(file -> placements.get(file.getMuxer()).heat.get()));
+		for (int i = 0; i < tiers.size() - 1; i++) {
+			Tier tier = tiers.get(i);
+			Tier slower = tiers.get(i + 1);
+			for (MuxedFile file : candidates) { // Coldest first
+				if (tier.getUsed() <= tier.getCapacity()) {
+					break;
+				}
+				Placement placement = placements.get(file.getMuxer());
+				if (placement != null && placement.tier == tier) {
+					slower.used.addAndGet(placement.size); // The slower tiers may go over capacity, and get demoted from next
+					if (move(file, placement, slower, relocator)) {
+						demotions.incrementAndGet();
+					}
+				}
+			}
+		}
+		for (MuxedFile file : ImmutableList.copyOf(candidates).reverse()) { // Hottest first
+			Placement placement = placements.get(file.getMuxer());
+			if (placement == null || placement.heat.get() < PROMOTION_HEAT) {
+				continue;
+			}
+			for (Tier faster : tiers.subList(0, tiers.indexOf(placement.tier))) {
+				if (faster.reserve(placement.size)) {
+					if (move(file, placement, faster, relocator)) {
+						promotions.incrementAndGet();
+					}
+					break;
+				}
+			}
+		}
+		placements.values().forEach(placement -> placement.heat.updateAndGet(heat -> heat / 2));
+	}
+
+	/**
+	 * Replaces the expected size with the actual one, now that the output is done.
+	 */
+	private void measure(MuxedFile file) {
+		Placement placement = placements.get(file.getMuxer());
+		long actual = file.getMuxer().getOutput().map(output -> output.toFile().length()).orElse(0L);
+		if (placement != null && actual > 0 && actual != placement.size) {
+			placement.tier.used.addAndGet(actual - placement.size);
+			placement.size = actual;
+		}
+	}
+
+	/**
+	 * Moves the output into a tier where room is already reserved for it, which is handed back unless the move succeeds.
+	 */
+	private boolean move(MuxedFile file, Placement placement, Tier to, Relocator relocator) {
+		Tier from = placement.tier;
+		Shard shard = to.pick(placement.size);
+		try {
+			if (relocator.relocate(file, shard.directory)) {
+				from.used.addAndGet(-placement.size);
+				placement.tier = to;
+				placement.shard = shard;
+				logger.info("Moved {} from {} to {}", file, from, to);
+				return true;
+			}
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Failed to move {} from {} to {}", file, from, to, e);
+		}
+		to.used.addAndGet(-placement.size);
+		return false;
+	}
+
+	private Tier last() {
+		return tiers.get(tiers.size() - 1);
+	}
+
+	public long getPromotions() {
+		return promotions.get();
+	}
+
+	public long getDemotions() {
+		return demotions.get();
+	}
+
+	@Override
+	public String toString() {
+		return "TempTiers [tiers=" + tiers + ", placed=" + placements.size() + ", promotions=" + promotions + ", demotions=" + demotions + "]";
+	}
+}
@@ -0,0 +1,175 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.mux;
+
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.MissingResourceException;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import se.tfiskgul.mux2fs.fs.base.FileInfo;
+import se.tfiskgul.mux2fs.mux.MatroskaTracks.Track;
+
+/**
+ * Tells whether a Matroska file already carries an equivalent of a subtitle file, so muxing it in again can be skipped.
+ *
+ * Equivalent means a UTF-8 text subtitle track in the same language as the one in the subtitle file name, e.g. movie.en.srt. Subtitle files
+ * without a language in the name are never considered equivalent, as there is no telling what is in them.
+ */
+public class TrackInspector {
+
+	private static final Logger logger = LoggerFactory.getLogger(TrackInspector.class);
+	private static final String SRT_CODEC = "S_TEXT/UTF8";
+	// ISO 639-2/B codes, as often used by Matroska, to their ISO 639-2/T counterparts, as used by Locale
+	private static final ImmutableMap<String, String> BIBLIOGRAPHIC = ImmutableMap.<String, String> builder().put("alb", "sqi").put("arm", "hye")
+			.put("baq", "eus").put("bur", "mya").put("chi", "zho").put("cze", "ces").put("dut", "nld").put("fre", "fra").put("geo", "kat")
+			.put("ger", "deu").put("gre", "ell").put("ice", "isl").put("mac", "mkd").put("mao", "mri").put("may", "msa").put("per", "fas")
+			.put("rum", "ron").put("slo", "slk").put("tib", "bod").put("wel", "cym").build();
+	private static final ImmutableSet<String> LANGUAGES = Arrays.stream(Locale.getISOLanguages()).map(iso2 -> new Locale(iso2).getISO3Language())
+			.collect(toImmutableSet());
+
+	@FunctionalInterface
+	@VisibleForTesting
+	interface TrackReader {
+
+		List<Track> read(Path mkv)
+				throws IOException;
+	}
+
+	private final TrackReader reader;
+	private final Cache<FileInfo, List<Track>> tracks = CacheBuilder.newBuilder().maximumSize(1000).build();
+
+	public TrackInspector() {
+		this(TrackInspector::readTracks);
+	}
+
+	@VisibleForTesting
+	TrackInspector(TrackReader reader) {
+		this.reader = reader;
+	}
+
+	public static TrackInspector disabled() {
+		return new TrackInspector(mkv -> ImmutableList.of());
+	}
+
+	public boolean hasEquivalent(Path mkv, FileInfo info, Path srt) {
+		Optional<String> language = languageOf(mkv, srt);
+		if (!language.isPresent()) {
+			return false;
+		}
+		return tracksOf(mkv, info).stream().anyMatch(track -> track.getType() == MatroskaTracks.TRACK_TYPE_SUBTITLE
+				&& SRT_CODEC.equals(track.getCodec()) && language.equals(normalize(track.getLanguage())));
+	}
+
+	private List<Track> tracksOf(Path mkv, FileInfo info) {
+		List<Track> result = tracks.getIfPresent(info);
+		if (result == null) {
+			try {
+				result = reader.read(mkv);
+				tracks.put(info, result);
+			} catch (Exception e) { // Not worth failing an open over, just mux as usual
+				logger.debug("Unable to read tracks of {}", mkv, e);
+				return ImmutableList.of();
+			}
+		}
+		return result;
+	}
+
+	private static List<Track> readTracks(Path mkv)
+			throws IOException {
+		try (FileChannel channel = FileChannel.open(mkv, READ)) {
+			return MatroskaTracks.read(channel);
+		}
+	}
+
+	/**
+	 * The language of the first dot separated part between the .mkv and .srt names that is one, e.g. eng for movie.en.forced.srt
+	 */
+	@VisibleForTesting
+	static Optional<String> languageOf(Path mkv, Path srt) {
+		String mkvName = mkv.getFileName().toString();
+		String srtName = srt.getFileName().toString();
+		String base = mkvName.substring(0, mkvName.length() - 4);
+		if (srtName.length() < base.length() + 4 || !srtName.regionMatches(true, 0, base, 0, base.length())) {
+			return Optional.empty();
+		}
+		String middle = srtName.substring(base.length(), srtName.length() - 4);
+		for (String part : Splitter.on('.').omitEmptyStrings().split(middle)) {
+			if (part.length() == 2 || part.length() == 3) {
+				Optional<String> language = normalize(part);
+				if (language.isPresent()) {
+					return language;
+				}
+			}
+		}
+		return Optional.empty();
+	}
+
+	/**
+	 * @return The ISO 639-2/T code of a language code or tag, or empty if it is not a language
+	 */
+	@VisibleForTesting
+	static Optional<String> normalize(String language) {
+		if (language == null || language.isEmpty()) {
+			return Optional.empty();
+		}
+		String lower = language.toLowerCase(Locale.ROOT);
+		if (BIBLIOGRAPHIC.containsKey(lower)) {
+			return Optional.of(BIBLIOGRAPHIC.get(lower));
+		}
+		Locale locale = Locale.forLanguageTag(lower);
+		if (locale.getLanguage().isEmpty() || "und".equals(locale.getLanguage())) {
+			return Optional.empty();
+		}
+		try {
+			String iso3 = locale.getISO3Language();
+			return LANGUAGES.contains(iso3) ? Optional.of(iso3) : Optional.empty();
+		} catch (MissingResourceException e) {
+			return Optional.empty();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "TrackInspector [cached=" + tracks.size() + "]";
+	}
+}
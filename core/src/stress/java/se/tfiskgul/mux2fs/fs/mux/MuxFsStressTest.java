@@ -0,0 +1,205 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.mux;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static se.tfiskgul.mux2fs.Constants.SUCCESS;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import se.tfiskgul.mux2fs.fs.base.FileInfo;
+import se.tfiskgul.mux2fs.mux.LaunchProfiles;
+import se.tfiskgul.mux2fs.mux.MuxBackend;
+import se.tfiskgul.mux2fs.mux.MuxProgress;
+import se.tfiskgul.mux2fs.mux.Muxer.MuxerFactory;
+import se.tfiskgul.mux2fs.mux.Muxer.Priority;
+import se.tfiskgul.mux2fs.mux.TempTiers;
+
+/**
+ * Hammers open, read, release and expiry of the same few files from many threads, on real files muxed by a real, but trivial, process.
+ *
+ * Checks that no file is muxed again unless it expired, that every byte read is what the mux wrote, that no output is deleted while open, and
+ * that no file handles are left once everything is released. Runs for stress.seconds, default 10, with stress.threads,
+ * default 16.
+ */
+public class MuxFsStressTest {
+
+	private static final int FILES = 4;
+	private static final int SECONDS = Integer.getInteger("stress.seconds", 10);
+	private static final int THREADS = Integer.getInteger("stress.threads", 16);
+	private final Queue<String> violations = new ConcurrentLinkedQueue<>();
+	private final Map<Path, AtomicInteger> started = new ConcurrentHashMap<>();
+	private final Map<FileInfo, AtomicInteger> expired = new ConcurrentHashMap<>();
+	private final List<Path> mkvs = new ArrayList<>();
+	private final List<byte[]> expected = new ArrayList<>();
+	private final List<FileInfo> infos = new ArrayList<>();
+	private final AtomicInteger reads = new AtomicInteger();
+	private Path root;
+	private MuxFs fs;
+
+	/**
+	 * Muxes by concatenating the .mkv and the .srt, with a pause half way so readers catch up with a mux still running.
+	 */
+	private class CatBackend implements MuxBackend {
+
+		@Override
+		public String getName() {
+			return "cat";
+		}
+
+		@Override
+		public String[] command(Path mkv, Path srt, Path output) {
+			started.computeIfAbsent(mkv, key -> new AtomicInteger()).incrementAndGet();
+			return new String[] { "sh", "-c", "{ head -c 32768 \"$1\"; sleep 0.05; tail -c +32769 \"$1\"; cat \"$2\"; } > \"$3\"", "sh",
+					mkv.toString(), srt.toString(), output.toString() };
+		}
+
+		@Override
+		public void parse(String line, MuxProgress progress, long estimatedSize) {
+			// Nothing to parse, cat is silent
+		}
+	}
+
+	@Before
+	public void before()
+			throws IOException {
+		root = Files.createTempDirectory("mux2fs-stress");
+		Path source = Files.createDirectory(root.resolve("source"));
+		Path temp = Files.createDirectory(root.resolve("temp"));
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < FILES; i++) {
+			byte[] mkv = new byte[64 * 1024 + random.nextInt(512 * 1024)];
+			byte[] srt = new byte[1 + random.nextInt(16 * 1024)];
+			random.nextBytes(mkv);
+			random.nextBytes(srt);
+			Path mkvPath = Files.write(source.resolve("file" + i + ".mkv"), mkv);
+			Files.write(source.resolve("file" + i + ".srt"), srt);
+			byte[] muxed = Arrays.copyOf(mkv, mkv.length + srt.length);
+			System.arraycopy(srt, 0, muxed, mkv.length, srt.length);
+			mkvs.add(mkvPath);
+			expected.add(muxed);
+			infos.add(FileInfo.of(mkvPath));
+		}
+		MuxerFactory factory = MuxerFactory.withProfiles(LaunchProfiles.defaults(), Priority.INTERACTIVE, new CatBackend());
+		fs = new MuxFs(source, TempTiers.single(temp), factory, new MuxFs.Options());
+	}
+
+	@After
+	public void after()
+			throws IOException {
+		fs.destroy();
+		try (Stream<Path> files = Files.walk(root)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Test
+	public void testOpenReadReleaseAndExpireConcurrently()
+			throws Exception {
+		// Given
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SECONDS);
+		ExecutorService workers = Executors.newFixedThreadPool(THREADS);
+		List<Future<?>> futures = new ArrayList<>();
+		// When
+		for (int i = 0; i < THREADS; i++) {
+			futures.add(workers.submit(() -> {
+				while (System.nanoTime() < deadline && violations.isEmpty()) {
+					if (ThreadLocalRandom.current().nextInt(20) == 0) {
+						fs.expireClosedMuxFiles().forEach(info -> expired.computeIfAbsent(info, key -> new AtomicInteger()).incrementAndGet());
+					} else {
+						openReadRelease(ThreadLocalRandom.current().nextInt(FILES));
+					}
+				}
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		workers.shutdown();
+		// Then
+		assertThat(violations).isEmpty();
+		for (int i = 0; i < FILES; i++) {
+			int muxes = Optional.ofNullable(started.get(mkvs.get(i))).map(AtomicInteger::get).orElse(0);
+			int expiries = Optional.ofNullable(expired.get(infos.get(i))).map(AtomicInteger::get).orElse(0);
+			assertThat(muxes).as("Muxes of %s, expired %d times", mkvs.get(i), expiries).isLessThanOrEqualTo(expiries + 1);
+		}
+		assertThat(fs.getOpenHandleCount()).as("Leaked file handles").isZero();
+		assertThat(fs.getOpenMuxFileCount()).as("Leaked muxed file handles").isZero();
+		assertThat(reads.get()).isPositive();
+	}
+
+	private void openReadRelease(int file) {
+		String path = "/" + mkvs.get(file).getFileName();
+		byte[] content = expected.get(file);
+		AtomicInteger fileHandle = new AtomicInteger(-1);
+		int result = fs.open(path, fileHandle::set);
+		if (result != SUCCESS) {
+			violations.add("open " + path + " failed with " + result);
+			return;
+		}
+		try {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for (int i = random.nextInt(8); i >= 0; i--) {
+				int offset = random.nextInt(content.length);
+				int size = Math.min(1 + random.nextInt(64 * 1024), content.length - offset);
+				AtomicReference<byte[]> buffer = new AtomicReference<>();
+				int read = fs.read(path, buffer::set, size, offset, fileHandle.get());
+				reads.incrementAndGet();
+				if (read != size || buffer.get() == null || !Arrays.equals(Arrays.copyOfRange(buffer.get(), 0, read),
+						Arrays.copyOfRange(content, offset, offset + size))) {
+					violations.add("read " + size + " @ " + offset + " of " + path + " gave " + read + " unexpected bytes");
+				}
+				Optional<Path> output = fs.getOutput(fileHandle.get());
+				if (output.isPresent() && !Files.exists(output.get())) {
+					violations.add(output.get() + " of " + path + " was deleted while open");
+				}
+			}
+		} finally {
+			fs.release(path, fileHandle.get());
+		}
+	}
+}
@@ -31,6 +31,7 @@ import static org.mockito.Mockito.when;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.reflect.Method;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.DirectoryStream;
@@ -177,6 +178,7 @@ public abstract class Fixture {
 				exp(new NotDirectoryException(null), -ErrorCodes.ENOTDIR()), //
 				exp(new NotLinkException(null), -ErrorCodes.EINVAL()), //
 				exp(new UnsupportedOperationException(), -ErrorCodes.ENOSYS()), //
+				exp(new InterruptedIOException(), -ErrorCodes.ETIMEDOUT()), //
 				exp(new IOException(), -ErrorCodes.EIO())); //
 		list.forEach(expected -> Try.runWithCatch(() -> sut.accept(expected), Exception.class).get());
 	}
@@ -26,6 +26,7 @@ package se.tfiskgul.mux2fs;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static se.tfiskgul.mux2fs.Constants.MEGABYTE;
 
 import java.nio.file.FileSystem;
 import java.nio.file.Path;
@@ -39,6 +40,12 @@ import com.beust.jcommander.ParameterException;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import se.tfiskgul.mux2fs.CommandLineArguments.Strict;
+import se.tfiskgul.mux2fs.fs.base.BufferPool;
+import se.tfiskgul.mux2fs.fs.base.PageCache;
+import se.tfiskgul.mux2fs.fs.base.StatProvider;
+import se.tfiskgul.mux2fs.mux.LaunchProfile;
+import se.tfiskgul.mux2fs.mux.MuxBackend;
+import se.tfiskgul.mux2fs.mux.Muxer.Priority;
 
 @SuppressFBWarnings({ "DMI_HARDCODED_ABSOLUTE_FILENAME", "RV_RETURN_VALUE_IGNORED_BAD_PRACTICE" })
 public class ParseCommandLineTest extends Fixture {
@@ -162,4 +169,179 @@ public class ParseCommandLineTest extends Fixture {
 		// Then
 		verify(tmpDir.toFile()).mkdirs();
 	}
+
+	@Test
+	public void testDefaultLaunchProfiles() {
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath"));
+		assertThat(result.getMuxPriority()).isEqualTo(Priority.INTERACTIVE);
+		assertThat(result.getLaunchProfiles().get(Priority.INTERACTIVE)).isEqualTo(LaunchProfile.normal());
+		assertThat(result.getLaunchProfiles().get(Priority.BACKGROUND)).isEqualTo(LaunchProfile.idle());
+	}
+
+	@Test
+	public void testParseLaunchProfiles() {
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath",
+				"-o", "mux_priority=BACKGROUND,interactive_nice=-5,interactive_ionice=1,background_nice=10,background_ionice=2,background_weight=50"));
+		assertThat(result.getMuxPriority()).isEqualTo(Priority.BACKGROUND);
+		assertThat(result.getLaunchProfiles().get(Priority.INTERACTIVE)).isEqualTo(new LaunchProfile(-5, LaunchProfile.IONICE_REALTIME));
+		assertThat(result.getLaunchProfiles().get(Priority.BACKGROUND)).isEqualTo(new LaunchProfile(10, LaunchProfile.IONICE_BEST_EFFORT));
+		assertThat(result.getPassThroughOptions()).isEqualTo(CommandLineArguments.mandatoryFuseOptions);
+	}
+
+	@Test
+	public void testPageCachePolicy() {
+		Strict defaults = commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath"));
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath,page_cache=sequential"));
+		assertThat(defaults.getPageCachePolicy()).isEqualTo(PageCache.Policy.NONE);
+		assertThat(result.getPageCachePolicy()).isEqualTo(PageCache.Policy.SEQUENTIAL);
+	}
+
+	@Test
+	public void testBufferPoolFitsMaxRead() {
+		Strict defaults = commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath"));
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath,max_read=3000000,read_buffer_budget=128"));
+		assertThat(defaults.getBufferPool().getMaxBufferSize()).isEqualTo(MEGABYTE);
+		assertThat(result.getBufferPool().getMaxBufferSize()).isEqualTo(4 * MEGABYTE);
+		assertThat(result.getPassThroughOptions()).contains("max_read=3000000");
+	}
+
+	@Test
+	public void testAttributeCacheTtl() {
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath,attr_cache_ttl=500"));
+		assertThat(result.getAttributeCache(StatProvider.nio())).isNotNull();
+		assertThat(result.getPassThroughOptions()).isEqualTo(CommandLineArguments.mandatoryFuseOptions);
+	}
+
+	@Test
+	public void testNegativeLookupTtl() {
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath,negative_ttl=0"));
+		assertThat(result.getNegativeLookupCache().toString()).contains("enabled=false");
+		assertThat(result.getPassThroughOptions()).isEqualTo(CommandLineArguments.mandatoryFuseOptions);
+	}
+
+	@Test
+	public void testChannelBudget() {
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath,channel_budget=64"));
+		assertThat(result.getChannelBudget()).isEqualTo(64);
+		assertThat(result.getPassThroughOptions()).isEqualTo(CommandLineArguments.mandatoryFuseOptions);
+	}
+
+	@Test
+	public void testBlockCache() {
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath,block_cache=64"));
+		assertThat(result.getBlockCache().isEnabled()).isTrue();
+		assertThat(result.getPassThroughOptions()).isEqualTo(CommandLineArguments.mandatoryFuseOptions);
+	}
+
+	@Test
+	public void testBlockCacheDisabledByDefault() {
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath"));
+		assertThat(result.getBlockCache().isEnabled()).isFalse();
+	}
+
+	@Test
+	public void testDeferMux() {
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath,defer_mux"));
+		assertThat(result.isDeferMux()).isTrue();
+		assertThat(result.getPassThroughOptions()).isEqualTo(CommandLineArguments.mandatoryFuseOptions);
+	}
+
+	@Test
+	public void testDeferMuxDisabledByDefault() {
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath"));
+		assertThat(result.isDeferMux()).isFalse();
+	}
+
+	@Test
+	public void testPremux() {
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath,premux_after=60,premux_budget=2048"));
+		assertThat(result.getArrivalWatcher(mkv -> true)).isPresent();
+		assertThat(result.getPremuxBudget()).isEqualTo(2048L * 1024 * 1024);
+		assertThat(result.getPassThroughOptions()).isEqualTo(CommandLineArguments.mandatoryFuseOptions);
+	}
+
+	@Test
+	public void testPremuxDisabledByDefault() {
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath"));
+		assertThat(result.getArrivalWatcher(mkv -> true)).isEmpty();
+	}
+
+	@Test
+	public void testMuxBackend() {
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath,mux_backend=ffmpeg"));
+		assertThat(result.getMuxBackend()).isSameAs(MuxBackend.ffmpeg());
+		assertThat(result.getPassThroughOptions()).isEqualTo(CommandLineArguments.mandatoryFuseOptions);
+	}
+
+	@Test
+	public void testMuxBackendIsMkvmergeByDefault() {
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath"));
+		assertThat(result.getMuxBackend()).isSameAs(MuxBackend.mkvmerge());
+	}
+
+	@Test
+	public void testPreallocate() {
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath,preallocate"));
+		assertThat(result.isPreallocate()).isTrue();
+		assertThat(result.getPassThroughOptions()).isEqualTo(CommandLineArguments.mandatoryFuseOptions);
+	}
+
+	@Test
+	public void testPreallocateDisabledByDefault() {
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath"));
+		assertThat(result.isPreallocate()).isFalse();
+	}
+
+	@Test
+	public void testMuxCache() {
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=/tmp,mux_cache=/tmp,warm_jobs=3"));
+		assertThat(result.getMuxCache().isEnabled()).isTrue();
+		assertThat(result.getWarmJobs()).isEqualTo(3);
+		assertThat(result.getPassThroughOptions()).isEqualTo(CommandLineArguments.mandatoryFuseOptions);
+	}
+
+	@Test
+	public void testMuxCacheDisabledByDefault() {
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath"));
+		assertThat(result.getMuxCache().isEnabled()).isFalse();
+	}
+
+	@Test
+	public void testHedgedReads() {
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath,read_deadline=2000,hedge_percentile=95"));
+		assertThat(result.getHedgedReads(BufferPool.defaultPool()).isEnabled()).isTrue();
+		assertThat(result.getPassThroughOptions()).isEqualTo(CommandLineArguments.mandatoryFuseOptions);
+	}
+
+	@Test
+	public void testHedgedReadsDisabledByDefault() {
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath"));
+		assertThat(result.getHedgedReads(BufferPool.defaultPool()).isEnabled()).isFalse();
+	}
+
+	@Test
+	public void testTempTiers() {
+		mockDir(root, "ram");
+		mockDir(root, "ssd");
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=/tmp,temp_tier=/ram:512,temp_tier=/ssd:20480"));
+		assertThat(result.getTempTiers().isTiered()).isTrue();
+		assertThat(result.getTempTiers().toString()).contains("[/ram 0/" + 512 * MEGABYTE + ", /ssd 0/" + 20480 * MEGABYTE + ", ");
+		assertThat(result.getPassThroughOptions()).isEqualTo(CommandLineArguments.mandatoryFuseOptions);
+	}
+
+	@Test
+	public void testTempTierWithoutCapacity() {
+		exception.expect(ParameterException.class);
+		commandLineArguments.parse(array("source", "target", "-o", "tempdir=sometempdirpath,temp_tier=/ram"));
+	}
+
+	@Test
+	public void testTempShards() {
+		mockDir(root, "nvme1");
+		mockDir(root, "nvme2");
+		Strict result = commandLineArguments.parse(array("source", "target", "-o", "tempdir=/tmp,temp_shard=/nvme1,temp_shard=/nvme2"));
+		assertThat(result.getTempTiers().isTiered()).isFalse();
+		assertThat(result.getTempTiers().toString()).contains(", /nvme1, /nvme2]");
+		assertThat(result.getPassThroughOptions()).isEqualTo(CommandLineArguments.mandatoryFuseOptions);
+	}
 }
@@ -0,0 +1,137 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.base;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.FileSystem;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import se.tfiskgul.mux2fs.Fixture;
+
+public class AttributeCacheTest extends Fixture {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+	private FileSystem fileSystem;
+	private Path path;
+	private Map<String, Object> attributes;
+	private Instant modified;
+
+	@Before
+	public void before()
+			throws Exception {
+		fileSystem = mockFileSystem();
+		path = mockPath("/file.mkv", fileSystem);
+		Instant base = Instant.now();
+		modified = base.minus(31, ChronoUnit.DAYS);
+		attributes = mockAttributes(1, base);
+		when(fileSystem.provider().readAttributes(eq(path), eq("unix:*"), any())).thenReturn(attributes);
+	}
+
+	@Test
+	public void testSecondReadIsCached()
+			throws Exception {
+		// Given
+		AttributeCache cache = new AttributeCache(1, TimeUnit.MINUTES, 10);
+		// When
+		cache.stat(path, new RawStat());
+		RawStat result = cache.stat(path, new RawStat());
+		// Then
+		assertThat(result.getIno()).isEqualTo(5L);
+		assertThat(result.getModificationSeconds()).isEqualTo(modified.getEpochSecond());
+		assertThat(result.getModificationNanos()).isEqualTo(modified.getNano());
+		verify(fileSystem.provider()).readAttributes(eq(path), eq("unix:*"), any());
+		assertThat(cache.getStats().hitCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void testDisabledAlwaysReads()
+			throws Exception {
+		// Given
+		AttributeCache cache = AttributeCache.disabled();
+		// When
+		cache.stat(path, new RawStat());
+		cache.stat(path, new RawStat());
+		// Then
+		verify(fileSystem.provider(), times(2)).readAttributes(eq(path), eq("unix:*"), any());
+	}
+
+	@Test
+	public void testInvalidate()
+			throws Exception {
+		// Given
+		AttributeCache cache = new AttributeCache(1, TimeUnit.MINUTES, 10);
+		cache.stat(path, new RawStat());
+		// When
+		cache.invalidate(path);
+		cache.stat(path, new RawStat());
+		// Then
+		verify(fileSystem.provider(), times(2)).readAttributes(eq(path), eq("unix:*"), any());
+	}
+
+	@Test
+	public void testExceptionsPassThrough()
+			throws Exception {
+		// Given
+		AttributeCache cache = new AttributeCache(1, TimeUnit.MINUTES, 10);
+		when(fileSystem.provider().readAttributes(eq(path), eq("unix:*"), any())).thenThrow(new NoSuchFileException("/file.mkv"));
+		// Then
+		exception.expect(NoSuchFileException.class);
+		// When
+		cache.stat(path, new RawStat());
+	}
+
+	@Test
+	public void testStatProvider()
+			throws Exception {
+		// Given
+		StatProvider statProvider = mock(StatProvider.class);
+		AttributeCache cache = new AttributeCache(1, TimeUnit.MINUTES, 10, statProvider);
+		RawStat stat = new RawStat();
+		// When
+		cache.stat(path, stat);
+		cache.stat(path, new RawStat());
+		// Then
+		verify(statProvider).lstat(path, stat);
+		verifyNoMoreInteractions(statProvider);
+	}
+}
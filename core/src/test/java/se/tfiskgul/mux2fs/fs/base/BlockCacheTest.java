@@ -0,0 +1,222 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.base;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import se.tfiskgul.mux2fs.fs.base.BlockCache.BlockReader;
+
+public class BlockCacheTest {
+
+	private static final int BLOCK_SIZE = 16;
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+	private final byte[] content = new byte[BLOCK_SIZE * 20 + 5];
+	private final List<Long> reads = new ArrayList<>();
+	private BlockReader reader;
+
+	@Before
+	public void before() {
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) i;
+		}
+		reader = (target, position) -> {
+			synchronized (reads) {
+				reads.add(position);
+			}
+			if (position >= content.length) {
+				return -1;
+			}
+			int length = (int) Math.min(target.remaining(), content.length - position);
+			target.put(content, (int) position, length);
+			return length;
+		};
+	}
+
+	private byte[] read(BlockCache cache, long offset, int size)
+			throws IOException {
+		byte[][] result = { new byte[0] };
+		cache.read("file", offset, size, data -> result[0] = data, reader);
+		return result[0];
+	}
+
+	private byte[] expected(int offset, int size) {
+		byte[] expected = new byte[size];
+		System.arraycopy(content, offset, expected, 0, size);
+		return expected;
+	}
+
+	@Test
+	public void testReadSpanningBlocks()
+			throws Exception {
+		// Given
+		BlockCache cache = new BlockCache(BLOCK_SIZE, BLOCK_SIZE * 10);
+		// When
+		byte[] result = read(cache, 10, 30);
+		// Then
+		assertThat(result).isEqualTo(expected(10, 30));
+		assertThat(reads).containsExactly(0L, 16L, 32L);
+	}
+
+	@Test
+	public void testSecondReadIsCached()
+			throws Exception {
+		// Given
+		BlockCache cache = new BlockCache(BLOCK_SIZE, BLOCK_SIZE * 10);
+		read(cache, 0, 32);
+		// When
+		byte[] result = read(cache, 4, 20);
+		// Then
+		assertThat(result).isEqualTo(expected(4, 20));
+		assertThat(reads).containsExactly(0L, 16L);
+		assertThat(cache.getHits()).isEqualTo(2);
+		assertThat(cache.getMisses()).isEqualTo(2);
+	}
+
+	@Test
+	public void testReadAtEof()
+			throws Exception {
+		// Given
+		BlockCache cache = new BlockCache(BLOCK_SIZE, BLOCK_SIZE * 10);
+		// When
+		byte[] tail = read(cache, content.length - 3, 10);
+		int beyond = cache.read("file", content.length + 100, 10, data -> {
+			throw new AssertionError("Nothing to deliver at EOF");
+		}, reader);
+		// Then
+		assertThat(tail).isEqualTo(expected(content.length - 3, 3));
+		assertThat(beyond).isZero();
+	}
+
+	@Test
+	public void testOtherIdentityIsNotShared()
+			throws Exception {
+		// Given
+		BlockCache cache = new BlockCache(BLOCK_SIZE, BLOCK_SIZE * 10);
+		read(cache, 0, 8);
+		// When
+		cache.read("other", 0, 8, data -> {
+		}, reader);
+		// Then
+		assertThat(reads).containsExactly(0L, 0L);
+	}
+
+	@Test
+	public void testScanDoesNotEvictBlocksReadTwice()
+			throws Exception {
+		// Given
+		BlockCache cache = new BlockCache(BLOCK_SIZE, BLOCK_SIZE * 5);
+		read(cache, 0, 8);
+		read(cache, 0, 8); // Protected now
+		// When
+		read(cache, BLOCK_SIZE, BLOCK_SIZE * 19); // One pass over everything else
+		reads.clear();
+		byte[] result = read(cache, 0, 8);
+		// Then
+		assertThat(result).isEqualTo(expected(0, 8));
+		assertThat(reads).isEmpty();
+		assertThat(cache.getEvictions()).isGreaterThan(0);
+	}
+
+	@Test
+	public void testConcurrentMissesAreCoalesced()
+			throws Exception {
+		// Given
+		BlockCache cache = new BlockCache(BLOCK_SIZE, BLOCK_SIZE * 10);
+		CountDownLatch reading = new CountDownLatch(1);
+		CountDownLatch proceed = new CountDownLatch(1);
+		AtomicInteger backendReads = new AtomicInteger();
+		BlockReader slowReader = (target, position) -> {
+			backendReads.incrementAndGet();
+			reading.countDown();
+			try {
+				proceed.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			return reader.read(target, position);
+		};
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<Integer> first = executor.submit(() -> cache.read("file", 0, 8, data -> {
+			}, slowReader));
+			reading.await(10, TimeUnit.SECONDS);
+			Future<Integer> second = executor.submit(() -> cache.read("file", 0, 8, data -> {
+			}, slowReader));
+			while (cache.getCoalesced() == 0) {
+				Thread.sleep(1);
+			}
+			// When
+			proceed.countDown();
+			// Then
+			assertThat(first.get(10, TimeUnit.SECONDS)).isEqualTo(8);
+			assertThat(second.get(10, TimeUnit.SECONDS)).isEqualTo(8);
+			assertThat(backendReads.get()).isEqualTo(1);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testFailedReadIsNotCached()
+			throws Exception {
+		// Given
+		BlockCache cache = new BlockCache(BLOCK_SIZE, BLOCK_SIZE * 10);
+		IOException failure = new IOException("Stale NFS file handle");
+		try {
+			cache.read("file", 0, 8, data -> {
+			}, (target, position) -> {
+				throw failure;
+			});
+		} catch (IOException e) {
+			assertThat(e).isSameAs(failure);
+		}
+		// When
+		byte[] result = read(cache, 0, 8);
+		// Then
+		assertThat(result).isEqualTo(expected(0, 8));
+	}
+
+	@Test
+	public void testDisabled() {
+		assertThat(BlockCache.disabled().isEnabled()).isFalse();
+		assertThat(new BlockCache(BLOCK_SIZE, BLOCK_SIZE).isEnabled()).isTrue();
+	}
+}
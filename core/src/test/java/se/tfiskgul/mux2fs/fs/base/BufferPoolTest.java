@@ -0,0 +1,120 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.base;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static se.tfiskgul.mux2fs.Constants.KILOBYTE;
+import static se.tfiskgul.mux2fs.Constants.MEGABYTE;
+import static se.tfiskgul.mux2fs.Constants.MIN_READ_BUFFER_SIZE;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class BufferPoolTest {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	@Test
+	public void testAcquireSmallGetsSmallestSizeClass() {
+		// Given
+		BufferPool pool = BufferPool.defaultPool();
+		// When
+		ByteBuffer buffer = pool.acquire(4096);
+		// Then
+		assertThat(buffer.isDirect()).isTrue();
+		assertThat(buffer.capacity()).isEqualTo(MIN_READ_BUFFER_SIZE);
+		assertThat(buffer.limit()).isEqualTo(4096);
+		assertThat(buffer.position()).isEqualTo(0);
+	}
+
+	@Test
+	public void testAcquireRoundsUpToSizeClass() {
+		// Given
+		BufferPool pool = BufferPool.defaultPool();
+		// When
+		ByteBuffer buffer = pool.acquire((int) (300 * KILOBYTE));
+		ByteBuffer max = pool.acquire((int) MEGABYTE);
+		// Then
+		assertThat(buffer.capacity()).isEqualTo(512 * KILOBYTE);
+		assertThat(max.capacity()).isEqualTo(MEGABYTE);
+		assertThat(max.limit()).isEqualTo(MEGABYTE);
+	}
+
+	@Test
+	public void testReleasedBufferIsReusedByOtherThreads()
+			throws Exception {
+		// Given
+		BufferPool pool = BufferPool.defaultPool();
+		ByteBuffer buffer = pool.acquire(100);
+		buffer.position(50);
+		pool.release(buffer);
+		// When
+		ByteBuffer reused = CompletableFuture.supplyAsync(() -> pool.acquire(200)).get();
+		// Then
+		assertThat(reused).isSameAs(buffer);
+		assertThat(reused.position()).isEqualTo(0);
+		assertThat(reused.limit()).isEqualTo(200);
+		assertThat(pool.getAcquired()).isEqualTo(2);
+		assertThat(pool.getReused()).isEqualTo(1);
+		assertThat(pool.getAllocatedBytes()).isEqualTo(MIN_READ_BUFFER_SIZE);
+	}
+
+	@Test
+	public void testOverBudgetFallsBackToHeap() {
+		// Given
+		BufferPool pool = new BufferPool((int) MEGABYTE, MIN_READ_BUFFER_SIZE);
+		pool.acquire(100);
+		// When
+		ByteBuffer buffer = pool.acquire(100);
+		// Then
+		assertThat(buffer.isDirect()).isFalse();
+		assertThat(buffer.limit()).isEqualTo(100);
+		assertThat(pool.getHeapFallbacks()).isEqualTo(1);
+		assertThat(pool.getAllocatedBytes()).isEqualTo(MIN_READ_BUFFER_SIZE);
+	}
+
+	@Test
+	public void testLargerThanMaxFallsBackToHeap() {
+		// Given
+		BufferPool pool = BufferPool.defaultPool();
+		// When
+		ByteBuffer buffer = pool.acquire((int) (2 * MEGABYTE));
+		pool.release(buffer);
+		// Then
+		assertThat(buffer.isDirect()).isFalse();
+		assertThat(buffer.limit()).isEqualTo(2 * MEGABYTE);
+		assertThat(pool.getAllocatedBytes()).isEqualTo(0);
+	}
+
+	@Test
+	public void testMaxSizeMustBePowerOfTwo() {
+		exception.expect(IllegalArgumentException.class);
+		new BufferPool((int) (3 * MIN_READ_BUFFER_SIZE), MEGABYTE);
+	}
+}
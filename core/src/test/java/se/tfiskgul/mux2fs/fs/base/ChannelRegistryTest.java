@@ -0,0 +1,273 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.base;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystem;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import cyclops.control.Try;
+import se.tfiskgul.mux2fs.Fixture;
+import se.tfiskgul.mux2fs.fs.base.ChannelRegistry.ChannelIdentifier;
+import se.tfiskgul.mux2fs.fs.base.ChannelRegistry.ChannelOpener;
+import se.tfiskgul.mux2fs.fs.base.ChannelRegistry.SharedChannel;
+
+public class ChannelRegistryTest extends Fixture {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+	private ChannelOpener opener;
+	private ChannelIdentifier identifier;
+	private FileChannelCloser closer;
+	private Path foo;
+	private Path bar;
+	private FileChannel fooChannel;
+	private FileChannel barChannel;
+
+	@Before
+	public void before()
+			throws Exception {
+		opener = mock(ChannelOpener.class);
+		identifier = mock(ChannelIdentifier.class);
+		closer = mock(FileChannelCloser.class);
+		FileSystem fileSystem = mockFileSystem();
+		foo = mockPath("/foo.mkv", fileSystem);
+		bar = mockPath("/bar.mkv", fileSystem);
+		fooChannel = mock(FileChannel.class);
+		barChannel = mock(FileChannel.class);
+		when(opener.open(foo)).thenReturn(fooChannel);
+		when(opener.open(bar)).thenReturn(barChannel);
+		when(identifier.identify(any(), any())).thenReturn(1L);
+	}
+
+	@Test
+	public void testSameIdentityIsShared()
+			throws Exception {
+		// Given
+		ChannelRegistry registry = new ChannelRegistry(opener, identifier, closer, 10);
+		// When
+		SharedChannel first = registry.open(foo, 1L);
+		SharedChannel second = registry.open(foo, 1L);
+		// Then
+		assertThat(second).isSameAs(first);
+		verify(opener).open(foo);
+		assertThat(registry.getSharedOpens()).isEqualTo(1);
+		assertThat(registry.getOpenChannels()).isEqualTo(1);
+	}
+
+	@Test
+	public void testOtherIdentityIsNotShared()
+			throws Exception {
+		// Given
+		ChannelRegistry registry = new ChannelRegistry(opener, identifier, closer, 10);
+		// When
+		SharedChannel first = registry.open(foo, 1L);
+		SharedChannel second = registry.open(foo, 2L);
+		SharedChannel unknown = registry.open(foo, null);
+		// Then
+		assertThat(second).isNotSameAs(first);
+		assertThat(unknown).isNotSameAs(first).isNotSameAs(second);
+		verify(opener, times(3)).open(foo);
+	}
+
+	@Test
+	public void testLastReleaseCloses()
+			throws Exception {
+		// Given
+		ChannelRegistry registry = new ChannelRegistry(opener, identifier, closer, 10);
+		SharedChannel first = registry.open(foo, 1L);
+		SharedChannel second = registry.open(foo, 1L);
+		// When
+		registry.release(first);
+		verifyNoMoreInteractions(closer);
+		registry.release(second);
+		// Then
+		verify(closer).close(fooChannel);
+		assertThat(registry.getOpenChannels()).isZero();
+	}
+
+	@Test
+	public void testIdleChannelIsClosedOverBudgetAndReopened()
+			throws Exception {
+		// Given
+		ChannelRegistry registry = new ChannelRegistry(opener, identifier, closer, 1);
+		SharedChannel fooShared = registry.open(foo, 1L);
+		// When
+		SharedChannel barShared = registry.open(bar, 1L);
+		// Then
+		verify(closer).close(fooChannel);
+		assertThat(fooShared.<FileChannel> use(channel -> channel)).isSameAs(fooChannel);
+		verify(opener, times(2)).open(foo);
+		verify(closer).close(barChannel);
+		assertThat(barShared.<FileChannel> use(channel -> channel)).isSameAs(barChannel);
+		assertThat(registry.getReopens()).isEqualTo(2);
+		assertThat(registry.getIdleCloses()).isEqualTo(3);
+		assertThat(registry.getOpenChannels()).isEqualTo(1);
+	}
+
+	@Test
+	public void testFileReplacedWhileClosedIsStale()
+			throws Exception {
+		// Given
+		ChannelRegistry registry = new ChannelRegistry(opener, identifier, closer, 1);
+		SharedChannel fooShared = registry.open(foo, 1L);
+		registry.open(bar, 1L);
+		verify(closer).close(fooChannel);
+		FileChannel replacedChannel = mock(FileChannel.class);
+		when(opener.open(foo)).thenReturn(replacedChannel);
+		when(identifier.identify(foo, replacedChannel)).thenReturn(2L);
+		// Then
+		exception.expect(IOException.class);
+		exception.expectMessage("replaced");
+		try {
+			// When
+			fooShared.use(channel -> channel);
+		} finally {
+			verify(closer).close(replacedChannel);
+			assertThat(registry.getOpenChannels()).isEqualTo(1);
+		}
+	}
+
+	@Test
+	public void testStaleChannelIsNotReopened()
+			throws Exception {
+		// Given
+		ChannelRegistry registry = new ChannelRegistry(opener, identifier, closer, 1);
+		SharedChannel fooShared = registry.open(foo, 1L);
+		registry.open(bar, 1L);
+		when(identifier.identify(any(), any())).thenReturn(2L);
+		Try.withCatch(() -> fooShared.use(channel -> channel), IOException.class);
+		// Then
+		exception.expect(IOException.class);
+		try {
+			// When
+			fooShared.use(channel -> channel);
+		} finally {
+			verify(opener, times(2)).open(foo);
+		}
+	}
+
+	@Test
+	public void testChannelInUseIsNotClosed()
+			throws Exception {
+		// Given
+		ChannelRegistry registry = new ChannelRegistry(opener, identifier, closer, 1);
+		SharedChannel fooShared = registry.open(foo, 1L);
+		// When
+		fooShared.use(channel -> registry.open(bar, 1L));
+		// Then
+		verifyNoMoreInteractions(closer);
+		assertThat(registry.getOpenChannels()).isEqualTo(2);
+	}
+
+	@Test
+	public void testRacingOpensShareTheFirstChannel()
+			throws Exception {
+		// Given
+		ChannelRegistry registry = new ChannelRegistry(opener, identifier, closer, 10);
+		FileChannel racingChannel = mock(FileChannel.class);
+		CountDownLatch opening = new CountDownLatch(1);
+		CountDownLatch proceed = new CountDownLatch(1);
+		when(opener.open(foo)).thenAnswer(invocation -> {
+			opening.countDown();
+			proceed.await();
+			return racingChannel;
+		}).thenReturn(fooChannel);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<SharedChannel> racing = executor.submit(() -> registry.open(foo, 1L));
+			opening.await();
+			// When
+			SharedChannel first = registry.open(foo, 1L);
+			proceed.countDown();
+			// Then
+			assertThat(racing.get()).isSameAs(first);
+			assertThat(first.<FileChannel> use(channel -> channel)).isSameAs(fooChannel);
+			verify(closer).close(racingChannel);
+			assertThat(registry.getOpenChannels()).isEqualTo(1);
+			assertThat(registry.getSharedOpens()).isEqualTo(1);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testOpenFailurePassesThrough()
+			throws Exception {
+		// Given
+		ChannelRegistry registry = new ChannelRegistry(opener, identifier, closer, 10);
+		when(opener.open(foo)).thenThrow(new NoSuchFileException("/foo.mkv"));
+		// Then
+		exception.expect(NoSuchFileException.class);
+		// When
+		registry.open(foo, 1L);
+	}
+
+	@Test
+	public void testUseAfterReleaseFails()
+			throws Exception {
+		// Given
+		ChannelRegistry registry = new ChannelRegistry(opener, identifier, closer, 10);
+		SharedChannel fooShared = registry.open(foo, 1L);
+		registry.release(fooShared);
+		// Then
+		exception.expect(IOException.class);
+		// When
+		fooShared.use(channel -> channel);
+	}
+
+	@Test
+	public void testCloseAll()
+			throws Exception {
+		// Given
+		ChannelRegistry registry = new ChannelRegistry(opener, identifier, closer, 10);
+		registry.open(foo, 1L);
+		registry.open(bar, null);
+		// When
+		registry.closeAll();
+		// Then
+		verify(closer).close(fooChannel);
+		verify(closer).close(barChannel);
+		assertThat(registry.getOpenChannels()).isZero();
+	}
+}
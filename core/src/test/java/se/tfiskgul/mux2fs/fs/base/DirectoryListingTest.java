@@ -0,0 +1,57 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.base;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import se.tfiskgul.mux2fs.Fixture;
+
+public class DirectoryListingTest extends Fixture {
+
+	@Test
+	public void testEntriesAreKeptInOrder() {
+		// Given
+		DirectoryListing listing = new DirectoryListing();
+		FileSystem fileSystem = mockFileSystem();
+		Path mkv = mockPath("/file.mkv", fileSystem);
+		Path nfo = mockPath("/file.nfo", fileSystem);
+		// When
+		int first = listing.addWithExtraSize("file.mkv", mkv, 123L);
+		int second = listing.add("file.nfo", nfo);
+		// Then
+		assertThat(first).isZero();
+		assertThat(second).isZero();
+		assertThat(listing.size()).isEqualTo(2);
+		assertThat(listing.get(0).getName()).isEqualTo("file.mkv");
+		assertThat(listing.get(0).getPath()).isSameAs(mkv);
+		assertThat(listing.get(0).getExtraSize()).isEqualTo(123L);
+		assertThat(listing.get(1).getName()).isEqualTo("file.nfo");
+		assertThat(listing.get(1).getExtraSize()).isZero();
+	}
+}
@@ -62,4 +62,18 @@ public class FileInfoTest {
 		assertThat(fileInfo).isNotEqualTo(null);
 		assertThat(fileInfo).isNotEqualTo(inodeTime);
 	}
+
+	@Test
+	public void testNanosecondsAreIgnored() {
+		// Given
+		Instant modificationTime = Instant.ofEpochSecond(1500000000L, 123456789);
+		Instant inodeTime = Instant.ofEpochSecond(1500000005L, 987654321);
+		// When
+		FileInfo nanos = new FileInfo(1234L, modificationTime, inodeTime, 9876L);
+		FileInfo micros = new FileInfo(1234L, FileTime.from(Instant.ofEpochSecond(1500000000L, 123456000)),
+				FileTime.from(Instant.ofEpochSecond(1500000005L, 987654000)), 9876L);
+		// Then
+		assertThat(nanos).isEqualTo(micros);
+		assertThat(nanos.hashCode()).isEqualTo(micros.hashCode());
+	}
 }
@@ -0,0 +1,306 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.base;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import se.tfiskgul.mux2fs.fs.base.BlockCache.BlockReader;
+
+public class HedgedReadsTest {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final CountDownLatch stuck = new CountDownLatch(1);
+	private final AtomicInteger spareReads = new AtomicInteger();
+
+	@After
+	public void after() {
+		stuck.countDown();
+		executor.shutdownNow();
+	}
+
+	private BlockReader filling(byte value) {
+		return (target, position) -> {
+			int length = target.remaining();
+			while (target.hasRemaining()) {
+				target.put(value);
+			}
+			return length;
+		};
+	}
+
+	private BlockReader stuck(byte value) {
+		return (target, position) -> {
+			try {
+				stuck.await();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			return filling(value).read(target, position);
+		};
+	}
+
+	private BlockReader spare(byte value) {
+		return (target, position) -> {
+			spareReads.incrementAndGet();
+			return filling(value).read(target, position);
+		};
+	}
+
+	private BlockReader broken(String message) {
+		return (target, position) -> {
+			throw new IOException(message);
+		};
+	}
+
+	private HedgedReads hedgedReads(long deadline, int percentile) {
+		return new HedgedReads(deadline, MILLISECONDS, percentile, BufferPool.defaultPool(), executor);
+	}
+
+	@Test
+	public void testDisabledReadsInline()
+			throws Exception {
+		// Given
+		HedgedReads hedgedReads = HedgedReads.disabled();
+		Thread caller = Thread.currentThread();
+		ByteBuffer target = ByteBuffer.allocate(10);
+		// When
+		int result = hedgedReads.read(target, 0, (buffer, position) -> {
+			assertThat(Thread.currentThread()).isSameAs(caller);
+			return filling((byte) 1).read(buffer, position);
+		}, spare((byte) 2));
+		// Then
+		assertThat(hedgedReads.isEnabled()).isFalse();
+		assertThat(result).isEqualTo(10);
+		assertThat(target.array()).containsOnly(1);
+		assertThat(spareReads).hasValue(0);
+		assertThat(hedgedReads.getReads()).isZero();
+	}
+
+	@Test
+	public void testFastReadIsNotHedged()
+			throws Exception {
+		// Given
+		HedgedReads hedgedReads = hedgedReads(1000, 95);
+		ByteBuffer target = ByteBuffer.allocate(10);
+		// When
+		int result = hedgedReads.read(target, 0, filling((byte) 1), spare((byte) 2));
+		// Then
+		assertThat(result).isEqualTo(10);
+		assertThat(target.position()).isEqualTo(10);
+		assertThat(target.array()).containsOnly(1);
+		assertThat(spareReads).hasValue(0);
+		assertThat(hedgedReads.getReads()).isEqualTo(1);
+		assertThat(hedgedReads.getHedged()).isZero();
+	}
+
+	@Test
+	public void testEndOfFile()
+			throws Exception {
+		// Given
+		HedgedReads hedgedReads = hedgedReads(1000, 0);
+		ByteBuffer target = ByteBuffer.allocate(10);
+		// When
+		int result = hedgedReads.read(target, 0, (buffer, position) -> -1, spare((byte) 2));
+		// Then
+		assertThat(result).isEqualTo(-1);
+		assertThat(target.position()).isZero();
+	}
+
+	@Test
+	public void testDeadline()
+			throws Exception {
+		// Given
+		HedgedReads hedgedReads = hedgedReads(50, 0);
+		exception.expect(InterruptedIOException.class);
+		// When
+		try {
+			hedgedReads.read(ByteBuffer.allocate(10), 0, stuck((byte) 1), spare((byte) 2));
+		} finally {
+			// Then
+			assertThat(hedgedReads.getTimeouts()).isEqualTo(1);
+			assertThat(spareReads).hasValue(0);
+		}
+	}
+
+	@Test
+	public void testNoHedgingUntilLatencyIsKnown()
+			throws Exception {
+		// Given
+		HedgedReads hedgedReads = hedgedReads(50, 95);
+		exception.expect(InterruptedIOException.class);
+		// When
+		try {
+			hedgedReads.read(ByteBuffer.allocate(10), 0, stuck((byte) 1), spare((byte) 2));
+		} finally {
+			// Then
+			assertThat(hedgedReads.getHedged()).isZero();
+			assertThat(spareReads).hasValue(0);
+		}
+	}
+
+	@Test
+	public void testSlowReadIsHedged()
+			throws Exception {
+		// Given
+		HedgedReads hedgedReads = hedgedReads(0, 95);
+		for (int i = 0; i < 64; i++) {
+			hedgedReads.read(ByteBuffer.allocate(10), 0, filling((byte) 1), spare((byte) 2));
+		}
+		assertThat(hedgedReads.getHedgeDelayNanos()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(1));
+		ByteBuffer target = ByteBuffer.allocate(10);
+		// When
+		int result = hedgedReads.read(target, 0, stuck((byte) 1), spare((byte) 2));
+		// Then
+		assertThat(result).isEqualTo(10);
+		assertThat(target.array()).containsOnly(2);
+		assertThat(spareReads).hasValue(1);
+		assertThat(hedgedReads.getHedged()).isEqualTo(1);
+		assertThat(hedgedReads.getHedgeWins()).isEqualTo(1);
+	}
+
+	@Test
+	public void testPrimaryFailureIsThrownWithoutHedging()
+			throws Exception {
+		// Given
+		HedgedReads hedgedReads = hedgedReads(1000, 0);
+		exception.expect(IOException.class);
+		exception.expectMessage("broken");
+		// When
+		try {
+			hedgedReads.read(ByteBuffer.allocate(10), 0, broken("broken"), spare((byte) 2));
+		} finally {
+			// Then
+			assertThat(spareReads).hasValue(0);
+		}
+	}
+
+	@Test
+	public void testFailedPrimaryIsHedged()
+			throws Exception {
+		// Given
+		HedgedReads hedgedReads = hedgedReads(1000, 95);
+		ByteBuffer target = ByteBuffer.allocate(10);
+		// When
+		int result = hedgedReads.read(target, 0, broken("broken"), spare((byte) 2));
+		// Then
+		assertThat(result).isEqualTo(10);
+		assertThat(target.array()).containsOnly(2);
+		assertThat(hedgedReads.getHedged()).isEqualTo(1);
+		assertThat(hedgedReads.getHedgeWins()).isEqualTo(1);
+	}
+
+	@Test
+	public void testPrimaryFailingAfterHedgeWaitsForSpare()
+			throws Exception {
+		// Given
+		HedgedReads hedgedReads = hedgedReads(0, 95);
+		for (int i = 0; i < 64; i++) {
+			hedgedReads.read(ByteBuffer.allocate(10), 0, filling((byte) 1), spare((byte) 2));
+		}
+		CountDownLatch hedging = new CountDownLatch(1);
+		CountDownLatch primaryFailed = new CountDownLatch(1);
+		BlockReader primary = (buffer, position) -> {
+			try {
+				hedging.await();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			primaryFailed.countDown();
+			throw new IOException("broken");
+		};
+		BlockReader slowSpare = (buffer, position) -> {
+			hedging.countDown();
+			try {
+				primaryFailed.await();
+				Thread.sleep(20); // For the primary to throw
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			return filling((byte) 2).read(buffer, position);
+		};
+		ByteBuffer target = ByteBuffer.allocate(10);
+		// When
+		int result = hedgedReads.read(target, 0, primary, slowSpare);
+		// Then
+		assertThat(result).isEqualTo(10);
+		assertThat(target.array()).containsOnly(2);
+		assertThat(hedgedReads.getHedgeWins()).isEqualTo(1);
+	}
+
+	@Test
+	public void testBothFailing()
+			throws Exception {
+		// Given
+		HedgedReads hedgedReads = hedgedReads(1000, 95);
+		exception.expect(IOException.class);
+		exception.expectMessage("broken");
+		// When
+		hedgedReads.read(ByteBuffer.allocate(10), 0, broken("broken"), broken("broken too"));
+	}
+
+	@Test
+	public void testSaturatedPoolReadsInline()
+			throws Exception {
+		// Given
+		HedgedReads hedgedReads = new HedgedReads(1000, MILLISECONDS, 95, BufferPool.defaultPool(), command -> {
+			throw new RejectedExecutionException();
+		});
+		Thread caller = Thread.currentThread();
+		ByteBuffer target = ByteBuffer.allocate(10);
+		// When
+		int result = hedgedReads.read(target, 0, (buffer, position) -> {
+			assertThat(Thread.currentThread()).isSameAs(caller);
+			return filling((byte) 1).read(buffer, position);
+		}, spare((byte) 2));
+		// Then
+		assertThat(result).isEqualTo(10);
+		assertThat(target.array()).containsOnly(1);
+		assertThat(hedgedReads.getSaturated()).isEqualTo(1);
+		assertThat(spareReads).hasValue(0);
+	}
+
+	@Test
+	public void testPercentileMustBeBelowHundred() {
+		exception.expect(IllegalArgumentException.class);
+		hedgedReads(0, 100);
+	}
+}
@@ -0,0 +1,121 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.base;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class NegativeLookupCacheTest {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+	private Path directory;
+	private Path nfo;
+
+	@Before
+	public void before() {
+		directory = folder.getRoot().toPath();
+		nfo = directory.resolve("movie.nfo");
+	}
+
+	@Test
+	public void testUnknownPathIsNotMissing() {
+		NegativeLookupCache cache = new NegativeLookupCache(1, TimeUnit.MINUTES);
+		assertThat(cache.isKnownMissing(nfo)).isFalse();
+	}
+
+	@Test
+	public void testMissingIsRemembered() {
+		// Given
+		NegativeLookupCache cache = new NegativeLookupCache(1, TimeUnit.MINUTES);
+		// When
+		missing(cache, nfo);
+		// Then
+		assertThat(cache.isKnownMissing(nfo)).isTrue();
+		assertThat(cache.isKnownMissing(directory.resolve("folder.jpg"))).isFalse();
+		assertThat(cache.getHits()).isEqualTo(1);
+	}
+
+	@Test
+	public void testChangedDirectoryForgetsMissing()
+			throws Exception {
+		// Given
+		NegativeLookupCache cache = new NegativeLookupCache(1, TimeUnit.MINUTES, 0);
+		Files.setLastModifiedTime(directory, FileTime.fromMillis(1000000));
+		missing(cache, nfo);
+		// When
+		Files.setLastModifiedTime(directory, FileTime.fromMillis(2000000));
+		// Then
+		assertThat(cache.isKnownMissing(nfo)).isFalse();
+	}
+
+	@Test
+	public void testCreatedDuringLookupIsNotRememberedAsMissing()
+			throws Exception {
+		// Given
+		NegativeLookupCache cache = new NegativeLookupCache(1, TimeUnit.MINUTES, 0);
+		Files.setLastModifiedTime(directory, FileTime.fromMillis(1000000));
+		FileTime before = cache.parentMtime(nfo).get();
+		Files.createFile(nfo);
+		Files.setLastModifiedTime(directory, FileTime.fromMillis(2000000));
+		// When
+		cache.missing(nfo, before);
+		// Then
+		assertThat(cache.isKnownMissing(nfo)).isFalse();
+	}
+
+	@Test
+	public void testMissingDirectoryIsNotCached() {
+		// Given
+		NegativeLookupCache cache = new NegativeLookupCache(1, TimeUnit.MINUTES, 0);
+		Path inMissing = directory.resolve("gone").resolve("movie.nfo");
+		// When
+		missing(cache, inMissing);
+		// Then
+		assertThat(cache.isKnownMissing(inMissing)).isFalse();
+	}
+
+	@Test
+	public void testDisabled() {
+		// Given
+		NegativeLookupCache cache = NegativeLookupCache.disabled();
+		// When
+		missing(cache, nfo);
+		// Then
+		assertThat(cache.isKnownMissing(nfo)).isFalse();
+	}
+
+	private void missing(NegativeLookupCache cache, Path path) {
+		cache.parentMtime(path).ifPresent(mtime -> cache.missing(path, mtime));
+	}
+}
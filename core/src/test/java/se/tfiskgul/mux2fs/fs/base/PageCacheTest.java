@@ -0,0 +1,171 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.base;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static se.tfiskgul.mux2fs.Constants.MEGABYTE;
+import static se.tfiskgul.mux2fs.Constants.PAGE_CACHE_DROP_BEHIND_WINDOW;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.LongSupplier;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.powermock.api.mockito.PowerMockito;
+
+import se.tfiskgul.mux2fs.fs.base.Fadvisor.Advice;
+
+public class PageCacheTest {
+
+	private static final LongSupplier ALONE = () -> Long.MAX_VALUE;
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+	private Fadvisor fadvisor;
+	private FileChannel channel;
+
+	@Before
+	public void before() {
+		fadvisor = mock(Fadvisor.class);
+		channel = PowerMockito.mock(FileChannel.class);
+	}
+
+	@Test
+	public void testNoneDoesNothing() {
+		// Given
+		PageCache pageCache = new PageCache(PageCache.Policy.NONE, fadvisor);
+		// When
+		pageCache.opened(channel);
+		pageCache.delivered(channel, 3 * PAGE_CACHE_DROP_BEHIND_WINDOW - 1, 2, ALONE);
+		pageCache.drop(folder.getRoot().toPath());
+		// Then
+		verifyZeroInteractions(fadvisor);
+	}
+
+	@Test
+	public void testOpenedIsSequential()
+			throws Exception {
+		// Given
+		PageCache pageCache = new PageCache(PageCache.Policy.SEQUENTIAL, fadvisor);
+		// When
+		pageCache.opened(channel);
+		pageCache.delivered(channel, 3 * PAGE_CACHE_DROP_BEHIND_WINDOW - 1, 2, ALONE);
+		// Then
+		verify(fadvisor).fadvise(channel, 0, 0, Advice.SEQUENTIAL);
+		verify(fadvisor).fadvise(channel, 0, 0, Advice.NOREUSE);
+		verifyNoMoreInteractions(fadvisor);
+		assertThat(pageCache.getAdvised()).isEqualTo(2);
+	}
+
+	@Test
+	public void testDeliveredWithinWindowKeepsCache() {
+		// Given
+		PageCache pageCache = new PageCache(PageCache.Policy.DROP_BEHIND, fadvisor);
+		// When
+		pageCache.delivered(channel, 0, (int) MEGABYTE, ALONE);
+		pageCache.delivered(channel, 2 * PAGE_CACHE_DROP_BEHIND_WINDOW + MEGABYTE, (int) MEGABYTE, ALONE);
+		// Then
+		verifyZeroInteractions(fadvisor);
+		assertThat(pageCache.getDroppedBytes()).isEqualTo(0);
+	}
+
+	@Test
+	public void testDeliveredAcrossWindowDropsBehind()
+			throws Exception {
+		// Given
+		PageCache pageCache = new PageCache(PageCache.Policy.DROP_BEHIND, fadvisor);
+		// When
+		pageCache.delivered(channel, PAGE_CACHE_DROP_BEHIND_WINDOW - 10, 20, ALONE); // First window is kept
+		pageCache.delivered(channel, 3 * PAGE_CACHE_DROP_BEHIND_WINDOW - 10, 20, ALONE);
+		// Then
+		verify(fadvisor).fadvise(channel, PAGE_CACHE_DROP_BEHIND_WINDOW, PAGE_CACHE_DROP_BEHIND_WINDOW, Advice.DONTNEED);
+		verifyNoMoreInteractions(fadvisor);
+		assertThat(pageCache.getDroppedBytes()).isEqualTo(PAGE_CACHE_DROP_BEHIND_WINDOW);
+	}
+
+	@Test
+	public void testSharedChannelDropsBehindSlowestReader()
+			throws Exception {
+		// Given
+		PageCache pageCache = new PageCache(PageCache.Policy.DROP_BEHIND, fadvisor);
+		// When
+		pageCache.delivered(channel, 3 * PAGE_CACHE_DROP_BEHIND_WINDOW - 10, 20, () -> PAGE_CACHE_DROP_BEHIND_WINDOW + 10);
+		verifyZeroInteractions(fadvisor);
+		pageCache.delivered(channel, 3 * PAGE_CACHE_DROP_BEHIND_WINDOW - 10, 20, () -> 3 * PAGE_CACHE_DROP_BEHIND_WINDOW + 10);
+		// Then
+		verify(fadvisor).fadvise(channel, PAGE_CACHE_DROP_BEHIND_WINDOW, PAGE_CACHE_DROP_BEHIND_WINDOW, Advice.DONTNEED);
+		assertThat(pageCache.getKeptForOthers()).isEqualTo(1);
+		assertThat(pageCache.getDroppedBytes()).isEqualTo(PAGE_CACHE_DROP_BEHIND_WINDOW);
+	}
+
+	@Test
+	public void testDropWholeFile()
+			throws Exception {
+		// Given
+		Path file = folder.newFile().toPath();
+		Files.write(file, new byte[4711]);
+		PageCache pageCache = new PageCache(PageCache.Policy.DROP_BEHIND, fadvisor);
+		// When
+		pageCache.drop(file);
+		// Then
+		verify(fadvisor).fadvise(any(), eq(0L), eq(0L), eq(Advice.DONTNEED));
+		assertThat(pageCache.getDroppedBytes()).isEqualTo(4711);
+	}
+
+	@Test
+	public void testDropMissingFileIsIgnored() {
+		// Given
+		PageCache pageCache = new PageCache(PageCache.Policy.DROP_BEHIND, fadvisor);
+		// When
+		pageCache.drop(folder.getRoot().toPath().resolve("missing"));
+		// Then
+		verifyZeroInteractions(fadvisor);
+	}
+
+	@Test
+	public void testFailuresAreCounted()
+			throws Exception {
+		// Given
+		when(fadvisor.fadvise(any(), anyLong(), anyLong(), eq(Advice.SEQUENTIAL))).thenReturn(22);
+		when(fadvisor.fadvise(any(), anyLong(), anyLong(), eq(Advice.NOREUSE))).thenThrow(new IOException());
+		PageCache pageCache = new PageCache(PageCache.Policy.SEQUENTIAL, fadvisor);
+		// When
+		pageCache.opened(channel);
+		// Then
+		assertThat(pageCache.getFailures()).isEqualTo(2);
+		assertThat(pageCache.getAdvised()).isEqualTo(0);
+	}
+}
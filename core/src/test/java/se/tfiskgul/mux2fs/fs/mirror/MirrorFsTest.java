@@ -27,28 +27,47 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.fail;
 import static org.mockito.AdditionalMatchers.gt;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
+import static se.tfiskgul.mux2fs.Constants.PAGE_CACHE_DROP_BEHIND_WINDOW;
 import static se.tfiskgul.mux2fs.Constants.SUCCESS;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 
 import ru.serce.jnrfuse.ErrorCodes;
+import se.tfiskgul.mux2fs.fs.base.BlockCache;
+import se.tfiskgul.mux2fs.fs.base.BufferPool;
 import se.tfiskgul.mux2fs.fs.base.DirectoryFiller;
+import se.tfiskgul.mux2fs.fs.base.Fadvisor;
+import se.tfiskgul.mux2fs.fs.base.Fadvisor.Advice;
 import se.tfiskgul.mux2fs.fs.base.FileHandleFiller;
+import se.tfiskgul.mux2fs.fs.base.FileHandleFiller.Caching;
+import se.tfiskgul.mux2fs.fs.base.HedgedReads;
+import se.tfiskgul.mux2fs.fs.base.NegativeLookupCache;
+import se.tfiskgul.mux2fs.fs.base.PageCache;
 import se.tfiskgul.mux2fs.fs.base.StatFiller;
 
 public class MirrorFsTest extends MirrorFsFixture {
@@ -79,6 +98,28 @@ public class MirrorFsTest extends MirrorFsFixture {
 		verify(stat).stat(foo);
 	}
 
+	@Test
+	public void testGetAttrKnownMissingIsNotLookedUp()
+			throws Exception {
+		// Given
+		NegativeLookupCache negativeLookups = mock(NegativeLookupCache.class);
+		fs = new MirrorFs(mirrorRoot, fileChannelCloser, new MirrorFs.Options().negativeLookups(negativeLookups));
+		StatFiller stat = mock(StatFiller.class);
+		Path foo = mockPath("/foo.nfo");
+		when(stat.stat(foo)).thenThrow(new NoSuchFileException("/foo.nfo"));
+		FileTime parentMtime = FileTime.fromMillis(1000000);
+		when(negativeLookups.parentMtime(foo)).thenReturn(Optional.of(parentMtime));
+		fs.getattr("/foo.nfo", stat);
+		when(negativeLookups.isKnownMissing(foo)).thenReturn(true);
+		// When
+		int result = fs.getattr("/foo.nfo", stat);
+		// Then
+		assertThat(result).isEqualTo(-ErrorCodes.ENOENT());
+		verify(negativeLookups).missing(foo, parentMtime);
+		verify(stat).stat(foo);
+		verifyNoMoreInteractions(stat);
+	}
+
 	@Test
 	public void testAllErrorsForGetAttr()
 			throws Exception {
@@ -233,11 +274,48 @@ public class MirrorFsTest extends MirrorFsFixture {
 		// Then
 		assertThat(result).isEqualTo(SUCCESS);
 		verify(filler).setFileHandle(gt(0));
+		verify(filler).setCaching(Caching.DEFAULT);
 		verifyNoMoreInteractions(filler);
 		verify(fileSystem.provider()).newFileChannel(eq(fooBar), eq(set(StandardOpenOption.READ)));
+		verify(fileSystem.provider()).readAttributes(fooBar, "unix:*");
 		verifyNoMoreInteractions(fileSystem.provider());
 	}
 
+	@Test
+	public void testReopenUnchangedFileKeepsCache()
+			throws Exception {
+		// Given
+		FileHandleFiller filler = mock(FileHandleFiller.class);
+		Path fooBar = mockPath("foo.bar");
+		mockAttributes(fooBar, 1);
+		when(fileSystem.provider().newFileChannel(eq(fooBar), eq(set(StandardOpenOption.READ)))).thenReturn(mock(FileChannel.class));
+		fs.open("foo.bar", filler);
+		// When
+		int result = fs.open("foo.bar", filler);
+		// Then
+		assertThat(result).isEqualTo(SUCCESS);
+		InOrder inOrder = inOrder(filler);
+		inOrder.verify(filler).setCaching(Caching.DEFAULT);
+		inOrder.verify(filler).setCaching(Caching.KEEP_CACHE);
+	}
+
+	@Test
+	public void testReopenChangedFileDropsCache()
+			throws Exception {
+		// Given
+		FileHandleFiller filler = mock(FileHandleFiller.class);
+		Path fooBar = mockPath("foo.bar");
+		mockAttributes(fooBar, 1);
+		when(fileSystem.provider().newFileChannel(eq(fooBar), eq(set(StandardOpenOption.READ)))).thenReturn(mock(FileChannel.class));
+		fs.open("foo.bar", filler);
+		mockAttributes(fooBar, 2);
+		// When
+		int result = fs.open("foo.bar", filler);
+		// Then
+		assertThat(result).isEqualTo(SUCCESS);
+		verify(filler, times(2)).setCaching(Caching.DEFAULT);
+	}
+
 	@Test
 	public void testOpenFileHandleIsUnique()
 			throws Exception {
@@ -254,12 +332,55 @@ public class MirrorFsTest extends MirrorFsFixture {
 		// Then
 		assertThat(result).isEqualTo(SUCCESS);
 		verify(filler, times(3)).setFileHandle(gt(0));
+		verify(filler, times(3)).setCaching(Caching.DEFAULT);
 		verifyNoMoreInteractions(filler);
 		verify(fileSystem.provider(), times(3)).newFileChannel(eq(fooBar), eq(set(StandardOpenOption.READ)));
+		verify(fileSystem.provider(), times(3)).readAttributes(fooBar, "unix:*");
 		verifyNoMoreInteractions(fileSystem.provider());
 		assertThat(handleCaptor.getAllValues()).hasSize(3).doesNotHaveDuplicates();
 	}
 
+	@Test
+	public void testOpenSameFileSharesChannel()
+			throws Exception {
+		// Given
+		FileHandleFiller filler = mock(FileHandleFiller.class);
+		ArgumentCaptor<Integer> handleCaptor = ArgumentCaptor.forClass(Integer.class);
+		doNothing().when(filler).setFileHandle(handleCaptor.capture());
+		Path fooBar = mockPath("foo.bar");
+		mockAttributes(fooBar, 1);
+		FileChannel fileChannel = mock(FileChannel.class);
+		when(fileSystem.provider().newFileChannel(eq(fooBar), eq(set(StandardOpenOption.READ)))).thenReturn(fileChannel);
+		// When
+		int result = fs.open("foo.bar", filler);
+		result += fs.open("foo.bar", filler);
+		// Then
+		assertThat(result).isEqualTo(SUCCESS);
+		verify(fileSystem.provider()).newFileChannel(eq(fooBar), eq(set(StandardOpenOption.READ)));
+		assertThat(handleCaptor.getAllValues()).hasSize(2).doesNotHaveDuplicates();
+		fs.release("foo.bar", handleCaptor.getAllValues().get(0));
+		verifyNoMoreInteractions(fileChannelCloser);
+		fs.release("foo.bar", handleCaptor.getAllValues().get(1));
+		verify(fileChannelCloser).close(fileChannel);
+	}
+
+	@Test
+	public void testOpenReplacedFileGetsNewChannel()
+			throws Exception {
+		// Given
+		FileHandleFiller filler = mock(FileHandleFiller.class);
+		Path fooBar = mockPath("foo.bar");
+		mockAttributes(fooBar, 1);
+		when(fileSystem.provider().newFileChannel(eq(fooBar), eq(set(StandardOpenOption.READ)))).thenReturn(mock(FileChannel.class));
+		fs.open("foo.bar", filler);
+		mockAttributes(fooBar, 2); // Another inode
+		// When
+		int result = fs.open("foo.bar", filler);
+		// Then
+		assertThat(result).isEqualTo(SUCCESS);
+		verify(fileSystem.provider(), times(2)).newFileChannel(eq(fooBar), eq(set(StandardOpenOption.READ)));
+	}
+
 	@Test
 	public void testAllErrorsForOpen()
 			throws Exception {
@@ -277,6 +398,7 @@ public class MirrorFsTest extends MirrorFsFixture {
 		// Then
 		assertThat(result).isEqualTo(expected.value());
 		verifyNoMoreInteractions(filler);
+		verify(fileSystem.provider()).readAttributes(any(), eq("unix:*"));
 		verify(fileSystem.provider()).newFileChannel(any(), eq(set(StandardOpenOption.READ)));
 		verifyNoMoreInteractions(fileSystem.provider());
 	}
@@ -331,6 +453,92 @@ public class MirrorFsTest extends MirrorFsFixture {
 		assertThat(bufferCaptor.getValue().limit()).isEqualTo(10);
 	}
 
+	@Test
+	public void testReadThroughBlockCache()
+			throws Exception {
+		// Given
+		fs = new MirrorFs(mirrorRoot, fileChannelCloser, new MirrorFs.Options().blockCache(new BlockCache(4096, 4096 * 4)));
+		FileHandleFiller filler = mock(FileHandleFiller.class);
+		ArgumentCaptor<Integer> handleCaptor = ArgumentCaptor.forClass(Integer.class);
+		doNothing().when(filler).setFileHandle(handleCaptor.capture());
+		Path fooBar = mockPath("foo.bar");
+		mockAttributes(fooBar, 1);
+		FileChannel fileChannel = mock(FileChannel.class);
+		when(fileSystem.provider().newFileChannel(eq(fooBar), eq(set(StandardOpenOption.READ)))).thenReturn(fileChannel);
+		fs.open("foo.bar", filler);
+		fs.open("foo.bar", filler);
+		when(fileChannel.read(any(), eq(0L))).thenAnswer(invocation -> {
+			ByteBuffer target = invocation.getArgumentAt(0, ByteBuffer.class);
+			target.position(target.position() + 100);
+			return 100;
+		});
+		doReturn(-1).when(fileChannel).read(any(), eq(100L));
+		// When
+		int first = fs.read("foo.bar", (data) -> assertThat(data).hasSize(10), 10, 20L, handleCaptor.getAllValues().get(0));
+		int second = fs.read("foo.bar", (data) -> assertThat(data).hasSize(80), 200, 20L, handleCaptor.getAllValues().get(1));
+		// Then
+		assertThat(first).isEqualTo(10);
+		assertThat(second).isEqualTo(80);
+		verify(fileChannel).read(any(), eq(0L));
+		verify(fileChannel).read(any(), eq(100L));
+		verifyNoMoreInteractions(fileChannel);
+	}
+
+	@Test
+	public void testSharedChannelDropsBehindSlowestHandle()
+			throws Exception {
+		// Given
+		Fadvisor fadvisor = mock(Fadvisor.class);
+		fs = new MirrorFs(mirrorRoot, fileChannelCloser, new MirrorFs.Options().pageCache(new PageCache(PageCache.Policy.DROP_BEHIND, fadvisor)));
+		FileHandleFiller filler = mock(FileHandleFiller.class);
+		ArgumentCaptor<Integer> handleCaptor = ArgumentCaptor.forClass(Integer.class);
+		doNothing().when(filler).setFileHandle(handleCaptor.capture());
+		Path fooBar = mockPath("foo.bar");
+		mockAttributes(fooBar, 1);
+		FileChannel fileChannel = mock(FileChannel.class);
+		when(fileSystem.provider().newFileChannel(eq(fooBar), eq(set(StandardOpenOption.READ)))).thenReturn(fileChannel);
+		fs.open("foo.bar", filler);
+		fs.open("foo.bar", filler);
+		when(fileChannel.read(any(), anyLong())).thenReturn(20);
+		long crossing = 3 * PAGE_CACHE_DROP_BEHIND_WINDOW - 10;
+		// When
+		fs.read("foo.bar", (data) -> {
+		}, 20, crossing, handleCaptor.getAllValues().get(0));
+		verify(fadvisor, never()).fadvise(any(), anyLong(), anyLong(), eq(Advice.DONTNEED));
+		fs.read("foo.bar", (data) -> {
+		}, 20, crossing, handleCaptor.getAllValues().get(1));
+		// Then
+		verify(fadvisor).fadvise(fileChannel, PAGE_CACHE_DROP_BEHIND_WINDOW, PAGE_CACHE_DROP_BEHIND_WINDOW, Advice.DONTNEED);
+	}
+
+	@Test
+	public void testReadPastDeadline()
+			throws Exception {
+		// Given
+		fs = new MirrorFs(mirrorRoot, fileChannelCloser,
+				new MirrorFs.Options().hedgedReads(new HedgedReads(50, TimeUnit.MILLISECONDS, 0, BufferPool.defaultPool())));
+		FileHandleFiller filler = mock(FileHandleFiller.class);
+		ArgumentCaptor<Integer> handleCaptor = ArgumentCaptor.forClass(Integer.class);
+		doNothing().when(filler).setFileHandle(handleCaptor.capture());
+		Path fooBar = mockPath("foo.bar");
+		FileChannel fileChannel = mock(FileChannel.class);
+		when(fileSystem.provider().newFileChannel(eq(fooBar), eq(set(StandardOpenOption.READ)))).thenReturn(fileChannel);
+		fs.open("foo.bar", filler);
+		CountDownLatch stuck = new CountDownLatch(1);
+		when(fileChannel.read(any(), eq(1234L))).thenAnswer(invocation -> {
+			stuck.await();
+			return -1;
+		});
+		try {
+			// When
+			int result = fs.read("foo.bar", (data) -> fail("No data should be read"), 10, 1234L, handleCaptor.getValue());
+			// Then
+			assertThat(result).isEqualTo(-ErrorCodes.ETIMEDOUT());
+		} finally {
+			stuck.countDown();
+		}
+	}
+
 	@Test
 	public void testReadEndOfFile()
 			throws Exception {
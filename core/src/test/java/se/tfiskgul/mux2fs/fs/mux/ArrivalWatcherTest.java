@@ -0,0 +1,184 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.mux;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import se.tfiskgul.mux2fs.Fixture;
+import se.tfiskgul.mux2fs.fs.mux.ArrivalWatcher.Premuxer;
+
+public class ArrivalWatcherTest extends Fixture {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+	private final AtomicLong now = new AtomicLong();
+	private Path source;
+	private Premuxer premuxer;
+	private ArrivalWatcher watcher;
+
+	@Before
+	public void before() {
+		source = mockPath("/", mockFileSystem());
+		premuxer = mock(Premuxer.class);
+		watcher = new ArrivalWatcher(source, 10, 0, TimeUnit.SECONDS, premuxer, now::get);
+	}
+
+	private void after(long seconds) {
+		now.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+		watcher.tick();
+	}
+
+	@Test
+	public void testStablePairIsPremuxed()
+			throws Exception {
+		// Given
+		Path mkv = mockPath(source, "file.mkv", 1000);
+		Path srt = mockPath(source, "file.eng.srt", 10);
+		mockDirectoryStream(source, mkv, srt);
+		when(premuxer.premux(mkv)).thenReturn(true);
+		// When
+		watcher.changed(mkv);
+		after(1);
+		after(5);
+		// Then
+		verify(premuxer, never()).premux(mkv);
+		after(5);
+		verify(premuxer).premux(mkv);
+		assertThat(watcher.getCandidates()).isZero();
+	}
+
+	@Test
+	public void testGrowingFileRestartsTheWait()
+			throws Exception {
+		// Given
+		Path mkv = mockPath(source, "file.mkv");
+		when(mkv.toFile().length()).thenReturn(100L, 200L, 300L, 300L);
+		mockDirectoryStream(source, mkv);
+		when(premuxer.premux(mkv)).thenReturn(true);
+		// When
+		watcher.changed(mkv);
+		after(10);
+		after(10);
+		after(10);
+		// Then
+		verify(premuxer, never()).premux(mkv);
+		after(10);
+		verify(premuxer).premux(mkv);
+	}
+
+	@Test
+	public void testNewSubtitleMakesItsMkvACandidate()
+			throws Exception {
+		// Given
+		Path mkv = mockPath(source, "File.mkv", 1000);
+		Path other = mockPath(source, "other.mkv", 1000);
+		Path srt = mockPath(source, "file.swe.srt", 10);
+		mockDirectoryStream(source, mkv, other, srt);
+		when(premuxer.premux(mkv)).thenReturn(true);
+		// When
+		watcher.changed(srt);
+		after(1);
+		after(10);
+		// Then
+		verify(premuxer).premux(mkv);
+		verify(premuxer, never()).premux(other);
+	}
+
+	@Test
+	public void testPremuxIsRetriedUntilDone()
+			throws Exception {
+		// Given
+		Path mkv = mockPath(source, "file.mkv", 1000);
+		mockDirectoryStream(source, mkv);
+		when(premuxer.premux(mkv)).thenReturn(false, true);
+		// When
+		watcher.changed(mkv);
+		after(1);
+		after(10);
+		// Then
+		assertThat(watcher.getCandidates()).isEqualTo(1);
+		after(1);
+		assertThat(watcher.getCandidates()).isZero();
+	}
+
+	@Test
+	public void testOtherFilesAreIgnored() {
+		// Given
+		Path txt = mockPath(source, "file.txt", 1000);
+		// When
+		watcher.changed(txt);
+		// Then
+		assertThat(watcher.getCandidates()).isZero();
+	}
+
+	@Test
+	public void testFailingToWatchOneDirectoryKeepsWatchingTheRest()
+			throws Exception {
+		// Given
+		Path root = folder.newFolder("source").toPath();
+		Path staging = folder.newFolder("staging", "unpacking").toPath();
+		Files.createFile(staging.resolve("inside.mkv"));
+		ArrivalWatcher real = new ArrivalWatcher(root, 0, 0, TimeUnit.SECONDS, premuxer, System::nanoTime) {
+
+			@Override
+			void watchDirectory(Path dir)
+					throws IOException {
+				if (dir.endsWith("unpacking")) { // As if removed before it could be watched
+					throw new NoSuchFileException(dir.toString());
+				}
+				super.watchDirectory(dir);
+			}
+		}.start();
+		try {
+			Path inside = root.resolve("unpacking").resolve("inside.mkv");
+			when(premuxer.premux(inside)).thenReturn(true);
+			// When
+			Files.move(staging, root.resolve("unpacking"));
+			Path later = Files.createFile(Files.createDirectory(root.resolve("later")).resolve("later.mkv"));
+			when(premuxer.premux(later)).thenReturn(true);
+			// Then
+			verify(premuxer, timeout(10000)).premux(later);
+			verify(premuxer, timeout(10000)).premux(inside); // Found by rescanning the parent
+		} finally {
+			real.stop();
+		}
+	}
+}
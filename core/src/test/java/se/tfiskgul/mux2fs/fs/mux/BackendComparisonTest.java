@@ -0,0 +1,133 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.mux;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import com.google.common.collect.ImmutableList;
+
+import se.tfiskgul.mux2fs.Fixture;
+import se.tfiskgul.mux2fs.fs.mux.BackendComparison.Result;
+import se.tfiskgul.mux2fs.mux.MuxBackend;
+import se.tfiskgul.mux2fs.mux.Muxer;
+import se.tfiskgul.mux2fs.mux.Muxer.MuxerFactory;
+import se.tfiskgul.mux2fs.mux.Muxer.State;
+
+public class BackendComparisonTest extends Fixture {
+
+	private Path root;
+	private Path scratch;
+	private MuxerFactory mkvmerge;
+	private MuxerFactory ffmpeg;
+	private BackendComparison comparison;
+	private Consumer<String> reporter;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void before() {
+		root = mockPath("/", mockFileSystem());
+		scratch = mockPath(root, "scratch");
+		mkvmerge = mock(MuxerFactory.class);
+		ffmpeg = mock(MuxerFactory.class);
+		Map<MuxBackend, MuxerFactory> factories = new LinkedHashMap<>();
+		factories.put(MuxBackend.mkvmerge(), mkvmerge);
+		factories.put(MuxBackend.ffmpeg(), ffmpeg);
+		AtomicLong clock = new AtomicLong();
+		comparison = new BackendComparison(factories, scratch, () -> clock.addAndGet(MILLISECONDS.toNanos(500)));
+		reporter = mock(Consumer.class);
+	}
+
+	private Muxer mockMuxer(MuxerFactory factory, Path mkv, Path srt, State state) {
+		Muxer muxer = mock(Muxer.class);
+		Path output = mockPath(scratch, mkv.getFileName() + ".out", 1024 * 1024);
+		when(muxer.state()).thenReturn(state);
+		when(muxer.waitForOutput()).thenReturn(state == State.SUCCESSFUL);
+		when(muxer.getOutput()).thenReturn(Optional.of(output));
+		when(factory.from(mkv, srt, scratch)).thenReturn(muxer);
+		return muxer;
+	}
+
+	@Test
+	public void testEveryBackendMuxesEveryFileInRotatingOrder()
+			throws Exception {
+		// Given
+		Path first = mockPath(root, "first.mkv");
+		Path firstSrt = mockPath(root, "first.srt");
+		Path second = mockPath(root, "second.mkv");
+		Path secondSrt = mockPath(root, "second.srt");
+		mockDirectoryStream(root, first, firstSrt, second, secondSrt);
+		Muxer firstMkvmerge = mockMuxer(mkvmerge, first, firstSrt, State.SUCCESSFUL);
+		Muxer firstFfmpeg = mockMuxer(ffmpeg, first, firstSrt, State.SUCCESSFUL);
+		Muxer secondMkvmerge = mockMuxer(mkvmerge, second, secondSrt, State.SUCCESSFUL);
+		Muxer secondFfmpeg = mockMuxer(ffmpeg, second, secondSrt, State.SUCCESSFUL);
+		// When
+		List<Result> results = comparison.compare(ImmutableList.of(first, second), reporter);
+		// Then
+		InOrder inOrder = inOrder(firstMkvmerge, firstFfmpeg, secondFfmpeg, secondMkvmerge);
+		inOrder.verify(firstMkvmerge).start();
+		inOrder.verify(firstFfmpeg).start();
+		inOrder.verify(secondFfmpeg).start();
+		inOrder.verify(secondMkvmerge).start();
+		assertThat(results).extracting(Result::getBackend).containsExactly(MuxBackend.mkvmerge(), MuxBackend.ffmpeg());
+		assertThat(results).extracting(Result::getMuxed).containsExactly(2, 2);
+		assertThat(results).extracting(Result::getTimeToFirstByte).containsExactly(500L, 500L);
+		assertThat(results.get(0).getThroughput()).isEqualTo(1.0);
+		verify(reporter).accept(results.get(1).toString());
+	}
+
+	@Test
+	public void testFailuresAreCountedAndOutputsDeleted()
+			throws Exception {
+		// Given
+		Path mkv = mockPath(root, "file.mkv");
+		Path srt = mockPath(root, "file.srt");
+		mockDirectoryStream(root, mkv, srt);
+		Muxer good = mockMuxer(mkvmerge, mkv, srt, State.SUCCESSFUL);
+		Muxer bad = mockMuxer(ffmpeg, mkv, srt, State.FAILED);
+		// When
+		List<Result> results = comparison.compare(ImmutableList.of(mkv), reporter);
+		// Then
+		assertThat(results).extracting(Result::getMuxed).containsExactly(1, 0);
+		assertThat(results).extracting(Result::getFailed).containsExactly(0, 1);
+		verify(good.getOutput().get().toFile()).delete();
+		verify(bad.getOutput().get().toFile()).delete();
+	}
+}
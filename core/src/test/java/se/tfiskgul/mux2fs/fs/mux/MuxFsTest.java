@@ -23,18 +23,22 @@ SOFTWARE.
  */
 package se.tfiskgul.mux2fs.fs.mux;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.fail;
 import static org.mockito.AdditionalMatchers.gt;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.atMost;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
-import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -51,6 +55,7 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -58,6 +63,7 @@ import java.util.function.Supplier;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Captor;
 import org.mockito.MockitoAnnotations;
 
@@ -68,21 +74,25 @@ import ru.serce.jnrfuse.ErrorCodes;
 import se.tfiskgul.mux2fs.fs.base.DirectoryFiller;
 import se.tfiskgul.mux2fs.fs.base.FileChannelCloser;
 import se.tfiskgul.mux2fs.fs.base.FileHandleFiller;
+import se.tfiskgul.mux2fs.fs.base.FileHandleFiller.Caching;
 import se.tfiskgul.mux2fs.fs.base.FileInfo;
-import se.tfiskgul.mux2fs.fs.base.Sleeper;
+import se.tfiskgul.mux2fs.fs.base.PageCache;
 import se.tfiskgul.mux2fs.fs.base.StatFiller;
 import se.tfiskgul.mux2fs.fs.base.UnixFileStat;
 import se.tfiskgul.mux2fs.fs.mirror.MirrorFsTest;
+import se.tfiskgul.mux2fs.mux.MuxCache;
+import se.tfiskgul.mux2fs.mux.MuxProgress;
 import se.tfiskgul.mux2fs.mux.Muxer;
 import se.tfiskgul.mux2fs.mux.Muxer.MuxerFactory;
 import se.tfiskgul.mux2fs.mux.Muxer.State;
+import se.tfiskgul.mux2fs.mux.TempTiers;
+import se.tfiskgul.mux2fs.mux.TrackInspector;
 
 @SuppressFBWarnings("RV_RETURN_VALUE_IGNORED_BAD_PRACTICE")
 public class MuxFsTest extends MirrorFsTest {
 
 	private Path tempDir;
 	private MuxerFactory muxerFactory;
-	private Sleeper sleeper;
 	@Captor
 	private ArgumentCaptor<Function<FileInfo, Optional<Long>>> sizeGetterCaptor;
 	@Captor
@@ -96,9 +106,8 @@ public class MuxFsTest extends MirrorFsTest {
 		mirrorRoot = mockPath("/mirror/root/", fileSystem);
 		tempDir = mockPath("tmp");
 		muxerFactory = mock(MuxerFactory.class);
-		sleeper = mock(Sleeper.class);
 		fileChannelCloser = mock(FileChannelCloser.class);
-		mux2fs = new MuxFs(mirrorRoot, tempDir, muxerFactory, sleeper, fileChannelCloser, mock(ExecutorService.class));
+		mux2fs = new MuxFs(mirrorRoot, tempDir, muxerFactory, fileChannelCloser, mock(ExecutorService.class), new MuxFs.Options());
 		fs = mux2fs;
 		MockitoAnnotations.initMocks(this);
 	}
@@ -238,6 +247,25 @@ public class MuxFsTest extends MirrorFsTest {
 		assertThat(extraSizeGetterCaptor.getValue().get()).isEqualTo(2893756L + 2345L + 78568L);
 	}
 
+	@Test
+	public void testGetAttrAfterReaddirReusesExtraSize()
+			throws Exception {
+		// Given
+		StatFiller stat = mock(StatFiller.class);
+		Path mkv = mockPath("file.mkv", 38445L);
+		Path srt = mockPath("file.eng.srt", 2893756L);
+		mockDirectoryStream(mirrorRoot, srt, mkv);
+		mockAttributes(mkv, 758, 38445L);
+		when(stat.statWithSize(eq(mkv), sizeGetterCaptor.capture(), extraSizeGetterCaptor.capture())).thenReturn(mock(UnixFileStat.class));
+		fs.readdir("/", mock(DirectoryFiller.class));
+		// When
+		int result = fs.getattr("file.mkv", stat);
+		// Then
+		assertThat(result).isEqualTo(SUCCESS);
+		assertThat(extraSizeGetterCaptor.getValue().get()).isEqualTo(2893756L);
+		verify(fileSystem.provider()).newDirectoryStream(eq(mirrorRoot), any()); // Only listed by readdir
+	}
+
 	@Test
 	public void testGetAttrManyFiles()
 			throws Exception {
@@ -318,7 +346,7 @@ public class MuxFsTest extends MirrorFsTest {
 		Path mkv2srt1 = mockPath("file2.eng.srt", 2893756L);
 		mockShuffledDirectoryStream(mirrorRoot, mkv1, mkv2, mkv2txt1, mkv2srt1);
 		mockAttributes(mkv2, 1);
-		Muxer muxer = mock(Muxer.class);
+		Muxer muxer = mockMuxer();
 		when(muxerFactory.from(mkv2, mkv2srt1, tempDir)).thenReturn(muxer);
 		doThrow(new IOException()).when(muxer).start();
 		when(fileSystem.provider().newFileChannel(eq(mkv2), eq(set(StandardOpenOption.READ)))).thenReturn(mock(FileChannel.class));
@@ -329,6 +357,7 @@ public class MuxFsTest extends MirrorFsTest {
 		verify(muxerFactory).from(mkv2, mkv2srt1, tempDir);
 		verifyNoMoreInteractions(muxerFactory);
 		verify(muxer).start();
+		verify(muxer).onCompletion();
 		verifyNoMoreInteractions(muxer);
 		verify(filler).setFileHandle(gt(1));
 		verify(fileSystem.provider()).newFileChannel(eq(mkv2), eq(set(StandardOpenOption.READ)));
@@ -345,7 +374,7 @@ public class MuxFsTest extends MirrorFsTest {
 		Path mkv2srt1 = mockPath("file2.eng.srt", 2893756L);
 		mockShuffledDirectoryStream(mirrorRoot, mkv1, mkv2, mkv2txt1, mkv2srt1);
 		mockAttributes(mkv2, 1);
-		Muxer muxer = mock(Muxer.class);
+		Muxer muxer = mockMuxer();
 		when(muxerFactory.from(mkv2, mkv2srt1, tempDir)).thenReturn(muxer);
 		when(fileSystem.provider().newFileChannel(eq(mkv2), eq(set(StandardOpenOption.READ)))).thenReturn(mock(FileChannel.class));
 		when(muxer.getOutput()).thenReturn(Optional.empty());
@@ -358,6 +387,7 @@ public class MuxFsTest extends MirrorFsTest {
 		verify(muxer).start();
 		verify(muxer).waitForOutput();
 		verify(muxer).getOutput();
+		verify(muxer).onCompletion();
 		verifyNoMoreInteractions(muxer);
 		verify(filler).setFileHandle(gt(1));
 		verify(fileSystem.provider()).newFileChannel(eq(mkv2), eq(set(StandardOpenOption.READ)));
@@ -374,7 +404,7 @@ public class MuxFsTest extends MirrorFsTest {
 		Path mkv2srt1 = mockPath("file2.eng.srt", 2893756L);
 		mockShuffledDirectoryStream(mirrorRoot, mkv1, mkv2, mkv2txt1, mkv2srt1);
 		mockAttributes(mkv2, 1);
-		Muxer muxer = mock(Muxer.class);
+		Muxer muxer = mockMuxer();
 		when(muxerFactory.from(mkv2, mkv2srt1, tempDir)).thenReturn(muxer);
 		Path muxedFile = mockPath(tempDir, "file1.mkv");
 		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
@@ -388,11 +418,42 @@ public class MuxFsTest extends MirrorFsTest {
 		verify(muxer).start();
 		verify(muxer).waitForOutput();
 		verify(muxer).getOutput();
+		verify(muxer).state();
+		verify(muxer).onCompletion();
 		verifyNoMoreInteractions(muxer);
 		verify(filler).setFileHandle(gt(1));
 		verify(fileSystem.provider()).newFileChannel(eq(muxedFile), eq(set(StandardOpenOption.READ)));
 	}
 
+	@Test
+	public void testOpenMkvWithSubAlreadyEmbeddedShouldOpenNormally()
+			throws Exception {
+		// Given
+		TrackInspector trackInspector = mock(TrackInspector.class);
+		mux2fs = new MuxFs(mirrorRoot, TempTiers.single(tempDir), muxerFactory, fileChannelCloser, mock(ExecutorService.class), trackInspector,
+				new MuxFs.Options());
+		fs = mux2fs;
+		FileHandleFiller filler = mock(FileHandleFiller.class);
+		StatFiller stat = mock(StatFiller.class);
+		Path mkv = mockPath("file.mkv", 700000000L);
+		Path srt = mockPath("file.eng.srt", 2000L);
+		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
+		mockAttributes(mkv, 1);
+		FileInfo info = FileInfo.of(mkv);
+		when(trackInspector.hasEquivalent(mkv, info, srt)).thenReturn(true);
+		when(fileSystem.provider().newFileChannel(eq(mkv), eq(set(StandardOpenOption.READ)))).thenReturn(mock(FileChannel.class));
+		when(stat.statWithSize(eq(mkv), sizeGetterCaptor.capture(), extraSizeGetterCaptor.capture())).thenReturn(mock(UnixFileStat.class));
+		// When
+		int result = fs.open("file.mkv", filler);
+		fs.getattr("file.mkv", stat);
+		// Then
+		assertThat(result).isEqualTo(SUCCESS);
+		verifyNoMoreInteractions(muxerFactory);
+		verify(filler).setFileHandle(gt(1));
+		verify(fileSystem.provider()).newFileChannel(eq(mkv), eq(set(StandardOpenOption.READ)));
+		assertThat(sizeGetterCaptor.getValue().apply(info)).contains(info.getSize());
+	}
+
 	@Test
 	public void testOpenMkvMatchingSubTwiceShouldBeMuxedOnce()
 			throws Exception {
@@ -404,13 +465,13 @@ public class MuxFsTest extends MirrorFsTest {
 		Path mkv2srt1 = mockPath("file2.eng.srt", 2893756L);
 		mockShuffledDirectoryStream(mirrorRoot, mkv1, mkv2, mkv2txt1, mkv2srt1);
 		mockAttributes(mkv2, 1);
-		Muxer muxer = mock(Muxer.class);
+		Muxer muxer = mockMuxer();
 		when(muxerFactory.from(mkv2, mkv2srt1, tempDir)).thenReturn(muxer);
 		Path muxedFile = mockPath(tempDir, "file1.mkv");
 		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
 		when(fileSystem.provider().newFileChannel(eq(muxedFile), eq(set(StandardOpenOption.READ)))).thenReturn(mock(FileChannel.class));
 		fs.open("file2.mkv", filler);
-		Muxer muxer2 = mock(Muxer.class);
+		Muxer muxer2 = mockMuxer();
 		when(muxerFactory.from(mkv2, mkv2srt1, tempDir)).thenReturn(muxer2);
 		mockShuffledDirectoryStream(mirrorRoot, mkv1, mkv2, mkv2txt1, mkv2srt1);
 		// When
@@ -422,12 +483,48 @@ public class MuxFsTest extends MirrorFsTest {
 		verify(muxer, times(2)).start();
 		verify(muxer, times(2)).waitForOutput();
 		verify(muxer, times(2)).getOutput();
+		verify(muxer, times(2)).state();
+		verify(muxer).onCompletion();
 		verifyNoMoreInteractions(muxer);
 		verifyNoMoreInteractions(muxer2);
 		verify(filler, times(2)).setFileHandle(gt(1));
 		verify(fileSystem.provider(), times(2)).newFileChannel(eq(muxedFile), eq(set(StandardOpenOption.READ)));
 	}
 
+	@Test
+	public void testOpenMkvAfterSubChangedShouldBeMuxedAgain()
+			throws Exception {
+		// Given
+		FileHandleFiller filler = mock(FileHandleFiller.class);
+		ArgumentCaptor<Integer> handleCaptor = ArgumentCaptor.forClass(Integer.class);
+		doNothing().when(filler).setFileHandle(handleCaptor.capture());
+		Path mkv = mockPath("file.mkv");
+		Path srt = mockPath("file.eng.srt", 2000L);
+		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
+		mockAttributes(mkv, 1);
+		mockAttributes(srt, 2);
+		Muxer muxer = mockMuxer();
+		Muxer muxer2 = mockMuxer();
+		when(muxerFactory.from(mkv, srt, tempDir)).thenReturn(muxer, muxer2);
+		Path muxedFile = mockPath(tempDir, "file-muxed.mkv");
+		Path muxedFile2 = mockPath(tempDir, "file-muxed2.mkv");
+		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
+		when(muxer2.getOutput()).thenReturn(Optional.of(muxedFile2));
+		when(fileSystem.provider().newFileChannel(eq(muxedFile), eq(set(StandardOpenOption.READ)))).thenReturn(mock(FileChannel.class));
+		when(fileSystem.provider().newFileChannel(eq(muxedFile2), eq(set(StandardOpenOption.READ)))).thenReturn(mock(FileChannel.class));
+		fs.open("file.mkv", filler);
+		fs.release("file.mkv", handleCaptor.getValue());
+		mockAttributes(srt, 3); // Replaced by a corrected version
+		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
+		// When
+		int result = fs.open("file.mkv", filler);
+		// Then
+		assertThat(result).isEqualTo(SUCCESS);
+		verify(muxer2).start();
+		verify(muxedFile.toFile()).delete();
+		verify(fileSystem.provider()).newFileChannel(eq(muxedFile2), eq(set(StandardOpenOption.READ)));
+	}
+
 	@Test
 	public void testOpenMkvMatchingSubOpenMuxedFileFailsFallsBackToOriginal()
 			throws Exception {
@@ -439,7 +536,7 @@ public class MuxFsTest extends MirrorFsTest {
 		Path mkv2srt1 = mockPath("file2.eng.srt", 2893756L);
 		mockShuffledDirectoryStream(mirrorRoot, mkv1, mkv2, mkv2txt1, mkv2srt1);
 		mockAttributes(mkv2, 1);
-		Muxer muxer = mock(Muxer.class);
+		Muxer muxer = mockMuxer();
 		when(muxerFactory.from(mkv2, mkv2srt1, tempDir)).thenReturn(muxer);
 		Path muxedFile = mockPath(tempDir, "file1.mkv");
 		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
@@ -454,6 +551,7 @@ public class MuxFsTest extends MirrorFsTest {
 		verify(muxer).start();
 		verify(muxer).waitForOutput();
 		verify(muxer).getOutput();
+		verify(muxer).onCompletion();
 		verifyNoMoreInteractions(muxer);
 		verify(muxedFile.toFile()).delete();
 		verify(filler).setFileHandle(gt(1));
@@ -472,7 +570,7 @@ public class MuxFsTest extends MirrorFsTest {
 		Path srt = mockPath("file1.eng.srt", 2893756L);
 		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
 		mockAttributes(mkv, 1);
-		Muxer muxer = mock(Muxer.class);
+		Muxer muxer = mockMuxer();
 		when(muxerFactory.from(mkv, srt, tempDir)).thenReturn(muxer);
 		Path muxedFile = mockPath(tempDir, "file1-muxed.mkv");
 		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
@@ -492,12 +590,146 @@ public class MuxFsTest extends MirrorFsTest {
 		verify(muxer).start();
 		verify(muxer).waitForOutput();
 		verify(muxer).getOutput();
-		verify(muxer).state();
+		verify(muxer, times(2)).state();
+		verify(muxer).onCompletion();
 		verifyNoMoreInteractions(muxer);
 		verify(filler).setFileHandle(gt(1));
 		verify(fileSystem.provider()).newFileChannel(eq(muxedFile), eq(set(StandardOpenOption.READ)));
 	}
 
+	@Test
+	public void testOpenFindsMuxInCache()
+			throws Exception {
+		// Given
+		Path cacheDir = mockPath("cache");
+		Path cached = mockPath(cacheDir, "cached.mkv", 700002000L);
+		doReturn(cached).when(cacheDir).resolve(anyString());
+		fs = new MuxFs(mirrorRoot, TempTiers.single(tempDir), muxerFactory, fileChannelCloser, mock(ExecutorService.class),
+				TrackInspector.disabled(), new MuxFs.Options().muxCache(new MuxCache(cacheDir)));
+		FileHandleFiller filler = mock(FileHandleFiller.class);
+		Path mkv = mockPath("file1.mkv");
+		Path srt = mockPath("file1.eng.srt", 2000L);
+		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
+		mockAttributes(mkv, 1);
+		mockAttributes(srt, 2);
+		when(fileSystem.provider().newFileChannel(eq(cached), eq(set(StandardOpenOption.READ)))).thenReturn(mock(FileChannel.class));
+		// When
+		int result = fs.open("file1.mkv", filler);
+		// Then
+		assertThat(result).isEqualTo(SUCCESS);
+		verify(filler).setFileHandle(gt(1));
+		verify(fileSystem.provider()).newFileChannel(eq(cached), eq(set(StandardOpenOption.READ)));
+		verifyNoMoreInteractions(muxerFactory);
+	}
+
+	@Test
+	public void testDeferredOpenNeverReadIsNeverMuxed()
+			throws Exception {
+		// Given
+		fs = new MuxFs(mirrorRoot, TempTiers.single(tempDir), muxerFactory, fileChannelCloser, mock(ExecutorService.class),
+				TrackInspector.disabled(), new MuxFs.Options().deferMux(true));
+		FileHandleFiller filler = mock(FileHandleFiller.class);
+		ArgumentCaptor<Integer> handleCaptor = ArgumentCaptor.forClass(Integer.class);
+		doNothing().when(filler).setFileHandle(handleCaptor.capture());
+		Path mkv = mockPath("file1.mkv");
+		Path srt = mockPath("file1.eng.srt", 2893756L);
+		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
+		mockAttributes(mkv, 1);
+		FileChannel fileChannel = mock(FileChannel.class);
+		when(fileSystem.provider().newFileChannel(eq(mkv), eq(set(StandardOpenOption.READ)))).thenReturn(fileChannel);
+		// When
+		int result = fs.open("file1.mkv", filler);
+		fs.release("file1.mkv", handleCaptor.getValue());
+		// Then
+		assertThat(result).isEqualTo(SUCCESS);
+		verify(filler).setCaching(Caching.DIRECT_IO);
+		verify(fileChannel, never()).read(any(), anyLong());
+		verifyNoMoreInteractions(muxerFactory);
+	}
+
+	@Test
+	public void testDeferredOpenFirstReadIsFromMuxed()
+			throws Exception {
+		// Given
+		fs = new MuxFs(mirrorRoot, TempTiers.single(tempDir), muxerFactory, fileChannelCloser, mock(ExecutorService.class),
+				TrackInspector.disabled(), new MuxFs.Options().deferMux(true));
+		FileHandleFiller filler = mock(FileHandleFiller.class);
+		ArgumentCaptor<Integer> handleCaptor = ArgumentCaptor.forClass(Integer.class);
+		doNothing().when(filler).setFileHandle(handleCaptor.capture());
+		Path mkv = mockPath("file1.mkv");
+		Path srt = mockPath("file1.eng.srt", 2893756L);
+		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
+		mockAttributes(mkv, 1);
+		FileChannel original = mock(FileChannel.class);
+		when(fileSystem.provider().newFileChannel(eq(mkv), eq(set(StandardOpenOption.READ)))).thenReturn(original);
+		Muxer muxer = mockMuxer();
+		when(muxerFactory.from(mkv, srt, tempDir)).thenReturn(muxer);
+		Path muxedFile = mockPath(tempDir, "file1-muxed.mkv");
+		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
+		when(muxer.state()).thenReturn(State.SUCCESSFUL);
+		FileChannel muxed = mock(FileChannel.class);
+		when(fileSystem.provider().newFileChannel(eq(muxedFile), eq(set(StandardOpenOption.READ)))).thenReturn(muxed);
+		when(muxed.read(any(), eq(0L))).thenReturn(128);
+		fs.open("file1.mkv", filler);
+		// When
+		int bytesRead = fs.read("file1.mkv", (data) -> assertThat(data).hasSize(128), 128, 0, handleCaptor.getValue());
+		// Then
+		assertThat(bytesRead).isEqualTo(128);
+		verify(muxer).start();
+		verify(muxer).waitForOutput();
+		verify(muxed).read(any(), eq(0L));
+		verify(original, never()).read(any(), anyLong());
+		verify(fileChannelCloser).close(original);
+	}
+
+	@Test
+	public void testRunningMuxedFileIsOpenedWithDirectIo()
+			throws Exception {
+		// Given
+		FileHandleFiller filler = mock(FileHandleFiller.class);
+		Path mkv = mockPath("file1.mkv");
+		Path srt = mockPath("file1.eng.srt", 2893756L);
+		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
+		mockAttributes(mkv, 1);
+		Muxer muxer = mockMuxer();
+		when(muxerFactory.from(mkv, srt, tempDir)).thenReturn(muxer);
+		when(muxer.state()).thenReturn(State.RUNNING);
+		Path muxedFile = mockPath(tempDir, "file1-muxed.mkv");
+		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
+		when(fileSystem.provider().newFileChannel(eq(muxedFile), eq(set(StandardOpenOption.READ)))).thenReturn(mock(FileChannel.class));
+		// When
+		int result = fs.open("file1.mkv", filler);
+		// Then
+		assertThat(result).isEqualTo(SUCCESS);
+		verify(filler).setFileHandle(gt(1));
+		verify(filler).setCaching(Caching.DIRECT_IO);
+		verifyNoMoreInteractions(filler);
+	}
+
+	@Test
+	public void testSuccessfulMuxedFileKeepsCacheOnReopen()
+			throws Exception {
+		// Given
+		FileHandleFiller filler = mock(FileHandleFiller.class);
+		Path mkv = mockPath("file1.mkv");
+		Path srt = mockPath("file1.eng.srt", 2893756L);
+		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
+		mockAttributes(mkv, 1);
+		Muxer muxer = mockMuxer();
+		when(muxerFactory.from(mkv, srt, tempDir)).thenReturn(muxer);
+		when(muxer.state()).thenReturn(State.SUCCESSFUL);
+		Path muxedFile = mockPath(tempDir, "file1-muxed.mkv");
+		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
+		when(fileSystem.provider().newFileChannel(eq(muxedFile), eq(set(StandardOpenOption.READ)))).thenReturn(mock(FileChannel.class));
+		// When
+		fs.open("file1.mkv", filler);
+		fs.open("file1.mkv", filler);
+		// Then
+		InOrder inOrder = inOrder(filler);
+		inOrder.verify(filler).setCaching(Caching.DEFAULT); // The kernel might have cached an earlier mux of the same file
+		inOrder.verify(filler).setCaching(Caching.KEEP_CACHE);
+	}
+
 	@Test
 	public void testReadFromFailedMuxedFile()
 			throws Exception {
@@ -509,7 +741,7 @@ public class MuxFsTest extends MirrorFsTest {
 		Path srt = mockPath("file1.eng.srt", 2893756L);
 		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
 		mockAttributes(mkv, 1);
-		Muxer muxer = mock(Muxer.class);
+		Muxer muxer = mockMuxer();
 		when(muxerFactory.from(mkv, srt, tempDir)).thenReturn(muxer);
 		Path muxedFile = mockPath(tempDir, "file1-muxed.mkv");
 		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
@@ -527,7 +759,8 @@ public class MuxFsTest extends MirrorFsTest {
 		verify(muxer).start();
 		verify(muxer).waitForOutput();
 		verify(muxer).getOutput();
-		verify(muxer).state();
+		verify(muxer, times(2)).state();
+		verify(muxer).onCompletion();
 		verifyNoMoreInteractions(muxer);
 		verify(filler).setFileHandle(gt(1));
 		verifyNoMoreInteractions(fileChannel);
@@ -544,7 +777,7 @@ public class MuxFsTest extends MirrorFsTest {
 		Path srt = mockPath("file1.eng.srt", 2893756L);
 		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
 		mockAttributes(mkv, 1);
-		Muxer muxer = mock(Muxer.class);
+		Muxer muxer = mockMuxer();
 		when(muxerFactory.from(mkv, srt, tempDir)).thenReturn(muxer);
 		Path muxedFile = mockPath(tempDir, "file1-muxed.mkv");
 		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
@@ -565,7 +798,8 @@ public class MuxFsTest extends MirrorFsTest {
 		verify(muxer).start();
 		verify(muxer).waitForOutput();
 		verify(muxer).getOutput();
-		verify(muxer).state();
+		verify(muxer, times(2)).state();
+		verify(muxer).onCompletion();
 		verifyNoMoreInteractions(muxer);
 		verify(filler).setFileHandle(gt(1));
 		verify(fileChannel).size();
@@ -585,7 +819,7 @@ public class MuxFsTest extends MirrorFsTest {
 		Path srt = mockPath("file1.eng.srt", 2893756L);
 		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
 		mockAttributes(mkv, 1);
-		Muxer muxer = mock(Muxer.class);
+		Muxer muxer = mockMuxer();
 		when(muxerFactory.from(mkv, srt, tempDir)).thenReturn(muxer);
 		Path muxedFile = mockPath(tempDir, "file1-muxed.mkv");
 		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
@@ -604,7 +838,8 @@ public class MuxFsTest extends MirrorFsTest {
 		verify(muxer).start();
 		verify(muxer).waitForOutput();
 		verify(muxer).getOutput();
-		verify(muxer).state();
+		verify(muxer, times(2)).state();
+		verify(muxer).onCompletion();
 		verifyNoMoreInteractions(muxer);
 		verify(filler).setFileHandle(gt(1));
 		verify(fileChannel).size();
@@ -623,7 +858,7 @@ public class MuxFsTest extends MirrorFsTest {
 		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
 		mockAttributes(mkv, 1);
 		Path muxedFile = mockPath(tempDir, "file1-muxed.mkv");
-		Muxer muxer = mock(Muxer.class);
+		Muxer muxer = mockMuxer();
 		when(muxer.state()).thenReturn(State.RUNNING);
 		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
 		when(muxerFactory.from(mkv, srt, tempDir)).thenReturn(muxer);
@@ -644,14 +879,17 @@ public class MuxFsTest extends MirrorFsTest {
 		verify(muxer).start();
 		verify(muxer).waitForOutput();
 		verify(muxer).getOutput();
-		verify(muxer, times(4)).state();
+		verify(muxer, times(5)).state();
+		verify(muxer, times(3)).waitFor(MUX_WAIT_LOOP_MS, MILLISECONDS);
+		verify(muxer, times(3)).promote();
+		verify(muxer, times(3)).getProgress();
+		verify(muxer).onCompletion();
 		verifyNoMoreInteractions(muxer);
 		verify(filler).setFileHandle(gt(1));
 		verify(fileChannel, times(5)).size();
 		verify(fileChannel).read(any(ByteBuffer.class), eq(890L));
 		verifyNoMoreInteractions(fileChannel);
 		assertThat(bufferCaptor.getValue().limit()).isEqualTo(128);
-		verify(sleeper, times(3)).sleep(MUX_WAIT_LOOP_MS);
 	}
 
 	@Test
@@ -670,7 +908,7 @@ public class MuxFsTest extends MirrorFsTest {
 		Path srt = mockPath("file1.eng.srt", 2893756L);
 		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
 		mockAttributes(mkv, 1);
-		Muxer muxer = mock(Muxer.class);
+		Muxer muxer = mockMuxer();
 		when(muxerFactory.from(mkv, srt, tempDir)).thenReturn(muxer);
 		Path muxedFile = mockPath(tempDir, "file1-muxed.mkv");
 		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
@@ -691,7 +929,8 @@ public class MuxFsTest extends MirrorFsTest {
 		verify(muxer).start();
 		verify(muxer).waitForOutput();
 		verify(muxer).getOutput();
-		verify(muxer).state();
+		verify(muxer, times(2)).state();
+		verify(muxer).onCompletion();
 		verifyNoMoreInteractions(muxer);
 		verify(filler).setFileHandle(gt(1));
 		verify(fileChannel).size();
@@ -709,7 +948,6 @@ public class MuxFsTest extends MirrorFsTest {
 	private void readFartherThanProgress(ExpectedResult expected)
 			throws IOException, InterruptedException {
 		// Given
-		reset(sleeper); // Code smell of laziness
 		FileHandleFiller filler = mock(FileHandleFiller.class);
 		ArgumentCaptor<Integer> handleCaptor = ArgumentCaptor.forClass(Integer.class);
 		doNothing().when(filler).setFileHandle(handleCaptor.capture());
@@ -718,7 +956,7 @@ public class MuxFsTest extends MirrorFsTest {
 		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
 		mockAttributes(mkv, 1);
 		Path muxedFile = mockPath(tempDir, "file1-muxed.mkv");
-		Muxer muxer = mock(Muxer.class);
+		Muxer muxer = mockMuxer();
 		when(muxer.state()).thenReturn(State.RUNNING);
 		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
 		when(muxerFactory.from(mkv, srt, tempDir)).thenReturn(muxer);
@@ -739,14 +977,47 @@ public class MuxFsTest extends MirrorFsTest {
 		verify(muxer).start();
 		verify(muxer).waitForOutput();
 		verify(muxer).getOutput();
-		verify(muxer, times(4)).state();
+		verify(muxer, times(5)).state();
+		verify(muxer, times(3)).waitFor(MUX_WAIT_LOOP_MS, MILLISECONDS);
+		verify(muxer, times(3)).promote();
+		verify(muxer, times(3)).getProgress();
+		verify(muxer).onCompletion();
 		verifyNoMoreInteractions(muxer);
 		verify(filler).setFileHandle(gt(1));
 		verify(fileChannel, times(5)).size();
 		verify(fileChannel).read(any(ByteBuffer.class), eq(890L));
 		verifyNoMoreInteractions(fileChannel);
 		assertThat(bufferCaptor.getValue().limit()).isEqualTo(128);
-		verify(sleeper, times(3)).sleep(MUX_WAIT_LOOP_MS);
+	}
+
+	@Test
+	public void testReleaseDropsClosedOutputFromPageCache()
+			throws Exception {
+		// Given
+		PageCache pageCache = mock(PageCache.class);
+		fs = new MuxFs(mirrorRoot, tempDir, muxerFactory, fileChannelCloser, mock(ExecutorService.class),
+				new MuxFs.Options().pageCache(pageCache));
+		FileHandleFiller filler = mock(FileHandleFiller.class);
+		ArgumentCaptor<Integer> handleCaptor = ArgumentCaptor.forClass(Integer.class);
+		doNothing().when(filler).setFileHandle(handleCaptor.capture());
+		Path mkv = mockPath("file1.mkv");
+		Path srt = mockPath("file1.eng.srt", 2893756L);
+		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
+		mockAttributes(mkv, 1);
+		Muxer muxer = mockMuxer();
+		when(muxerFactory.from(mkv, srt, tempDir)).thenReturn(muxer);
+		Path muxedFile = mockPath(tempDir, "file1-muxed.mkv");
+		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
+		FileChannel fileChannel = mock(FileChannel.class);
+		when(fileSystem.provider().newFileChannel(eq(muxedFile), eq(set(StandardOpenOption.READ)))).thenReturn(fileChannel);
+		fs.open("file1.mkv", filler);
+		// When
+		int result = fs.release("file1.mkv", handleCaptor.getValue());
+		// Then
+		assertThat(result).isEqualTo(SUCCESS);
+		verify(pageCache).opened(fileChannel);
+		verify(pageCache).drop(muxedFile);
+		verifyNoMoreInteractions(pageCache);
 	}
 
 	@Test
@@ -760,7 +1031,7 @@ public class MuxFsTest extends MirrorFsTest {
 		Path srt = mockPath("file1.eng.srt", 2893756L);
 		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
 		mockAttributes(mkv, 1);
-		Muxer muxer = mock(Muxer.class);
+		Muxer muxer = mockMuxer();
 		when(muxerFactory.from(mkv, srt, tempDir)).thenReturn(muxer);
 		Path muxedFile = mockPath(tempDir, "file1-muxed.mkv");
 		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
@@ -782,8 +1053,9 @@ public class MuxFsTest extends MirrorFsTest {
 		verifyNoMoreInteractions(muxerFactory);
 		verify(muxer).start();
 		verify(muxer).waitForOutput();
-		verify(muxer).getOutput();
-		verify(muxer).state();
+		verify(muxer, times(2)).getOutput();
+		verify(muxer, times(2)).state();
+		verify(muxer).onCompletion();
 		verifyNoMoreInteractions(muxer);
 		verify(filler).setFileHandle(gt(1));
 		verify(fileChannel).size();
@@ -805,7 +1077,7 @@ public class MuxFsTest extends MirrorFsTest {
 		Path srt = mockPath("file1.eng.srt", 2893756L);
 		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
 		mockAttributes(mkv, 1);
-		Muxer muxer = mock(Muxer.class);
+		Muxer muxer = mockMuxer();
 		when(muxerFactory.from(mkv, srt, tempDir)).thenReturn(muxer);
 		Path muxedFile = mockPath(tempDir, "file1-muxed.mkv");
 		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
@@ -827,8 +1099,9 @@ public class MuxFsTest extends MirrorFsTest {
 		verifyNoMoreInteractions(muxerFactory);
 		verify(muxer).start();
 		verify(muxer).waitForOutput();
-		verify(muxer).getOutput();
-		verify(muxer).state();
+		verify(muxer, times(2)).getOutput();
+		verify(muxer, times(2)).state();
+		verify(muxer).onCompletion();
 		verifyNoMoreInteractions(muxer);
 		verify(filler).setFileHandle(gt(1));
 		verify(fileChannel).size();
@@ -849,7 +1122,7 @@ public class MuxFsTest extends MirrorFsTest {
 		Path srt = mockPath("file1.eng.srt", 2893756L);
 		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
 		mockAttributes(mkv, 1);
-		Muxer muxer = mock(Muxer.class);
+		Muxer muxer = mockMuxer();
 		when(muxerFactory.from(mkv, srt, tempDir)).thenReturn(muxer);
 		Path muxedFile = mockPath(tempDir, "file1-muxed.mkv");
 		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
@@ -872,7 +1145,8 @@ public class MuxFsTest extends MirrorFsTest {
 		verify(muxer).start();
 		verify(muxer).waitForOutput();
 		verify(muxer, times(3)).getOutput();
-		verify(muxer).state();
+		verify(muxer, times(2)).state();
+		verify(muxer).onCompletion();
 		verifyNoMoreInteractions(muxer);
 		verify(filler).setFileHandle(gt(1));
 		verify(fileChannel).size();
@@ -894,8 +1168,8 @@ public class MuxFsTest extends MirrorFsTest {
 		Path srt = mockPath("file1.srt", 2893756L);
 		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
 		mockAttributes(mkv, 1);
-		Muxer muxer = mock(Muxer.class);
-		Muxer muxer2 = mock(Muxer.class);
+		Muxer muxer = mockMuxer();
+		Muxer muxer2 = mockMuxer();
 		when(muxerFactory.from(mkv, srt, tempDir)).thenReturn(muxer, muxer2);
 		Path muxedFile = mockPath(tempDir, "file1.mkv");
 		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
@@ -911,7 +1185,9 @@ public class MuxFsTest extends MirrorFsTest {
 		verifyNoMoreInteractions(muxerFactory);
 		verify(muxer, times(2)).start();
 		verify(muxer, times(2)).waitForOutput();
-		verify(muxer, times(2)).getOutput();
+		verify(muxer, times(3)).getOutput();
+		verify(muxer, times(2)).state();
+		verify(muxer).onCompletion();
 		verifyNoMoreInteractions(muxer);
 		verifyNoMoreInteractions(muxer2); // The second muxer is never called, result of first one still valid
 		verify(filler, times(2)).setFileHandle(gt(1));
@@ -950,7 +1226,8 @@ public class MuxFsTest extends MirrorFsTest {
 	public void testMuxedFileSizeCacheIsEmptyBeforeMuxing()
 			throws Exception {
 		// Given
-		mux2fs = new MuxFs(mirrorRoot, tempDir, muxerFactory, sleeper, fileChannelCloser, MoreExecutors.newDirectExecutorService());
+		mux2fs = new MuxFs(mirrorRoot, tempDir, muxerFactory, fileChannelCloser, MoreExecutors.newDirectExecutorService(),
+				new MuxFs.Options());
 		fs = mux2fs;
 		StatFiller stat = mock(StatFiller.class);
 		Path mkv = mockPath("file.mkv", 700000000L);
@@ -973,7 +1250,8 @@ public class MuxFsTest extends MirrorFsTest {
 	public void testMuxedFileSizeIsCachedAfterMuxing()
 			throws Exception {
 		// Given
-		mux2fs = new MuxFs(mirrorRoot, tempDir, muxerFactory, sleeper, fileChannelCloser, MoreExecutors.newDirectExecutorService());
+		mux2fs = new MuxFs(mirrorRoot, tempDir, muxerFactory, fileChannelCloser, MoreExecutors.newDirectExecutorService(),
+				new MuxFs.Options());
 		fs = mux2fs;
 		StatFiller stat = mock(StatFiller.class);
 		Path mkv = mockPath("file.mkv", 700000000L);
@@ -984,12 +1262,13 @@ public class MuxFsTest extends MirrorFsTest {
 		FileHandleFiller filler = mock(FileHandleFiller.class);
 		ArgumentCaptor<Integer> handleCaptor = ArgumentCaptor.forClass(Integer.class);
 		doNothing().when(filler).setFileHandle(handleCaptor.capture());
-		Muxer muxer = mock(Muxer.class);
+		Muxer muxer = mockMuxer();
 		when(muxerFactory.from(mkv, srt, tempDir)).thenReturn(muxer);
 		Path muxedFile = mockPath(tempDir, "file1-muxed.mkv", 700000000L + 2000L + 534L);
 		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
 		when(fileSystem.provider().newFileChannel(eq(muxedFile), eq(set(StandardOpenOption.READ)))).thenReturn(mock(FileChannel.class));
 		when(muxer.state()).thenReturn(State.SUCCESSFUL);
+		when(muxer.onCompletion()).thenReturn(CompletableFuture.completedFuture(State.SUCCESSFUL));
 		int openResult = fs.open("file.mkv", filler);
 		int closeResult = fs.release("file.mkv", handleCaptor.getValue());
 		// When
@@ -1006,6 +1285,104 @@ public class MuxFsTest extends MirrorFsTest {
 		assertThat(extraSizeGetterCaptor.getValue().get()).isEqualTo(2000L);
 	}
 
+	@Test
+	public void testPremuxedFileIsFoundByOpen()
+			throws Exception {
+		// Given
+		mux2fs = new MuxFs(mirrorRoot, tempDir, muxerFactory, fileChannelCloser, MoreExecutors.newDirectExecutorService(),
+				new MuxFs.Options());
+		fs = mux2fs;
+		FileHandleFiller filler = mock(FileHandleFiller.class);
+		Path mkv = mockPath("file.mkv", 700000000L);
+		Path srt = mockPath("file.eng.srt", 2000L);
+		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
+		mockAttributes(mkv, 1);
+		Muxer muxer = mock(Muxer.class);
+		CompletableFuture<State> completion = new CompletableFuture<>();
+		when(muxer.onCompletion()).thenReturn(completion);
+		MuxerFactory background = mock(MuxerFactory.class);
+		when(background.from(mkv, srt, tempDir)).thenReturn(muxer);
+		Path muxedFile = mockPath(tempDir, "file-muxed.mkv");
+		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
+		when(muxer.state()).thenReturn(State.SUCCESSFUL);
+		when(fileSystem.provider().newFileChannel(eq(muxedFile), eq(set(StandardOpenOption.READ)))).thenReturn(mock(FileChannel.class));
+		Muxer interactive = mockMuxer();
+		when(muxerFactory.from(mkv, srt, tempDir)).thenReturn(interactive);
+		// When
+		boolean done = mux2fs.premux(mkv, background, Long.MAX_VALUE);
+		completion.complete(State.SUCCESSFUL);
+		int result = fs.open("file.mkv", filler);
+		// Then
+		assertThat(done).isTrue();
+		assertThat(result).isEqualTo(SUCCESS);
+		verify(muxer, times(2)).start();
+		verify(interactive, never()).start();
+		verify(fileSystem.provider()).newFileChannel(eq(muxedFile), eq(set(StandardOpenOption.READ)));
+	}
+
+	@Test
+	public void testPremuxOverBudgetIsPostponed()
+			throws Exception {
+		// Given
+		Path mkv = mockPath("file.mkv", 700000000L);
+		Path srt = mockPath("file.eng.srt", 2000L);
+		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
+		mockAttributes(mkv, 1, 700000000L);
+		MuxerFactory background = mock(MuxerFactory.class);
+		// When
+		boolean done = mux2fs.premux(mkv, background, 1000000L);
+		// Then
+		assertThat(done).isFalse();
+		verifyNoMoreInteractions(background);
+	}
+
+	@Test
+	public void testPremuxWithoutSubtitlesIsDone()
+			throws Exception {
+		// Given
+		Path mkv = mockPath("file.mkv", 700000000L);
+		mockShuffledDirectoryStream(mirrorRoot, mkv);
+		MuxerFactory background = mock(MuxerFactory.class);
+		// When
+		boolean done = mux2fs.premux(mkv, background, Long.MAX_VALUE);
+		// Then
+		assertThat(done).isTrue();
+		verifyNoMoreInteractions(background);
+	}
+
+	@Test
+	public void testFailedMuxerIsForgottenOnCompletion()
+			throws Exception {
+		// Given
+		mux2fs = new MuxFs(mirrorRoot, tempDir, muxerFactory, fileChannelCloser, MoreExecutors.newDirectExecutorService(),
+				new MuxFs.Options());
+		fs = mux2fs;
+		Path mkv = mockPath("file.mkv", 700000000L);
+		Path srt = mockPath("file.srt", 2000L);
+		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
+		mockAttributes(mkv, 3456);
+		Muxer muxer = mock(Muxer.class);
+		Muxer muxer2 = mockMuxer();
+		CompletableFuture<State> completion = new CompletableFuture<>();
+		when(muxer.onCompletion()).thenReturn(completion);
+		when(muxerFactory.from(mkv, srt, tempDir)).thenReturn(muxer, muxer2);
+		Path muxedFile = mockPath(tempDir, "file1-muxed.mkv");
+		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
+		when(muxer2.getOutput()).thenReturn(Optional.of(muxedFile));
+		when(fileSystem.provider().newFileChannel(eq(muxedFile), eq(set(StandardOpenOption.READ)))).thenReturn(mock(FileChannel.class));
+		fs.open("file.mkv", mock(FileHandleFiller.class));
+		// When
+		completion.complete(State.FAILED);
+		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
+		int result = fs.open("file.mkv", mock(FileHandleFiller.class));
+		// Then
+		assertThat(result).isEqualTo(SUCCESS);
+		verify(muxerFactory, times(2)).from(mkv, srt, tempDir);
+		verify(muxer).start();
+		verify(muxer2).start();
+		verify(muxer2).onCompletion();
+	}
+
 	private File openAndClose(String name, int nonce, long size)
 			throws Exception {
 		String mkvName = name + ".mkv";
@@ -1016,7 +1393,7 @@ public class MuxFsTest extends MirrorFsTest {
 		Path srt = mockPath(name + ".srt");
 		mockShuffledDirectoryStream(mirrorRoot, mkv, srt);
 		mockAttributes(mkv, nonce, size);
-		Muxer muxer = mock(Muxer.class);
+		Muxer muxer = mockMuxer();
 		when(muxerFactory.from(mkv, srt, tempDir)).thenReturn(muxer);
 		Path muxedFile = mockPath(tempDir, "file1.mkv");
 		when(muxer.getOutput()).thenReturn(Optional.of(muxedFile));
@@ -1028,9 +1405,18 @@ public class MuxFsTest extends MirrorFsTest {
 		verify(muxer).start();
 		verify(muxer).waitForOutput();
 		verify(muxer, atLeast(1)).getOutput();
+		verify(muxer).state();
+		verify(muxer).onCompletion();
 		verifyNoMoreInteractions(muxer);
 		verify(filler).setFileHandle(gt(1));
 		verify(fileSystem.provider()).newFileChannel(eq(muxedFile), eq(set(StandardOpenOption.READ)));
 		return muxedFile.toFile();
 	}
+
+	private Muxer mockMuxer() {
+		Muxer muxer = mock(Muxer.class);
+		when(muxer.onCompletion()).thenReturn(new CompletableFuture<>());
+		when(muxer.getProgress()).thenReturn(new MuxProgress("mock"));
+		return muxer;
+	}
 }
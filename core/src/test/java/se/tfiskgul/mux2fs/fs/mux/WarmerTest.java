@@ -0,0 +1,146 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.fs.mux;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import com.google.common.collect.ImmutableList;
+
+import se.tfiskgul.mux2fs.Fixture;
+import se.tfiskgul.mux2fs.mux.MuxCache;
+import se.tfiskgul.mux2fs.mux.Muxer;
+import se.tfiskgul.mux2fs.mux.Muxer.MuxerFactory;
+import se.tfiskgul.mux2fs.mux.Muxer.State;
+import se.tfiskgul.mux2fs.mux.TrackInspector;
+
+public class WarmerTest extends Fixture {
+
+	private Path root;
+	private Path cacheDir;
+	private MuxerFactory factory;
+	private Consumer<String> reporter;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void before() {
+		root = mockPath("/", mockFileSystem());
+		cacheDir = mockPath(root, "cache");
+		factory = mock(MuxerFactory.class);
+		reporter = mock(Consumer.class);
+	}
+
+	private Muxer mockMuxer(Path mkv, Path srt, State state) {
+		Muxer muxer = mock(Muxer.class);
+		when(muxer.state()).thenReturn(state);
+		Optional<Path> output = state == State.SUCCESSFUL ? Optional.of(mockPath(cacheDir, mkv.getFileName() + ".out", 100)) : Optional.empty();
+		when(muxer.getOutput()).thenReturn(output);
+		when(factory.from(mkv, srt, cacheDir)).thenReturn(muxer);
+		return muxer;
+	}
+
+	@Test
+	public void testLargestFilesAreMuxedFirstIntoCache()
+			throws Exception {
+		// Given
+		Path small = mockPath(root, "small.mkv");
+		Path smallSrt = mockPath(root, "small.srt");
+		Path large = mockPath(root, "large.mkv");
+		Path largeSrt = mockPath(root, "large.srt");
+		Path lonely = mockPath(root, "lonely.mkv");
+		mockDirectoryStream(root, small, smallSrt, large, largeSrt, lonely);
+		mockAttributes(small, 1, 1000);
+		mockAttributes(smallSrt, 2, 10);
+		mockAttributes(large, 3, 2000);
+		mockAttributes(largeSrt, 4, 10);
+		Muxer smallMuxer = mockMuxer(small, smallSrt, State.SUCCESSFUL);
+		Muxer largeMuxer = mockMuxer(large, largeSrt, State.SUCCESSFUL);
+		Warmer warmer = new Warmer(new MuxCache(cacheDir), factory, TrackInspector.disabled(), 1);
+		// When
+		boolean result = warmer.warm(ImmutableList.of(small, large, lonely), reporter);
+		// Then
+		assertThat(result).isTrue();
+		InOrder inOrder = inOrder(largeMuxer, smallMuxer);
+		inOrder.verify(largeMuxer).start();
+		inOrder.verify(smallMuxer).start();
+		verify(root.getFileSystem().provider(), times(2)).move(any(), any(), any());
+		verify(factory, never()).from(eq(lonely), any(), any());
+		assertThat(warmer.toString()).contains("muxed=2", "failed=0");
+	}
+
+	@Test
+	public void testAlreadyCachedIsSkipped()
+			throws Exception {
+		// Given
+		Path mkv = mockPath(root, "file.mkv");
+		Path srt = mockPath(root, "file.srt");
+		mockDirectoryStream(root, mkv, srt);
+		mockAttributes(mkv, 1, 1000);
+		mockAttributes(srt, 2, 10);
+		Path cached = mockPath(cacheDir, "cached.mkv", 1010);
+		doReturn(cached).when(cacheDir).resolve(anyString());
+		Warmer warmer = new Warmer(new MuxCache(cacheDir), factory, TrackInspector.disabled(), 1);
+		// When
+		boolean result = warmer.warm(ImmutableList.of(mkv), reporter);
+		// Then
+		assertThat(result).isTrue();
+		verify(factory, never()).from(any(), any(), any());
+		assertThat(warmer.toString()).contains("skipped=1");
+	}
+
+	@Test
+	public void testFailedMuxIsReported()
+			throws Exception {
+		// Given
+		Path mkv = mockPath(root, "file.mkv");
+		Path srt = mockPath(root, "file.srt");
+		mockDirectoryStream(root, mkv, srt);
+		mockAttributes(mkv, 1, 1000);
+		mockAttributes(srt, 2, 10);
+		mockMuxer(mkv, srt, State.FAILED);
+		Warmer warmer = new Warmer(new MuxCache(cacheDir), factory, TrackInspector.disabled(), 2);
+		// When
+		boolean result = warmer.warm(ImmutableList.of(mkv), reporter);
+		// Then
+		assertThat(result).isFalse();
+		assertThat(warmer.toString()).contains("muxed=0", "failed=1");
+	}
+}
@@ -0,0 +1,145 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.mux;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import se.tfiskgul.mux2fs.mux.Muxer.Priority;
+
+public class LaunchProfilesTest {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+	private Path cgroupRoot;
+
+	@Before
+	public void before()
+			throws IOException {
+		cgroupRoot = folder.getRoot().toPath();
+	}
+
+	@Test
+	public void testNormalProfileLeavesCommandAlone() {
+		assertThat(LaunchProfile.normal().wrap("mkvmerge", "-o", "out.mkv")).containsExactly("mkvmerge", "-o", "out.mkv");
+	}
+
+	@Test
+	public void testIdleProfileWrapsCommand() {
+		assertThat(LaunchProfile.idle().wrap("mkvmerge")).containsExactly("nice", "-n", "19", "ionice", "-c", "3", "mkvmerge");
+	}
+
+	@Test
+	public void testOnlyNiceWhenIoClassIsDefault() {
+		assertThat(new LaunchProfile(5, LaunchProfile.IONICE_BEST_EFFORT).wrap("mkvmerge")).containsExactly("nice", "-n", "5", "mkvmerge");
+	}
+
+	@Test
+	public void testReprioritize() {
+		assertThat(LaunchProfile.normal().reprioritize(4711)).containsExactly( //
+				new String[] { "renice", "-n", "0", "-p", "4711" }, //
+				new String[] { "ionice", "-c", "2", "-p", "4711" });
+	}
+
+	@Test
+	public void testInvalidNice() {
+		exception.expect(IllegalArgumentException.class);
+		new LaunchProfile(20, LaunchProfile.IONICE_IDLE);
+	}
+
+	@Test
+	public void testInvalidIoClass() {
+		exception.expect(IllegalArgumentException.class);
+		new LaunchProfile(0, 4);
+	}
+
+	@Test
+	public void testInvalidWeight() {
+		exception.expect(IllegalArgumentException.class);
+		new LaunchProfiles(LaunchProfile.normal(), LaunchProfile.idle(), Optional.empty(), 0);
+	}
+
+	@Test
+	public void testProfilePerPriority() {
+		LaunchProfiles profiles = LaunchProfiles.defaults();
+		assertThat(profiles.get(Priority.INTERACTIVE)).isEqualTo(LaunchProfile.normal());
+		assertThat(profiles.get(Priority.BACKGROUND)).isEqualTo(LaunchProfile.idle());
+	}
+
+	@Test
+	public void testPrepareCreatesCgroups()
+			throws Exception {
+		// Given
+		LaunchProfiles profiles = new LaunchProfiles(LaunchProfile.normal(), LaunchProfile.idle(), Optional.of(cgroupRoot), 25);
+		// When
+		profiles.prepare();
+		// Then
+		assertThat(read(cgroupRoot.resolve("cgroup.subtree_control"))).isEqualTo("+io +cpu");
+		assertThat(read(cgroupRoot.resolve("interactive").resolve("io.weight"))).isEqualTo("default 100");
+		assertThat(read(cgroupRoot.resolve("interactive").resolve("cpu.weight"))).isEqualTo("100");
+		assertThat(read(cgroupRoot.resolve("background").resolve("io.weight"))).isEqualTo("default 25");
+		assertThat(read(cgroupRoot.resolve("background").resolve("cpu.weight"))).isEqualTo("25");
+	}
+
+	@Test
+	public void testJoinWritesPid()
+			throws Exception {
+		// Given
+		LaunchProfiles profiles = new LaunchProfiles(LaunchProfile.normal(), LaunchProfile.idle(), Optional.of(cgroupRoot), 25).prepare();
+		// When
+		profiles.join(Priority.BACKGROUND, 4711);
+		// Then
+		assertThat(read(cgroupRoot.resolve("background").resolve("cgroup.procs"))).isEqualTo("4711");
+	}
+
+	@Test
+	public void testJoinWithoutCgroupsDoesNothing()
+			throws Exception {
+		// Given
+		Path missing = cgroupRoot.resolve("missing");
+		LaunchProfiles profiles = new LaunchProfiles(LaunchProfile.normal(), LaunchProfile.idle(), Optional.of(missing), 25).prepare();
+		// When
+		profiles.join(Priority.BACKGROUND, 4711);
+		// Then
+		assertThat(missing).doesNotExist();
+	}
+
+	private String read(Path path)
+			throws IOException {
+		return new String(Files.readAllBytes(path), UTF_8);
+	}
+}
@@ -0,0 +1,195 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.mux;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import org.junit.Test;
+
+import se.tfiskgul.mux2fs.mux.MatroskaTracks.Track;
+
+public class MatroskaTracksTest {
+
+	private static final byte[] EBML = { 0x1A, 0x45, (byte) 0xDF, (byte) 0xA3 };
+	private static final byte[] SEGMENT = { 0x18, 0x53, (byte) 0x80, 0x67 };
+	private static final byte[] SEEK_HEAD = { 0x11, 0x4D, (byte) 0x9B, 0x74 };
+	private static final byte[] SEEK = { 0x4D, (byte) 0xBB };
+	private static final byte[] SEEK_ID = { 0x53, (byte) 0xAB };
+	private static final byte[] SEEK_POSITION = { 0x53, (byte) 0xAC };
+	private static final byte[] INFO = { 0x15, 0x49, (byte) 0xA9, 0x66 };
+	private static final byte[] TRACKS = { 0x16, 0x54, (byte) 0xAE, 0x6B };
+	private static final byte[] TRACK_ENTRY = { (byte) 0xAE };
+	private static final byte[] TRACK_TYPE = { (byte) 0x83 };
+	private static final byte[] CODEC_ID = { (byte) 0x86 };
+	private static final byte[] LANGUAGE = { 0x22, (byte) 0xB5, (byte) 0x9C };
+	private static final byte[] LANGUAGE_IETF = { 0x22, (byte) 0xB5, (byte) 0x9D };
+	private static final byte[] NAME = { 0x53, 0x6E };
+	private static final byte[] CLUSTER = { 0x1F, 0x43, (byte) 0xB6, 0x75 };
+
+	@Test
+	public void testTracksBeforeClusters()
+			throws Exception {
+		// Given
+		byte[] tracks = element(TRACKS, video(), subtitle("S_TEXT/UTF8", "swe", null, "Svenska"), subtitle("S_HDMV/PGS", null, null, null));
+		byte[] file = file(element(INFO, new byte[10]), tracks, element(CLUSTER, new byte[100]));
+		// When
+		List<Track> result = MatroskaTracks.read(channel(file));
+		// Then
+		assertThat(result).containsExactly(new Track(1, "V_MPEG4/ISO/AVC", "eng", null), new Track(17, "S_TEXT/UTF8", "swe", "Svenska"),
+				new Track(17, "S_HDMV/PGS", "eng", null));
+	}
+
+	@Test
+	public void testLanguageIetfTakesPrecedence()
+			throws Exception {
+		// Given
+		byte[] file = file(element(TRACKS, subtitle("S_TEXT/UTF8", "ger", "de-CH", null)));
+		// When
+		List<Track> result = MatroskaTracks.read(channel(file));
+		// Then
+		assertThat(result).containsExactly(new Track(17, "S_TEXT/UTF8", "de-CH", null));
+	}
+
+	@Test
+	public void testTracksAfterClustersFoundThroughSeekHead()
+			throws Exception {
+		// Given
+		byte[] cluster = element(CLUSTER, new byte[100]);
+		byte[] seekHeadPlaceholder = seekHead(0);
+		byte[] seekHead = seekHead(seekHeadPlaceholder.length + cluster.length);
+		byte[] file = file(seekHead, cluster, element(TRACKS, subtitle("S_TEXT/UTF8", "fre", null, null)));
+		// When
+		List<Track> result = MatroskaTracks.read(channel(file));
+		// Then
+		assertThat(result).containsExactly(new Track(17, "S_TEXT/UTF8", "fre", null));
+	}
+
+	@Test
+	public void testNoTracksBeforeClustersNorSeekHead()
+			throws Exception {
+		// Given
+		byte[] file = file(element(CLUSTER, new byte[100]), element(TRACKS, video()));
+		// When
+		List<Track> result = MatroskaTracks.read(channel(file));
+		// Then
+		assertThat(result).isEmpty();
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotMatroska()
+			throws Exception {
+		MatroskaTracks.read(channel("1\n00:00:01,000 --> 00:00:02,000\nHello\n".getBytes(UTF_8)));
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncated()
+			throws Exception {
+		byte[] file = file(element(TRACKS, video()));
+		byte[] truncated = new byte[file.length - 5];
+		System.arraycopy(file, 0, truncated, 0, truncated.length);
+		MatroskaTracks.read(channel(truncated));
+	}
+
+	private static byte[] seekHead(long tracksPosition) {
+		byte[] position = new byte[8];
+		ByteBuffer.wrap(position).putLong(tracksPosition);
+		return element(SEEK_HEAD, element(SEEK, element(SEEK_ID, TRACKS), element(SEEK_POSITION, position)));
+	}
+
+	private static byte[] video() {
+		return element(TRACK_ENTRY, element(TRACK_TYPE, new byte[] { 1 }), element(CODEC_ID, "V_MPEG4/ISO/AVC".getBytes(US_ASCII)));
+	}
+
+	private static byte[] subtitle(String codec, String language, String languageIetf, String name) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		write(out, element(TRACK_TYPE, new byte[] { 17 }));
+		write(out, element(CODEC_ID, codec.getBytes(US_ASCII)));
+		if (language != null) {
+			write(out, element(LANGUAGE, language.getBytes(US_ASCII)));
+		}
+		if (languageIetf != null) {
+			write(out, element(LANGUAGE_IETF, languageIetf.getBytes(US_ASCII)));
+		}
+		if (name != null) {
+			write(out, element(NAME, name.getBytes(UTF_8)));
+		}
+		return element(TRACK_ENTRY, out.toByteArray());
+	}
+
+	private static byte[] file(byte[]... segmentChildren) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		write(out, element(EBML, "webm".getBytes(US_ASCII)));
+		write(out, element(SEGMENT, segmentChildren));
+		return out.toByteArray();
+	}
+
+	private static byte[] element(byte[] id, byte[]... children) {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		for (byte[] child : children) {
+			write(data, child);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		write(out, id);
+		out.write(0x01); // 8 byte size
+		long size = data.size();
+		for (int i = 6; i >= 0; i--) {
+			out.write((int) (size >>> (i * 8)));
+		}
+		write(out, data.toByteArray());
+		return out.toByteArray();
+	}
+
+	private static void write(ByteArrayOutputStream out, byte[] bytes) {
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static FileChannel channel(byte[] file)
+			throws IOException {
+		FileChannel channel = mock(FileChannel.class);
+		when(channel.size()).thenReturn((long) file.length);
+		when(channel.read(any(), anyLong())).thenAnswer(invocation -> {
+			ByteBuffer target = invocation.getArgumentAt(0, ByteBuffer.class);
+			int position = invocation.getArgumentAt(1, Long.class).intValue();
+			if (position >= file.length) {
+				return -1;
+			}
+			int length = Math.min(target.remaining(), file.length - position);
+			target.put(file, position, length);
+			return length;
+		});
+		return channel;
+	}
+}
@@ -0,0 +1,113 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.mux;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Path;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import se.tfiskgul.mux2fs.Fixture;
+
+public class MuxBackendTest extends Fixture {
+
+	private Path mkv;
+	private Path srt;
+	private Path output;
+	private MuxProgress progress;
+
+	@Before
+	public void before() {
+		Path root = mockPath("/", mockFileSystem());
+		mkv = mockPath(root, "file.mkv");
+		srt = mockPath(root, "file.eng.srt");
+		output = mockPath(root, "out.mkv");
+		progress = new MuxProgress("file.mkv");
+	}
+
+	@Test
+	public void testMkvmergeCommand() {
+		assertThat(MuxBackend.mkvmerge().command(mkv, srt, output)).containsExactly("mkvmerge", "--gui-mode", "-o", "/out.mkv", "/file.mkv",
+				"/file.eng.srt");
+	}
+
+	@Test
+	public void testMkvmergeProgress() {
+		// Given
+		// When
+		MuxBackend.mkvmerge().parse("#GUI#progress 42%", progress, 1000);
+		// Then
+		assertThat(progress.getPercent()).isEqualTo(42);
+	}
+
+	@Test
+	public void testFfmpegCommandCopiesBothInputsIntoMatroska() {
+		assertThat(MuxBackend.ffmpeg().command(mkv, srt, output)).startsWith("ffmpeg")
+				.containsSequence("-i", "/file.mkv", "-i", "/file.eng.srt")
+				.containsSequence("-c", "copy", "-f", "matroska")
+				.endsWith("/out.mkv");
+	}
+
+	@Test
+	public void testFfmpegProgressIsBytesWrittenOfEstimate() {
+		// Given
+		// When
+		MuxBackend.ffmpeg().parse("out_time_us=1000000", progress, 1000);
+		MuxBackend.ffmpeg().parse("total_size=250", progress, 1000);
+		// Then
+		assertThat(progress.getPercent()).isEqualTo(25);
+		assertThat(progress.getWarnings()).isEmpty();
+	}
+
+	@Test
+	public void testFfmpegProgressStaysBelowHundredUntilExit() {
+		// Given
+		// When
+		MuxBackend.ffmpeg().parse("total_size=1200", progress, 1000);
+		// Then
+		assertThat(progress.getPercent()).isEqualTo(99);
+	}
+
+	@Test
+	public void testFfmpegMessagesAreWarnings() {
+		// Given
+		// When
+		MuxBackend.ffmpeg().parse("[matroska @ 0x1] Starting new cluster due to timestamp", progress, 1000);
+		// Then
+		assertThat(progress.getWarnings()).containsExactly("[matroska @ 0x1] Starting new cluster due to timestamp");
+	}
+
+	@Test
+	public void testNamed() {
+		assertThat(MuxBackend.named("mkvmerge")).isSameAs(MuxBackend.mkvmerge());
+		assertThat(MuxBackend.named("ffmpeg")).isSameAs(MuxBackend.ffmpeg());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNamedUnknown() {
+		MuxBackend.named("avimux");
+	}
+}
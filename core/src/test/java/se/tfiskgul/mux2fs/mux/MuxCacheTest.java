@@ -0,0 +1,94 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.mux;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.verify;
+
+import java.nio.file.Path;
+import java.time.Instant;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import se.tfiskgul.mux2fs.Fixture;
+import se.tfiskgul.mux2fs.fs.base.FileInfo;
+
+public class MuxCacheTest extends Fixture {
+
+	private final Instant now = Instant.now();
+	private final FileInfo mkv = new FileInfo(1, now, now, 1000);
+	private final FileInfo srt = new FileInfo(2, now, now, 10);
+	private Path root;
+	private Path directory;
+
+	@Before
+	public void before() {
+		root = mockPath("/", mockFileSystem());
+		directory = mockPath(root, "cache");
+	}
+
+	@Test
+	public void testNameChangesWithEitherFile() {
+		String name = MuxCache.nameOf(mkv, srt);
+		assertThat(MuxCache.nameOf(new FileInfo(1, now, now, 1000), new FileInfo(2, now, now, 10))).isEqualTo(name);
+		assertThat(MuxCache.nameOf(new FileInfo(1, now.plusSeconds(1), now, 1000), srt)).isNotEqualTo(name);
+		assertThat(MuxCache.nameOf(mkv, new FileInfo(2, now, now, 11))).isNotEqualTo(name);
+		assertThat(name).endsWith(".mkv");
+	}
+
+	@Test
+	public void testLookupFindsStored() {
+		// Given
+		Path cached = mockPath(directory, MuxCache.nameOf(mkv, srt), 1010);
+		doReturn(cached).when(directory).resolve(MuxCache.nameOf(mkv, srt));
+		MuxCache cache = new MuxCache(directory);
+		// When
+		// Then
+		assertThat(cache.lookup(mkv, srt)).contains(cached);
+		assertThat(cache.lookup(mkv, new FileInfo(3, now, now, 10))).isEmpty();
+	}
+
+	@Test
+	public void testDisabledFindsNothing() {
+		assertThat(MuxCache.disabled().lookup(mkv, srt)).isEmpty();
+		assertThat(MuxCache.disabled().isEnabled()).isFalse();
+	}
+
+	@Test
+	public void testStoreMovesAtomically()
+			throws Exception {
+		// Given
+		Path output = mockPath(directory, "output.mkv", 1010);
+		Path cached = mockPath(directory, MuxCache.nameOf(mkv, srt));
+		doReturn(cached).when(directory).resolve(MuxCache.nameOf(mkv, srt));
+		MuxCache cache = new MuxCache(directory);
+		// When
+		cache.store(output, mkv, srt);
+		// Then
+		verify(root.getFileSystem().provider()).move(output, cached, ATOMIC_MOVE);
+	}
+}
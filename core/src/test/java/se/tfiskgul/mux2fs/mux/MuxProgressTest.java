@@ -0,0 +1,94 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.mux;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MuxProgressTest {
+
+	private MuxProgress progress;
+
+	@Before
+	public void before() {
+		progress = new MuxProgress("file.mkv");
+	}
+
+	@Test
+	public void testInitialProgressIsZero() {
+		assertThat(progress.getPercent()).isEqualTo(0);
+		assertThat(progress.getWarnings()).isEmpty();
+	}
+
+	@Test
+	public void testParseProgress() {
+		// When
+		progress.accept("#GUI#progress 0%");
+		progress.accept("#GUI#progress 37%");
+		// Then
+		assertThat(progress.getPercent()).isEqualTo(37);
+	}
+
+	@Test
+	public void testGarbageProgressIsIgnored() {
+		// Given
+		progress.accept("#GUI#progress 37%");
+		// When
+		progress.accept("#GUI#progress lots%");
+		progress.accept("#GUI#progress 101%");
+		progress.accept("Progress: 99%");
+		// Then
+		assertThat(progress.getPercent()).isEqualTo(37);
+	}
+
+	@Test
+	public void testWarningsAreKept() {
+		// When
+		progress.accept("#GUI#warning Track 2 has no language");
+		progress.accept("#GUI#error Something went wrong");
+		progress.accept("#GUI#warning Cues are missing");
+		// Then
+		assertThat(progress.getWarnings()).containsExactly("Track 2 has no language", "Cues are missing");
+	}
+
+	@Test
+	public void testOnlyRecentWarningsAreKept() {
+		// When
+		for (int i = 0; i < 100; i++) {
+			progress.accept("#GUI#warning " + i);
+		}
+		// Then
+		assertThat(progress.getWarnings()).hasSize(20).startsWith("80").endsWith("99");
+	}
+
+	@Test
+	public void testCompleted() {
+		// When
+		progress.completed();
+		// Then
+		assertThat(progress.getPercent()).isEqualTo(100);
+	}
+}
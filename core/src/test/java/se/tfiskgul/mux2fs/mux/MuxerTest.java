@@ -29,21 +29,32 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
-import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static se.tfiskgul.mux2fs.Constants.SUCCESS;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.AccessMode;
 import java.nio.file.FileSystem;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.spi.FileSystemProvider;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -59,8 +70,10 @@ import org.powermock.modules.junit4.PowerMockRunnerDelegate;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import se.tfiskgul.mux2fs.Fixture;
+import se.tfiskgul.mux2fs.fs.base.Fallocator;
 import se.tfiskgul.mux2fs.fs.base.Sleeper;
 import se.tfiskgul.mux2fs.mux.Muxer.MuxerFactory;
+import se.tfiskgul.mux2fs.mux.Muxer.Priority;
 import se.tfiskgul.mux2fs.mux.Muxer.ProcessBuilderFactory;
 import se.tfiskgul.mux2fs.mux.Muxer.State;
 
@@ -80,6 +93,8 @@ public class MuxerTest extends Fixture {
 	private ProcessBuilder builder;
 	private Process process;
 	private Sleeper sleeper;
+	private CompletableFuture<Integer> exit;
+	private Consumer<String> output;
 	private Muxer muxer;
 
 	@Before
@@ -98,7 +113,11 @@ public class MuxerTest extends Fixture {
 		process = mock(Process.class);
 		when(builder.start()).thenReturn(process);
 		sleeper = mock(Sleeper.class);
-		muxer = Muxer.of(mkv, srt, tempDir, factory, sleeper);
+		exit = new CompletableFuture<>();
+		muxer = Muxer.of(mkv, srt, tempDir, LaunchProfiles.defaults(), Priority.INTERACTIVE, factory, (process, output) -> {
+			this.output = output;
+			return exit;
+		}, sleeper);
 	}
 
 	@Test
@@ -142,12 +161,70 @@ public class MuxerTest extends Fixture {
 		muxer.start();
 		// Then
 		verify(muxer.getOutputForTest().toFile()).deleteOnExit();
-		verify(factory).from("mkvmerge", "-o", muxer.getOutput().get().toString(), mkv.toString(), srt.toString());
+		verify(factory).from("mkvmerge", "--gui-mode", "-o", muxer.getOutput().get().toString(), mkv.toString(), srt.toString());
 		// TODO: These are broken because of a bug in Mockito / Powermock
 		// verify(builder).directory(tempDir.toFile());
 		// verify(builder).start();
 	}
 
+	@Test
+	public void testStartInBackground()
+			throws Exception {
+		// Given
+		Muxer background = backgroundMuxer();
+		// When
+		background.start();
+		// Then
+		verify(factory).from("nice", "-n", "19", "ionice", "-c", "3", "mkvmerge", "--gui-mode", "-o", background.getOutputForTest().toString(),
+				mkv.toString(), srt.toString());
+		assertThat(background.getPriority()).isEqualTo(Priority.BACKGROUND);
+	}
+
+	@Test
+	public void testPromoteReprioritizesRunningProcess()
+			throws Exception {
+		// Given
+		when(builder.start()).thenReturn(new PidProcess(4711));
+		Muxer background = backgroundMuxer();
+		background.start();
+		// When
+		background.promote();
+		background.promote();
+		// Then
+		assertThat(background.getPriority()).isEqualTo(Priority.INTERACTIVE);
+		verify(factory).from("renice", "-n", "0", "-p", "4711");
+		verify(factory).from("ionice", "-c", "2", "-p", "4711");
+	}
+
+	@Test
+	public void testPromoteBeforeStartDoesNothing()
+			throws Exception {
+		// Given
+		Muxer background = backgroundMuxer();
+		// When
+		background.promote();
+		// Then
+		assertThat(background.getPriority()).isEqualTo(Priority.BACKGROUND);
+		verifyNoMoreInteractions(factory);
+	}
+
+	@Test
+	public void testPromoteInteractiveDoesNothing()
+			throws Exception {
+		// Given
+		muxer.start();
+		// When
+		muxer.promote();
+		// Then
+		assertThat(muxer.getPriority()).isEqualTo(Priority.INTERACTIVE);
+		verify(factory).from("mkvmerge", "--gui-mode", "-o", muxer.getOutputForTest().toString(), mkv.toString(), srt.toString());
+		verifyNoMoreInteractions(factory);
+	}
+
+	private Muxer backgroundMuxer() {
+		return Muxer.of(mkv, srt, tempDir, LaunchProfiles.defaults(), Priority.BACKGROUND, factory, (process, output) -> new CompletableFuture<>(), sleeper);
+	}
+
 	@Test
 	public void testStartIoExceptionGivesFailedState()
 			throws Exception {
@@ -160,7 +237,7 @@ public class MuxerTest extends Fixture {
 		} catch (IOException e) { // Ignored
 		}
 		// Then
-		verify(factory).from("mkvmerge", "-o", muxer.getOutputForTest().toString(), mkv.toString(), srt.toString());
+		verify(factory).from("mkvmerge", "--gui-mode", "-o", muxer.getOutputForTest().toString(), mkv.toString(), srt.toString());
 		assertThat(muxer.state()).isEqualTo(State.FAILED);
 		verify(muxer.getOutputForTest().toFile()).deleteOnExit();
 		verify(muxer.getOutputForTest().toFile()).delete();
@@ -173,145 +250,236 @@ public class MuxerTest extends Fixture {
 	public void testStartStateChangeSuccess()
 			throws Exception {
 		// Given
-		when(process.isAlive()).thenReturn(false);
 		muxer.start();
 		// When
-		State state = muxer.state();
+		exit.complete(SUCCESS);
 		// Then
-		assertThat(state).isEqualTo(State.SUCCESSFUL);
+		assertThat(muxer.state()).isEqualTo(State.SUCCESSFUL);
 		assertThat(muxer.getOutput()).isNotEmpty();
+		assertThat(muxer.onCompletion().toCompletableFuture().getNow(null)).isEqualTo(State.SUCCESSFUL);
 	}
 
 	@Test
 	public void testStartStateChangeFailed()
 			throws Exception {
 		// Given
-		when(process.isAlive()).thenReturn(false);
-		when(process.exitValue()).thenReturn(-1);
 		muxer.start();
 		// When
-		State state = muxer.state();
+		exit.complete(-1);
 		// Then
-		assertThat(state).isEqualTo(State.FAILED);
+		assertThat(muxer.state()).isEqualTo(State.FAILED);
 		assertThat(muxer.getOutput()).isEmpty();
+		assertThat(muxer.onCompletion().toCompletableFuture().getNow(null)).isEqualTo(State.FAILED);
 		verify(muxer.getOutputForTest().toFile()).delete();
 	}
 
+	@Test
+	public void testMoveOutput()
+			throws Exception {
+		// Given
+		Path ssd = mockPath(mockPath("", tempDir.getFileSystem()), "ssd");
+		muxer.start();
+		exit.complete(SUCCESS);
+		Path original = muxer.getOutput().get();
+		// When
+		boolean result = muxer.moveOutput(ssd, () -> true);
+		// Then
+		assertThat(result).isTrue();
+		assertThat(muxer.getOutput().get().toString()).isEqualTo("/ssd/" + original.getFileName());
+		verify(provider).copy(eq(original), any(), any());
+		verify(provider).move(any(), eq(muxer.getOutput().get()), any());
+		verify(original.toFile()).delete();
+	}
+
+	@Test
+	public void testMoveOutputInUseIsUndone()
+			throws Exception {
+		// Given
+		Path ssd = mockPath(mockPath("", tempDir.getFileSystem()), "ssd");
+		muxer.start();
+		exit.complete(SUCCESS);
+		Path original = muxer.getOutput().get();
+		// When
+		boolean result = muxer.moveOutput(ssd, () -> false);
+		// Then
+		assertThat(result).isFalse();
+		assertThat(muxer.getOutput()).contains(original);
+		verify(original.toFile(), times(0)).delete();
+	}
+
+	@Test
+	public void testMoveOutputOnlyWhenDone()
+			throws Exception {
+		muxer.start();
+		exception.expect(IllegalStateException.class);
+		muxer.moveOutput(tempDir, () -> true);
+	}
+
+	@Test
+	public void testProgressIsParsedFromOutput()
+			throws Exception {
+		// Given
+		muxer.start();
+		// When
+		output.accept("#GUI#progress 42%");
+		// Then
+		assertThat(muxer.getProgress().getPercent()).isEqualTo(42);
+	}
+
+	@Test
+	public void testProgressIsCompleteOnSuccess()
+			throws Exception {
+		// Given
+		muxer.start();
+		output.accept("#GUI#progress 98%");
+		// When
+		exit.complete(SUCCESS);
+		// Then
+		assertThat(muxer.getProgress().getPercent()).isEqualTo(100);
+	}
+
+	@Test
+	public void testEstimatedSizeIsSumOfInputs()
+			throws Exception {
+		// Given
+		when(mkv.toFile().length()).thenReturn(700000000L);
+		when(srt.toFile().length()).thenReturn(2000L);
+		// When
+		muxer.start();
+		// Then
+		assertThat(muxer.getEstimatedSize()).isEqualTo(700002000L);
+	}
+
+	@Test
+	public void testStateIsRunningUntilExit()
+			throws Exception {
+		// Given
+		muxer.start();
+		// When
+		State state = muxer.state();
+		// Then
+		assertThat(state).isEqualTo(State.RUNNING);
+		assertThat(muxer.onCompletion().toCompletableFuture().isDone()).isFalse();
+		verifyZeroInteractions(process);
+	}
+
+	@Test
+	public void testExitWatcherFailureGivesFailedState()
+			throws Exception {
+		// Given
+		muxer.start();
+		// When
+		exit.completeExceptionally(new IllegalStateException());
+		// Then
+		assertThat(muxer.state()).isEqualTo(State.FAILED);
+		assertThat(muxer.waitFor()).isEqualTo(-127);
+	}
+
+	@Test
+	public void testStartIoExceptionCompletesAsFailed()
+			throws Exception {
+		// Given
+		when(builder.start()).thenThrow(new IOException());
+		// When
+		try {
+			muxer.start();
+			fail("This must throw IOException");
+		} catch (IOException e) { // Ignored
+		}
+		// Then
+		assertThat(muxer.onCompletion().toCompletableFuture().getNow(null)).isEqualTo(State.FAILED);
+		assertThat(muxer.waitFor()).isEqualTo(-127);
+	}
+
 	@Test
 	public void testWaitForNonRunningFailed()
 			throws Exception {
 		// Given
-		when(process.isAlive()).thenReturn(false);
-		when(process.exitValue()).thenReturn(-33);
 		muxer.start();
+		exit.complete(-33);
 		// When
 		int exitCode = muxer.waitFor();
 		// Then
 		assertThat(exitCode).isEqualTo(-33);
-		verify(process, times(2)).exitValue();
-		verify(process).isAlive();
-		verifyNoMoreInteractions(process);
+		verifyZeroInteractions(process);
 	}
 
 	@Test
 	public void testWaitForRunningFailed()
 			throws Exception {
 		// Given
-		when(process.isAlive()).thenReturn(true);
-		when(process.waitFor()).thenReturn(-33);
 		muxer.start();
+		Executors.newSingleThreadScheduledExecutor().schedule(() -> exit.complete(-33), 10, MILLISECONDS);
 		// When
 		int exitCode = muxer.waitFor();
 		// Then
 		assertThat(exitCode).isEqualTo(-33);
-		verify(process).waitFor();
-		verify(process).isAlive();
-		verifyNoMoreInteractions(process);
+		assertThat(muxer.state()).isEqualTo(State.FAILED);
 	}
 
 	@Test
 	public void testWaitForRunningSuccessful()
 			throws Exception {
 		// Given
-		when(process.isAlive()).thenReturn(true);
-		when(process.waitFor()).thenReturn(SUCCESS);
 		muxer.start();
+		Executors.newSingleThreadScheduledExecutor().schedule(() -> exit.complete(SUCCESS), 10, MILLISECONDS);
 		// When
 		int exitCode = muxer.waitFor();
 		// Then
 		assertThat(exitCode).isEqualTo(SUCCESS);
-		verify(process).waitFor();
-		verify(process).isAlive();
-		verifyNoMoreInteractions(process);
+		assertThat(muxer.state()).isEqualTo(State.SUCCESSFUL);
 	}
 
 	@Test
 	public void testWaitForNonRunningSuccessful()
 			throws Exception {
 		// Given
-		when(process.isAlive()).thenReturn(false);
-		when(process.waitFor()).thenReturn(SUCCESS);
-		when(process.exitValue()).thenReturn(SUCCESS);
 		muxer.start();
+		exit.complete(SUCCESS);
 		// When
 		int exitCode = muxer.waitFor();
 		// Then
 		assertThat(exitCode).isEqualTo(SUCCESS);
-		verify(process).isAlive();
-		verify(process).exitValue();
-		verify(process).waitFor();
-		verifyNoMoreInteractions(process);
+		verifyZeroInteractions(process);
 	}
 
 	@Test
 	public void testWaitForTimeoutNonRunningSuccessful()
 			throws Exception {
 		// Given
-		when(process.isAlive()).thenReturn(false);
-		when(process.exitValue()).thenReturn(SUCCESS);
-		when(process.waitFor(anyLong(), any())).thenReturn(true);
 		muxer.start();
+		exit.complete(SUCCESS);
 		// When
 		boolean result = muxer.waitFor(1, NANOSECONDS);
 		// Then
 		assertThat(result).isTrue();
-		verify(process).isAlive();
-		verify(process).exitValue();
-		verify(process).waitFor(1, NANOSECONDS);
-		verifyNoMoreInteractions(process);
+		verifyZeroInteractions(process);
 	}
 
 	@Test
-	public void testWaitForTimeoutRunningSuccessful()
+	public void testWaitForTimeoutRunningTimesOut()
 			throws Exception {
 		// Given
-		when(process.isAlive()).thenReturn(true);
-		when(process.waitFor(anyLong(), any())).thenReturn(true);
 		muxer.start();
 		// When
 		boolean result = muxer.waitFor(1, NANOSECONDS);
 		// Then
-		assertThat(result).isTrue();
-		verify(process).isAlive();
-		verify(process).waitFor(1, NANOSECONDS);
-		verifyNoMoreInteractions(process);
+		assertThat(result).isFalse();
+		assertThat(muxer.state()).isEqualTo(State.RUNNING);
+		verifyZeroInteractions(process);
 	}
 
 	@Test
 	public void testWaitForTimeoutNonRunningFailed()
 			throws Exception {
 		// Given
-		when(process.isAlive()).thenReturn(false);
-		when(process.exitValue()).thenReturn(-3425);
-		when(process.waitFor(anyLong(), any())).thenReturn(true);
 		muxer.start();
+		exit.complete(-3425);
 		// When
 		boolean result = muxer.waitFor(1, NANOSECONDS);
 		// Then
 		assertThat(result).isTrue();
-		verify(process).isAlive();
-		verify(process).exitValue();
-		verifyNoMoreInteractions(process);
+		verifyZeroInteractions(process);
 	}
 
 	@Test
@@ -335,13 +503,11 @@ public class MuxerTest extends Fixture {
 		// Given
 		muxer.start();
 		Path output = muxer.getOutputForTest();
-		when(process.isAlive()).thenReturn(true);
 		when(output.toFile().isFile()).thenReturn(false, false, true); // 3rd time is the charm!
 		// When
 		boolean result = muxer.waitForOutput();
 		// Then
 		assertThat(result).isTrue();
-		verify(process, times(2)).isAlive();
 		verify(sleeper, times(2)).sleep(anyInt());
 		verify(output.toFile(), times(4)).isFile();
 		assertThat(muxer.state()).isEqualTo(State.RUNNING);
@@ -351,13 +517,13 @@ public class MuxerTest extends Fixture {
 	public void testStartThrice()
 			throws Exception {
 		// Given
-		when(process.isAlive()).thenReturn(true);
 		// When
 		muxer.start();
 		muxer.start();
 		muxer.start();
 		// Then
 		assertThat(muxer.state()).isEqualTo(State.RUNNING);
+		verify(factory).from(Matchers.<String> anyVararg());
 	}
 
 	@Test
@@ -380,18 +546,98 @@ public class MuxerTest extends Fixture {
 		// Given
 		muxer.start();
 		Path output = muxer.getOutputForTest();
-		when(process.isAlive()).thenReturn(true);
 		when(output.toFile().isFile()).thenReturn(false, false, true); // 3rd time is the charm!
 		doThrow(new InterruptedException()).when(sleeper).sleep(anyInt());
 		// When
 		boolean result = muxer.waitForOutput();
 		// Then
 		assertThat(result).isFalse();
-		verify(process).isAlive();
 		verify(sleeper).sleep(anyInt());
 		verify(output.toFile()).isFile();
 	}
 
+	@Test
+	public void testStartWithBackend()
+			throws Exception {
+		// Given
+		Muxer fake = Muxer.of(mkv, srt, tempDir, LaunchProfiles.defaults(), Priority.INTERACTIVE, new FakeBackend(), Preallocator.disabled(), factory,
+				(process, output) -> {
+					this.output = output;
+					return exit;
+				}, sleeper);
+		// When
+		fake.start();
+		output.accept("done 30");
+		// Then
+		verify(factory).from("fake", mkv.toString(), srt.toString(), fake.getOutputForTest().toString());
+		assertThat(fake.getProgress().getPercent()).isEqualTo(30);
+	}
+
+	@Test
+	public void testOutputIsPreallocatedAndTrimmedOnSuccess()
+			throws Exception {
+		// Given
+		Fallocator fallocator = mock(Fallocator.class);
+		ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+		doAnswer(invocation -> {
+			((Runnable) invocation.getArguments()[0]).run();
+			return null;
+		}).when(executor).execute(any(Runnable.class));
+		Preallocator preallocator = new Preallocator(fallocator, executor);
+		when(mkv.toFile().length()).thenReturn(1000L);
+		when(srt.toFile().length()).thenReturn(10L);
+		Muxer preallocating = Muxer.of(mkv, srt, tempDir, LaunchProfiles.defaults(), Priority.INTERACTIVE, MuxBackend.mkvmerge(), preallocator, factory,
+				(process, output) -> exit, sleeper);
+		Path output = preallocating.getOutputForTest();
+		when(output.toFile().isFile()).thenReturn(true);
+		// When
+		preallocating.start();
+		exit.complete(SUCCESS);
+		// Then
+		verify(fallocator).preallocate(output, 1010L);
+		verify(fallocator).trim(output);
+	}
+
+	@Test
+	public void testCancelRunningDestroysProcess()
+			throws Exception {
+		// Given
+		muxer.start();
+		// When
+		muxer.cancel();
+		exit.complete(143);
+		// Then
+		verify(process).destroy();
+		assertThat(muxer.state()).isEqualTo(State.FAILED);
+		verify(muxer.getOutputForTest().toFile()).delete();
+	}
+
+	@Test
+	public void testCancelBeforeStartNeverStarts()
+			throws Exception {
+		// Given
+		// When
+		muxer.cancel();
+		muxer.start();
+		// Then
+		assertThat(muxer.state()).isEqualTo(State.FAILED);
+		assertThat(muxer.onCompletion().toCompletableFuture().get()).isEqualTo(State.FAILED);
+		verifyZeroInteractions(factory);
+	}
+
+	@Test
+	public void testCancelDoneDoesNothing()
+			throws Exception {
+		// Given
+		muxer.start();
+		exit.complete(SUCCESS);
+		// When
+		muxer.cancel();
+		// Then
+		verify(process, never()).destroy();
+		assertThat(muxer.state()).isEqualTo(State.SUCCESSFUL);
+	}
+
 	@Test
 	public void testDefaultFactory() {
 		Muxer factory = MuxerFactory.defaultFactory().from(mkv, srt, tempDir);
@@ -422,4 +668,46 @@ public class MuxerTest extends Fixture {
 	public void testGetMkv() {
 		assertThat(muxer.getMkv()).isEqualTo(mkv);
 	}
+
+	/**
+	 * Stands in for UNIXProcess, which keeps its pid in a field of the same name
+	 */
+	private static class PidProcess extends Process {
+
+		@SuppressWarnings("unused")
+		private final int pid;
+
+		PidProcess(int pid) {
+			this.pid = pid;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return new ByteArrayOutputStream();
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+
+		@Override
+		public InputStream getErrorStream() {
+			return getInputStream();
+		}
+
+		@Override
+		public int waitFor() {
+			return 0;
+		}
+
+		@Override
+		public int exitValue() {
+			return 0;
+		}
+
+		@Override
+		public void destroy() {
+		}
+	}
 }
@@ -0,0 +1,131 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.mux;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Path;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import se.tfiskgul.mux2fs.Fixture;
+import se.tfiskgul.mux2fs.fs.base.Fallocator;
+import se.tfiskgul.mux2fs.mux.Preallocator.Allocation;
+
+public class PreallocatorTest extends Fixture {
+
+	private Path output;
+	private Fallocator fallocator;
+	private ScheduledExecutorService executor;
+	private Preallocator preallocator;
+
+	@Before
+	public void before() {
+		Path root = mockPath("/", mockFileSystem());
+		output = mockPath(root, "out.mkv");
+		fallocator = mock(Fallocator.class);
+		executor = mock(ScheduledExecutorService.class);
+		doAnswer(invocation -> {
+			((Runnable) invocation.getArguments()[0]).run();
+			return null;
+		}).when(executor).execute(any(Runnable.class));
+		preallocator = new Preallocator(fallocator, executor);
+	}
+
+	@Test
+	public void testReservesOnceOutputExists()
+			throws Exception {
+		// Given
+		when(output.toFile().isFile()).thenReturn(false, true);
+		ArgumentCaptor<Runnable> poll = ArgumentCaptor.forClass(Runnable.class);
+		// When
+		Allocation allocation = preallocator.start(output, 1000, () -> true);
+		verify(fallocator, never()).preallocate(any(), anyLong());
+		verify(executor).schedule(poll.capture(), anyLong(), eq(TimeUnit.MILLISECONDS));
+		poll.getValue().run();
+		allocation.finish(true);
+		// Then
+		verify(fallocator).preallocate(output, 1000);
+		verify(fallocator).trim(output);
+	}
+
+	@Test
+	public void testNothingIsReservedAfterTheMuxStopped()
+			throws Exception {
+		// Given
+		when(output.toFile().isFile()).thenReturn(true);
+		// When
+		Allocation allocation = preallocator.start(output, 1000, () -> false);
+		allocation.finish(true);
+		// Then
+		verify(fallocator, never()).preallocate(any(), anyLong());
+		verify(fallocator, never()).trim(any());
+	}
+
+	@Test
+	public void testFailedOutputIsNotTrimmed()
+			throws Exception {
+		// Given
+		when(output.toFile().isFile()).thenReturn(true);
+		// When
+		Allocation allocation = preallocator.start(output, 1000, () -> true);
+		allocation.finish(false);
+		// Then
+		verify(fallocator).preallocate(output, 1000);
+		verify(fallocator, never()).trim(any());
+	}
+
+	@Test
+	public void testUnsupportedIsNotTrimmed()
+			throws Exception {
+		// Given
+		when(output.toFile().isFile()).thenReturn(true);
+		when(fallocator.preallocate(output, 1000)).thenReturn(95); // EOPNOTSUPP
+		// When
+		Allocation allocation = preallocator.start(output, 1000, () -> true);
+		allocation.finish(true);
+		// Then
+		verify(fallocator, never()).trim(any());
+	}
+
+	@Test
+	public void testDisabledDoesNothing() {
+		// Given
+		// When
+		Preallocator.disabled().start(output, 1000, () -> true).finish(true);
+		// Then
+		verify(output, never()).toFile();
+	}
+}
@@ -0,0 +1,142 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.mux;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static se.tfiskgul.mux2fs.Constants.SUCCESS;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProcessReaperTest {
+
+	private ScheduledExecutorService executor;
+	private ProcessReaper reaper;
+	private List<String> lines;
+
+	@Before
+	public void before() {
+		executor = mock(ScheduledExecutorService.class);
+		reaper = new ProcessReaper(executor);
+		lines = new ArrayList<>();
+	}
+
+	@Test
+	public void testReapingIsScheduled() {
+		verify(executor).scheduleWithFixedDelay(any(Runnable.class), anyLong(), anyLong(), eq(TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testRunningProcessIsNotCompleted() {
+		// Given
+		Process process = mock(Process.class);
+		when(process.isAlive()).thenReturn(true);
+		CompletableFuture<Integer> future = reaper.onExit(process, line -> {
+		});
+		// When
+		reaper.reap();
+		// Then
+		assertThat(future.isDone()).isFalse();
+	}
+
+	@Test
+	public void testExitedProcessIsCompletedWithExitValue() {
+		// Given
+		Process process = mock(Process.class);
+		when(process.isAlive()).thenReturn(true, false);
+		when(process.exitValue()).thenReturn(SUCCESS);
+		CompletableFuture<Integer> future = reaper.onExit(process, line -> {
+		});
+		reaper.reap();
+		// When
+		reaper.reap();
+		// Then
+		assertThat(future.getNow(-1)).isEqualTo(SUCCESS);
+	}
+
+	@Test
+	public void testSameProcessGivesSameFuture() {
+		Process process = mock(Process.class);
+		assertThat(reaper.onExit(process, lines::add)).isSameAs(reaper.onExit(process, lines::add));
+	}
+
+	@Test
+	public void testOutputIsSplitIntoLines() {
+		// Given
+		Process process = mock(Process.class);
+		when(process.isAlive()).thenReturn(true);
+		when(process.getInputStream()).thenReturn(new ByteArrayInputStream("first\nsecond\r\nthird\rfou".getBytes(UTF_8)));
+		reaper.onExit(process, lines::add);
+		// When
+		reaper.reap();
+		// Then
+		assertThat(lines).containsExactly("first", "second", "third");
+	}
+
+	@Test
+	public void testAllOutputIsConsumedBeforeExit() {
+		// Given
+		Process process = mock(Process.class);
+		when(process.isAlive()).thenReturn(false);
+		when(process.exitValue()).thenReturn(SUCCESS);
+		when(process.getInputStream()).thenReturn(new ByteArrayInputStream("#GUI#progress 100%\nno newline".getBytes(UTF_8)));
+		CompletableFuture<Integer> future = reaper.onExit(process, lines::add);
+		future.thenRun(() -> lines.add("exited"));
+		// When
+		reaper.reap();
+		// Then
+		assertThat(lines).containsExactly("#GUI#progress 100%", "no newline", "exited");
+	}
+
+	@Test
+	public void testExitedProcessIsForgotten() {
+		// Given
+		Process process = mock(Process.class);
+		when(process.isAlive()).thenReturn(false);
+		when(process.exitValue()).thenReturn(3);
+		CompletableFuture<Integer> first = reaper.onExit(process, line -> {
+		});
+		reaper.reap();
+		// When
+		CompletableFuture<Integer> second = reaper.onExit(process, line -> {
+		});
+		// Then
+		assertThat(first.getNow(-1)).isEqualTo(3);
+		assertThat(second).isNotSameAs(first);
+	}
+}
@@ -0,0 +1,223 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.mux;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import se.tfiskgul.mux2fs.Fixture;
+import se.tfiskgul.mux2fs.fs.base.FileInfo;
+import se.tfiskgul.mux2fs.mux.Muxer.MuxerFactory;
+import se.tfiskgul.mux2fs.mux.Muxer.State;
+import se.tfiskgul.mux2fs.mux.TempTiers.Relocator;
+import se.tfiskgul.mux2fs.mux.TempTiers.Tier;
+
+public class TempTiersTest extends Fixture {
+
+	private Path ram;
+	private Path ssd;
+	private Path tempDir;
+	private Path mkv;
+	private Path srt;
+	private MuxerFactory factory;
+
+	@Before
+	public void before() {
+		Path root = mockPath("/", mockFileSystem());
+		ram = mockPath(root, "ram");
+		ssd = mockPath(root, "ssd");
+		tempDir = mockPath(root, "tmp");
+		mkv = mockPath(root, "mkv.mkv");
+		srt = mockPath(root, "srt.srt");
+		factory = (mkv, srt, directory) -> {
+			Muxer muxer = mock(Muxer.class);
+			Path output = directory.resolve("output.mkv");
+			when(muxer.getOutput()).thenReturn(Optional.of(output));
+			when(muxer.state()).thenReturn(State.SUCCESSFUL);
+			return muxer;
+		};
+	}
+
+	private TempTiers tiers(long ramCapacity, long ssdCapacity) {
+		return new TempTiers(ImmutableList.of(new Tier(ram, ramCapacity), new Tier(ssd, ssdCapacity)), ImmutableList.of(tempDir));
+	}
+
+	private Path directoryOf(Muxer muxer) {
+		return muxer.getOutput().get().getParent();
+	}
+
+	@Test
+	public void testSingleTierDoesNotEstimateSize() {
+		// Given
+		TempTiers tiers = TempTiers.single(tempDir);
+		MuxerFactory muxerFactory = mock(MuxerFactory.class);
+		// When
+		tiers.place(mkv, srt, () -> {
+			throw new AssertionError("Size must not be estimated");
+		}, muxerFactory);
+		// Then
+		assertThat(tiers.isTiered()).isFalse();
+		verify(muxerFactory).from(mkv, srt, tempDir);
+	}
+
+	@Test
+	public void testPlacedInFastestTierWithRoom() {
+		// Given
+		TempTiers tiers = tiers(100, 1000);
+		// When
+		Muxer first = tiers.place(mkv, srt, () -> 60, factory);
+		Muxer second = tiers.place(mkv, srt, () -> 60, factory);
+		Muxer third = tiers.place(mkv, srt, () -> 5000, factory);
+		// Then
+		assertThat(directoryOf(first)).isEqualTo(ram);
+		assertThat(directoryOf(second)).isEqualTo(ssd);
+		assertThat(directoryOf(third)).isEqualTo(tempDir);
+	}
+
+	@Test
+	public void testRemovedFreesSpace() {
+		// Given
+		TempTiers tiers = tiers(100, 1000);
+		Muxer first = tiers.place(mkv, srt, () -> 60, factory);
+		// When
+		tiers.removed(first);
+		Muxer second = tiers.place(mkv, srt, () -> 60, factory);
+		// Then
+		assertThat(directoryOf(second)).isEqualTo(ram);
+	}
+
+	@Test
+	public void testRebalancePromotesReopened()
+			throws Exception {
+		// Given
+		TempTiers tiers = tiers(100, 1000);
+		Muxer cold = tiers.place(mkv, srt, () -> 30, factory);
+		Muxer gone = tiers.place(mkv, srt, () -> 600, factory);
+		Muxer hot = tiers.place(mkv, srt, () -> 500, factory);
+		assertThat(directoryOf(hot)).isEqualTo(tempDir);
+		tiers.removed(gone);
+		tiers.accessed(hot);
+		tiers.accessed(hot);
+		tiers.accessed(cold);
+		Relocator relocator = mock(Relocator.class);
+		when(relocator.relocate(any(), any())).thenReturn(true);
+		MuxedFile hotFile = new MuxedFile(mock(FileInfo.class), hot);
+		List<MuxedFile> closed = ImmutableList.of(new MuxedFile(mock(FileInfo.class), cold), hotFile);
+		// When
+		tiers.rebalance(closed, relocator);
+		// Then
+		verify(relocator).relocate(hotFile, ssd);
+		assertThat(tiers.getPromotions()).isEqualTo(1);
+	}
+
+	@Test
+	public void testRebalanceDemotesColdestOverCapacity()
+			throws Exception {
+		// Given
+		TempTiers tiers = tiers(100, 1000);
+		Muxer hot = tiers.place(mkv, srt, () -> 40, factory);
+		Muxer cold = tiers.place(mkv, srt, () -> 40, factory);
+		tiers.accessed(hot);
+		Path grown = mockPath(ram, "hot.mkv", 70);
+		when(hot.getOutput()).thenReturn(Optional.of(grown));
+		Relocator relocator = mock(Relocator.class);
+		when(relocator.relocate(any(), any())).thenReturn(true);
+		MuxedFile coldFile = new MuxedFile(mock(FileInfo.class), cold);
+		// When
+		tiers.rebalance(ImmutableList.of(new MuxedFile(mock(FileInfo.class), hot), coldFile), relocator);
+		// Then
+		verify(relocator).relocate(coldFile, ssd);
+		assertThat(tiers.getDemotions()).isEqualTo(1);
+	}
+
+	@Test
+	public void testFailedMoveKeepsAccounting()
+			throws Exception {
+		// Given
+		TempTiers tiers = tiers(100, 1000);
+		Muxer gone = tiers.place(mkv, srt, () -> 60, factory);
+		Muxer hot = tiers.place(mkv, srt, () -> 50, factory);
+		tiers.removed(gone);
+		tiers.accessed(hot);
+		tiers.accessed(hot);
+		Relocator relocator = mock(Relocator.class);
+		// When
+		tiers.rebalance(ImmutableList.of(new MuxedFile(mock(FileInfo.class), hot)), relocator);
+		// Then
+		assertThat(tiers.getPromotions()).isZero();
+		assertThat(directoryOf(tiers.place(mkv, srt, () -> 100, factory))).isEqualTo(ram);
+	}
+
+	@Test
+	public void testSingleTierNeverRebalances() {
+		Relocator relocator = mock(Relocator.class);
+		TempTiers.single(tempDir).rebalance(ImmutableList.of(), relocator);
+		verifyZeroInteractions(relocator);
+	}
+
+	@Test
+	public void testShardWithFewestWritersThenMostSpace() {
+		// Given
+		Path nvme = mockPath(tempDir.getParent(), "nvme");
+		when(tempDir.toFile().getUsableSpace()).thenReturn(1000L);
+		when(nvme.toFile().getUsableSpace()).thenReturn(500L);
+		TempTiers tiers = new TempTiers(ImmutableList.of(), ImmutableList.of(tempDir, nvme));
+		// When
+		Muxer first = tiers.place(mkv, srt, () -> 100, factory);
+		Muxer second = tiers.place(mkv, srt, () -> 100, factory);
+		tiers.completed(first);
+		Muxer third = tiers.place(mkv, srt, () -> 100, factory);
+		// Then
+		assertThat(directoryOf(first)).isEqualTo(tempDir);
+		assertThat(directoryOf(second)).isEqualTo(nvme);
+		assertThat(directoryOf(third)).isEqualTo(tempDir);
+	}
+
+	@Test
+	public void testShardWithoutRoomIsAvoided() {
+		// Given
+		Path nvme = mockPath(tempDir.getParent(), "nvme");
+		when(tempDir.toFile().getUsableSpace()).thenReturn(50L);
+		when(nvme.toFile().getUsableSpace()).thenReturn(500L);
+		TempTiers tiers = new TempTiers(ImmutableList.of(), ImmutableList.of(tempDir, nvme));
+		tiers.place(mkv, srt, () -> 100, factory);
+		// When
+		Muxer muxer = tiers.place(mkv, srt, () -> 100, factory);
+		// Then
+		assertThat(directoryOf(muxer)).isEqualTo(nvme);
+	}
+}
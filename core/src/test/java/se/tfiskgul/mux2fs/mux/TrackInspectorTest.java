@@ -0,0 +1,132 @@
+/*
+MIT License
+
+Copyright (c) 2017 Carl-Frederik Hallberg
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package se.tfiskgul.mux2fs.mux;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import se.tfiskgul.mux2fs.Fixture;
+import se.tfiskgul.mux2fs.fs.base.FileInfo;
+import se.tfiskgul.mux2fs.mux.MatroskaTracks.Track;
+
+public class TrackInspectorTest extends Fixture {
+
+	private final FileInfo info = new FileInfo(1, Instant.now(), Instant.now(), 1000);
+	private Path root;
+	private Path mkv;
+
+	@Before
+	public void before() {
+		root = mockPath("/", mockFileSystem());
+		mkv = mockPath(root, "Movie.mkv");
+	}
+
+	@Test
+	public void testLanguageOf() {
+		assertThat(TrackInspector.languageOf(mkv, mockPath(root, "Movie.srt"))).isEmpty();
+		assertThat(TrackInspector.languageOf(mkv, mockPath(root, "movie.en.srt"))).contains("eng");
+		assertThat(TrackInspector.languageOf(mkv, mockPath(root, "Movie.swe.srt"))).contains("swe");
+		assertThat(TrackInspector.languageOf(mkv, mockPath(root, "Movie.forced.de.srt"))).contains("deu");
+		assertThat(TrackInspector.languageOf(mkv, mockPath(root, "Movie.sdh.srt"))).isEmpty();
+	}
+
+	@Test
+	public void testNormalize() {
+		assertThat(TrackInspector.normalize("ger")).contains("deu");
+		assertThat(TrackInspector.normalize("deu")).contains("deu");
+		assertThat(TrackInspector.normalize("de-CH")).contains("deu");
+		assertThat(TrackInspector.normalize("und")).isEmpty();
+		assertThat(TrackInspector.normalize("xyz")).isEmpty();
+		assertThat(TrackInspector.normalize(null)).isEmpty();
+	}
+
+	@Test
+	public void testEquivalentTextSubtitle() {
+		// Given
+		TrackInspector inspector = new TrackInspector(path -> ImmutableList.of(new Track(17, "S_TEXT/UTF8", "fre", null)));
+		// When
+		boolean result = inspector.hasEquivalent(mkv, info, mockPath(root, "Movie.fr.srt"));
+		// Then
+		assertThat(result).isTrue();
+	}
+
+	@Test
+	public void testOtherLanguageOrCodecIsNotEquivalent() {
+		// Given
+		TrackInspector inspector = new TrackInspector(
+				path -> ImmutableList.of(new Track(17, "S_TEXT/UTF8", "swe", null), new Track(17, "S_HDMV/PGS", "eng", null)));
+		// When
+		boolean result = inspector.hasEquivalent(mkv, info, mockPath(root, "Movie.eng.srt"));
+		// Then
+		assertThat(result).isFalse();
+	}
+
+	@Test
+	public void testSubtitleWithoutLanguageIsNeverEquivalent() {
+		// Given
+		TrackInspector inspector = new TrackInspector(path -> ImmutableList.of(new Track(17, "S_TEXT/UTF8", "eng", null)));
+		// When
+		boolean result = inspector.hasEquivalent(mkv, info, mockPath(root, "Movie.srt"));
+		// Then
+		assertThat(result).isFalse();
+	}
+
+	@Test
+	public void testTracksAreCachedPerFileInfo() {
+		// Given
+		AtomicInteger reads = new AtomicInteger();
+		TrackInspector inspector = new TrackInspector(path -> {
+			reads.incrementAndGet();
+			return ImmutableList.of(new Track(17, "S_TEXT/UTF8", "eng", null));
+		});
+		Path srt = mockPath(root, "Movie.eng.srt");
+		// When
+		inspector.hasEquivalent(mkv, info, srt);
+		boolean result = inspector.hasEquivalent(mkv, info, srt);
+		// Then
+		assertThat(result).isTrue();
+		assertThat(reads.get()).isEqualTo(1);
+	}
+
+	@Test
+	public void testUnreadableTracksMeansMuxing() {
+		// Given
+		TrackInspector inspector = new TrackInspector(path -> {
+			throw new IOException("Not an EBML file");
+		});
+		// When
+		boolean result = inspector.hasEquivalent(mkv, info, mockPath(root, "Movie.eng.srt"));
+		// Then
+		assertThat(result).isFalse();
+	}
+}